@@ -0,0 +1,30 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+/**
+ * The {@link SyntheticCorpus} configuration of all benchmarks, so that their results stay comparable.
+ */
+final class BenchmarkCorpora {
+
+    private BenchmarkCorpora() {
+    }
+
+    /**
+     * Creates a corpus with uniformly popular types and methods and a Zipf distributed vocabulary of 5000 terms. The
+     * line context of the documents is about a quarter of their overall context.
+     *
+     * @param seed           seed of the generated documents
+     * @param types          number of distinct receiver types
+     * @param contextLength  number of terms drawn for the overall context
+     * @param duplicateRatio share of documents which repeat an earlier one, in [0, 1)
+     */
+    static SyntheticCorpus create(long seed, int types, int contextLength, double duplicateRatio) {
+        SyntheticCorpus corpus = new SyntheticCorpus(seed);
+        corpus.setTypes(types, 0.0);
+        corpus.setMethodsPerType(20, 0.0);
+        corpus.setVocabulary(5000, 1.0);
+        corpus.setContextLength(contextLength, 1 + contextLength / 4);
+        corpus.setDuplicateRatio(duplicateRatio);
+        return corpus;
+    }
+
+}
@@ -0,0 +1,72 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Stream of documents of one large type whose simhashes are a few bits away from one of a number of centers, so that
+ * many documents are close to each other as with real code. Unlike in a {@link SyntheticCorpus}, the simhashes are not
+ * computed from the contexts, and the overall contexts are drawn from a small vocabulary, so that the postings of a
+ * query are long enough for the {@link SimhashNeighborIndex} of the type to be asked.
+ */
+final class ClusteredCorpus {
+
+    private static final String TYPE = SyntheticCorpus.TYPE_PREFIX + 0;
+    private static final int METHODS = 50;
+    private static final int VOCABULARY = 20;
+    // documents differ from their center in up to this many bits of each simhash
+    private static final int MAX_FLIPPED_BITS = 8;
+
+    private final Random random;
+    private final long[] centers;
+    private final int contextLength;
+
+    /**
+     * @param seed          seed of the generated documents
+     * @param centers       number of simhash centers, the fewer centers the denser the clusters
+     * @param contextLength number of distinct terms in the overall context, at most 20
+     */
+    ClusteredCorpus(long seed, int centers, int contextLength) {
+        this.random = new Random(seed);
+        this.centers = new long[centers];
+        for (int i = 0; i < centers; i++) {
+            this.centers[i] = random.nextLong();
+        }
+        this.contextLength = Math.min(contextLength, VOCABULARY);
+    }
+
+    /**
+     * @return the next document of the stream
+     */
+    IndexDocument nextDocument() {
+        return next(SyntheticCorpus.METHOD_PREFIX + random.nextInt(METHODS));
+    }
+
+    /**
+     * @return a query with the same distribution as the documents, i.e. a document without method call
+     */
+    IndexDocument nextQuery() {
+        return next(null);
+    }
+
+    private IndexDocument next(String methodCall) {
+        Set<String> overallContext = new TreeSet<>();
+        while (overallContext.size() < contextLength) {
+            overallContext.add(SyntheticCorpus.TOKEN_PREFIX + random.nextInt(VOCABULARY));
+        }
+        long lineContextSimhash = centers[random.nextInt(centers.length)];
+        long overallContextSimhash = centers[random.nextInt(centers.length)];
+        for (int i = random.nextInt(MAX_FLIPPED_BITS); i > 0; i--) {
+            lineContextSimhash ^= 1L << random.nextInt(64);
+            overallContextSimhash ^= 1L << random.nextInt(64);
+        }
+        String docId = DigestUtils.sha256Hex(TYPE + methodCall + overallContext + lineContextSimhash + overallContextSimhash);
+        return new IndexDocument(docId, methodCall, TYPE, new ArrayList<>(), overallContext, lineContextSimhash,
+                overallContextSimhash);
+    }
+
+}
@@ -0,0 +1,101 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-document work: creating a document (docID hash and simhashes) and comparing two documents with the distance
+ * and similarity measures of the refinement and ranking.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexDocumentBenchmark {
+
+    // number of distinct documents, a power of two
+    private static final int DOCUMENTS = 1024;
+    private static final long SEED = 42;
+
+    /**
+     * Number of terms in the overall context of the documents.
+     */
+    @Param({"3", "6", "12", "24"})
+    public int contextLength;
+
+    private final List<List<String>> lineContexts = new ArrayList<>(DOCUMENTS);
+    private final List<List<String>> overallContexts = new ArrayList<>(DOCUMENTS);
+    private final IndexDocument[] documents = new IndexDocument[DOCUMENTS];
+    private final IndexDocument[] queries = new IndexDocument[DOCUMENTS];
+
+    /**
+     * Position of a thread in the documents, so that the benchmarks cycle through all of them.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position = 0;
+
+        int next() {
+            position = (position + 1) & (DOCUMENTS - 1);
+            return position;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCorpus corpus = BenchmarkCorpora.create(SEED, 1, contextLength, 0.0);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documents[i] = corpus.nextDocument();
+            lineContexts.add(documents[i].getLineContext());
+            overallContexts.add(documents[i].getOverallContext());
+            queries[i] = corpus.nextQuery();
+        }
+    }
+
+    /**
+     * Creating a document computes its docID and the simhashes of both contexts.
+     */
+    @Benchmark
+    public IndexDocument create(Cursor cursor) {
+        int i = cursor.next();
+        return new IndexDocument("Type0.method0", "Type0", lineContexts.get(i), overallContexts.get(i));
+    }
+
+    @Benchmark
+    public int hammingRefinement(Cursor cursor) {
+        int i = cursor.next();
+        IndexDocument doc = documents[i];
+        IndexDocument query = queries[i];
+        return IndexDocument.refinementDistance(doc.getLineContextSimhash(), doc.getOverallContextSimhash(),
+                query.getLineContextSimhash(), query.getOverallContextSimhash(),
+                RecommendationPipeline.DEFAULT_SWITCH_TO_LINE_CONTEXT_THRESHOLD);
+    }
+
+    @Benchmark
+    public double longestCommonSubsequence(Cursor cursor) {
+        int i = cursor.next();
+        return documents[i].normalizedLongestCommonSubsequenceLengthOverallContextToOther(queries[i]);
+    }
+
+    /**
+     * LCS as the ranking computes it, giving up on candidates which cannot pass the filtering threshold.
+     */
+    @Benchmark
+    public double longestCommonSubsequenceAboveThreshold(Cursor cursor) {
+        int i = cursor.next();
+        return documents[i].normalizedLongestCommonSubsequenceLengthOverallContextToOther(queries[i],
+                RecommendationPipeline.DEFAULT_FILTERING_THRESHOLD);
+    }
+
+    @Benchmark
+    public double levenshtein(Cursor cursor) {
+        int i = cursor.next();
+        return documents[i].normalizedLevenshteinDistanceLineContextToOther(queries[i]);
+    }
+
+}
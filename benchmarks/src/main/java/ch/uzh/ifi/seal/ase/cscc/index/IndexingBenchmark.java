@@ -0,0 +1,94 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time it takes to index a document, measured by indexing a fixed stream of documents into a new index, including
+ * the commits and the final {@link IInvertedIndex#finishIndexing()}. The score is the time per document, so docs/sec
+ * is its inverse.
+ * <p>
+ * Run with {@code -prof gc} for the allocation rate and the bytes allocated per document. The bytes the index takes
+ * on disk per document are printed after every invocation. For sustained throughput over hours, see
+ * {@link IndexingThroughputHarness}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(IndexingBenchmark.DOCUMENTS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexingBenchmark {
+
+    static final int DOCUMENTS = 20000;
+    private static final long SEED = 42;
+
+    @Param({"IN_MEMORY", "DISK_SQLITE", "DISK_SQLITE_DUPLICATE_FILTER", "DISK_SERIALIZED_FILES", "DISK_MAPPED_LOG",
+            "PARALLELIZED_SQLITE"})
+    public IndexingTarget target;
+
+    /**
+     * Share of documents which have been indexed already.
+     */
+    @Param({"0.0", "0.5", "0.9"})
+    public double duplicateRatio;
+
+    /**
+     * Number of indexing threads, only used by {@link IndexingTarget#PARALLELIZED_SQLITE}. Pass e.g.
+     * {@code -p threads=1,2,4,8} to compare thread counts.
+     */
+    @Param({"4"})
+    public int threads;
+
+    /**
+     * Number of documents after which the index is committed.
+     */
+    @Param({"1000", "10000"})
+    public int commitInterval;
+
+    @Param({"6"})
+    public int contextLength;
+
+    private List<IndexDocument> documents;
+    private File indexDir;
+    private IInvertedIndex index;
+
+    @Setup(Level.Trial)
+    public void generateDocuments() {
+        documents = BenchmarkCorpora.create(SEED, 50, contextLength, duplicateRatio).nextDocuments(DOCUMENTS);
+    }
+
+    // an invocation indexes thousands of documents, so a new index per invocation does not skew the measurement
+    @Setup(Level.Invocation)
+    public void createIndex() throws IOException {
+        indexDir = Files.createTempDirectory("cscc-benchmark").toFile();
+        index = target.create(indexDir, threads, commitInterval);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteIndex() throws IOException {
+        index.close();
+        System.out.printf("%n%.1f bytes on disk per document%n", (double) FileUtils.sizeOfDirectory(indexDir) / DOCUMENTS);
+        FileUtils.deleteDirectory(indexDir);
+    }
+
+    @Benchmark
+    public void indexDocuments() {
+        index.startIndexing();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            index.indexDocument(documents.get(i));
+            if ((i + 1) % commitInterval == 0) {
+                index.commit();
+            }
+        }
+        index.finishIndexing();
+    }
+
+}
@@ -0,0 +1,72 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.io.File;
+
+/**
+ * Index configurations whose indexing throughput is measured.
+ */
+public enum IndexingTarget {
+
+    IN_MEMORY {
+        @Override
+        IInvertedIndex create(File dir, int threads, int commitInterval) {
+            return new InMemoryInvertedIndex();
+        }
+    },
+    DISK_SQLITE {
+        @Override
+        IInvertedIndex create(File dir, int threads, int commitInterval) {
+            DiskBasedInvertedIndex index = new DiskBasedInvertedIndex(dir.getPath(), DiskBasedInvertedIndex.DocumentStorage.SQLITE);
+            // group commits at the commit interval only, as in training
+            index.enableBulkLoading(commitInterval, Long.MAX_VALUE);
+            return index;
+        }
+    },
+    DISK_SQLITE_DUPLICATE_FILTER {
+        @Override
+        IInvertedIndex create(File dir, int threads, int commitInterval) {
+            DiskBasedInvertedIndex index = (DiskBasedInvertedIndex) DISK_SQLITE.create(dir, threads, commitInterval);
+            index.enableDuplicateFilter(1000000, 0.01);
+            return index;
+        }
+    },
+    DISK_SERIALIZED_FILES {
+        @Override
+        IInvertedIndex create(File dir, int threads, int commitInterval) {
+            return new DiskBasedInvertedIndex(dir.getPath(), DiskBasedInvertedIndex.DocumentStorage.SERIALIZED_FILES);
+        }
+    },
+    DISK_MAPPED_LOG {
+        @Override
+        IInvertedIndex create(File dir, int threads, int commitInterval) {
+            return new DiskBasedInvertedIndex(dir.getPath(), DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        }
+    },
+    PARALLELIZED_SQLITE {
+        @Override
+        IInvertedIndex create(File dir, int threads, int commitInterval) {
+            return new ParallelizedInvertedIndex(dir.getPath(), true, threads);
+        }
+
+        @Override
+        boolean usesThreads() {
+            return true;
+        }
+    };
+
+    /**
+     * @param dir            directory for the index files, unused by in-memory indexes
+     * @param threads        number of indexing threads, see {@link #usesThreads()}
+     * @param commitInterval number of documents after which the index is committed
+     * @return a new index
+     */
+    abstract IInvertedIndex create(File dir, int threads, int commitInterval);
+
+    /**
+     * @return false if the index indexes documents on the calling thread and ignores the number of threads
+     */
+    boolean usesThreads() {
+        return false;
+    }
+
+}
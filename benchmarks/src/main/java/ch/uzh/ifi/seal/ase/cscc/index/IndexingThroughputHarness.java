@@ -0,0 +1,123 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indexes synthetic documents for a long time and reports the sustained throughput, which short JMH runs cannot show
+ * (e.g. when Lucene merges large segments or the document store outgrows the page cache).
+ * <p>
+ * Every report interval, it prints
+ * <ul>
+ * <li>docs/sec over the interval, both over the wall-clock time and over the time spent in the index only, without
+ * generating the documents</li>
+ * <li>the allocation rate of all threads in MB/sec, without the allocations of the document generation. Threads
+ * which end within an interval (e.g. Lucene merge threads) are only counted up to the last report.</li>
+ * <li>the bytes on disk per indexed document, which includes the uncommitted part of the index</li>
+ * </ul>
+ * Usage: {@code java -cp target/benchmarks.jar ch.uzh.ifi.seal.ase.cscc.index.IndexingThroughputHarness
+ * [target] [duplicateRatio] [threads] [commitInterval] [minutes] [reportSeconds]}, see {@link IndexingTarget} for
+ * the targets.
+ */
+public class IndexingThroughputHarness {
+
+    private static final long SEED = 42;
+    private static final int CONTEXT_LENGTH = 6;
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // allocated bytes of every thread at the last report
+    private final Map<Long, Long> allocatedBytesAtLastReport = new HashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        IndexingTarget target = args.length > 0 ? IndexingTarget.valueOf(args[0]) : IndexingTarget.DISK_SQLITE;
+        double duplicateRatio = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int commitInterval = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        double minutes = args.length > 4 ? Double.parseDouble(args[4]) : 60;
+        long reportSeconds = args.length > 5 ? Long.parseLong(args[5]) : 10;
+        System.out.printf("target=%s duplicateRatio=%s threads=%d commitInterval=%d minutes=%s%n",
+                target, duplicateRatio, threads, commitInterval, minutes);
+        new IndexingThroughputHarness().run(target, duplicateRatio, threads, commitInterval,
+                (long) (minutes * 60 * 1000), reportSeconds * 1000);
+    }
+
+    private void run(IndexingTarget target, double duplicateRatio, int threads, int commitInterval,
+                     long durationMillis, long reportIntervalMillis) throws IOException {
+        File indexDir = Files.createTempDirectory("cscc-harness").toFile();
+        IInvertedIndex index = target.create(indexDir, threads, commitInterval);
+        SyntheticCorpus documents = BenchmarkCorpora.create(SEED, 50, CONTEXT_LENGTH, duplicateRatio);
+        long producerThreadId = Thread.currentThread().getId();
+
+        System.out.println("seconds\tdocs\tdocs/sec\tindex docs/sec\talloc MB/sec\tdisk bytes/doc");
+        allocatedBytes();
+        index.startIndexing();
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        long docs = 0;
+        long docsAtLastReport = 0;
+        long indexNanos = 0;
+        long generationAllocatedBytes = 0;
+        while (System.currentTimeMillis() - start < durationMillis) {
+            long generationAllocationStart = threadMXBean.getThreadAllocatedBytes(producerThreadId);
+            IndexDocument doc = documents.nextDocument();
+            generationAllocatedBytes += threadMXBean.getThreadAllocatedBytes(producerThreadId) - generationAllocationStart;
+            long indexStart = System.nanoTime();
+            index.indexDocument(doc);
+            docs++;
+            if (docs % commitInterval == 0) {
+                index.commit();
+            }
+            indexNanos += System.nanoTime() - indexStart;
+
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= reportIntervalMillis) {
+                long windowDocs = docs - docsAtLastReport;
+                double seconds = (now - lastReport) / 1000.0;
+                System.out.printf("%d\t%d\t%.0f\t%.0f\t%.1f\t%.1f%n",
+                        (now - start) / 1000, docs, windowDocs / seconds, windowDocs / (indexNanos / 1e9),
+                        (allocatedBytes() - generationAllocatedBytes) / seconds / (1 << 20),
+                        (double) FileUtils.sizeOfDirectory(indexDir) / docs);
+                lastReport = now;
+                docsAtLastReport = docs;
+                indexNanos = 0;
+                generationAllocatedBytes = 0;
+            }
+        }
+        long finishStart = System.currentTimeMillis();
+        index.finishIndexing();
+        index.close();
+        long end = System.currentTimeMillis();
+        System.out.printf("indexed %d documents in %.1f seconds (%.1f seconds to finish indexing): %.0f docs/sec, "
+                        + "%.1f bytes on disk per document%n", docs, (end - start) / 1000.0,
+                (end - finishStart) / 1000.0, docs / ((end - start) / 1000.0),
+                (double) FileUtils.sizeOfDirectory(indexDir) / docs);
+        FileUtils.deleteDirectory(indexDir);
+    }
+
+    /**
+     * @return bytes allocated by all threads since the last call
+     */
+    private long allocatedBytes() {
+        long allocated = 0;
+        long[] threadIds = threadMXBean.getAllThreadIds();
+        long[] allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadIds);
+        Map<Long, Long> current = new HashMap<>();
+        for (int i = 0; i < threadIds.length; i++) {
+            if (allocatedBytes[i] >= 0) {
+                current.put(threadIds[i], allocatedBytes[i]);
+                allocated += allocatedBytes[i] - allocatedBytesAtLastReport.getOrDefault(threadIds[i], 0L);
+            }
+        }
+        allocatedBytesAtLastReport.clear();
+        allocatedBytesAtLastReport.putAll(current);
+        return allocated;
+    }
+
+}
@@ -0,0 +1,191 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import cc.kave.commons.model.naming.codeelements.IMethodName;
+import cc.kave.rsse.calls.datastructures.Tuple;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a completion query and of each stage of the {@link RecommendationPipeline}, on synthetic corpora in
+ * the different indexes. On the clustered corpus, MAPPED_LOG and MAPPED_LOG_NEIGHBORS compare the refined search
+ * through the simhash neighbor indexes with the full Lucene query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    public enum IndexKind {
+        IN_MEMORY, SQLITE, SERIALIZED_FILES, MAPPED_LOG, MAPPED_LOG_NEIGHBORS, PRIMITIVE
+    }
+
+    public enum CorpusKind {
+        /**
+         * {@link BenchmarkCorpora#create}: 50 types, simhashes computed from the contexts
+         */
+        UNIFORM,
+        /**
+         * {@link ClusteredCorpus} with 200 simhash centers: one large type whose documents are close to each other
+         */
+        CLUSTERED
+    }
+
+    // number of distinct queries, a power of two
+    private static final int QUERIES = 256;
+    private static final long SEED = 42;
+
+    @Param({"IN_MEMORY", "SQLITE", "SERIALIZED_FILES", "MAPPED_LOG", "MAPPED_LOG_NEIGHBORS", "PRIMITIVE"})
+    public IndexKind indexKind;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    public CorpusKind corpusKind;
+
+    @Param({"10000", "100000"})
+    public int corpusSize;
+
+    /**
+     * Number of refined candidates, i.e. the size of the candidate set which is ranked.
+     */
+    @Param({"50", "200"})
+    public int k;
+
+    /**
+     * Number of terms in the overall context of documents and queries.
+     */
+    @Param({"6", "12"})
+    public int contextLength;
+
+    private File indexDir;
+    private IInvertedIndex index;
+    private ICandidateStage candidateStage;
+    private IRankingStage rankingStage;
+    private KaVeRecommender recommender;
+    private IndexDocument[] queries;
+    private List<List<IndexDocument>> refinedCandidates;
+
+    /**
+     * Position of a thread in the queries, so that the benchmarks cycle through all of them.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position = 0;
+
+        int next() {
+            position = (position + 1) & (QUERIES - 1);
+            return position;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticCorpus corpus = BenchmarkCorpora.create(SEED, 50, contextLength, 0.0);
+        ClusteredCorpus clusteredCorpus = new ClusteredCorpus(SEED, 200, contextLength);
+        switch (indexKind) {
+            case IN_MEMORY:
+                index = new InMemoryInvertedIndex();
+                break;
+            case SQLITE:
+                indexDir = Files.createTempDirectory("cscc-benchmark").toFile();
+                DiskBasedInvertedIndex sqliteIndex = new DiskBasedInvertedIndex(indexDir.getPath(), DiskBasedInvertedIndex.DocumentStorage.SQLITE);
+                sqliteIndex.enableBulkLoading(10000, 10000);
+                index = sqliteIndex;
+                break;
+            case SERIALIZED_FILES:
+                indexDir = Files.createTempDirectory("cscc-benchmark").toFile();
+                index = new DiskBasedInvertedIndex(indexDir.getPath(), DiskBasedInvertedIndex.DocumentStorage.SERIALIZED_FILES);
+                break;
+            case MAPPED_LOG:
+            case MAPPED_LOG_NEIGHBORS:
+                indexDir = Files.createTempDirectory("cscc-benchmark").toFile();
+                DiskBasedInvertedIndex mappedIndex = new DiskBasedInvertedIndex(indexDir.getPath(), DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+                mappedIndex.enableBulkLoading(10000, 10000);
+                if (indexKind == IndexKind.MAPPED_LOG_NEIGHBORS) {
+                    mappedIndex.enableSimhashNeighborIndex();
+                }
+                index = mappedIndex;
+                break;
+            case PRIMITIVE:
+                index = new PrimitiveInvertedIndex();
+                break;
+        }
+        index.startIndexing();
+        for (int i = 0; i < corpusSize; i++) {
+            index.indexDocument(corpusKind == CorpusKind.CLUSTERED ? clusteredCorpus.nextDocument() : corpus.nextDocument());
+        }
+        index.finishIndexing();
+
+        candidateStage = new IndexSearchCandidateStage(index);
+        rankingStage = new BoundedRankingStage(SimilarityKernels.BIT_PARALLEL);
+        recommender = new KaVeRecommender(new RecommendationPipeline(candidateStage, rankingStage, k,
+                RecommendationPipeline.DEFAULT_SWITCH_TO_LINE_CONTEXT_THRESHOLD,
+                RecommendationPipeline.DEFAULT_FILTERING_THRESHOLD, RecommendationPipeline.DEFAULT_CANDIDATES_TO_SUGGEST));
+        queries = new IndexDocument[QUERIES];
+        refinedCandidates = new ArrayList<>(QUERIES);
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = corpusKind == CorpusKind.CLUSTERED ? clusteredCorpus.nextQuery() : corpus.nextQuery();
+            refinedCandidates.add(findRefinedCandidates(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        if (indexDir != null) {
+            FileUtils.deleteDirectory(indexDir);
+        }
+    }
+
+    private List<IndexDocument> findRefinedCandidates(int query) {
+        return candidateStage.findRefinedCandidates(queries[query], k,
+                RecommendationPipeline.DEFAULT_SWITCH_TO_LINE_CONTEXT_THRESHOLD);
+    }
+
+    /**
+     * Whole query through the {@link cc.kave.rsse.calls.ICallsRecommender} interface.
+     */
+    @Benchmark
+    public Set<Tuple<IMethodName, Double>> query(Cursor cursor) {
+        return recommender.query(queries[cursor.next()]);
+    }
+
+    /**
+     * Unrefined search for all base candidates.
+     */
+    @Benchmark
+    public Set<IndexDocument> baseCandidates(Cursor cursor) {
+        index.startSearching();
+        Set<IndexDocument> baseCandidates = index.search(queries[cursor.next()]);
+        index.finishSearching();
+        return baseCandidates;
+    }
+
+    /**
+     * Candidate stage: search and refinement to the k closest candidates.
+     */
+    @Benchmark
+    public List<IndexDocument> candidateStage(Cursor cursor) {
+        return findRefinedCandidates(cursor.next());
+    }
+
+    /**
+     * Ranking stage on the refined candidates found during setup.
+     */
+    @Benchmark
+    public Ranking rankingStage(Cursor cursor) {
+        int query = cursor.next();
+        return rankingStage.rank(queries[query], refinedCandidates.get(query),
+                RecommendationPipeline.DEFAULT_FILTERING_THRESHOLD, RecommendationPipeline.DEFAULT_CANDIDATES_TO_SUGGEST);
+    }
+
+}
@@ -0,0 +1,83 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranking stage on its own, for each {@link IRankingStage} and {@link SimilarityKernels}, so that the variants can be
+ * compared on the same candidate sets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RankingBenchmark {
+
+    public enum RankingStageKind {
+        BOUNDED, EXHAUSTIVE
+    }
+
+    // number of distinct queries, a power of two
+    private static final int QUERIES = 64;
+    private static final long SEED = 42;
+
+    @Param({"BOUNDED", "EXHAUSTIVE"})
+    public RankingStageKind rankingStageKind;
+
+    @Param({"BIT_PARALLEL", "COMMONS_TEXT"})
+    public SimilarityKernels kernels;
+
+    /**
+     * Number of candidates per query, i.e. k of the candidate stage.
+     */
+    @Param({"50", "200", "1000"})
+    public int candidates;
+
+    /**
+     * Number of terms in the overall context of candidates and queries.
+     */
+    @Param({"6", "12"})
+    public int contextLength;
+
+    private IRankingStage rankingStage;
+    private final IndexDocument[] queries = new IndexDocument[QUERIES];
+    private final List<List<IndexDocument>> candidateSets = new ArrayList<>(QUERIES);
+
+    /**
+     * Position of a thread in the queries, so that the benchmark cycles through all of them.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position = 0;
+
+        int next() {
+            position = (position + 1) & (QUERIES - 1);
+            return position;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rankingStage = rankingStageKind == RankingStageKind.BOUNDED
+                ? new BoundedRankingStage(kernels) : new ExhaustiveRankingStage(kernels);
+        // one type, so that all candidates are of the query's type like the candidates of a real query
+        SyntheticCorpus corpus = BenchmarkCorpora.create(SEED, 1, contextLength, 0.0);
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = corpus.nextQuery();
+            candidateSets.add(corpus.nextDocuments(candidates));
+        }
+    }
+
+    @Benchmark
+    public Ranking rank(Cursor cursor) {
+        int query = cursor.next();
+        return rankingStage.rank(queries[query], candidateSets.get(query),
+                RecommendationPipeline.DEFAULT_FILTERING_THRESHOLD, RecommendationPipeline.DEFAULT_CANDIDATES_TO_SUGGEST);
+    }
+
+}
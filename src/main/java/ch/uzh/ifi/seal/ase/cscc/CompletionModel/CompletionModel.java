@@ -38,10 +38,26 @@ public class CompletionModel {
         sst.accept(indexDocumentExtractionVisitor, index);
     }
 
+    /**
+     * Adds an IndexDocument, which has already been extracted from a Context, to the model
+     *
+     * @param document The document to add to the model
+     */
+    public void train(IndexDocument document) {
+        index.indexDocument(document);
+    }
+
     public void startTraining() {
         index.startIndexing();
     }
 
+    /**
+     * Makes the training done so far durable, so that it is not lost if training is interrupted.
+     */
+    public void commitTraining() {
+        index.commit();
+    }
+
     public void finishTraining() {
         index.finishIndexing();
     }
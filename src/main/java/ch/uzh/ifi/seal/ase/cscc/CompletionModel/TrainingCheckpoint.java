@@ -0,0 +1,104 @@
+package ch.uzh.ifi.seal.ase.cscc.CompletionModel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Position up to which a model has been trained and committed: all zips before {@link TrainingCheckpoint#getZip()}
+ * and the first {@link TrainingCheckpoint#getEntries()} entries (contexts) of it. Training resumes with the next
+ * entry of that zip.
+ * <p>
+ * A checkpoint is only written after the model has been committed, and it replaces the previous checkpoint
+ * atomically, so that the checkpoint on disk never points past what has been committed.
+ */
+public class TrainingCheckpoint {
+
+    private static final String ZIP = "zip";
+    private static final String ENTRIES = "entries";
+    private static final String DOCUMENTS = "documents";
+
+    private final String zip;
+    private final int entries;
+    private final long documents;
+
+    /**
+     * @param zip       zip in which training stopped
+     * @param entries   number of entries of the zip which have been trained on
+     * @param documents number of documents (including duplicates) which have been extracted from all zips up to here
+     */
+    public TrainingCheckpoint(String zip, int entries, long documents) {
+        this.zip = zip;
+        this.entries = entries;
+        this.documents = documents;
+    }
+
+    public String getZip() {
+        return zip;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @param file checkpoint file
+     * @return the checkpoint in the file, or null if there is no (valid) checkpoint
+     */
+    public static TrainingCheckpoint read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            return new TrainingCheckpoint(properties.getProperty(ZIP), Integer.parseInt(properties.getProperty(ENTRIES)),
+                    Long.parseLong(properties.getProperty(DOCUMENTS)));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the checkpoint in the file atomically: the checkpoint is written and synced to a temporary file, which
+     * is then renamed.
+     *
+     * @param file checkpoint file
+     */
+    public void write(File file) {
+        Properties properties = new Properties();
+        properties.setProperty(ZIP, zip);
+        properties.setProperty(ENTRIES, Integer.toString(entries));
+        properties.setProperty(DOCUMENTS, Long.toString(documents));
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                properties.store(out, null);
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // the previous checkpoint stays valid, training resumes a bit earlier than necessary
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TrainingCheckpoint{" +
+                "zip='" + zip + '\'' +
+                ", entries=" + entries +
+                ", documents=" + documents +
+                '}';
+    }
+}
@@ -0,0 +1,485 @@
+package ch.uzh.ifi.seal.ase.cscc.CompletionModel;
+
+import cc.kave.commons.model.events.completionevents.Context;
+import ch.uzh.ifi.seal.ase.cscc.index.ExtractedDocumentCache;
+import ch.uzh.ifi.seal.ase.cscc.index.IndexDocument;
+import ch.uzh.ifi.seal.ase.cscc.utils.CSCCConfiguration;
+import ch.uzh.ifi.seal.ase.cscc.utils.SeekableReadingArchive;
+import ch.uzh.ifi.seal.ase.cscc.visitors.IndexDocumentExtractionVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Trains a {@link CompletionModel} on zips of contexts in three stages, which are connected by bounded queues:
+ * <ol>
+ * <li>readers, which read the zips and deserialize their contexts (one zip per reader at a time)</li>
+ * <li>extraction workers, which extract the IndexDocuments of the contexts (and thereby compute their IDs and
+ * simhashes)</li>
+ * <li>the index writer, which adds the documents to the model on the thread calling
+ * {@link TrainingPipeline#train(List, TrainingCheckpoint, Consumer)}</li>
+ * </ol>
+ * There is only one index writer because none of the indexes supports concurrent calls to
+ * {@link ch.uzh.ifi.seal.ase.cscc.index.IInvertedIndex#indexDocument(IndexDocument)}, use a
+ * {@link ch.uzh.ifi.seal.ase.cscc.index.ParallelizedInvertedIndex} to parallelize the indexing itself.
+ * <p>
+ * The contexts are extracted out of order, but the writer indexes them in the order of the zips and of the entries
+ * within each zip, holding back the contexts which have been extracted ahead. The model is thus the same as after
+ * training on one thread, e.g. documents are deduplicated and numbered in the same order. To bound the contexts held
+ * back, only a limited number of zips are in flight (read, extracted or waiting to be indexed) at a time: a reader
+ * only starts the next zip once the writer has indexed an earlier one completely. The writer commits the model at
+ * regular intervals and checkpoints after every commit. When training is interrupted (see
+ * {@link CSCCConfiguration#keepRunning} and {@link TrainingPipeline#stop()}), the pipeline stops reading, drains the
+ * queues and commits and checkpoints what has been indexed so far.
+ * <p>
+ * If the pipeline has an {@link ExtractedDocumentCache}, the readers pass the documents of zips which are in the
+ * cache on to the writer directly, without deserializing their contexts. The writer adds the documents of the other
+ * zips to the cache as it indexes them.
+ */
+public class TrainingPipeline {
+
+    private final CompletionModel completionModel;
+    private final int readerThreads;
+    private final int extractionThreads;
+    private final int queueCapacity;
+    private final int maxZipsInFlight;
+    private final int commitIntervalDocs;
+    private final long commitIntervalMillis;
+    private ExtractedDocumentCache documentCache;
+    // set when training is stopped by a failed stage or by stop(), checked together with CSCCConfiguration.keepRunning
+    private volatile boolean stopped = false;
+
+    /**
+     * @param completionModel      model to train, training must have been started
+     * @param readerThreads        number of threads which read zips
+     * @param extractionThreads    number of threads which extract IndexDocuments from contexts
+     * @param queueCapacity        capacity of each of the two queues between the stages
+     * @param maxZipsInFlight      number of zips which are read, extracted or waiting to be indexed at a time, bounds
+     *                             the contexts which the writer holds back
+     * @param commitIntervalDocs   number of indexed documents after which the model is committed and checkpointed
+     * @param commitIntervalMillis time in milliseconds after which the model is committed and checkpointed
+     */
+    public TrainingPipeline(CompletionModel completionModel, int readerThreads, int extractionThreads, int queueCapacity,
+                            int maxZipsInFlight, int commitIntervalDocs, long commitIntervalMillis) {
+        this.completionModel = completionModel;
+        this.readerThreads = readerThreads;
+        this.extractionThreads = extractionThreads;
+        this.queueCapacity = queueCapacity;
+        this.maxZipsInFlight = maxZipsInFlight;
+        this.commitIntervalDocs = commitIntervalDocs;
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    /**
+     * Creates a pipeline with the parallelism and commit interval configured in {@link CSCCConfiguration}.
+     *
+     * @param completionModel model to train, training must have been started
+     */
+    public TrainingPipeline(CompletionModel completionModel) {
+        this(completionModel, CSCCConfiguration.TRAINING_READER_THREADS, CSCCConfiguration.TRAINING_EXTRACTION_THREADS,
+                CSCCConfiguration.TRAINING_QUEUE_CAPACITY, CSCCConfiguration.TRAINING_MAX_ZIPS_IN_FLIGHT,
+                CSCCConfiguration.TRAINING_COMMIT_INTERVAL_DOCS, CSCCConfiguration.TRAINING_COMMIT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Reads the documents of zips which have been extracted before from the cache instead of extracting them again,
+     * and caches the documents of all other zips.
+     *
+     * @param documentCache cache of extracted documents, or null to always extract the documents
+     */
+    public void setDocumentCache(ExtractedDocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
+
+    /**
+     * Interrupts training like {@link CSCCConfiguration#keepRunning}, but only for this pipeline.
+     * {@link TrainingPipeline#train(List, TrainingCheckpoint, Consumer)} commits and checkpoints what has been indexed
+     * so far and returns.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Trains the model on the given zips and returns once all of them have been indexed or training has been
+     * interrupted.
+     *
+     * @param zips       zips of contexts to train on
+     * @param resumeFrom checkpoint in the first zip to resume from, or null to train on all contexts of the zips
+     * @param checkpoint called with a new checkpoint after every commit of the model, or null to neither commit nor
+     *                   checkpoint
+     * @throws RuntimeException the first exception of a reader or extraction worker, e.g. for a corrupt zip
+     */
+    public void train(List<String> zips, TrainingCheckpoint resumeFrom, Consumer<TrainingCheckpoint> checkpoint) {
+        if (zips.isEmpty()) {
+            return;
+        }
+        stopped = false;
+        int firstEntry = resumeFrom == null ? 0 : resumeFrom.getEntries();
+        long documentsBefore = resumeFrom == null ? 0 : resumeFrom.getDocuments();
+        BlockingQueue<ParsedContext> contexts = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<ExtractedDocuments> documents = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger nextZip = new AtomicInteger(0);
+        // one permit per zip in flight, the writer releases the permit of a zip once it has indexed it completely
+        Semaphore zipsInFlight = new Semaphore(maxZipsInFlight);
+        AtomicInteger runningReaders = new AtomicInteger(readerThreads);
+        AtomicInteger runningExtractors = new AtomicInteger(extractionThreads);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        // cache files which are being written, by zip
+        Map<Integer, ExtractedDocumentCache.Writer> cacheWriters = new ConcurrentHashMap<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readerThreads; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    read(zips, firstEntry, nextZip, zipsInFlight, contexts, documents, cacheWriters);
+                } catch (IOException e) {
+                    fail(failure, new UncheckedIOException(e));
+                } catch (RuntimeException e) {
+                    fail(failure, e);
+                } finally {
+                    // the last reader tells every extraction worker that there are no more contexts
+                    if (runningReaders.decrementAndGet() == 0) {
+                        for (int j = 0; j < extractionThreads; j++) {
+                            put(contexts, ParsedContext.END);
+                        }
+                    }
+                }
+            }, "training-reader-" + i));
+        }
+        for (int i = 0; i < extractionThreads; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    extract(contexts, documents, failure);
+                } finally {
+                    if (runningExtractors.decrementAndGet() == 0) {
+                        put(documents, ExtractedDocuments.END);
+                    }
+                }
+            }, "training-extractor-" + i));
+        }
+        for (Thread thread : threads) {
+            // do not keep the JVM alive if the writer fails
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        write(zips, firstEntry, documentsBefore, zipsInFlight, documents, checkpoint, cacheWriters);
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(1); // exit on exception
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Stops training after a stage failed. The stages still finish in order, so that the writer returns.
+     */
+    private void fail(AtomicReference<RuntimeException> failure, RuntimeException e) {
+        failure.compareAndSet(null, e);
+        stopped = true;
+    }
+
+    private boolean isRunning() {
+        return !stopped && CSCCConfiguration.keepRunning;
+    }
+
+    private void read(List<String> zips, int firstEntry, AtomicInteger nextZip, Semaphore zipsInFlight,
+                      BlockingQueue<ParsedContext> contexts, BlockingQueue<ExtractedDocuments> documents,
+                      Map<Integer, ExtractedDocumentCache.Writer> cacheWriters) throws IOException {
+        // zips are claimed in order after their permit has been taken, so the zip the writer waits for always has one
+        while (acquire(zipsInFlight, nextZip, zips.size())) {
+            int zipIndex = nextZip.getAndIncrement();
+            if (zipIndex >= zips.size()) {
+                zipsInFlight.release();
+                return;
+            }
+            String zip = zips.get(zipIndex);
+            if (CSCCConfiguration.PRINT_PROGRESS) {
+                double perc = 100 * (zipIndex + 1) / (double) zips.size();
+                System.out.printf("## %s, processing %s...\n(%d/%d, %.1f%% done)\n", new Date(), zip, zipIndex + 1,
+                        zips.size(), perc);
+            }
+            // only the first zip is resumed in the middle, the entries before are not even read
+            int first = zipIndex == 0 ? firstEntry : 0;
+            if (documentCache != null) {
+                try (ExtractedDocumentCache.Reader cached = documentCache.open(new File(zip))) {
+                    if (cached != null) {
+                        // the end of the queue is only put after the last reader is done, so the documents go first
+                        cached.skipTo(first);
+                        while (cached.hasNext() && isRunning()) {
+                            int entry = cached.getNextEntry();
+                            put(documents, new ExtractedDocuments(zipIndex, entry, cached.next()));
+                        }
+                        if (isRunning()) {
+                            put(documents, new ExtractedDocuments(zipIndex, cached.getNumberOfEntries(), null));
+                        }
+                        continue;
+                    }
+                }
+                // a zip which is resumed in the middle cannot be cached completely
+                if (first == 0) {
+                    try {
+                        cacheWriters.put(zipIndex, documentCache.create(new File(zip)));
+                    } catch (IOException e) {
+                        // the zip is extracted again next time
+                        e.printStackTrace();
+                    }
+                }
+            }
+            try (SeekableReadingArchive ra = new SeekableReadingArchive(new File(zip), first)) {
+                while (ra.hasNext() && isRunning()) {
+                    int entry = ra.getNextEntry();
+                    put(contexts, new ParsedContext(zipIndex, entry, ra.getNext(Context.class)));
+                }
+                // the end of an interrupted zip is never reached and thus never checkpointed
+                if (isRunning()) {
+                    put(contexts, new ParsedContext(zipIndex, ra.getNumberOfEntries(), null));
+                }
+            }
+        }
+    }
+
+    private void extract(BlockingQueue<ParsedContext> contexts, BlockingQueue<ExtractedDocuments> documents,
+                         AtomicReference<RuntimeException> failure) {
+        ParsedContext parsed;
+        // keep taking contexts after a failure, so that the readers do not block on a full queue
+        while ((parsed = take(contexts)) != ParsedContext.END) {
+            if (parsed.context == null) {
+                // pass the end of the zip on to the writer
+                put(documents, new ExtractedDocuments(parsed.zip, parsed.entry, null));
+            } else if (isRunning()) {
+                try {
+                    List<IndexDocument> indexDocuments = new LinkedList<>();
+                    parsed.context.getSST().accept(new IndexDocumentExtractionVisitor(), indexDocuments);
+                    put(documents, new ExtractedDocuments(parsed.zip, parsed.entry, indexDocuments));
+                } catch (RuntimeException e) {
+                    fail(failure, e);
+                }
+            }
+        }
+    }
+
+    private void write(List<String> zips, int firstEntry, long documentsBefore, Semaphore zipsInFlight,
+                       BlockingQueue<ExtractedDocuments> documents, Consumer<TrainingCheckpoint> checkpoint,
+                       Map<Integer, ExtractedDocumentCache.Writer> cacheWriters) {
+        int[] entriesInZip = new int[zips.size()];
+        Arrays.fill(entriesInZip, -1);
+        // contexts which have been extracted, but which cannot be indexed yet because a context before them has not
+        // been extracted yet: zip -> entry -> documents
+        Map<Integer, Map<Integer, List<IndexDocument>>> extractedAhead = new HashMap<>();
+        // all zips before nextZip and the entries of nextZip before nextEntry have been indexed
+        int nextZip = 0;
+        int nextEntry = firstEntry;
+        long indexedDocuments = documentsBefore;
+        int docsSinceCommit = 0;
+        long lastCommitTime = System.currentTimeMillis();
+
+        ExtractedDocuments extracted;
+        while ((extracted = take(documents)) != ExtractedDocuments.END) {
+            if (!isRunning()) {
+                // keep draining so that the other stages can finish
+                continue;
+            }
+            if (extracted.documents == null) {
+                entriesInZip[extracted.zip] = extracted.entry;
+            } else {
+                extractedAhead.computeIfAbsent(extracted.zip, zip -> new HashMap<>())
+                        .put(extracted.entry, extracted.documents);
+            }
+
+            // index the contexts which are next in order, an interrupt stops indexing right away
+            while (isRunning()) {
+                Map<Integer, List<IndexDocument>> extractedAheadInZip = extractedAhead.get(nextZip);
+                List<IndexDocument> next = extractedAheadInZip == null ? null : extractedAheadInZip.remove(nextEntry);
+                if (next != null) {
+                    if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
+                        System.out.printf("."); // print '.' to indicate that a context is being processed
+                    }
+                    for (IndexDocument document : next) {
+                        index(nextZip, document);
+                    }
+                    cache(cacheWriters, nextZip, next);
+                    nextEntry++;
+                    indexedDocuments += next.size();
+                    docsSinceCommit += next.size();
+                } else if (entriesInZip[nextZip] >= 0 && nextEntry >= entriesInZip[nextZip]
+                        && nextZip + 1 < zips.size()) {
+                    if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
+                        System.out.println();
+                    }
+                    extractedAhead.remove(nextZip);
+                    commitCache(cacheWriters, nextZip);
+                    nextZip++;
+                    nextEntry = 0;
+                    // a reader may start the next zip
+                    zipsInFlight.release();
+                } else {
+                    break;
+                }
+            }
+
+            if (checkpoint != null && (docsSinceCommit >= commitIntervalDocs
+                    || System.currentTimeMillis() - lastCommitTime >= commitIntervalMillis)) {
+                commit(checkpoint, new TrainingCheckpoint(zips.get(nextZip), nextEntry, indexedDocuments));
+                docsSinceCommit = 0;
+                lastCommitTime = System.currentTimeMillis();
+            }
+        }
+        if (checkpoint != null) {
+            commit(checkpoint, new TrainingCheckpoint(zips.get(nextZip), nextEntry, indexedDocuments));
+        }
+        if (entriesInZip[nextZip] >= 0 && nextEntry >= entriesInZip[nextZip]) {
+            commitCache(cacheWriters, nextZip);
+        }
+        // discard the cache files of the zips which have not been indexed completely
+        for (ExtractedDocumentCache.Writer cacheWriter : cacheWriters.values()) {
+            cacheWriter.close();
+        }
+    }
+
+    private static void cache(Map<Integer, ExtractedDocumentCache.Writer> cacheWriters, int zip,
+                              List<IndexDocument> documents) {
+        ExtractedDocumentCache.Writer cacheWriter = cacheWriters.get(zip);
+        if (cacheWriter != null) {
+            try {
+                cacheWriter.append(documents);
+            } catch (IOException e) {
+                // the zip is extracted again next time
+                e.printStackTrace();
+                cacheWriters.remove(zip).close();
+            }
+        }
+    }
+
+    private static void commitCache(Map<Integer, ExtractedDocumentCache.Writer> cacheWriters, int zip) {
+        ExtractedDocumentCache.Writer cacheWriter = cacheWriters.remove(zip);
+        if (cacheWriter != null) {
+            try {
+                cacheWriter.commit();
+            } catch (IOException e) {
+                // the zip is extracted again next time
+                e.printStackTrace();
+            } finally {
+                cacheWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a document to the model, called by the writer in the order of the zips and their entries.
+     *
+     * @param zip      index of the document's zip in the list of zips to train on
+     * @param document document to add
+     */
+    protected void index(int zip, IndexDocument document) {
+        completionModel.train(document);
+    }
+
+    private void commit(Consumer<TrainingCheckpoint> checkpoint, TrainingCheckpoint position) {
+        // commit first, a checkpoint must never point past what has been committed to the index
+        completionModel.commitTraining();
+        checkpoint.accept(position);
+    }
+
+    /**
+     * Waits for a zip permit until training is interrupted or all zips have been claimed by readers, readers which are
+     * waiting for a permit then stop.
+     *
+     * @return true if a permit has been taken, false if the reader is done
+     */
+    private boolean acquire(Semaphore zipsInFlight, AtomicInteger nextZip, int zips) {
+        try {
+            while (isRunning() && nextZip.get() < zips) {
+                if (zipsInFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on exception
+        }
+        return false;
+    }
+
+    private static <T> void put(BlockingQueue<T> queue, T item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on exception
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on exception
+            return null;
+        }
+    }
+
+    /**
+     * The deserialized context at an entry of a zip, or the end of a zip if the context is null. The entry is then the
+     * number of entries of the zip.
+     */
+    private static final class ParsedContext {
+
+        static final ParsedContext END = new ParsedContext(-1, -1, null);
+
+        final int zip;
+        final int entry;
+        final Context context;
+
+        ParsedContext(int zip, int entry, Context context) {
+            this.zip = zip;
+            this.entry = entry;
+            this.context = context;
+        }
+    }
+
+    /**
+     * The IndexDocuments of the context at an entry of a zip, or the end of a zip if the documents are null. The entry
+     * is then the number of entries of the zip.
+     */
+    private static final class ExtractedDocuments {
+
+        static final ExtractedDocuments END = new ExtractedDocuments(-1, -1, null);
+
+        final int zip;
+        final int entry;
+        final List<IndexDocument> documents;
+
+        ExtractedDocuments(int zip, int entry, List<IndexDocument> documents) {
+            this.zip = zip;
+            this.entry = entry;
+            this.documents = documents;
+        }
+    }
+
+}
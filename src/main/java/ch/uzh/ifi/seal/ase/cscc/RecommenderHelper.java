@@ -10,20 +10,26 @@ import cc.kave.commons.utils.io.IReadingArchive;
 import cc.kave.commons.utils.io.ReadingArchive;
 import ch.uzh.ifi.seal.ase.cscc.CompletionModel.CompletionModel;
 import ch.uzh.ifi.seal.ase.cscc.CompletionModel.CompletionModelEvaluator;
+import ch.uzh.ifi.seal.ase.cscc.CompletionModel.TrainingCheckpoint;
+import ch.uzh.ifi.seal.ase.cscc.CompletionModel.TrainingPipeline;
 import ch.uzh.ifi.seal.ase.cscc.index.DiskBasedInvertedIndex;
+import ch.uzh.ifi.seal.ase.cscc.index.ExtractedDocumentCache;
 import ch.uzh.ifi.seal.ase.cscc.index.IInvertedIndex;
-import ch.uzh.ifi.seal.ase.cscc.index.InMemoryInvertedIndex;
 import ch.uzh.ifi.seal.ase.cscc.index.IndexDocument;
+import ch.uzh.ifi.seal.ase.cscc.index.PrimitiveInvertedIndex;
 import ch.uzh.ifi.seal.ase.cscc.utils.CSCCConfiguration;
 import ch.uzh.ifi.seal.ase.cscc.utils.IoHelper;
+import ch.uzh.ifi.seal.ase.cscc.utils.SeekableReadingArchive;
 import ch.uzh.ifi.seal.ase.cscc.visitors.IndexDocumentExtractionVisitor;
 import ch.uzh.ifi.seal.ase.cscc.visitors.InvocationExpressionVisitor;
 import org.apache.commons.lang.mutable.MutableInt;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -31,13 +37,24 @@ import java.util.logging.Logger;
  */
 public class RecommenderHelper {
 
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint.properties";
     private final Logger LOGGER = Logger.getLogger(RecommenderHelper.class.getName());
     private String contextsDir;
     private String eventsDir;
+    private ExtractedDocumentCache documentCache;
 
     public RecommenderHelper(String contextsDir, String eventsDir) {
+        this(contextsDir, eventsDir, CSCCConfiguration.DOCUMENT_CACHE_DIR == null ? null
+                : new ExtractedDocumentCache(CSCCConfiguration.DOCUMENT_CACHE_DIR));
+    }
+
+    /**
+     * @param documentCache cache of extracted documents, or null to always extract the documents
+     */
+    RecommenderHelper(String contextsDir, String eventsDir, ExtractedDocumentCache documentCache) {
         this.contextsDir = contextsDir;
         this.eventsDir = eventsDir;
+        this.documentCache = documentCache;
     }
 
     /**
@@ -71,16 +88,19 @@ public class RecommenderHelper {
         // same number of contexts
         int bucketSize = zipsTotal / 10;
 
-        // for each bucket, train a model and evaluate it
+        // Use an in-memory index for cross-validation, otherwise we will interfere with a possibly already trained
+        // model from a DiskBasedInvertedIndex. The PrimitiveInvertedIndex finds the same candidates as the Lucene based
+        // InMemoryInvertedIndex, but with much less memory and garbage.
+        // All zips are indexed only once, each document tagged with the fold of its bucket. The model of bucket i
+        // searches the index without fold i - 1, which finds the same candidates (in the same order) as a model
+        // trained on all other buckets.
+        PrimitiveInvertedIndex index = new PrimitiveInvertedIndex();
+        System.out.println("training model on all buckets");
+        modelFromAllBuckets(bucketSize, index);
+
+        // for each bucket, evaluate the model trained on all other buckets
         for (int i = 1; i <= 10; i++) {
-            // Use the InMemoryInvertedIndex for cross-validation, otherwise we will interfere with a possibly already trained
-            // model from a DiskBasedInvertedIndex. If you want to use a DiskBasedInvertedIndex (e.g. because of memory
-            // limitations), you would have to make sure that each bucket is trained in a different folder (or that
-            // after each bucket you delete the previously trained model).
-            CompletionModel completionModel = new CompletionModel(new InMemoryInvertedIndex());
-
-            System.out.printf("training model %d/%d\n", i, 10);
-            modelFromTrainingBuckets(bucketSize, i, completionModel);
+            CompletionModel completionModel = new CompletionModel(index.excludingFold(i - 1));
 
             System.out.printf("evaluating model %d/%d\n", i, 10);
             float[] result = performCrossValidation(bucketSize, i, completionModel);
@@ -104,21 +124,33 @@ public class RecommenderHelper {
     /**
      * Train the model on the full contexts data set. The model will be persisted at the given location as it is being
      * trained. This allows training to be interrupted and continued at a later point. If a previously trained model is
-     * found in the modelOutputDir, training will pick up where it left off last time.
+     * found in the modelOutputDir, training will pick up where it left off last time, i.e. with the first context
+     * which has not been committed to the model (see {@link TrainingCheckpoint}).
      * ATTENTION: You can only continue training on the same training data. This means the structure of the contextDir
      * must be the same (still contain the same zips) as last time.
      *
      * @param modelOutputDir Directory where to store the learned model. Will create a subdirectory called 'CSCCInvertedIndex'.
      */
     public void trainModel(String modelOutputDir) {
-
         addShutdownHook();
+        trainModelWithoutShutdownHook(modelOutputDir);
+    }
 
-        String lastProcessedZip = readProgressFile(modelOutputDir);
+    /**
+     * Trains the model like {@link RecommenderHelper#trainModel(String)}, but leaves interrupting training to the
+     * caller.
+     */
+    void trainModelWithoutShutdownHook(String modelOutputDir) {
 
         List<String> zips = IoHelper.findAllZips(contextsDir);
 
-        IInvertedIndex diskIndex = new DiskBasedInvertedIndex(modelOutputDir);
+        DiskBasedInvertedIndex diskIndex = new DiskBasedInvertedIndex(modelOutputDir);
+
+        TrainingCheckpoint checkpoint = readCheckpoint(modelOutputDir, zips, diskIndex);
+
+        // the training pipeline commits the index, so that it can checkpoint every commit
+        diskIndex.enableBulkLoading();
+        diskIndex.enableDuplicateFilter(CSCCConfiguration.TRAINING_EXPECTED_DOCUMENTS, CSCCConfiguration.TRAINING_DUPLICATE_FILTER_FALSE_POSITIVE_PROBABILITY);
         CompletionModel completionModel = new CompletionModel(diskIndex);
 
         int zipTotal = zips.size();
@@ -127,18 +159,12 @@ public class RecommenderHelper {
 
         if (zips.size() > 0) {
 
-            if (zips.contains(lastProcessedZip)) {
+            if (checkpoint != null && zips.contains(checkpoint.getZip())) {
 
-                int indexOfLastProcessedZip = zips.indexOf(lastProcessedZip);
-
-                indexOfNextZipToProcess = indexOfLastProcessedZip + 1;
+                indexOfNextZipToProcess = zips.indexOf(checkpoint.getZip());
 
-                if (indexOfNextZipToProcess >= zips.size()) {
-                    LOGGER.info("No more zips to process.");
-                    return;
-                }
-
-                LOGGER.info("Found previous indexing state. Continuing indexing with zip " +
+                LOGGER.info("Found previous indexing state after " + checkpoint.getDocuments() + " documents. " +
+                        "Continuing indexing with context " + (checkpoint.getEntries() + 1) + " of zip " +
                         (indexOfNextZipToProcess + 1) + "/" + zipTotal + "(" + zips.get(indexOfNextZipToProcess) + ")");
 
             } else {
@@ -146,6 +172,7 @@ public class RecommenderHelper {
                 // Reaching this part of the code means we have to start training from scratch
                 LOGGER.info("Did not find previous indexing state. Starting training from beginning " +
                         (indexOfNextZipToProcess + 1) + "/" + zipTotal + "(" + zips.get(0) + ")");
+                checkpoint = null;
             }
 
             // Get the list of zips we still have to process
@@ -153,50 +180,58 @@ public class RecommenderHelper {
 
             completionModel.startTraining();
 
-            for (String zip : zipsToDo) {
-
-                if (!CSCCConfiguration.keepRunning) break;
-
-                int indexOfCurrentZip = zips.indexOf(zip);
+            // read, extract and index in parallel, the pipeline commits the model at regular intervals and checkpoints
+            // the contexts which have been committed after every commit
+            File checkpointFile = new File(modelOutputDir + "/CSCCInvertedIndex/" + CHECKPOINT_FILE_NAME);
+            TrainingPipeline pipeline = newTrainingPipeline(completionModel);
+            pipeline.setDocumentCache(documentCache);
+            pipeline.train(zipsToDo, checkpoint, c -> c.write(checkpointFile));
 
-                if (CSCCConfiguration.PRINT_PROGRESS) {
-                    double perc = 100 * (indexOfCurrentZip + 1) / (double) zipTotal;
-                    System.out.printf("## %s, processing %s...\n(%d/%d, %.1f%% done)\n", new Date(), zip, indexOfCurrentZip + 1, zipTotal,
-                            perc);
-                }
-
-                try (IReadingArchive ra = new ReadingArchive(new File(zip))) {
-
-                    while (ra.hasNext() && CSCCConfiguration.keepRunning) {
-                        if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
-                            System.out.printf("."); // print '.' to indicate that a context is being processed
-                        }
-                        Context ctx = ra.getNext(Context.class);
-                        completionModel.train(ctx);
-                    }
-                    ra.close();
-                    if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
-                        System.out.println();
-                    }
-                }
-
-                // only store progress if current zip file processing has not been interrupted
-                if (CSCCConfiguration.keepRunning) {
-                    writeProgressFile(modelOutputDir, zip);
-                }
-            }
             completionModel.finishTraining();
+            LOGGER.info(String.format("Duplicate filter saved %d lookups, false positive rate %.4f (expected %.4f)",
+                    diskIndex.getDuplicateFilterAvoidedLookups(), diskIndex.getDuplicateFilterFalsePositiveRate(),
+                    diskIndex.getDuplicateFilterExpectedFalsePositiveRate()));
         }
     }
 
-    private String readProgressFile(String modelOutputDir) {
+    /**
+     * @return the pipeline which trains the model on disk
+     */
+    TrainingPipeline newTrainingPipeline(CompletionModel completionModel) {
+        return new TrainingPipeline(completionModel);
+    }
+
+    /**
+     * Reads the checkpoint of a previous training. Models which have been trained before checkpoints were introduced
+     * only recorded the last zip which had been indexed completely in {@code progress.txt}, these are resumed with the
+     * first context of the next zip. The number of documents extracted from the zips before has not been recorded
+     * either, the documents in the index are counted instead (without the duplicates which have been skipped).
+     *
+     * @param diskIndex index of the model
+     * @return the checkpoint to resume from, or null if there is none
+     */
+    private TrainingCheckpoint readCheckpoint(String modelOutputDir, List<String> zips, DiskBasedInvertedIndex diskIndex) {
+        TrainingCheckpoint checkpoint = TrainingCheckpoint.read(new File(modelOutputDir + "/CSCCInvertedIndex/" + CHECKPOINT_FILE_NAME));
+        if (checkpoint != null) {
+            return checkpoint;
+        }
         File progressFile = new File(modelOutputDir + "/CSCCInvertedIndex/progress.txt");
         if (progressFile.exists() && progressFile.isFile()) {
             try {
                 BufferedReader r = new BufferedReader(new FileReader(progressFile));
-                String text = r.readLine();
+                String lastProcessedZip = r.readLine();
                 r.close();
-                return text;
+                int indexOfLastProcessedZip = zips.indexOf(lastProcessedZip);
+                if (indexOfLastProcessedZip >= 0 && indexOfLastProcessedZip + 1 < zips.size()) {
+                    return new TrainingCheckpoint(zips.get(indexOfLastProcessedZip + 1), 0,
+                            diskIndex.getNumberOfCommittedDocuments());
+                } else if (indexOfLastProcessedZip >= 0) {
+                    // all zips have been processed, resume after the last context of the last zip
+                    try (SeekableReadingArchive ra = new SeekableReadingArchive(new File(lastProcessedZip), 0)) {
+                        return new TrainingCheckpoint(lastProcessedZip, ra.getNumberOfEntries(),
+                                diskIndex.getNumberOfCommittedDocuments());
+                    }
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -204,17 +239,6 @@ public class RecommenderHelper {
         return null;
     }
 
-    private void writeProgressFile(String modelOutputDir, String text) {
-        File progressFile = new File(modelOutputDir + "/CSCCInvertedIndex/progress.txt");
-        try {
-            BufferedWriter w = new BufferedWriter(new FileWriter(progressFile));
-            w.write(text);
-            w.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      * Evaluates a learned model against the Events data set.
      * Test results are printed to the console.
@@ -333,44 +357,34 @@ public class RecommenderHelper {
         }
     }
 
-    private void modelFromTrainingBuckets(int bucketSize, int testBucketNum, CompletionModel completionModel) {
+    private void modelFromAllBuckets(int bucketSize, PrimitiveInvertedIndex index) {
         List<String> zips = IoHelper.findAllZips(contextsDir);
         int zipTotal = getNumZips(zips);
-        int zipCount = 0;
-        int zipCountInBucket = 0;
-
-        completionModel.startTraining();
-
-        for (String zip : zips) {
-
-            if (++zipCount > zipTotal) break;
-
-            // if current zip is not in test bucket we use it for training
-            if (!zipIsInTestBucket(zipCount, testBucketNum, bucketSize)) {
-
-                if (CSCCConfiguration.PRINT_PROGRESS) {
-                    zipCountInBucket++;
-                    double perc = 100 * zipCountInBucket / (double) (zipTotal - bucketSize);
-                    System.out.printf("## %s, processing %s...\n(%d/%d, %.1f%% done)\n", new Date(), zip, zipCountInBucket, (zipTotal - bucketSize),
-                            perc);
-                }
-
-                try (IReadingArchive ra = new ReadingArchive(new File(zip))) {
-
-                    while (ra.hasNext()) {
-                        if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
-                            System.out.printf("."); // print '.' to indicate that a context is being processed
-                        }
-                        Context ctx = ra.getNext(Context.class);
-                        completionModel.train(ctx);
-                    }
-                    ra.close();
-                    if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
-                        System.out.println();
-                    }
+        List<String> trainingZips = new ArrayList<>(zips.subList(0, Math.min(zipTotal, zips.size())));
+
+        // zips which are not in any test bucket (the remainder of zipTotal / 10) are used for training only
+        int[] foldOfZip = new int[trainingZips.size()];
+        for (int zip = 0; zip < foldOfZip.length; zip++) {
+            foldOfZip[zip] = PrimitiveInvertedIndex.NO_FOLD;
+            for (int testBucketNum = 1; testBucketNum <= 10; testBucketNum++) {
+                if (zipIsInTestBucket(zip + 1, testBucketNum, bucketSize)) {
+                    foldOfZip[zip] = testBucketNum - 1;
                 }
             }
         }
+
+        CompletionModel completionModel = new CompletionModel(index);
+        completionModel.startTraining();
+        TrainingPipeline pipeline = new TrainingPipeline(completionModel) {
+            @Override
+            protected void index(int zip, IndexDocument document) {
+                index.indexDocument(document, foldOfZip[zip]);
+            }
+        };
+        // all zips are cached here, so that the evaluation of the buckets does not have to extract them again
+        pipeline.setDocumentCache(documentCache);
+        // the in-memory model is neither committed nor checkpointed
+        pipeline.train(trainingZips, null, null);
         completionModel.finishTraining();
     }
 
@@ -408,34 +422,26 @@ public class RecommenderHelper {
                             perc);
                 }
 
-                try (IReadingArchive ra = new ReadingArchive(new File(zip))) {
-
-                    while (ra.hasNext()) {
+                try {
+                    forEachContext(zip, indexDocuments -> {
 
                         if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
                             System.out.printf("."); // print '.' to indicate that a context is being processed
                         }
 
-                        Context ctx = ra.getNext(Context.class);
-
-                        ISST sst = ctx.getSST();
-
-                        IndexDocumentExtractionVisitor indexDocumentExtractionVisitor = new IndexDocumentExtractionVisitor();
-                        List<IndexDocument> indexDocuments = new LinkedList<>();
-
-                        sst.accept(indexDocumentExtractionVisitor, indexDocuments);
-
                         for (IndexDocument document : indexDocuments) {
                             if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
                                 System.out.printf("'"); // print ' to indicate that an IndexDocument is being evaluated
                             }
                             eval.evaluate(document);
                         }
-                    }
-                    ra.close();
+                    });
                     if (CSCCConfiguration.PRINT_PROGRESS_CONTEXTS) {
                         System.out.println();
                     }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(1); // exit on exception
                 }
             }
         }
@@ -446,4 +452,64 @@ public class RecommenderHelper {
 
         return new float[]{precision, recall};
     }
+
+    /**
+     * Passes the IndexDocuments of each context of a zip to the consumer. The documents are read from the document
+     * cache if the zip has been extracted before, otherwise they are extracted and added to the cache.
+     *
+     * A cache file which cannot be written is skipped, like by the {@link TrainingPipeline}.
+     *
+     * @param zip      zip of contexts
+     * @param consumer called with the documents of every context in the order of the contexts in the zip
+     * @throws IOException if the zip cannot be read
+     */
+    private void forEachContext(String zip, Consumer<List<IndexDocument>> consumer) throws IOException {
+        ExtractedDocumentCache.Writer cacheWriter = null;
+        if (documentCache != null) {
+            try (ExtractedDocumentCache.Reader cached = documentCache.open(new File(zip))) {
+                if (cached != null) {
+                    while (cached.hasNext()) {
+                        consumer.accept(cached.next());
+                    }
+                    return;
+                }
+            }
+            try {
+                cacheWriter = documentCache.create(new File(zip));
+            } catch (IOException e) {
+                // the zip is extracted again next time
+                e.printStackTrace();
+            }
+        }
+        try (SeekableReadingArchive ra = new SeekableReadingArchive(new File(zip), 0)) {
+            while (ra.hasNext()) {
+                Context ctx = ra.getNext(Context.class);
+                List<IndexDocument> indexDocuments = new LinkedList<>();
+                ctx.getSST().accept(new IndexDocumentExtractionVisitor(), indexDocuments);
+                if (cacheWriter != null) {
+                    try {
+                        cacheWriter.append(indexDocuments);
+                    } catch (IOException e) {
+                        // the zip is extracted again next time
+                        e.printStackTrace();
+                        cacheWriter.close();
+                        cacheWriter = null;
+                    }
+                }
+                consumer.accept(indexDocuments);
+            }
+            if (cacheWriter != null) {
+                try {
+                    cacheWriter.commit();
+                } catch (IOException e) {
+                    // the zip is extracted again next time
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            if (cacheWriter != null) {
+                cacheWriter.close();
+            }
+        }
+    }
 }
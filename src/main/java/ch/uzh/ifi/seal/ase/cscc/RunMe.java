@@ -39,7 +39,7 @@ public class RunMe {
          * You can get a code completion for a context like so:
          */
         IInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION);
-        IndexDocument context = new IndexDocument(
+        IndexDocument context = IndexDocument.forQuery(
                 null, // we don't know the method, that's what we want to get a completion for -> leave null
                 "System.Math",
                 Arrays.asList(""), // line context
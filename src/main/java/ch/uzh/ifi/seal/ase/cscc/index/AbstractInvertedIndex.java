@@ -1,18 +1,19 @@
 package ch.uzh.ifi.seal.ase.cscc.index;
 
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Abstract class implementing {@link IInvertedIndex}
@@ -20,18 +21,28 @@ import java.util.Set;
  */
 public abstract class AbstractInvertedIndex implements IInvertedIndex {
 
-    // fields for indexing in Lucene index
-    private static final String DOC_ID_FIELD = "docID";
+    // fields for indexing in Lucene index, the docID and simhash fields are also used by ParallelizedInvertedIndex
+    // the docID is indexed in its binary form and stored as DocValues, so that hits can be resolved to docIDs
+    // without loading stored fields. Indices written by earlier versions store the docID as hex string instead.
+    static final String DOC_ID_FIELD = "docID";
     private static final String OVERALL_CONTEXT_FIELD = "overallContext";
     private static final String TYPE_FIELD = "type";
-    private StringField docIdField = new StringField(DOC_ID_FIELD, "", Field.Store.YES);
-    private StringField typeField = new StringField(TYPE_FIELD, "", Field.Store.NO);
+    // simhashes are stored as DocValues so that candidates can be refined without loading the documents
+    static final String LINE_CONTEXT_SIMHASH_FIELD = "lineContextSimhash";
+    static final String OVERALL_CONTEXT_SIMHASH_FIELD = "overallContextSimhash";
 
     private Directory indexDirectory;
     private IndexWriter indexWriter;
-    private IndexSearcher searcher;
+    // long-lived searcher shared by all queries, reopened only when new segments have been committed. Searches read
+    // it without locking, so that any number of threads can search at the same time.
+    private volatile SearcherManager searcherManager;
+    private volatile IQueryMetrics metrics = IQueryMetrics.NONE;
 
     private void initializeDirectory() {
+        if (indexDirectory != null) {
+            // directory is already open, reuse it for indexing and searching
+            return;
+        }
         try {
             indexDirectory = getIndexDirectory();
         } catch (LockObtainFailedException e) {
@@ -94,10 +105,13 @@ public abstract class AbstractInvertedIndex implements IInvertedIndex {
      */
     void addDocToLuceneIndex(IndexDocument doc) throws IOException {
         Document luceneDoc = new Document();
-        docIdField.setStringValue(doc.getId());
-        luceneDoc.add(docIdField);
-        typeField.setStringValue(doc.getType());
-        luceneDoc.add(typeField);
+        BytesRef docID = doc.getDocId().toBytesRef();
+        // the fields are created per document instead of being reused, so that documents can be added concurrently
+        luceneDoc.add(new StringField(DOC_ID_FIELD, docID, Field.Store.NO));
+        luceneDoc.add(new BinaryDocValuesField(DOC_ID_FIELD, docID));
+        luceneDoc.add(new StringField(TYPE_FIELD, doc.getType(), Field.Store.NO));
+        luceneDoc.add(new NumericDocValuesField(LINE_CONTEXT_SIMHASH_FIELD, doc.getLineContextSimhash()));
+        luceneDoc.add(new NumericDocValuesField(OVERALL_CONTEXT_SIMHASH_FIELD, doc.getOverallContextSimhash()));
         // store all terms in the overall context as tokens in the index
         // StringField: no tokenization
         // TextField: tokenization
@@ -106,7 +120,7 @@ public abstract class AbstractInvertedIndex implements IInvertedIndex {
             luceneDoc.add(overallContextField);
         }
 //        indexWriter.addDocument(luceneDoc); // this will add duplicates to an existing index
-        indexWriter.updateDocument(new Term(DOC_ID_FIELD, doc.getId()), luceneDoc); // don't index docs with same docID twice
+        indexWriter.updateDocument(new Term(DOC_ID_FIELD, docID), luceneDoc); // don't index docs with same docID twice
     }
 
     /**
@@ -120,46 +134,52 @@ public abstract class AbstractInvertedIndex implements IInvertedIndex {
      */
     public Set<IndexDocument> search(IndexDocument doc) {
         Set<IndexDocument> answers = new HashSet<>();
+        SearcherManager searcherManager = this.searcherManager;
+        if (searcherManager == null) {
+            // there is no searchable index (yet), so we can't make a completion recommendation
+            return answers;
+        }
         try {
-            BooleanQuery.Builder boolQueryBuilder = new BooleanQuery.Builder();
-            boolQueryBuilder.setMinimumNumberShouldMatch(1);
-            Query queryForType = new TermQuery(new Term(TYPE_FIELD, doc.getType()));
-            boolQueryBuilder.add(queryForType, BooleanClause.Occur.MUST);
-            for (String termStr : doc.getOverallContext()) {
-                Term term = new Term(OVERALL_CONTEXT_FIELD, termStr);
-                Query queryForOverallContext = new TermQuery(term);
-                boolQueryBuilder.add(queryForOverallContext, BooleanClause.Occur.SHOULD);
-            }
-            Query boolQuery = boolQueryBuilder.build();
-            List<Integer> docs = new ArrayList<>();
-            Collector collector = new Collector() {
-                @Override
-                public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
-                    return new LeafCollector() {
-                        @Override
-                        public void setScorer(Scorer scorer) throws IOException {
+            long start = System.nanoTime();
+            IndexSearcher searcher = searcherManager.acquire();
+            long acquired = System.nanoTime();
+            metrics.recordLatency(QueryStage.SEARCHER_ACQUISITION, acquired - start);
+            try {
+                Query boolQuery = buildQuery(doc);
+                List<DocId> docIDs = new ArrayList<>();
+                Collector collector = new Collector() {
+                    @Override
+                    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+                        final LeafReader reader = context.reader();
+                        final BinaryDocValues docIdValues = reader.getBinaryDocValues(DOC_ID_FIELD);
+                        return new LeafCollector() {
+                            @Override
+                            public void setScorer(Scorer scorer) throws IOException {
 
-                        }
+                            }
 
-                        @Override
-                        public void collect(int doc) throws IOException {
-                            docs.add(doc);
-                        }
-                    };
-                }
+                            @Override
+                            public void collect(int doc) throws IOException {
+                                docIDs.add(RefinementCollector.readDocId(reader, docIdValues, doc));
+                            }
+                        };
+                    }
 
-                @Override
-                public boolean needsScores() {
-                    return false;
-                }
-            };
-            searcher.search(boolQuery, collector);
-            for (Integer luceneDocID : docs) {
-                Document luceneDoc = searcher.doc(luceneDocID);
-                String docID = luceneDoc.get(DOC_ID_FIELD);
-//                System.out.println(docID);
-                IndexDocument matchingDoc = deserializeIndexDocument(docID);
-                answers.add(matchingDoc);
+                    @Override
+                    public boolean needsScores() {
+                        return false;
+                    }
+                };
+                searcher.search(boolQuery, collector);
+                long searched = System.nanoTime();
+                metrics.recordLatency(QueryStage.LUCENE_QUERY, searched - acquired);
+                metrics.recordCandidates(CandidateCount.BASE_CANDIDATES, doc.getType(), docIDs.size());
+                // fetch all matching documents at once instead of one round trip per document
+                answers.addAll(deserializeIndexDocuments(docIDs).values());
+                metrics.recordLatency(QueryStage.DOCUMENT_FETCH, System.nanoTime() - searched);
+            } finally {
+                // the searcher must be released so that it can be closed once a refreshed searcher is available
+                searcherManager.release(searcher);
             }
         } catch (IndexNotFoundException e) {
             // if there is no inverted index structure for the type we're looking for we can't make a
@@ -172,13 +192,251 @@ public abstract class AbstractInvertedIndex implements IInvertedIndex {
         return answers;
     }
 
+    /**
+     * Builds a boolean query which matches documents of doc's type having at least one term of doc's overall context
+     * in their overall context.
+     */
+    private Query buildQuery(IndexDocument doc) {
+        BooleanQuery.Builder boolQueryBuilder = new BooleanQuery.Builder();
+        boolQueryBuilder.setMinimumNumberShouldMatch(1);
+        Query queryForType = new TermQuery(new Term(TYPE_FIELD, doc.getType()));
+        boolQueryBuilder.add(queryForType, BooleanClause.Occur.MUST);
+        for (String termStr : doc.getOverallContext()) {
+            Term term = new Term(OVERALL_CONTEXT_FIELD, termStr);
+            Query queryForOverallContext = new TermQuery(term);
+            boolQueryBuilder.add(queryForOverallContext, BooleanClause.Occur.SHOULD);
+        }
+        return boolQueryBuilder.build();
+    }
+
+    /**
+     * Same query as {@link AbstractInvertedIndex#search(IndexDocument)}, but the refinement to the k closest documents
+     * happens while collecting the Lucene hits, see {@link RefinementCollector}. Thus only the k surviving documents
+     * are ever deserialized.
+     * <p>
+     * If the index has a {@link SimhashNeighborStore} and doc's type is large, the k closest matches are looked up
+     * there first, so that the query need not be run over all documents of the type. Only if there are not enough
+     * matches close to doc, the query is run. Both ways give the same documents in the same order.
+     *
+     * @param doc                          document for which to find similar documents
+     * @param k                            maximum number of documents to return
+     * @param switchToLineContextThreshold overall context distance above which the line context distance is used
+     * @return at most k documents, ordered by ascending distance to {@code doc}
+     */
+    @Override
+    public List<IndexDocument> searchRefined(IndexDocument doc, int k, int switchToLineContextThreshold) {
+        List<IndexDocument> answers = new ArrayList<>();
+        SearcherManager searcherManager = this.searcherManager;
+        if (searcherManager == null || k <= 0) {
+            return answers;
+        }
+        try {
+            long start = System.nanoTime();
+            IndexSearcher searcher = searcherManager.acquire();
+            long acquired = System.nanoTime();
+            metrics.recordLatency(QueryStage.SEARCHER_ACQUISITION, acquired - start);
+            try {
+                SimhashNeighborStore neighbors = getSimhashNeighbors();
+                long postings;
+                if (neighbors != null && neighbors.size(doc.getType()) >= SimhashNeighborIndex.MIN_ENTRIES
+                        && (postings = countPostings(searcher, doc)) >= SimhashNeighborIndex.MIN_ENTRIES) {
+                    List<DocId> nearest = neighbors.nearest(doc, k, switchToLineContextThreshold);
+                    if (nearest != null) {
+                        long searched = System.nanoTime();
+                        metrics.recordLatency(QueryStage.NEIGHBOR_SEARCH, searched - acquired);
+                        metrics.recordCandidates(CandidateCount.BASE_CANDIDATES, doc.getType(), postings);
+                        Map<DocId, IndexDocument> fetchedDocs = deserializeIndexDocuments(nearest);
+                        if (fetchedDocs.keySet().containsAll(nearest)) {
+                            for (DocId docID : nearest) {
+                                answers.add(fetchedDocs.get(docID));
+                            }
+                            metrics.recordLatency(QueryStage.DOCUMENT_FETCH, System.nanoTime() - searched);
+                            return answers;
+                        }
+                        // documents are missing in the store, the collector skips them and returns the next closest
+                        // documents instead, like without the neighbor indexes
+                    }
+                }
+                long queryStart = System.nanoTime();
+                RefinementCollector collector = new RefinementCollector(doc, k, switchToLineContextThreshold,
+                        this::deserializeIndexDocument);
+                searcher.search(buildQuery(doc), collector);
+                long searched = System.nanoTime();
+                metrics.recordLatency(QueryStage.LUCENE_QUERY, searched - queryStart);
+                metrics.recordCandidates(CandidateCount.BASE_CANDIDATES, doc.getType(), collector.getCollectedHits());
+                answers.addAll(collector.fetchDocumentsOrderedByDistance(this::deserializeIndexDocuments));
+                metrics.recordLatency(QueryStage.DOCUMENT_FETCH, System.nanoTime() - searched);
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IndexNotFoundException e) {
+            // no inverted index structure for the type we're looking for, no completion recommendation possible
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on IOException
+        }
+        return answers;
+    }
+
+    /**
+     * @return total number of documents containing the terms of doc's overall context, an upper bound of the number
+     * of hits of doc's query
+     */
+    private static long countPostings(IndexSearcher searcher, IndexDocument doc) throws IOException {
+        long count = 0;
+        for (String term : doc.getOverallContext()) {
+            count += searcher.getIndexReader().docFreq(new Term(OVERALL_CONTEXT_FIELD, term));
+        }
+        return count;
+    }
+
+    /**
+     * Records the latencies of searcher acquisition, query and document fetch, and the number of base candidates of
+     * all subsequent searches.
+     *
+     * @param metrics metrics to record to, {@link IQueryMetrics#NONE} to stop recording
+     */
+    public void setQueryMetrics(IQueryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return neighbor indexes over the simhashes of the documents in this index, null if refined searches should
+     * always run the full query
+     */
+    SimhashNeighborStore getSimhashNeighbors() {
+        return null;
+    }
+
+    /**
+     * @return number of documents in the last commit of the Lucene index, 0 if nothing has been committed yet
+     */
+    public long getNumberOfCommittedDocuments() {
+        initializeDirectory();
+        try {
+            if (!DirectoryReader.indexExists(indexDirectory)) {
+                return 0;
+            }
+            try (DirectoryReader reader = DirectoryReader.open(indexDirectory)) {
+                return reader.numDocs();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on IOException
+        }
+        return 0;
+    }
+
+    /**
+     * Adds all documents of the last commit of the Lucene index to the given neighbor indexes, reading their types
+     * and overall contexts from the postings and their docIDs and simhashes from the DocValues.
+     *
+     * @return false if the index has been written by an earlier version which did not store the docIDs and simhashes
+     * as DocValues, in which case the neighbor indexes are incomplete
+     * @throws IOException if the index cannot be read or the neighbor indexes cannot be written
+     */
+    boolean addIndexedDocumentsTo(SimhashNeighborStore neighbors) throws IOException {
+        initializeDirectory();
+        if (!DirectoryReader.indexExists(indexDirectory)) {
+            return true;
+        }
+        try (DirectoryReader reader = DirectoryReader.open(indexDirectory)) {
+            for (LeafReaderContext context : reader.leaves()) {
+                LeafReader leaf = context.reader();
+                Terms types = leaf.terms(TYPE_FIELD);
+                if (types == null) {
+                    continue;
+                }
+                Bits liveDocs = leaf.getLiveDocs();
+                int[][] overallContexts = readOverallContexts(leaf);
+                TermsEnum typesEnum = types.iterator();
+                PostingsEnum postings = null;
+                for (BytesRef type = typesEnum.next(); type != null; type = typesEnum.next()) {
+                    String typeName = type.utf8ToString();
+                    // DocValues can only be advanced forwards, so every type needs fresh ones
+                    BinaryDocValues docIdValues = leaf.getBinaryDocValues(DOC_ID_FIELD);
+                    NumericDocValues lineContextSimhashes = leaf.getNumericDocValues(LINE_CONTEXT_SIMHASH_FIELD);
+                    NumericDocValues overallContextSimhashes = leaf.getNumericDocValues(OVERALL_CONTEXT_SIMHASH_FIELD);
+                    if (docIdValues == null || lineContextSimhashes == null || overallContextSimhashes == null) {
+                        return false;
+                    }
+                    postings = typesEnum.postings(postings, PostingsEnum.NONE);
+                    for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                        if (liveDocs != null && !liveDocs.get(doc)) {
+                            continue;
+                        }
+                        if (!docIdValues.advanceExact(doc) || !lineContextSimhashes.advanceExact(doc)
+                                || !overallContextSimhashes.advanceExact(doc)) {
+                            return false;
+                        }
+                        neighbors.add(DocId.fromBytesRef(docIdValues.binaryValue()), typeName,
+                                lineContextSimhashes.longValue(), overallContextSimhashes.longValue(),
+                                overallContexts[doc]);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inverts the postings of the overall context field of a segment.
+     *
+     * @return {@link SymbolTable} IDs of the overall context terms of each document of the segment
+     */
+    private static int[][] readOverallContexts(LeafReader leaf) throws IOException {
+        int[][] overallContexts = new int[leaf.maxDoc()][];
+        int[] sizes = new int[leaf.maxDoc()];
+        Terms terms = leaf.terms(OVERALL_CONTEXT_FIELD);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                int termId = SymbolTable.intern(term.utf8ToString());
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (overallContexts[doc] == null) {
+                        overallContexts[doc] = new int[4];
+                    } else if (sizes[doc] == overallContexts[doc].length) {
+                        overallContexts[doc] = Arrays.copyOf(overallContexts[doc], sizes[doc] * 2);
+                    }
+                    overallContexts[doc][sizes[doc]++] = termId;
+                }
+            }
+        }
+        for (int doc = 0; doc < overallContexts.length; doc++) {
+            overallContexts[doc] = overallContexts[doc] == null ? new int[0] : Arrays.copyOf(overallContexts[doc], sizes[doc]);
+        }
+        return overallContexts;
+    }
+
     /**
      * deserialize IndexDocument object with the given docID
      *
      * @param docID
      * @return
      */
-    abstract IndexDocument deserializeIndexDocument(String docID) throws IOException;
+    abstract IndexDocument deserializeIndexDocument(DocId docID) throws IOException;
+
+    /**
+     * deserialize the IndexDocument objects with the given docIDs. Backends which pay a price per lookup (e.g. a
+     * database round trip) should override this and fetch the documents in bulk.
+     *
+     * @param docIDs IDs of the documents to deserialize
+     * @return map from docID to the deserialized document, docIDs which are not found are missing in the map
+     */
+    Map<DocId, IndexDocument> deserializeIndexDocuments(Collection<DocId> docIDs) throws IOException {
+        Map<DocId, IndexDocument> docs = new HashMap<>();
+        for (DocId docID : docIDs) {
+            if (!docs.containsKey(docID)) {
+                IndexDocument doc = deserializeIndexDocument(docID);
+                if (doc != null) {
+                    docs.put(docID, doc);
+                }
+            }
+        }
+        return docs;
+    }
 
     @Override
     public void startIndexing() {
@@ -193,6 +451,16 @@ public abstract class AbstractInvertedIndex implements IInvertedIndex {
         }
     }
 
+    @Override
+    public void commit() {
+        try {
+            indexWriter.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on IOException
+        }
+    }
+
     @Override
     public void finishIndexing() {
         try {
@@ -204,18 +472,50 @@ public abstract class AbstractInvertedIndex implements IInvertedIndex {
 
     @Override
     public void startSearching() {
-        initializeDirectory();
         try {
-            IndexReader reader = DirectoryReader.open(indexDirectory);
-            searcher = new IndexSearcher(reader);
+            SearcherManager searcherManager = this.searcherManager;
+            if (searcherManager == null) {
+                openSearcherManager();
+            } else {
+                // searcher was already open, make sure it sees documents which have been committed since. Does not
+                // block: if another thread is refreshing the searcher already, we search with the current one.
+                searcherManager.maybeRefresh();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Opens the shared {@link SearcherManager} if it is not open yet.
+     *
+     * @return true if the searcher has been opened by this call, false if it was already open
+     * @throws IOException if the index cannot be opened
+     */
+    private synchronized boolean openSearcherManager() throws IOException {
+        if (searcherManager != null) {
+            return false;
+        }
+        initializeDirectory();
+        searcherManager = new SearcherManager(indexDirectory, null);
+        return true;
+    }
+
     @Override
     public void finishSearching() {
-        // nothing to do here
+        // nothing to do here, the searcher stays open until close() is called
+    }
+
+    @Override
+    public synchronized void close() {
+        if (searcherManager != null) {
+            try {
+                searcherManager.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            searcherManager = null;
+        }
     }
 
 }
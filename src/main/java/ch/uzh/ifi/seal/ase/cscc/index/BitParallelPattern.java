@@ -0,0 +1,194 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares texts to a fixed pattern string with bit-parallel algorithms, which process 64 characters of the pattern
+ * per machine word instead of filling a dynamic programming table cell by cell:
+ * <ul>
+ * <li>length of the longest common subsequence as in Hyyrö, "Bit-Parallel LCS-length Computation Revisited", 2004</li>
+ * <li>Levenshtein distance as in Myers, "A Fast Bit-Vector Algorithm for Approximate String Matching Based on Dynamic
+ * Programming", 1999, with the blocks of his Section 4 for patterns longer than 64 characters</li>
+ * </ul>
+ * Both compare characters (UTF-16 code units) like {@link org.apache.commons.text.similarity.LongestCommonSubsequence}
+ * and {@link org.apache.commons.text.similarity.LevenshteinDistance} do, and return exactly the same values.
+ * <p>
+ * The match masks of the pattern are computed once, so a pattern should be reused for all texts it is compared to.
+ * Instances are immutable and can be shared between threads.
+ */
+final class BitParallelPattern {
+
+    // number of text characters after which the bounded LCS checks whether it can still reach the minimum length
+    private static final int EARLY_EXIT_INTERVAL_MASK = 16 - 1;
+
+    private final int length;
+    // number of 64-bit blocks of the pattern
+    private final int blocks;
+    // bit i of block i / 64 of the mask of a character is set if the pattern has that character at position i
+    private final long[][] asciiMasks = new long[128][];
+    private final Map<Character, long[]> otherMasks = new HashMap<>();
+    // mask of characters which do not occur in the pattern
+    private final long[] noMatches;
+
+    BitParallelPattern(String pattern) {
+        length = pattern.length();
+        blocks = Math.max(1, (length + 63) >>> 6);
+        noMatches = new long[blocks];
+        for (int i = 0; i < length; i++) {
+            char c = pattern.charAt(i);
+            long[] mask;
+            if (c < 128) {
+                mask = asciiMasks[c];
+                if (mask == null) {
+                    mask = asciiMasks[c] = new long[blocks];
+                }
+            } else {
+                mask = otherMasks.computeIfAbsent(c, key -> new long[blocks]);
+            }
+            mask[i >>> 6] |= 1L << i;
+        }
+    }
+
+    /**
+     * @return length of the pattern
+     */
+    int length() {
+        return length;
+    }
+
+    private long[] mask(char c) {
+        long[] mask = c < 128 ? asciiMasks[c] : otherMasks.get(c);
+        return mask == null ? noMatches : mask;
+    }
+
+    /**
+     * @return length of the longest common subsequence of the pattern and the text
+     */
+    int longestCommonSubsequenceLength(CharSequence text) {
+        return longestCommonSubsequenceLength(text, 0);
+    }
+
+    /**
+     * Computes the length of the longest common subsequence, but gives up as soon as it cannot reach
+     * {@code minLength} anymore, because the LCS grows by at most one per remaining character of the text.
+     *
+     * @return length of the longest common subsequence of the pattern and the text if it is at least
+     * {@code minLength}, otherwise some value below {@code minLength}
+     */
+    int longestCommonSubsequenceLength(CharSequence text, int minLength) {
+        int textLength = text.length();
+        if (Math.min(length, textLength) < minLength) {
+            return Math.min(length, textLength);
+        }
+        if (length == 0) {
+            return 0;
+        }
+        // a cleared bit i in v marks that the LCS of the text so far and the pattern up to position i grows there
+        if (blocks == 1) {
+            long v = -1L;
+            long lengthMask = lowBits(length);
+            for (int j = 0; j < textLength; j++) {
+                long u = v & mask(text.charAt(j))[0];
+                v = (v + u) | (v - u);
+                if ((j & EARLY_EXIT_INTERVAL_MASK) == EARLY_EXIT_INTERVAL_MASK) {
+                    int lcs = Long.bitCount(~v & lengthMask);
+                    if (lcs + textLength - j - 1 < minLength) {
+                        return lcs;
+                    }
+                }
+            }
+            return Long.bitCount(~v & lengthMask);
+        }
+        long[] v = new long[blocks];
+        Arrays.fill(v, -1L);
+        for (int j = 0; j < textLength; j++) {
+            if ((j & EARLY_EXIT_INTERVAL_MASK) == EARLY_EXIT_INTERVAL_MASK) {
+                int lcs = countLongestCommonSubsequence(v);
+                if (lcs + textLength - j < minLength) {
+                    return lcs;
+                }
+            }
+            long[] mask = mask(text.charAt(j));
+            if (mask == noMatches) {
+                // u is 0 in every block, v stays the same
+                continue;
+            }
+            long carry = 0;
+            for (int b = 0; b < blocks; b++) {
+                long vb = v[b];
+                long u = vb & mask[b];
+                long sum = vb + u;
+                long sumWithCarry = sum + carry;
+                carry = Long.compareUnsigned(sum, vb) < 0 || (carry != 0 && sumWithCarry == 0) ? 1 : 0;
+                // u is a subset of vb, so vb - u never borrows
+                v[b] = sumWithCarry | (vb - u);
+            }
+        }
+        return countLongestCommonSubsequence(v);
+    }
+
+    private int countLongestCommonSubsequence(long[] v) {
+        int lcs = 0;
+        for (int b = 0; b < blocks - 1; b++) {
+            lcs += Long.bitCount(~v[b]);
+        }
+        return lcs + Long.bitCount(~v[blocks - 1] & lowBits(length - 64 * (blocks - 1)));
+    }
+
+    /**
+     * @return Levenshtein distance between the pattern and the text
+     */
+    int levenshteinDistance(CharSequence text) {
+        if (length == 0) {
+            return text.length();
+        }
+        // pv / mv: positions where the distance grows / shrinks by one from row i - 1 to row i of the current column
+        long[] pv = new long[blocks];
+        long[] mv = new long[blocks];
+        Arrays.fill(pv, -1L);
+        // bit of the last pattern position in the last block
+        long lastBit = 1L << (length - 1);
+        int score = length;
+        for (int j = 0; j < text.length(); j++) {
+            long[] mask = mask(text.charAt(j));
+            // the first row of the table grows by one per column
+            int carry = 1;
+            for (int b = 0; b < blocks; b++) {
+                long eq = mask[b];
+                long pvb = pv[b];
+                long mvb = mv[b];
+                long xv = eq | mvb;
+                if (carry < 0) {
+                    eq |= 1L;
+                }
+                long xh = (((eq & pvb) + pvb) ^ pvb) | eq;
+                long ph = mvb | ~(xh | pvb);
+                long mh = pvb & xh;
+                long highBit = b == blocks - 1 ? lastBit : 1L << 63;
+                int carryOut = (ph & highBit) != 0 ? 1 : (mh & highBit) != 0 ? -1 : 0;
+                ph <<= 1;
+                mh <<= 1;
+                if (carry < 0) {
+                    mh |= 1L;
+                } else if (carry > 0) {
+                    ph |= 1L;
+                }
+                pv[b] = mh | ~(xv | ph);
+                mv[b] = ph & xv;
+                carry = carryOut;
+            }
+            score += carry;
+        }
+        return score;
+    }
+
+    /**
+     * @return mask of the lowest n bits, n in [1, 64]
+     */
+    private static long lowBits(int n) {
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+
+}
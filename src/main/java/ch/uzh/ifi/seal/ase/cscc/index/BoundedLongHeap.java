@@ -0,0 +1,113 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the k smallest of the keys offered to it in a max-heap on a plain long array, so the head is the largest key
+ * kept. Selecting the k best of n keys costs O(n log k) and no allocations per key.
+ * <p>
+ * Keys are typically (distance << 32 | position), which orders by distance and then by position. With a
+ * {@link TieBreaker}, keys with the same distance are ordered by the tie breaker instead, e.g. by the docIDs of the
+ * documents at the positions.
+ */
+final class BoundedLongHeap {
+
+    /**
+     * Orders keys whose upper 32 bits are the same by their lower 32 bits.
+     */
+    interface TieBreaker {
+        int compare(int position1, int position2);
+    }
+
+    private final long[] heap;
+    private final TieBreaker tieBreaker;
+    private int size = 0;
+
+    BoundedLongHeap(int k) {
+        this(k, null);
+    }
+
+    /**
+     * @param tieBreaker order of keys with the same upper 32 bits, null to order them by their lower 32 bits
+     */
+    BoundedLongHeap(int k, TieBreaker tieBreaker) {
+        heap = new long[k];
+        this.tieBreaker = tieBreaker;
+    }
+
+    /**
+     * Keeps the key if it is among the k smallest keys offered so far.
+     */
+    void offer(long key) {
+        if (size < heap.length) {
+            heap[size++] = key;
+            siftUp(size - 1);
+        } else if (size > 0 && compare(key, heap[0]) < 0) {
+            heap[0] = key;
+            siftDown(0);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the kept keys in ascending order
+     */
+    long[] toSortedArray() {
+        long[] keys = Arrays.copyOf(heap, size);
+        if (tieBreaker == null) {
+            Arrays.sort(keys);
+            return keys;
+        }
+        List<Long> sortedKeys = new ArrayList<>(size);
+        for (long key : keys) {
+            sortedKeys.add(key);
+        }
+        sortedKeys.sort(this::compare);
+        for (int i = 0; i < size; i++) {
+            keys[i] = sortedKeys.get(i);
+        }
+        return keys;
+    }
+
+    private int compare(long key1, long key2) {
+        if (tieBreaker == null || (key1 >>> 32) != (key2 >>> 32)) {
+            return Long.compare(key1, key2);
+        }
+        return tieBreaker.compare((int) key1, (int) key2);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (compare(heap[parent], heap[i]) >= 0) {
+                return;
+            }
+            long tmp = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = tmp;
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (compare(heap[i], heap[child]) >= 0) {
+                return;
+            }
+            long tmp = heap[child];
+            heap[child] = heap[i];
+            heap[i] = tmp;
+            i = child;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ranks the candidates like {@link ExhaustiveRankingStage}, but only computes what can change the top methods:
+ * <ul>
+ * <li>the overall context similarity (score1) of a candidate is only computed as far as needed to decide whether it
+ * exceeds the filtering threshold</li>
+ * <li>score1 ranks the candidates, the line context similarity (score2) only breaks ties. So score2 is only computed
+ * for candidates whose score1 is at least that of the last method which can be suggested, all others rank behind the
+ * top methods anyway</li>
+ * </ul>
+ */
+public class BoundedRankingStage implements IRankingStage {
+
+    private final ISimilarityKernels kernels;
+
+    public BoundedRankingStage(ISimilarityKernels kernels) {
+        this.kernels = kernels;
+    }
+
+    @Override
+    public Ranking rank(IndexDocument query, List<IndexDocument> refinedCandidates, double filteringThreshold,
+                        int candidatesToSuggest) {
+        Set<String> candidateMethodNames = new HashSet<>();
+        TopScoredMethods topMethodsByScore1 = new TopScoredMethods(candidatesToSuggest);
+        double[] scores1 = new double[refinedCandidates.size()];
+        int i = 0;
+        for (IndexDocument candidate : refinedCandidates) {
+            double score1 = kernels.overallContextSimilarity(candidate, query, filteringThreshold);
+            scores1[i++] = score1;
+            if (score1 > filteringThreshold) {
+                topMethodsByScore1.add(candidate, score1, 0);
+                candidateMethodNames.add(candidate.getMethodCall());
+            }
+        }
+        double minScore1 = topMethodsByScore1.isFull() ? topMethodsByScore1.worstScore1() : Double.NEGATIVE_INFINITY;
+
+        // keeps the best candidate of each method while ranking, as if all candidates were sorted and the later
+        // candidates of each method were removed
+        TopScoredMethods topMethods = new TopScoredMethods(candidatesToSuggest);
+        i = 0;
+        for (IndexDocument candidate : refinedCandidates) {
+            double score1 = scores1[i++];
+            if (score1 > filteringThreshold && score1 >= minScore1) {
+                topMethods.add(candidate, score1, kernels.lineContextSimilarity(candidate, query));
+            }
+        }
+        return new Ranking(topMethods.toList(), candidateMethodNames);
+    }
+
+}
@@ -0,0 +1,22 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+/**
+ * Numbers of candidates per query recorded by {@link IQueryMetrics}.
+ */
+public enum CandidateCount {
+
+    /**
+     * Documents of the query's type sharing overall context with it. For queries answered by the simhash neighbor
+     * indexes, the number of postings of the query's terms, which may count a document more than once.
+     */
+    BASE_CANDIDATES,
+    /**
+     * Candidates left after the refinement, at most k.
+     */
+    REFINED_CANDIDATES,
+    /**
+     * Methods of the candidates which passed the filtering threshold.
+     */
+    CANDIDATE_METHODS
+
+}
@@ -6,8 +6,8 @@ import org.apache.lucene.store.FSDirectory;
 
 import java.io.*;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.logging.Logger;
 
 /**
@@ -21,21 +21,75 @@ public class DiskBasedInvertedIndex extends AbstractInvertedIndex {
       CLASS & INSTANCE VARIABLES
      */
 
-    private static final String SQL_TABLE_NAME = "indexdocuments";
+    private static final String SQL_TABLE_NAME = SQLiteDocumentTable.TABLE_NAME;
     private static final String INDEX_ROOT_DIR_NAME = "CSCCInvertedIndex";
     private static final String SERIALIZED_INDEX_DOCUMENTS_DIR_NAME = "IndexDocuments";
     private static final String SERIALIZED_INDEX_DOCUMENTS_SQLITE_FILE_NAME = "IndexDocuments.db";
+    private static final String INDEX_DOCUMENTS_LOG_DIR_NAME = "IndexDocumentsLog";
+    private static final String DUPLICATE_FILTER_FILE_NAME = "docids.bloom";
     private static final String INVERTED_INDEX_STRUCTURES_DIR_NAME = "InvertedIndexStructures_Lucene";
+    private static final String SIMHASH_NEIGHBORS_DIR_NAME = "InvertedIndexStructures_SimhashNeighbors";
     private final Logger LOGGER = Logger.getLogger(DiskBasedInvertedIndex.class.getName());
     // directory where the Lucene index is persisted on disk
     private String indexRootDir;
 
-    // connection to SQLite database
+    // connection to SQLite database used for indexing
     private Connection dbConn;
+    private SQLiteDocumentTable dbTable;
+    // prepared statements on dbConn, reused for every indexed document
+    private PreparedStatement isIndexedStmt;
+    private PreparedStatement insertDocStmt;
+    // idle connections to SQLite database used for searching, kept open across queries until close() is called.
+    // Concurrent searches read in parallel, each on a connection of its own, see deserializeFromSQLite().
+    private final Deque<SearchConnection> searchConnections = new ConcurrentLinkedDeque<>();
+    // dictionary of the database, shared by the indexing and the search connection
+    private final StoreSymbols dbSymbols = new StoreSymbols();
+
+    // where the IndexDocument objects are stored
+    private DocumentStorage documentStorage;
+    // append-only store used with DocumentStorage.MAPPED_LOG, shared by indexing and searching
+    private volatile MappedIndexDocumentStore mappedStore;
+
+    // bulk-load mode: SQLite inserts are not autocommitted but group-committed together with the Lucene index
+    private boolean bulkLoading = false;
+    private int commitIntervalDocs;
+    private long commitIntervalMillis;
+    private int docsSinceLastCommit = 0;
+    private long lastCommitTime;
+
+    // Bloom filter over the docIDs in the document store, saves the store lookup for documents which are new
+    private boolean duplicateFilterEnabled = false;
+    private long duplicateFilterExpectedDocuments;
+    private double duplicateFilterFalsePositiveProbability;
+    private DocIdBloomFilter duplicateFilter;
+    // number of documents in the document store, only counted while the duplicate filter is used
+    private long storedDocuments;
+    private long avoidedLookups = 0;
+    private long observedFalsePositives = 0;
+
+    // neighbor indexes over the simhashes, used by refined searches on large types. Only published once they are
+    // complete, because searches read them without locking.
+    private volatile boolean simhashNeighborsEnabled = false;
+    private volatile SimhashNeighborStore simhashNeighbors;
 
-    // true: we store IndexDocuments in SQLite database
-    // false: we serialize IndexDocuments to disk as files with .ser ending
-    private boolean USE_SQLITE = true;
+    /**
+     * Storage backends for the IndexDocument objects.
+     */
+    public enum DocumentStorage {
+        /**
+         * IndexDocuments are stored in an SQLite database.
+         */
+        SQLITE,
+        /**
+         * IndexDocuments are serialized to disk as files with .ser ending, one file per document.
+         */
+        SERIALIZED_FILES,
+        /**
+         * IndexDocuments are appended to segment files which are read through memory mapping, see
+         * {@link MappedIndexDocumentStore}.
+         */
+        MAPPED_LOG
+    }
 
     /*
       CONSTRUCTOR METHODS
@@ -60,56 +114,369 @@ public class DiskBasedInvertedIndex extends AbstractInvertedIndex {
      *                              false: we serialize IndexDocuments to disk as files with .ser ending
      */
     public DiskBasedInvertedIndex(String indexDir, boolean useRelationalDatabase) {
+        this(indexDir, useRelationalDatabase ? DocumentStorage.SQLITE : DocumentStorage.SERIALIZED_FILES);
+    }
+
+    /**
+     * Creates a new {@link DiskBasedInvertedIndex} using the given index directory to store the index and the given
+     * storage backend for the IndexDocument objects.
+     *
+     * @param indexDir        directory in which the inverted index will be stored.
+     * @param documentStorage where the IndexDocument objects are stored
+     */
+    public DiskBasedInvertedIndex(String indexDir, DocumentStorage documentStorage) {
         indexRootDir = indexDir + "/" + INDEX_ROOT_DIR_NAME;
         createDirectoryIfNotExists(new File(indexRootDir));
-        this.USE_SQLITE = useRelationalDatabase;
+        this.documentStorage = documentStorage;
     }
 
-    private void createDBSchemaIfNotExists(Connection sqlConnection) throws SQLException {
-        String sqlCreate = "CREATE TABLE IF NOT EXISTS " + this.SQL_TABLE_NAME
-                + "("
-                + "   docid                  CHAR(64) PRIMARY KEY,"
-                + "   type                   VARCHAR(1) NOT NULL," // SQLite does not enforce length of VARCHAR
-                + "   method                 VARCHAR(1) NOT NULL,"
-                + "   linecontext            VARCHAR(1),"
-                + "   overallcontext         VARCHAR(1),"
-                + "   linecontextsimhash     BIGINT,"
-                + "   overallcontextsimhash  BIGINT"
-                + ")";
-        Statement stmt = sqlConnection.createStatement();
-        stmt.execute(sqlCreate);
-        stmt.close();
+    /**
+     * Switches this index to bulk-load mode, which is much faster for training large models. Call this before
+     * {@link DiskBasedInvertedIndex#startIndexing()}.
+     * <p>
+     * In bulk-load mode, the SQLite database uses write-ahead logging and documents are not committed one by one.
+     * Instead, the Lucene index and the SQLite database are committed together every {@code commitIntervalDocs}
+     * documents or every {@code commitIntervalMillis} milliseconds, whichever comes first, and whenever
+     * {@link DiskBasedInvertedIndex#commit()} is called.
+     *
+     * @param commitIntervalDocs   number of indexed documents after which a group commit happens
+     * @param commitIntervalMillis time in milliseconds after which a group commit happens
+     */
+    public void enableBulkLoading(int commitIntervalDocs, long commitIntervalMillis) {
+        this.bulkLoading = true;
+        this.commitIntervalDocs = commitIntervalDocs;
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    /**
+     * Switches this index to bulk-load mode without group commits of its own: the Lucene index and the SQLite database
+     * are only committed when {@link DiskBasedInvertedIndex#commit()} is called. This is for callers which record
+     * their progress with every commit, like {@link ch.uzh.ifi.seal.ase.cscc.CompletionModel.TrainingPipeline}. Call
+     * this before {@link DiskBasedInvertedIndex#startIndexing()}.
+     */
+    public void enableBulkLoading() {
+        enableBulkLoading(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Puts a Bloom filter over the docIDs in front of the document store. Documents whose docID is not in the filter
+     * are new for sure, only for the others the store has to be asked whether they are indexed already. Call this
+     * before {@link DiskBasedInvertedIndex#startIndexing()}.
+     * <p>
+     * The filter is saved next to the index by {@link DiskBasedInvertedIndex#finishIndexing()} and loaded again by the
+     * next training run. It is not saved on every commit, since it is written as a whole (about 1.2 bytes per expected
+     * document at 1% false positives). If it does not match the document store (e.g. because training has been
+     * interrupted after documents have been committed), it is rebuilt from the store. With {@link DocumentStorage#MAPPED_LOG} the filter is not used,
+     * since that store looks up docIDs in memory anyway.
+     *
+     * @param expectedDocuments        number of documents the filter is sized for, should be about the size of the
+     *                                 training corpus
+     * @param falsePositiveProbability probability that the store has to be asked about a new document once
+     *                                 {@code expectedDocuments} documents have been indexed
+     */
+    public void enableDuplicateFilter(long expectedDocuments, double falsePositiveProbability) {
+        this.duplicateFilterEnabled = true;
+        this.duplicateFilterExpectedDocuments = expectedDocuments;
+        this.duplicateFilterFalsePositiveProbability = falsePositiveProbability;
+    }
+
+    /**
+     * @return number of store lookups which the duplicate filter has saved, i.e. number of new documents the filter
+     * has recognized as such
+     */
+    public long getDuplicateFilterAvoidedLookups() {
+        return avoidedLookups;
+    }
+
+    /**
+     * @return number of new documents for which the duplicate filter reported a probable hit
+     */
+    public long getDuplicateFilterObservedFalsePositives() {
+        return observedFalsePositives;
+    }
+
+    /**
+     * @return fraction of new documents for which the duplicate filter reported a probable hit so that the store
+     * had to be asked, 0 if no new document has been indexed yet
+     */
+    public double getDuplicateFilterFalsePositiveRate() {
+        long newDocuments = avoidedLookups + observedFalsePositives;
+        return newDocuments == 0 ? 0 : (double) observedFalsePositives / newDocuments;
+    }
+
+    /**
+     * @return false positive rate which is to be expected given the size of the duplicate filter and the number of
+     * documents in it, 0 if the filter is not used
+     */
+    public double getDuplicateFilterExpectedFalsePositiveRate() {
+        return duplicateFilter == null ? 0 : duplicateFilter.getExpectedFalsePositiveRate();
+    }
+
+    /**
+     * Keeps a {@link SimhashNeighborIndex} per type next to the Lucene index, through which refined searches on large
+     * types find the closest documents without running the query over all documents of the type. The results are the
+     * same as without the neighbor indexes. Call this before {@link DiskBasedInvertedIndex#startIndexing()} and
+     * {@link DiskBasedInvertedIndex#startSearching()}, in every run which indexes documents as well as in every run
+     * which searches.
+     * <p>
+     * The neighbor indexes are held in memory (about 100 bytes plus 4 bytes per overall context term per document) and
+     * saved whenever the index is committed. Refined searches look up the closest documents there instead of in the
+     * Lucene index, so a search process should not use them while another process is still indexing.
+     * If they are missing, e.g. because the index has been trained without them, they are built from the Lucene index.
+     * Indices written by versions which did not store simhashes as DocValues cannot use them.
+     */
+    public void enableSimhashNeighborIndex() {
+        this.simhashNeighborsEnabled = true;
     }
 
     @Override
     public void startIndexing() {
         super.startIndexing();
-        if (USE_SQLITE) {
+        if (simhashNeighborsEnabled) {
+            openSimhashNeighbors();
+        } else {
+            // documents indexed from now on would be missing in the neighbor indexes, they have to be rebuilt
+            deleteSimhashNeighbors();
+        }
+        if (documentStorage == DocumentStorage.MAPPED_LOG) {
+            openMappedStore();
+        }
+        if (documentStorage == DocumentStorage.SQLITE) {
             openSQLConnection();
             try {
-                createDBSchemaIfNotExists(dbConn);
+                dbTable = new SQLiteDocumentTable(dbConn, dbSymbols, true);
+                if (bulkLoading) {
+                    Statement stmt = dbConn.createStatement();
+                    // WAL: commits only append to the log, readers do not block the writer
+                    stmt.execute("PRAGMA journal_mode=WAL");
+                    // in WAL mode, NORMAL only syncs at checkpoints and is still safe against corruption
+                    stmt.execute("PRAGMA synchronous=NORMAL");
+                    stmt.close();
+                    dbConn.setAutoCommit(false);
+                }
+                isIndexedStmt = dbConn.prepareStatement("SELECT docid FROM " + SQL_TABLE_NAME + " WHERE docid=?");
+                insertDocStmt = dbConn.prepareStatement("INSERT INTO " + SQL_TABLE_NAME + " VALUES(?,?,?,?,?,?,?)");
             } catch (SQLException e) {
                 e.printStackTrace();
                 System.exit(1);
             }
         }
+        if (duplicateFilterEnabled && documentStorage != DocumentStorage.MAPPED_LOG) {
+            loadDuplicateFilter();
+        }
+        docsSinceLastCommit = 0;
+        lastCommitTime = System.currentTimeMillis();
+    }
+
+    private void loadDuplicateFilter() {
+        File filterFile = new File(indexRootDir + "/" + DUPLICATE_FILTER_FILE_NAME);
+        try {
+            storedDocuments = countStoredDocuments();
+            duplicateFilter = DocIdBloomFilter.readFrom(filterFile, storedDocuments);
+            if (duplicateFilter == null || duplicateFilter.getExpectedDocuments() < storedDocuments) {
+                LOGGER.info("Building duplicate filter from " + storedDocuments + " stored documents...");
+                duplicateFilter = new DocIdBloomFilter(Math.max(duplicateFilterExpectedDocuments, 2 * storedDocuments),
+                        duplicateFilterFalsePositiveProbability);
+                addStoredDocIDsTo(duplicateFilter);
+            }
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on exception
+        }
+    }
+
+    private void saveDuplicateFilter() {
+        if (duplicateFilter == null) {
+            return;
+        }
+        try {
+            duplicateFilter.writeTo(new File(indexRootDir + "/" + DUPLICATE_FILTER_FILE_NAME), storedDocuments);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on IOException
+        }
+    }
+
+    private long countStoredDocuments() throws SQLException {
+        if (documentStorage == DocumentStorage.SQLITE) {
+            Statement stmt = dbConn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + SQL_TABLE_NAME);
+            long count = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            stmt.close();
+            return count;
+        }
+        String[] files = new File(indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME).list();
+        return files == null ? 0 : files.length;
+    }
+
+    private void addStoredDocIDsTo(DocIdBloomFilter filter) throws SQLException {
+        if (documentStorage == DocumentStorage.SQLITE) {
+            Statement stmt = dbConn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT docid FROM " + SQL_TABLE_NAME);
+            while (rs.next()) {
+                filter.add(dbTable.getDocId(rs));
+            }
+            rs.close();
+            stmt.close();
+            return;
+        }
+        String[] files = new File(indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME).list();
+        if (files != null) {
+            for (String fileName : files) {
+                filter.add(DocId.fromHex(fileName.substring(0, fileName.length() - ".ser".length())));
+            }
+        }
+    }
+
+    @Override
+    public void indexDocument(IndexDocument doc) {
+        super.indexDocument(doc);
+        if (bulkLoading) {
+            docsSinceLastCommit++;
+            if (docsSinceLastCommit >= commitIntervalDocs
+                    || System.currentTimeMillis() - lastCommitTime >= commitIntervalMillis) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Commits the Lucene index and, in bulk-load mode, the SQLite database. With
+     * {@link DocumentStorage#MAPPED_LOG}, the document store is flushed to disk. The duplicate filter is only saved by
+     * {@link DiskBasedInvertedIndex#finishIndexing()}: the saved filter records the number of stored documents it
+     * covers, so after a crash it does not match the committed documents anymore and is rebuilt from the store.
+     * <p>
+     * Lucene is committed first: if we crash in between, the documents are in the Lucene index but not in the
+     * database. They will then be indexed again when training is resumed, which is harmless because Lucene replaces
+     * documents with the same docID and the simhash neighbor indexes skip docIDs they already hold. The other way
+     * around, the documents would be in the database (and thus be skipped as already indexed) but would be missing in
+     * the Lucene index forever. For the same reason, the simhash neighbor indexes are saved before Lucene is committed.
+     */
+    @Override
+    public void commit() {
+        if (simhashNeighbors != null) {
+            flushSimhashNeighbors();
+        }
+        super.commit();
+        if (mappedStore != null) {
+            flushMappedStore();
+        }
+        if (documentStorage == DocumentStorage.SQLITE && bulkLoading && dbConn != null) {
+            try {
+                dbConn.commit();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                System.exit(1); // exit on exception
+            }
+        }
+        docsSinceLastCommit = 0;
+        lastCommitTime = System.currentTimeMillis();
+    }
+
+    private synchronized void openMappedStore() {
+        // the store is opened once and then used for indexing as well as for searching until close() is called
+        if (mappedStore == null) {
+            try {
+                mappedStore = new MappedIndexDocumentStore(new File(indexRootDir + "/" + INDEX_DOCUMENTS_LOG_DIR_NAME));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1); // exit on exception
+            }
+        }
+    }
+
+    private synchronized void openSimhashNeighbors() {
+        // the neighbor indexes are opened once and then used for indexing as well as for searching until close()
+        if (simhashNeighbors != null) {
+            return;
+        }
+        File dir = new File(indexRootDir + "/" + SIMHASH_NEIGHBORS_DIR_NAME);
+        try {
+            boolean existed = SimhashNeighborStore.exists(dir);
+            SimhashNeighborStore neighbors = new SimhashNeighborStore(dir);
+            if (!existed) {
+                LOGGER.info("Building simhash neighbor indexes from Lucene index...");
+                if (addIndexedDocumentsTo(neighbors)) {
+                    neighbors.flush();
+                } else {
+                    LOGGER.warning("Lucene index has been written by an earlier version, simhash neighbor indexes are not available");
+                    neighbors.delete();
+                    simhashNeighborsEnabled = false;
+                    return;
+                }
+            }
+            simhashNeighbors = neighbors;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on exception
+        }
+    }
+
+    private void deleteSimhashNeighbors() {
+        File dir = new File(indexRootDir + "/" + SIMHASH_NEIGHBORS_DIR_NAME);
+        if (SimhashNeighborStore.exists(dir)) {
+            try {
+                FileUtils.deleteDirectory(dir);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1); // exit on IOException
+            }
+        }
+    }
+
+    private void flushSimhashNeighbors() {
+        try {
+            simhashNeighbors.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on IOException
+        }
+    }
+
+    private void flushMappedStore() {
+        try {
+            mappedStore.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on exception
+        }
     }
 
     private void openSQLConnection() {
+        dbConn = createSQLConnection();
+    }
+
+    private Connection createSQLConnection() {
         String sqlUrl = "jdbc:sqlite:" + indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_SQLITE_FILE_NAME;
         try {
-            dbConn = DriverManager.getConnection(sqlUrl);
+            return DriverManager.getConnection(sqlUrl);
         } catch (SQLException e) {
             e.printStackTrace();
             System.exit(1); // exit on exception
         }
+        return null;
     }
 
     @Override
     public void finishIndexing() {
+        if (simhashNeighbors != null) {
+            flushSimhashNeighbors();
+        }
+        // closing the IndexWriter commits the Lucene index, afterwards the database can be committed
         super.finishIndexing();
-        if (USE_SQLITE && dbConn != null) {
+        if (mappedStore != null) {
+            flushMappedStore();
+        }
+        saveDuplicateFilter();
+        if (documentStorage == DocumentStorage.SQLITE && dbConn != null) {
             try {
+                if (!dbConn.getAutoCommit()) {
+                    dbConn.commit();
+                }
+                isIndexedStmt.close();
+                insertDocStmt.close();
+                dbTable.close();
                 dbConn.close();
             } catch (SQLException e) {
                 e.printStackTrace();
@@ -120,20 +487,78 @@ public class DiskBasedInvertedIndex extends AbstractInvertedIndex {
     @Override
     public void startSearching() {
         super.startSearching();
-        if (USE_SQLITE) {
-            openSQLConnection();
+        // called before every query, so concurrent queries only take the lock while the stores are not open yet,
+        // search connections to the SQLite database are opened when they are needed
+        if (documentStorage == DocumentStorage.MAPPED_LOG && mappedStore == null) {
+            openMappedStore();
+        }
+        if (simhashNeighborsEnabled && simhashNeighbors == null) {
+            openSimhashNeighbors();
+        }
+    }
+
+    /**
+     * @return an idle search connection, or a new one if all of them are in use. Must be given back with
+     * {@link DiskBasedInvertedIndex#releaseSearchConnection(SearchConnection)}.
+     */
+    private SearchConnection acquireSearchConnection() {
+        SearchConnection searchConn = searchConnections.pollFirst();
+        if (searchConn == null) {
+            try {
+                searchConn = new SearchConnection(createSQLConnection(), dbSymbols);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                System.exit(1); // exit on exception
+            }
+        }
+        return searchConn;
+    }
+
+    private void releaseSearchConnection(SearchConnection searchConn) {
+        // most recently used first, so that a single searching thread keeps reusing the same connection
+        searchConnections.offerFirst(searchConn);
+    }
+
+    /**
+     * Closes the idle search connections, searches which are running keep their connection.
+     */
+    void closeSearchConnections() {
+        SearchConnection searchConn;
+        while ((searchConn = searchConnections.pollFirst()) != null) {
+            try {
+                searchConn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     @Override
     public void finishSearching() {
         super.finishSearching();
-        if (USE_SQLITE && dbConn != null) {
+        // nothing else to do here, the search connections stay open until close() is called
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        // searches have finished, so all search connections are idle
+        closeSearchConnections();
+        if (mappedStore != null) {
             try {
-                dbConn.close();
-            } catch (SQLException e) {
+                mappedStore.close();
+            } catch (IOException e) {
                 e.printStackTrace();
             }
+            mappedStore = null;
+        }
+        if (simhashNeighbors != null) {
+            try {
+                simhashNeighbors.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            simhashNeighbors = null;
         }
     }
 
@@ -143,22 +568,38 @@ public class DiskBasedInvertedIndex extends AbstractInvertedIndex {
 
     @Override
     boolean isIndexed(IndexDocument doc) {
-        if (USE_SQLITE) {
-            return isIndexedInDB(doc);
-        } else {
-            return isIndexedAsFile(doc);
+        if (duplicateFilter != null) {
+            if (!duplicateFilter.mightContain(doc.getDocId())) {
+                avoidedLookups++;
+                return false;
+            }
+            boolean indexed = isIndexedInStore(doc);
+            if (!indexed) {
+                observedFalsePositives++;
+            }
+            return indexed;
+        }
+        return isIndexedInStore(doc);
+    }
+
+    private boolean isIndexedInStore(IndexDocument doc) {
+        switch (documentStorage) {
+            case SQLITE:
+                return isIndexedInDB(doc);
+            case MAPPED_LOG:
+                return mappedStore.contains(doc.getDocId());
+            default:
+                return isIndexedAsFile(doc);
         }
     }
 
     private boolean isIndexedInDB(IndexDocument doc) {
-        String sqlSelect = "SELECT docid FROM " + this.SQL_TABLE_NAME + " WHERE docid=\"" + doc.getId() + "\"";
         try {
-            Statement stmt = dbConn.createStatement();
-            ResultSet rs = stmt.executeQuery(sqlSelect);
-            boolean hasItems = rs.isBeforeFirst();
+            dbTable.setDocId(isIndexedStmt, 1, doc.getDocId());
+            ResultSet rs = isIndexedStmt.executeQuery();
+            boolean hasItems = rs.next();
 //            System.out.println(doc.getId() + " already indexed? " + hasItems);
             rs.close();
-            stmt.close();
             return hasItems;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -167,46 +608,50 @@ public class DiskBasedInvertedIndex extends AbstractInvertedIndex {
     }
 
     private boolean isIndexedAsFile(IndexDocument doc) {
-        File f = new File(getPathToFileForIndexDocument(doc.getId()));
+        File f = new File(getPathToFileForIndexDocument(doc.getDocId()));
         return f.exists();
     }
 
-    private String getPathToFileForIndexDocument(String docID) {
-        return indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME + "/" + docID + ".ser";
+    private String getPathToFileForIndexDocument(DocId docID) {
+        return indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME + "/" + docID.toHex() + ".ser";
     }
 
     @Override
     void serializeIndexDocument(IndexDocument doc) throws IOException {
-        if (USE_SQLITE) {
-            try {
-                serializeToSQLite(doc);
-            } catch (SQLException e) {
-                e.printStackTrace();
-                throw new IOException(e.getMessage()); // TODO: it's probably not best practise to turn an SQLException into an IOException
-            }
-        } else {
-            serializeToFile(doc);
+        if (duplicateFilter != null) {
+            duplicateFilter.add(doc.getDocId());
+            storedDocuments++;
+        }
+        if (simhashNeighbors != null) {
+            // added before the document goes into Lucene, so that every searchable document is in its neighbor index
+            simhashNeighbors.add(doc);
+        }
+        switch (documentStorage) {
+            case SQLITE:
+                try {
+                    serializeToSQLite(doc);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    throw new IOException(e.getMessage()); // TODO: it's probably not best practise to turn an SQLException into an IOException
+                }
+                break;
+            case MAPPED_LOG:
+                mappedStore.append(doc);
+                break;
+            default:
+                serializeToFile(doc);
         }
     }
 
     private void serializeToSQLite(IndexDocument doc) throws SQLException {
-        String sqlInsert = "INSERT INTO " + this.SQL_TABLE_NAME + " VALUES(?,?,?,?,?,?,?)";
-        PreparedStatement prepStmt = dbConn.prepareStatement(sqlInsert);
-        prepStmt.setString(1, doc.getId());
-        prepStmt.setString(2, doc.getType());
-        prepStmt.setString(3, doc.getMethodCall());
-        prepStmt.setString(4, serializeContext(doc.getLineContext()));
-        prepStmt.setString(5, serializeContext(doc.getOverallContext()));
-        prepStmt.setLong(6, doc.getLineContextSimhash());
-        prepStmt.setLong(7, doc.getOverallContextSimhash());
-        prepStmt.executeUpdate();
-        prepStmt.close();
+        dbTable.bindDocument(insertDocStmt, doc);
+        insertDocStmt.executeUpdate();
     }
 
     private void serializeToFile(IndexDocument doc) throws IOException {
         String contextsDirPath = indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME;
         createDirectoryIfNotExists(new File(contextsDirPath));
-        FileOutputStream fileOut = new FileOutputStream(getPathToFileForIndexDocument(doc.getId()));
+        FileOutputStream fileOut = new FileOutputStream(getPathToFileForIndexDocument(doc.getDocId()));
         ObjectOutputStream out = new ObjectOutputStream(fileOut);
         out.writeObject(doc);
         out.close();
@@ -221,62 +666,108 @@ public class DiskBasedInvertedIndex extends AbstractInvertedIndex {
     }
 
     @Override
-    IndexDocument deserializeIndexDocument(String docID) throws IOException {
-        if (USE_SQLITE) {
-            return deserializeFromSQLite(docID);
-        } else {
-            return deserializeFromFile(docID);
+    SimhashNeighborStore getSimhashNeighbors() {
+        return simhashNeighbors;
+    }
+
+    @Override
+    IndexDocument deserializeIndexDocument(DocId docID) throws IOException {
+        switch (documentStorage) {
+            case SQLITE:
+                return deserializeFromSQLite(docID);
+            case MAPPED_LOG:
+                return mappedStore.get(docID);
+            default:
+                return deserializeFromFile(docID);
+        }
+    }
+
+    @Override
+    Map<DocId, IndexDocument> deserializeIndexDocuments(Collection<DocId> docIDs) throws IOException {
+        switch (documentStorage) {
+            case SQLITE:
+                return deserializeFromSQLite(docIDs);
+            case MAPPED_LOG:
+                return deserializeFromMappedStore(docIDs);
+            default:
+                return deserializeFromFiles(docIDs);
         }
     }
 
-    private IndexDocument deserializeFromSQLite(String docID) {
-        String sqlSelect = "SELECT * FROM " + this.SQL_TABLE_NAME + " WHERE docid=\"" + docID + "\"";
+    private IndexDocument deserializeFromSQLite(DocId docID) {
+        SearchConnection searchConn = acquireSearchConnection();
         try {
-            Statement stmt = dbConn.createStatement();
-            ResultSet rs = stmt.executeQuery(sqlSelect);
-            boolean hasItems = rs.isBeforeFirst();
-            if (hasItems) {
-                String methodCall = rs.getString("method");
-                String type = rs.getString("type");
-                List<String> lineContext = deserializeContext(rs.getString("linecontext"));
-                List<String> overallContext = deserializeContext(rs.getString("overallcontext"));
-                long lineContextSimhash = rs.getLong("linecontextsimhash");
-                long overallContextSimhash = rs.getLong("overallcontextsimhash");
-                IndexDocument doc = new IndexDocument(docID, methodCall, type, lineContext, overallContext, lineContextSimhash, overallContextSimhash);
-                return doc;
+            searchConn.table.setDocId(searchConn.selectDocStmt, 1, docID);
+            ResultSet rs = searchConn.selectDocStmt.executeQuery();
+            IndexDocument doc = null;
+            if (rs.next()) {
+                doc = searchConn.table.readDocument(rs);
             }
             rs.close();
-            stmt.close();
+            return doc;
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            releaseSearchConnection(searchConn);
         }
         return null;
     }
 
-    private String serializeContext(List<String> context) {
-        StringBuilder sb = new StringBuilder();
-        for (String s : context) {
-            sb.append(s.length());
-            sb.append("~");
-            sb.append(s);
+    /**
+     * Fetches the documents in chunks, see {@link SQLiteDocumentTable#readDocuments(PreparedStatement, Collection)}.
+     */
+    private Map<DocId, IndexDocument> deserializeFromSQLite(Collection<DocId> docIDs) {
+        SearchConnection searchConn = acquireSearchConnection();
+        try {
+            return searchConn.table.readDocuments(searchConn.selectDocsChunkStmt, docIDs);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            releaseSearchConnection(searchConn);
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * Batch counterpart of {@link DiskBasedInvertedIndex#deserializeFromFile(DocId)}. Reads the files in the order of
+     * their names (i.e. in directory order) through a buffer.
+     */
+    private Map<DocId, IndexDocument> deserializeFromFiles(Collection<DocId> docIDs) throws IOException {
+        Map<DocId, IndexDocument> docs = new HashMap<>();
+        for (DocId docID : new TreeSet<>(docIDs)) {
+            File file = new File(getPathToFileForIndexDocument(docID));
+            if (!file.exists()) {
+                continue;
+            }
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                docs.put(docID, (IndexDocument) in.readObject());
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+                System.exit(1); // exit on exception
+            } finally {
+                in.close();
+            }
         }
-        return sb.toString();
+        return docs;
     }
 
-    private List<String> deserializeContext(String context) {
-        List<String> result = new LinkedList<>();
-        int position = 0;
-        while (position < context.length()) {
-            int tildePosition = position + context.substring(position).indexOf("~");
-            int wordLength = Integer.valueOf(context.substring(position, tildePosition));
-            String s = context.substring(tildePosition + 1, tildePosition + 1 + wordLength);
-            result.add(s);
-            position = tildePosition + wordLength + 1;
+    /**
+     * Batch counterpart of {@link MappedIndexDocumentStore#get(DocId)}. Documents are already read from memory, so
+     * they are simply fetched one by one.
+     */
+    private Map<DocId, IndexDocument> deserializeFromMappedStore(Collection<DocId> docIDs) throws IOException {
+        Map<DocId, IndexDocument> docs = new HashMap<>();
+        for (DocId docID : docIDs) {
+            IndexDocument doc = mappedStore.get(docID);
+            if (doc != null) {
+                docs.put(docID, doc);
+            }
         }
-        return result;
+        return docs;
     }
 
-    private IndexDocument deserializeFromFile(String docID) throws IOException {
+    private IndexDocument deserializeFromFile(DocId docID) throws IOException {
         IndexDocument doc = null;
         FileInputStream fileIn = new FileInputStream(getPathToFileForIndexDocument(docID));
         ObjectInputStream in = new ObjectInputStream(fileIn);
@@ -308,4 +799,31 @@ public class DiskBasedInvertedIndex extends AbstractInvertedIndex {
         }
     }
 
+    /**
+     * Connection to the SQLite database used by one search at a time, together with its prepared statements. SQLite
+     * allows any number of readers at the same time, so concurrent searches do not have to wait for each other.
+     */
+    private static class SearchConnection {
+
+        private final Connection conn;
+        private final SQLiteDocumentTable table;
+        private final PreparedStatement selectDocStmt;
+        private final PreparedStatement selectDocsChunkStmt;
+
+        SearchConnection(Connection conn, StoreSymbols symbols) throws SQLException {
+            this.conn = conn;
+            this.table = new SQLiteDocumentTable(conn, symbols, false);
+            this.selectDocStmt = conn.prepareStatement("SELECT * FROM " + SQL_TABLE_NAME + " WHERE docid=?");
+            this.selectDocsChunkStmt = SQLiteDocumentTable.prepareSelectChunk(conn);
+        }
+
+        void close() throws SQLException {
+            selectDocStmt.close();
+            selectDocsChunkStmt.close();
+            table.close();
+            conn.close();
+        }
+
+    }
+
 }
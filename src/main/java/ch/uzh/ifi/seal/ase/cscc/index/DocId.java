@@ -0,0 +1,167 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of the docID of an {@link IndexDocument}, i.e. of its SHA-256 hash. The 32 bytes are held in four
+ * longs, most significant first.
+ * <p>
+ * Inside the index, docIDs are only handled in this form. The 64 character hex string is used where docIDs leave the
+ * index, i.e. in {@link IndexDocument#getId()} and in the names of serialized IndexDocument files.
+ */
+final class DocId implements Comparable<DocId> {
+
+    static final int BYTES = 32;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long word0;
+    private final long word1;
+    private final long word2;
+    private final long word3;
+
+    private DocId(long word0, long word1, long word2, long word3) {
+        this.word0 = word0;
+        this.word1 = word1;
+        this.word2 = word2;
+        this.word3 = word3;
+    }
+
+    static DocId fromBytes(byte[] bytes, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, BYTES);
+        return new DocId(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    static DocId fromBytesRef(BytesRef bytesRef) {
+        return fromBytes(bytesRef.bytes, bytesRef.offset);
+    }
+
+    static DocId readFrom(ByteBuffer buffer) {
+        return new DocId(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * @return the docID held in {@code words[offset]} to {@code words[offset + 3]}
+     */
+    static DocId fromWords(long[] words, int offset) {
+        return new DocId(words[offset], words[offset + 1], words[offset + 2], words[offset + 3]);
+    }
+
+    /**
+     * @param hex docID as 64 character hex string
+     * @throws IllegalArgumentException if hex is not a 64 character hex string
+     */
+    static DocId fromHex(String hex) {
+        if (hex.length() != 2 * BYTES) {
+            throw new IllegalArgumentException("docID must be a 64 character hex string: " + hex);
+        }
+        return new DocId(parseHexWord(hex, 0), parseHexWord(hex, 16), parseHexWord(hex, 32), parseHexWord(hex, 48));
+    }
+
+    private static long parseHexWord(String hex, int start) {
+        long word = 0;
+        for (int i = start; i < start + 16; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("docID must be a 64 character hex string: " + hex);
+            }
+            word = (word << 4) | digit;
+        }
+        return word;
+    }
+
+    byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(word0).putLong(word1).putLong(word2).putLong(word3);
+    }
+
+    BytesRef toBytesRef() {
+        return new BytesRef(toBytes());
+    }
+
+    String toHex() {
+        char[] hex = new char[2 * BYTES];
+        appendHexWord(hex, 0, word0);
+        appendHexWord(hex, 16, word1);
+        appendHexWord(hex, 32, word2);
+        appendHexWord(hex, 48, word3);
+        return new String(hex);
+    }
+
+    private static void appendHexWord(char[] hex, int start, long word) {
+        for (int i = start + 15; i >= start; i--) {
+            hex[i] = HEX_DIGITS[(int) word & 0xF];
+            word >>>= 4;
+        }
+    }
+
+    /**
+     * Puts the docID into {@code words[offset]} to {@code words[offset + 3]}.
+     */
+    void writeTo(long[] words, int offset) {
+        words[offset] = word0;
+        words[offset + 1] = word1;
+        words[offset + 2] = word2;
+        words[offset + 3] = word3;
+    }
+
+    /**
+     * @return the first 64 bits of the docID
+     */
+    long high() {
+        return word0;
+    }
+
+    /**
+     * @return the second 64 bits of the docID
+     */
+    long low() {
+        return word1;
+    }
+
+    /**
+     * Orders docIDs like their hex strings.
+     */
+    @Override
+    public int compareTo(DocId other) {
+        int c = Long.compareUnsigned(word0, other.word0);
+        if (c == 0) {
+            c = Long.compareUnsigned(word1, other.word1);
+        }
+        if (c == 0) {
+            c = Long.compareUnsigned(word2, other.word2);
+        }
+        if (c == 0) {
+            c = Long.compareUnsigned(word3, other.word3);
+        }
+        return c;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof DocId) {
+            DocId other = (DocId) obj;
+            return word0 == other.word0 && word1 == other.word1 && word2 == other.word2 && word3 == other.word3;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        // the bits of a SHA-256 hash are uniformly distributed already
+        return (int) word0;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+}
@@ -0,0 +1,139 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Bloom filter over docIDs, used by {@link DiskBasedInvertedIndex} to skip the lookup in the document store for
+ * documents which are definitely not indexed yet.
+ * <p>
+ * DocIDs are SHA-256 hashes, so their bits are already uniformly distributed. The positions of a docID in the filter
+ * are derived from its first 128 bits by double hashing instead of hashing it again.
+ */
+class DocIdBloomFilter {
+
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashFunctions;
+    private final long expectedDocuments;
+    private long insertions;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param expectedDocuments        number of docIDs the filter is sized for
+     * @param falsePositiveProbability false positive probability once {@code expectedDocuments} docIDs have been added
+     */
+    DocIdBloomFilter(long expectedDocuments, double falsePositiveProbability) {
+        this.expectedDocuments = Math.max(1, expectedDocuments);
+        long optimalNumBits = (long) Math.ceil(-this.expectedDocuments * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) Math.max(1, (optimalNumBits + 63) / 64)];
+        this.numBits = bits.length * 64L;
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / this.expectedDocuments * Math.log(2)));
+    }
+
+    private DocIdBloomFilter(long[] bits, int numHashFunctions, long expectedDocuments, long insertions) {
+        this.bits = bits;
+        this.numBits = bits.length * 64L;
+        this.numHashFunctions = numHashFunctions;
+        this.expectedDocuments = expectedDocuments;
+        this.insertions = insertions;
+    }
+
+    void add(DocId docID) {
+        long hash1 = docID.high();
+        long hash2 = docID.low();
+        for (int i = 0; i < numHashFunctions; i++) {
+            long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        insertions++;
+    }
+
+    /**
+     * @return false if the docID has definitely not been added to the filter, true if it probably has
+     */
+    boolean mightContain(DocId docID) {
+        long hash1 = docID.high();
+        long hash2 = docID.low();
+        for (int i = 0; i < numHashFunctions; i++) {
+            long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of docIDs the filter has been sized for
+     */
+    long getExpectedDocuments() {
+        return expectedDocuments;
+    }
+
+    /**
+     * @return probability that {@link DocIdBloomFilter#mightContain(DocId)} returns true for a docID which has not
+     * been added, given the number of docIDs added so far
+     */
+    double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-numHashFunctions * (double) insertions / numBits), numHashFunctions);
+    }
+
+    /**
+     * Writes the filter to the given file. The file is replaced atomically, so it is either the old or the new filter
+     * if we are interrupted while writing.
+     *
+     * @param file            file to write the filter to
+     * @param storedDocuments number of documents in the document store the filter has been built from
+     */
+    void writeTo(File file, long storedDocuments) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeLong(storedDocuments);
+            out.writeLong(expectedDocuments);
+            out.writeLong(insertions);
+            out.writeInt(numHashFunctions);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a filter written by {@link DocIdBloomFilter#writeTo(File, long)}.
+     *
+     * @param file            file to read the filter from
+     * @param storedDocuments number of documents currently in the document store
+     * @return the filter, or null if the file does not exist or the filter does not cover exactly the documents which
+     * are currently in the document store
+     */
+    static DocIdBloomFilter readFrom(File file, long storedDocuments) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_FORMAT_VERSION || in.readLong() != storedDocuments) {
+                return null;
+            }
+            long expectedDocuments = in.readLong();
+            long insertions = in.readLong();
+            int numHashFunctions = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new DocIdBloomFilter(bits, numHashFunctions, expectedDocuments, insertions);
+        } catch (EOFException e) {
+            // file has been truncated
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from docIDs to values, keyed by the first 128 bits of the docIDs through a {@link DocIdTable}. The values
+ * are held in an array by the entry of their docID.
+ * <p>
+ * Entries cannot be removed.
+ *
+ * @param <V> type of the values
+ */
+class DocIdMap<V> {
+
+    private final DocIdTable docIds = new DocIdTable(false);
+    private Object[] values = new Object[1024];
+
+    int size() {
+        return docIds.size();
+    }
+
+    boolean containsKey(DocId docID) {
+        return docIds.find(docID) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(DocId docID) {
+        int entry = docIds.find(docID);
+        return entry < 0 ? null : (V) values[entry];
+    }
+
+    /**
+     * @param value value to store, must not be null
+     */
+    void put(DocId docID, V value) {
+        int entry = docIds.find(docID);
+        if (entry < 0) {
+            entry = docIds.add(docID);
+            if (entry == values.length) {
+                values = Arrays.copyOf(values, entry * 2);
+            }
+        }
+        values[entry] = value;
+    }
+
+}
@@ -0,0 +1,134 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.Arrays;
+
+/**
+ * Append-only hash table which numbers docIDs in the order they are added: the first docID is entry 0, the next one
+ * entry 1 and so on, so that the users of the table can keep the data belonging to each docID in arrays of their own.
+ * Used by {@link PrimitiveInvertedIndex}, {@link DocIdMap}, {@link MappedIndexDocumentStore} and
+ * {@link SimhashNeighborStore}.
+ * <p>
+ * DocIDs are identified by their first 128 bits, which are held in primitive arrays. Two SHA-256 hashes sharing
+ * their first 128 bits are not expected to ever occur. If the table keeps the full docIDs, it can also return the
+ * docID of an entry.
+ * <p>
+ * Uses open addressing with linear probing, the hash table holds entry + 1 (0 marks an empty slot). One thread at a
+ * time may add docIDs while any number of threads look them up without locking: an entry is written completely before
+ * the size is increased, so readers which read the size first see every entry below it.
+ */
+final class DocIdTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // 4 if the full docIDs are kept, otherwise 2: the first 128 bits of the docID of entry i are held in
+    // words[wordsPerEntry * i] and words[wordsPerEntry * i + 1]
+    private final int wordsPerEntry;
+    private volatile long[] words;
+    private volatile int[] table = new int[2 * INITIAL_CAPACITY];
+    private volatile int size = 0;
+
+    /**
+     * @param keepFullDocIds true: keep all 256 bits of the docIDs, so that {@link DocIdTable#docId(int)} can be used
+     */
+    DocIdTable(boolean keepFullDocIds) {
+        this.wordsPerEntry = keepFullDocIds ? 4 : 2;
+        this.words = new long[wordsPerEntry * INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return number of docIDs in the table
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the entry of the docID, or -1 if it is not in the table
+     */
+    int find(DocId docID) {
+        long high = docID.high();
+        long low = docID.low();
+        // size first: the arrays read afterwards hold at least the entries below it
+        int size = this.size;
+        int[] table = this.table;
+        long[] words = this.words;
+        for (int slot = slot(table, high, low); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+            int entry = table[slot] - 1;
+            // an entry at or above size is still being added, skip it
+            if (entry < size && words[wordsPerEntry * entry] == high && words[wordsPerEntry * entry + 1] == low) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a docID which is not in the table yet, called by one thread at a time.
+     *
+     * @return the entry of the docID, i.e. the number of docIDs which have been added before
+     */
+    int add(DocId docID) {
+        int entry = size;
+        if (wordsPerEntry * (entry + 1) > words.length) {
+            words = Arrays.copyOf(words, 2 * words.length);
+        }
+        if (wordsPerEntry == 4) {
+            docID.writeTo(words, 4 * entry);
+        } else {
+            words[2 * entry] = docID.high();
+            words[2 * entry + 1] = docID.low();
+        }
+        if ((entry + 1) * 2 > table.length) {
+            // readers keep probing the old table until the new one is complete
+            int[] newTable = new int[table.length * 2];
+            for (int i = 0; i <= entry; i++) {
+                insertIntoTable(newTable, i);
+            }
+            table = newTable;
+        } else {
+            insertIntoTable(table, entry);
+        }
+        // publishes the entry
+        size = entry + 1;
+        return entry;
+    }
+
+    /**
+     * @return the docID of the given entry, only available if the table keeps the full docIDs
+     */
+    DocId docId(int entry) {
+        if (wordsPerEntry != 4) {
+            throw new UnsupportedOperationException("Table only keeps the first 128 bits of the docIDs");
+        }
+        return DocId.fromWords(words, 4 * entry);
+    }
+
+    /**
+     * Compares the docIDs of two entries like {@link DocId#compareTo(DocId)}. If the table only keeps the first 128
+     * bits, only these are compared.
+     */
+    int compare(int entry1, int entry2) {
+        long[] words = this.words;
+        for (int i = 0; i < wordsPerEntry; i++) {
+            int c = Long.compareUnsigned(words[wordsPerEntry * entry1 + i], words[wordsPerEntry * entry2 + i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private static int slot(int[] table, long high, long low) {
+        // docIDs are SHA-256 hashes, so their bits are already uniformly distributed
+        return (int) (high ^ low) & (table.length - 1);
+    }
+
+    private void insertIntoTable(int[] table, int entry) {
+        int slot = slot(table, words[wordsPerEntry * entry], words[wordsPerEntry * entry + 1]);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & (table.length - 1);
+        }
+        table[slot] = entry + 1;
+    }
+
+}
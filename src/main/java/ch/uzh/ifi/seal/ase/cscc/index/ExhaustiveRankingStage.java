@@ -0,0 +1,35 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ranks the candidates as described in the paper: every candidate whose overall context similarity (score1) exceeds
+ * the filtering threshold is scored by its line context similarity (score2) as well. Candidates are ordered by score1
+ * and then score2, and each method is represented by its best candidate.
+ */
+public class ExhaustiveRankingStage implements IRankingStage {
+
+    private final ISimilarityKernels kernels;
+
+    public ExhaustiveRankingStage(ISimilarityKernels kernels) {
+        this.kernels = kernels;
+    }
+
+    @Override
+    public Ranking rank(IndexDocument query, List<IndexDocument> refinedCandidates, double filteringThreshold,
+                        int candidatesToSuggest) {
+        Set<String> candidateMethodNames = new HashSet<>();
+        TopScoredMethods topMethods = new TopScoredMethods(candidatesToSuggest);
+        for (IndexDocument candidate : refinedCandidates) {
+            double score1 = kernels.overallContextSimilarity(candidate, query, Double.NEGATIVE_INFINITY);
+            if (score1 > filteringThreshold) {
+                topMethods.add(candidate, score1, kernels.lineContextSimilarity(candidate, query));
+                candidateMethodNames.add(candidate.getMethodCall());
+            }
+        }
+        return new Ranking(topMethods.toList(), candidateMethodNames);
+    }
+
+}
@@ -0,0 +1,399 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import ch.uzh.ifi.seal.ase.cscc.utils.CSCCConfiguration;
+import ch.uzh.ifi.seal.ase.cscc.visitors.IndexDocumentExtractionVisitor;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Cache of the {@link IndexDocument} objects which have been extracted from the contexts of zips, so that the contexts
+ * only have to be deserialized and visited once. Later runs stream the documents from the cache instead.
+ * <p>
+ * Every zip has a cache file of its own, named after the path of the zip. The file starts with a checksum over the
+ * central directory of the zip (names, sizes and CRCs of its entries), so a cache file of a zip which has changed
+ * since it has been written is ignored and replaced when the zip is extracted again. The same holds for cache files
+ * whose documents have been extracted differently: the header also records
+ * {@link CSCCConfiguration#LAST_N_CONSIDERED_STATEMENTS} and {@link IndexDocumentExtractionVisitor#VERSION}. Cache
+ * files are written to a temporary file which is only renamed once the whole zip has been extracted, so an incomplete
+ * cache file is never read. A cache file is mapped into memory as a whole, so a zip whose documents do not fit into
+ * 2 GB is not cached.
+ * <p>
+ * The documents of each context (i.e. each entry of the zip) are stored as one record. Tokens are stored as IDs of a
+ * dictionary of the cache file, which is written along with the records: a record is preceded by the tokens which
+ * occur in it for the first time. Thus records can be skipped without decoding them, e.g. to resume training in the
+ * middle of a zip.
+ */
+public class ExtractedDocumentCache {
+
+    private static final String CACHE_FILE_SUFFIX = ".docs";
+    private static final int MAGIC = 0x43534344; // "CSCD"
+    private static final int VERSION = 2;
+    // magic (int) + version (int) + considered statements (int) + extractor version (int) + checksum of the zip (long)
+    // + number of entries (int)
+    private static final int HEADER_SIZE = 28;
+    private static final int ENTRIES_OFFSET = 24;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    // a cache file is read through a single memory mapping
+    private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private final File dir;
+    // parameters of the extraction, the documents of a cache file are only read if they have been extracted alike
+    private final int lastNConsideredStatements;
+    private final int extractorVersion;
+    private final long maxFileSize;
+
+    /**
+     * @param dir directory holding the cache files, created when the first cache file is written
+     */
+    public ExtractedDocumentCache(String dir) {
+        this(dir, CSCCConfiguration.LAST_N_CONSIDERED_STATEMENTS, IndexDocumentExtractionVisitor.VERSION);
+    }
+
+    /**
+     * @param dir                       directory holding the cache files, created when the first cache file is written
+     * @param lastNConsideredStatements number of statements the overall context of the cached documents consists of
+     * @param extractorVersion          version of the extraction of the cached documents
+     */
+    ExtractedDocumentCache(String dir, int lastNConsideredStatements, int extractorVersion) {
+        this(dir, lastNConsideredStatements, extractorVersion, MAX_FILE_SIZE);
+    }
+
+    /**
+     * @param maxFileSize size in bytes which a cache file must not exceed, at most 2 GB
+     */
+    ExtractedDocumentCache(String dir, int lastNConsideredStatements, int extractorVersion, long maxFileSize) {
+        this.dir = new File(dir);
+        this.lastNConsideredStatements = lastNConsideredStatements;
+        this.extractorVersion = extractorVersion;
+        this.maxFileSize = Math.min(maxFileSize, MAX_FILE_SIZE);
+    }
+
+    /**
+     * Opens the cached documents of a zip for reading.
+     *
+     * @param zip zip of contexts
+     * @return the cached documents, or null if the zip has not been cached, has changed since or has been extracted
+     * differently
+     * @throws IOException if the zip or the cache file cannot be read
+     */
+    public Reader open(File zip) throws IOException {
+        File file = cacheFile(zip);
+        if (!file.isFile() || file.length() < HEADER_SIZE || file.length() > MAX_FILE_SIZE) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != lastNConsideredStatements
+                || buffer.getInt() != extractorVersion || buffer.getLong() != checksum(zip)) {
+            return null;
+        }
+        int entries = buffer.getInt();
+        return entries < 0 ? null : new Reader(buffer, entries);
+    }
+
+    /**
+     * Starts a new cache file for a zip. The current cache file of the zip, if any, is replaced once the returned
+     * writer is committed.
+     *
+     * @param zip zip of contexts
+     * @return writer to which the documents of every entry of the zip have to be appended in order
+     * @throws IOException if the zip cannot be read or the cache file cannot be created
+     */
+    public Writer create(File zip) throws IOException {
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        return new Writer(cacheFile(zip), lastNConsideredStatements, extractorVersion, checksum(zip), maxFileSize);
+    }
+
+    private File cacheFile(File zip) {
+        return new File(dir, DigestUtils.sha256Hex(zip.getAbsolutePath()) + CACHE_FILE_SUFFIX);
+    }
+
+    /**
+     * @return checksum of the central directory of the zip, which changes whenever an entry of the zip changes
+     */
+    static long checksum(File zip) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer sizes = ByteBuffer.allocate(24);
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                crc.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                sizes.clear();
+                sizes.putLong(entry.getCrc()).putLong(entry.getSize()).putLong(entry.getCompressedSize());
+                crc.update(sizes.array());
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads the records of a cache file one by one through a memory mapping of the file.
+     */
+    public static class Reader implements Closeable {
+
+        private final ByteBuffer buffer;
+        private final int entries;
+        private int nextEntry = 0;
+        // dictionary of the cache file: SymbolTable ID by ID in the file
+        private int[] tokens = new int[1024];
+        private int numTokens = 0;
+
+        private Reader(ByteBuffer buffer, int entries) {
+            this.buffer = buffer;
+            this.entries = entries;
+        }
+
+        /**
+         * @return number of entries (contexts) of the zip
+         */
+        public int getNumberOfEntries() {
+            return entries;
+        }
+
+        /**
+         * @return offset of the entry which the next call to {@link Reader#next()} returns
+         */
+        public int getNextEntry() {
+            return nextEntry;
+        }
+
+        public boolean hasNext() {
+            return nextEntry < entries;
+        }
+
+        /**
+         * @return the documents of the next entry
+         */
+        public List<IndexDocument> next() {
+            readTokens();
+            int length = readVarInt(buffer);
+            int end = buffer.position() + length;
+            int size = readVarInt(buffer);
+            List<IndexDocument> documents = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                DocId docID = DocId.readFrom(buffer);
+                int methodCall = readVarInt(buffer) - 1;
+                if (methodCall >= 0) {
+                    methodCall = tokens[methodCall];
+                }
+                int type = tokens[readVarInt(buffer)];
+                int[] lineContext = readIds();
+                int[] overallContext = readIds();
+                long lineContextSimhash = buffer.getLong();
+                long overallContextSimhash = buffer.getLong();
+                documents.add(new IndexDocument(docID, methodCall, type, lineContext, overallContext,
+                        lineContextSimhash, overallContextSimhash));
+            }
+            buffer.position(end);
+            nextEntry++;
+            return documents;
+        }
+
+        /**
+         * Skips entries without decoding their documents, so that {@link Reader#next()} returns the given entry.
+         *
+         * @param entry offset of the entry to continue with, all entries are skipped if it is past the last entry
+         */
+        public void skipTo(int entry) {
+            while (nextEntry < Math.min(entry, entries)) {
+                readTokens();
+                int length = readVarInt(buffer);
+                buffer.position(buffer.position() + length);
+                nextEntry++;
+            }
+        }
+
+        private void readTokens() {
+            for (int i = readVarInt(buffer); i > 0; i--) {
+                byte[] utf8 = new byte[readVarInt(buffer)];
+                buffer.get(utf8);
+                if (numTokens == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, numTokens * 2);
+                }
+                tokens[numTokens++] = SymbolTable.intern(new String(utf8, StandardCharsets.UTF_8));
+            }
+        }
+
+        private int[] readIds() {
+            int[] ids = new int[readVarInt(buffer)];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = tokens[readVarInt(buffer)];
+            }
+            return ids;
+        }
+
+        @Override
+        public void close() {
+            // nothing to do here, the mapping is released by the garbage collector
+        }
+    }
+
+    /**
+     * Appends the records of a zip to a temporary file, which replaces the cache file of the zip when the writer is
+     * committed.
+     */
+    public static class Writer implements Closeable {
+
+        private final File file;
+        private final File tmp;
+        private final FileOutputStream out;
+        private final DataOutputStream data;
+        private final long maxFileSize;
+        // bytes written to the file so far
+        private long fileSize = HEADER_SIZE;
+        private int entries = 0;
+        private boolean committed = false;
+        // dictionary of the cache file: ID in the file by SymbolTable ID
+        private final Map<Integer, Integer> tokens = new HashMap<>();
+        private final List<String> newTokens = new ArrayList<>();
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+        // tokens and length preceding the record
+        private final ByteArrayOutputStream recordPrefix = new ByteArrayOutputStream(256);
+        private final ByteBuffer scratch = ByteBuffer.allocate(DocId.BYTES);
+
+        private Writer(File file, int lastNConsideredStatements, int extractorVersion, long checksum, long maxFileSize)
+                throws IOException {
+            this.file = file;
+            this.maxFileSize = maxFileSize;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.out = new FileOutputStream(tmp);
+            this.data = new DataOutputStream(new BufferedOutputStream(out, WRITE_BUFFER_SIZE));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(lastNConsideredStatements);
+            data.writeInt(extractorVersion);
+            data.writeLong(checksum);
+            // the number of entries is only known when the writer is committed, until then the file is invalid
+            data.writeInt(-1);
+        }
+
+        /**
+         * Appends the documents of the next entry of the zip.
+         *
+         * @param documents documents extracted from the context of the entry
+         * @throws IOException if the documents cannot be written or the cache file would become too large to be read,
+         *                     the writer has to be closed then
+         */
+        public void append(List<IndexDocument> documents) throws IOException {
+            record.reset();
+            writeVarInt(record, documents.size());
+            for (IndexDocument doc : documents) {
+                scratch.clear();
+                doc.getDocId().writeTo(scratch);
+                record.write(scratch.array(), 0, DocId.BYTES);
+                writeVarInt(record, doc.getMethodCallId() < 0 ? 0 : fileId(doc.getMethodCallId()) + 1);
+                writeVarInt(record, fileId(doc.getTypeId()));
+                writeIds(doc.getLineContextIds());
+                writeIds(doc.getOverallContextIds());
+                scratch.clear();
+                scratch.putLong(doc.getLineContextSimhash()).putLong(doc.getOverallContextSimhash());
+                record.write(scratch.array(), 0, 16);
+            }
+            // tokens the record refers to for the first time go before the record
+            recordPrefix.reset();
+            writeVarInt(recordPrefix, newTokens.size());
+            for (String token : newTokens) {
+                byte[] utf8 = token.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(recordPrefix, utf8.length);
+                recordPrefix.write(utf8);
+            }
+            newTokens.clear();
+            writeVarInt(recordPrefix, record.size());
+            fileSize += recordPrefix.size() + record.size();
+            if (fileSize > maxFileSize) {
+                throw new IOException("Cache file " + file + " would exceed " + maxFileSize + " bytes");
+            }
+            recordPrefix.writeTo(data);
+            record.writeTo(data);
+            entries++;
+        }
+
+        /**
+         * Completes the cache file and replaces the previous cache file of the zip with it.
+         *
+         * @throws IOException if the cache file cannot be written
+         */
+        public void commit() throws IOException {
+            data.flush();
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(0, entries);
+            out.getChannel().write(header, ENTRIES_OFFSET);
+            out.getFD().sync();
+            data.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        }
+
+        /**
+         * Discards the cache file unless the writer has been committed.
+         */
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            try {
+                data.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (tmp.exists() && !tmp.delete()) {
+                System.err.println("Could not delete " + tmp);
+            }
+        }
+
+        private int fileId(int globalId) {
+            Integer id = tokens.get(globalId);
+            if (id == null) {
+                id = tokens.size();
+                tokens.put(globalId, id);
+                newTokens.add(SymbolTable.token(globalId));
+            }
+            return id;
+        }
+
+        private void writeIds(int[] ids) {
+            writeVarInt(record, ids.length);
+            for (int id : ids) {
+                writeVarInt(record, fileId(id));
+            }
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+}
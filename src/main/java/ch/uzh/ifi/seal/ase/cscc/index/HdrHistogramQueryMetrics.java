@@ -0,0 +1,198 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.ToLongFunction;
+
+/**
+ * Default {@link IQueryMetrics}: keeps a histogram per {@link QueryStage} and per {@link CandidateCount}, and the
+ * largest number of base candidates per type.
+ * <p>
+ * Queries record into HdrHistogram {@link Recorder}s without locking. Their values are moved to the cumulative
+ * histograms only when they are read, e.g. through JMX after {@link #registerMBean(String)}.
+ */
+public class HdrHistogramQueryMetrics implements IQueryMetrics, HdrHistogramQueryMetricsMXBean {
+
+    /**
+     * Prefix of the JMX object names of the metrics.
+     */
+    public static final String OBJECT_NAME_PREFIX = "ch.uzh.ifi.seal.ase.cscc:type=QueryMetrics,name=";
+
+    // histograms resize themselves, so no highest trackable value has to be guessed
+    private static final int SIGNIFICANT_VALUE_DIGITS = 2;
+    private static final int TYPES_WITH_MOST_BASE_CANDIDATES = 20;
+
+    private final Recorder[] latencyRecorders = new Recorder[QueryStage.values().length];
+    private final Recorder[] candidateRecorders = new Recorder[CandidateCount.values().length];
+    // values read from the recorders so far, guarded by this
+    private final Histogram[] latencies = new Histogram[QueryStage.values().length];
+    private final Histogram[] candidates = new Histogram[CandidateCount.values().length];
+    private final Map<String, LongAccumulator> maxBaseCandidatesByType = new ConcurrentHashMap<>();
+
+    public HdrHistogramQueryMetrics() {
+        for (int i = 0; i < latencyRecorders.length; i++) {
+            latencyRecorders[i] = new Recorder(SIGNIFICANT_VALUE_DIGITS);
+            latencies[i] = new Histogram(SIGNIFICANT_VALUE_DIGITS);
+        }
+        for (int i = 0; i < candidateRecorders.length; i++) {
+            candidateRecorders[i] = new Recorder(SIGNIFICANT_VALUE_DIGITS);
+            candidates[i] = new Histogram(SIGNIFICANT_VALUE_DIGITS);
+        }
+    }
+
+    @Override
+    public void recordLatency(QueryStage stage, long nanos) {
+        // nanoTime is monotonic, but guard against clocks which are not
+        latencyRecorders[stage.ordinal()].recordValue(Math.max(0, nanos));
+    }
+
+    @Override
+    public void recordCandidates(CandidateCount count, String type, long candidates) {
+        candidateRecorders[count.ordinal()].recordValue(candidates);
+        if (count == CandidateCount.BASE_CANDIDATES) {
+            maxBaseCandidatesByType.computeIfAbsent(String.valueOf(type), key -> new LongAccumulator(Math::max, 0))
+                    .accumulate(candidates);
+        }
+    }
+
+    /**
+     * @return copy of the histogram of the latencies of the stage in nanoseconds
+     */
+    public synchronized Histogram getLatencies(QueryStage stage) {
+        return collect(latencyRecorders, latencies, stage.ordinal()).copy();
+    }
+
+    /**
+     * @return copy of the histogram of the candidate counts
+     */
+    public synchronized Histogram getCandidates(CandidateCount count) {
+        return collect(candidateRecorders, candidates, count.ordinal()).copy();
+    }
+
+    private static Histogram collect(Recorder[] recorders, Histogram[] histograms, int i) {
+        histograms[i].add(recorders[i].getIntervalHistogram());
+        return histograms[i];
+    }
+
+    /*
+      JMX
+     */
+
+    /**
+     * Registers the metrics with the platform MBean server, see {@link #objectName(String)}.
+     *
+     * @param name name of the metrics, e.g. the name of the model
+     */
+    public void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName(name));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the metrics registered by {@link #registerMBean(String)} from the platform MBean server.
+     */
+    public void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return JMX object name of the metrics with the given name
+     */
+    public static ObjectName objectName(String name) throws MalformedObjectNameException {
+        return new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(name));
+    }
+
+    @Override
+    public long getQueries() {
+        return getLatencies(QueryStage.QUERY).getTotalCount();
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMedianMicros() {
+        return latencySummary(histogram -> histogram.getValueAtPercentile(50) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99Micros() {
+        return latencySummary(histogram -> histogram.getValueAtPercentile(99) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMaxMicros() {
+        return latencySummary(histogram -> histogram.getMaxValue() / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getCandidatesMedian() {
+        return candidateSummary(histogram -> histogram.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getCandidatesP99() {
+        return candidateSummary(histogram -> histogram.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getCandidatesMax() {
+        return candidateSummary(Histogram::getMaxValue);
+    }
+
+    private Map<String, Long> latencySummary(ToLongFunction<Histogram> statistic) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        for (QueryStage stage : QueryStage.values()) {
+            summary.put(stage.name(), statistic.applyAsLong(getLatencies(stage)));
+        }
+        return summary;
+    }
+
+    private Map<String, Long> candidateSummary(ToLongFunction<Histogram> statistic) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        for (CandidateCount count : CandidateCount.values()) {
+            summary.put(count.name(), statistic.applyAsLong(getCandidates(count)));
+        }
+        return summary;
+    }
+
+    @Override
+    public Map<String, Long> getTypesWithMostBaseCandidates() {
+        List<Map.Entry<String, Long>> types = new ArrayList<>();
+        for (Map.Entry<String, LongAccumulator> entry : maxBaseCandidatesByType.entrySet()) {
+            types.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().get()));
+        }
+        types.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> mostBaseCandidates = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> type : types.subList(0, Math.min(TYPES_WITH_MOST_BASE_CANDIDATES, types.size()))) {
+            mostBaseCandidates.put(type.getKey(), type.getValue());
+        }
+        return mostBaseCandidates;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int i = 0; i < latencyRecorders.length; i++) {
+            latencyRecorders[i].reset();
+            latencies[i].reset();
+        }
+        for (int i = 0; i < candidateRecorders.length; i++) {
+            candidateRecorders[i].reset();
+            candidates[i].reset();
+        }
+        maxBaseCandidatesByType.clear();
+    }
+
+}
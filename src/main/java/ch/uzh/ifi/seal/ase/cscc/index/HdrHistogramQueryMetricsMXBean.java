@@ -0,0 +1,35 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link HdrHistogramQueryMetrics}. Latencies are in microseconds and keyed by {@link QueryStage},
+ * candidate counts are keyed by {@link CandidateCount}.
+ */
+public interface HdrHistogramQueryMetricsMXBean {
+
+    long getQueries();
+
+    Map<String, Long> getLatencyMedianMicros();
+
+    Map<String, Long> getLatencyP99Micros();
+
+    Map<String, Long> getLatencyMaxMicros();
+
+    Map<String, Long> getCandidatesMedian();
+
+    Map<String, Long> getCandidatesP99();
+
+    Map<String, Long> getCandidatesMax();
+
+    /**
+     * @return the types with the most base candidates in a single query, mapped to that number
+     */
+    Map<String, Long> getTypesWithMostBaseCandidates();
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    void reset();
+
+}
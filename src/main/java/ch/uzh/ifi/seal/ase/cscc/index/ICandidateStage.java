@@ -0,0 +1,20 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.List;
+
+/**
+ * First stage of a {@link RecommendationPipeline}: finds the base candidates of a query (documents of the same type
+ * sharing overall context with it) and refines them to the k candidates closest to the query.
+ */
+public interface ICandidateStage {
+
+    /**
+     * @param query                        document for which to find candidates
+     * @param k                            maximum number of candidates to return
+     * @param switchToLineContextThreshold overall context distance above which the line context distance is used
+     * @return at most k candidates, ordered by ascending distance to the query, see
+     * {@link IInvertedIndex#searchRefined(IndexDocument, int, int)}
+     */
+    List<IndexDocument> findRefinedCandidates(IndexDocument query, int k, int switchToLineContextThreshold);
+
+}
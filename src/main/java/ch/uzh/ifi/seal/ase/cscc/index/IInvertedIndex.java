@@ -1,5 +1,6 @@
 package ch.uzh.ifi.seal.ase.cscc.index;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -25,6 +26,27 @@ public interface IInvertedIndex {
      */
     Set<IndexDocument> search(IndexDocument doc);
 
+    /**
+     * Searches documents similar to {@code doc} like {@link IInvertedIndex#search(IndexDocument)}, but only returns
+     * the {@code k} documents closest to {@code doc} (refined candidates). The distance is the hamming distance between
+     * the overall context simhashes, or the hamming distance between the line context simhashes if the overall
+     * contexts are more than {@code switchToLineContextThreshold} bits apart.
+     * Make sure you call {@link IInvertedIndex#startSearching()} first and call
+     * {@link IInvertedIndex#finishSearching()} when done.
+     * <p>
+     * This default implementation scans the full result of {@link IInvertedIndex#search(IndexDocument)}.
+     * Implementations should override it if they can avoid loading all similar documents.
+     *
+     * @param doc                          document for which to find similar documents
+     * @param k                            maximum number of documents to return
+     * @param switchToLineContextThreshold overall context distance above which the line context distance is used
+     * @return at most k documents, ordered by ascending distance to {@code doc} and then by docID, so that every
+     * implementation returns the same documents in the same order
+     */
+    default List<IndexDocument> searchRefined(IndexDocument doc, int k, int switchToLineContextThreshold) {
+        return LinearRefinementCandidateStage.refine(search(doc), doc, k, switchToLineContextThreshold);
+    }
+
     /**
      * Call this before using {@link IInvertedIndex#indexDocument(IndexDocument)}.
      */
@@ -35,14 +57,32 @@ public interface IInvertedIndex {
      */
     void finishIndexing();
 
+    /**
+     * Makes all documents indexed so far durable, i.e. they will still be in the index if the program is
+     * interrupted before {@link IInvertedIndex#finishIndexing()} is called. Does nothing by default, for indexes which
+     * only live in memory.
+     */
+    default void commit() {
+    }
+
     /**
      * Call this before using {@link IInvertedIndex#search(IndexDocument)}.
+     * The searcher is only opened on the first call and then shared by all subsequent (and concurrent) searches.
+     * Later calls are cheap, they only refresh the searcher if new documents have been committed in the meantime.
      */
     void startSearching();
 
     /**
-     * Call this when you're done with searching.
+     * Call this when you're done with searching. The shared searcher stays open for subsequent searches, call
+     * {@link IInvertedIndex#close()} to release it.
      */
     void finishSearching();
 
+    /**
+     * Releases the searcher and all other resources held by this index. Call this when the index is not used
+     * anymore. Does nothing by default, for indexes which hold no resources besides memory.
+     */
+    default void close() {
+    }
+
 }
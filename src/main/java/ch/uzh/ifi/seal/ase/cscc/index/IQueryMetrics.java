@@ -0,0 +1,35 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+/**
+ * Receives the stage latencies and candidate counts of the queries of a {@link RecommendationPipeline} and its
+ * {@link AbstractInvertedIndex}. Implementations are called by all threads which run queries.
+ */
+public interface IQueryMetrics {
+
+    /**
+     * Metrics which drop everything, used unless other metrics are set.
+     */
+    IQueryMetrics NONE = new IQueryMetrics() {
+        @Override
+        public void recordLatency(QueryStage stage, long nanos) {
+        }
+
+        @Override
+        public void recordCandidates(CandidateCount count, String type, long candidates) {
+        }
+    };
+
+    /**
+     * @param stage stage of the query
+     * @param nanos time the stage took in nanoseconds
+     */
+    void recordLatency(QueryStage stage, long nanos);
+
+    /**
+     * @param count      which candidates have been counted
+     * @param type       type of the query's receiver object
+     * @param candidates number of candidates
+     */
+    void recordCandidates(CandidateCount count, String type, long candidates);
+
+}
@@ -0,0 +1,21 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.List;
+
+/**
+ * Second stage of a {@link RecommendationPipeline}: scores the refined candidates of a query by the similarity of
+ * their overall contexts (score1) and line contexts (score2) and ranks the methods they call.
+ */
+public interface IRankingStage {
+
+    /**
+     * @param query                document for which to recommend methods
+     * @param refinedCandidates    candidates found by the {@link ICandidateStage}
+     * @param filteringThreshold   overall context similarity a candidate has to exceed to be considered
+     * @param candidatesToSuggest  number of methods to recommend
+     * @return the best candidate of each of the top methods, and all methods of the considered candidates
+     */
+    Ranking rank(IndexDocument query, List<IndexDocument> refinedCandidates, double filteringThreshold,
+                 int candidatesToSuggest);
+
+}
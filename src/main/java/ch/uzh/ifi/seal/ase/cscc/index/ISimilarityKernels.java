@@ -0,0 +1,24 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+/**
+ * Computes the normalized similarities by which an {@link IRankingStage} scores the candidates of a query.
+ */
+public interface ISimilarityKernels {
+
+    /**
+     * Normalized length of the longest common subsequence of the overall contexts (score1), see
+     * {@link IndexDocument#normalizedLongestCommonSubsequenceLengthOverallContextToOther(IndexDocument)}.
+     *
+     * @param threshold value only of interest if exceeded, use negative infinity for the exact value in any case
+     * @return the similarity if it is greater than the threshold, otherwise some value (or NaN) not greater than the
+     * threshold
+     */
+    double overallContextSimilarity(IndexDocument candidate, IndexDocument query, double threshold);
+
+    /**
+     * Normalized Levenshtein similarity of the line contexts (score2), see
+     * {@link IndexDocument#normalizedLevenshteinDistanceLineContextToOther(IndexDocument)}.
+     */
+    double lineContextSimilarity(IndexDocument candidate, IndexDocument query);
+
+}
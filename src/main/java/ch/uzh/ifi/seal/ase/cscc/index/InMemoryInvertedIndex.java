@@ -3,9 +3,6 @@ package ch.uzh.ifi.seal.ase.cscc.index;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * In-memory index.
  * This index will work entirely in memory. You can still persist this index after it has been created, but the
@@ -15,18 +12,18 @@ import java.util.Map;
 public class InMemoryInvertedIndex extends AbstractInvertedIndex {
 
     // <docID, IndexDocument>
-    private Map<String, IndexDocument> docsInRAMIndex = new HashMap<>();
+    private DocIdMap<IndexDocument> docsInRAMIndex = new DocIdMap<>();
     private RAMDirectory directory = new RAMDirectory();
 
     @Override
     boolean isIndexed(IndexDocument doc) {
-        return docsInRAMIndex.containsKey(doc.getId());
+        return docsInRAMIndex.containsKey(doc.getDocId());
     }
 
     @Override
     void serializeIndexDocument(IndexDocument doc) {
         // keep the IndexDocument object in a map
-        docsInRAMIndex.put(doc.getId(), doc);
+        docsInRAMIndex.put(doc.getDocId(), doc);
     }
 
     @Override
@@ -35,7 +32,7 @@ public class InMemoryInvertedIndex extends AbstractInvertedIndex {
     }
 
     @Override
-    IndexDocument deserializeIndexDocument(String docID) {
+    IndexDocument deserializeIndexDocument(DocId docID) {
         return docsInRAMIndex.get(docID);
     }
 
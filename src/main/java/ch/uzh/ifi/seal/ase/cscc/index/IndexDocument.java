@@ -3,10 +3,8 @@ package ch.uzh.ifi.seal.ase.cscc.index;
 import com.github.tomtung.jsimhash.SimHashBuilder;
 import com.github.tomtung.jsimhash.Util;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.text.similarity.LevenshteinDistance;
-import org.apache.commons.text.similarity.LongestCommonSubsequence;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
 
 /**
@@ -15,46 +13,97 @@ import java.util.*;
  * <p>
  * Important: Due to how the id is created, different IndexDocument objects will have the same {@link IndexDocument#id}
  * if they have the same {@link IndexDocument#type}, {@link IndexDocument#methodCall}, and {@link IndexDocument#overallContext}
+ * <p>
+ * The method call, the type and the tokens of the contexts are held as IDs of the shared {@link SymbolTable}. The
+ * contexts are ordered by their tokens (not by the IDs), so they concatenate to the same strings as a sorted set of the
+ * tokens would.
+ * <p>
+ * Documents created by {@link IndexDocument#forQuery} do not add their tokens to the symbol table. Tokens which are
+ * not in there get negative IDs local to the document instead, which match no indexed token.
  */
 public class IndexDocument implements Serializable {
 
+    // IndexDocuments are serialized in the format of earlier versions, which held the id as hex string, so that
+    // IndexDocuments serialized by them can still be read
+    private static final long serialVersionUID = 5939807841050835983L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("methodCall", String.class),
+            new ObjectStreamField("type", String.class),
+            new ObjectStreamField("lineContext", Set.class),
+            new ObjectStreamField("overallContext", Set.class),
+            new ObjectStreamField("lineContextSimhash", long.class),
+            new ObjectStreamField("overallContextSimhash", long.class)
+    };
+
+    // symbol ID of a method call which is null
+    private static final int NO_SYMBOL = -1;
+    // the first token of a query document which is not in the symbol table gets this ID, the next one ID - 1, ...
+    private static final int FIRST_LOCAL_SYMBOL = -2;
+
     private transient SimHashBuilder simHashBuilder;
-    private String id;
-    private String methodCall;
-    private String type;
-    private Set<String> lineContext;
-    private Set<String> overallContext;
+    private DocId id;
+    private int methodCall;
+    private int type;
+    private int[] lineContext;
+    private int[] overallContext;
     private long lineContextSimhash;
     private long overallContextSimhash;
+    // tokens of a query document which are not in the symbol table, by local ID, null for all other documents
+    private transient String[] localTokens;
+    // bit masks of the concatenated contexts, built when the document is first compared to another one as `other`,
+    // i.e. once per query. A pattern only has final fields, so sharing it between threads without locking is safe.
+    private transient BitParallelPattern lineContextPattern;
+    private transient BitParallelPattern overallContextPattern;
 
     /**
      * Creates a new IndexDocument storing the given information and assigns it an id based on
      * {@link IndexDocument#type}, {@link IndexDocument#methodCall}, and {@link IndexDocument#overallContext}
      */
     public IndexDocument(String methodCall, String type, Collection<String> lineContext, Collection<String> overallContext) {
+        this(methodCall, type, lineContext, overallContext, true);
+    }
+
+    private IndexDocument(String methodCall, String type, Collection<String> lineContext, Collection<String> overallContext, boolean internTokens) {
         if (type == null || type.equals("")) {
             throw new IllegalArgumentException("Parameter 'type' of IndexDocument must not be null or empty!");
         }
-        this.methodCall = methodCall;
-        this.type = type;
+        List<String> unknownTokens = internTokens ? null : new ArrayList<>();
+        this.methodCall = symbol(methodCall, unknownTokens);
+        this.type = symbol(type, unknownTokens);
         // We use a TreeSet so that documents with duplicate words in the context and different order of words in the
         // context have the same structure and thus create the same ID. Removing duplicate words is mentioned explicitly
         // in the paper. The order does not contain any relevant information for our algorithm either, because when
         // creating the base candidate list we only search for documents which contain the same words in the context,
         // no matter their order in the context (bag of words retrieval).
-        this.lineContext = new TreeSet<>(lineContext);
-        this.overallContext = new TreeSet<>(overallContext);
+        TreeSet<String> lineContextSet = new TreeSet<>(lineContext);
+        TreeSet<String> overallContextSet = new TreeSet<>(overallContext);
+        this.lineContext = symbols(lineContextSet, unknownTokens);
+        this.overallContext = symbols(overallContextSet, unknownTokens);
+        if (unknownTokens != null && !unknownTokens.isEmpty()) {
+            this.localTokens = unknownTokens.toArray(new String[0]);
+        }
         this.simHashBuilder = new SimHashBuilder();
-        this.lineContextSimhash = createSimhashFromStrings(setToList(this.lineContext));
-        this.overallContextSimhash = createSimhashFromStrings(setToList(this.overallContext));
+        this.lineContextSimhash = createSimhashFromStrings(setToList(lineContextSet));
+        this.overallContextSimhash = createSimhashFromStrings(setToList(overallContextSet));
         // We create a unique, deterministic identifier by combining type, method call, and overall context.
         // The id should be deterministic so that when we run the indexing several times, we don't add duplicates
         // to our index. We use SHA256 hashing to limit the length of the id to 64 characters. This is important
         // because we use the id as a file name when serializing the IndexDocument to disk and want to avoid file
         // names that are too long for the operating system to handle. SHA256 hashing should not cause any colli-
         // sions (at least not before the universe comes to an end).
-        String uniqueDeterministicId = type + "_" + (methodCall == null ? "-" : methodCall) + "_" + concatenate(setToList(this.overallContext));
-        this.id = DigestUtils.sha256Hex(uniqueDeterministicId);
+        String uniqueDeterministicId = type + "_" + (methodCall == null ? "-" : methodCall) + "_" + concatenate(setToList(overallContextSet));
+        this.id = DocId.fromBytes(DigestUtils.sha256(uniqueDeterministicId), 0);
+    }
+
+    /**
+     * Creates a new IndexDocument like {@link IndexDocument#IndexDocument(String, String, Collection, Collection)},
+     * but without adding its tokens to the symbol table, which is shared by the whole JVM and never shrinks. Use
+     * this for documents which are only used to query an index, e.g. the context for which a completion is wanted.
+     * The document has the same ID and simhashes and finds the same documents, but it must not be indexed itself.
+     */
+    public static IndexDocument forQuery(String methodCall, String type, Collection<String> lineContext, Collection<String> overallContext) {
+        return new IndexDocument(methodCall, type, lineContext, overallContext, false);
     }
 
     /**
@@ -64,37 +113,150 @@ public class IndexDocument implements Serializable {
      * and you already know their docID and simhashes.
      */
     public IndexDocument(String docId, String methodCall, String type, Collection<String> lineContext, Collection<String> overallContext, long lineContextSimhash, long overallContextSimhash) {
+        this(DocId.fromHex(docId), methodCall, type, lineContext, overallContext, lineContextSimhash, overallContextSimhash);
+    }
+
+    IndexDocument(DocId docId, String methodCall, String type, Collection<String> lineContext, Collection<String> overallContext, long lineContextSimhash, long overallContextSimhash) {
+        this(docId, intern(methodCall), intern(type), internAll(new TreeSet<>(lineContext)),
+                internAll(new TreeSet<>(overallContext)), lineContextSimhash, overallContextSimhash);
+    }
+
+    /**
+     * Creates a new IndexDocument from {@link SymbolTable} IDs. The contexts must be ordered by their tokens and free
+     * of duplicates, as returned by {@link IndexDocument#getLineContextIds()} and
+     * {@link IndexDocument#getOverallContextIds()}. The arrays are not copied.
+     */
+    IndexDocument(DocId docId, int methodCall, int type, int[] lineContext, int[] overallContext, long lineContextSimhash, long overallContextSimhash) {
         id = docId;
         this.methodCall = methodCall;
         this.type = type;
-        this.lineContext = new TreeSet<>(lineContext);
-        this.overallContext = new TreeSet<>(overallContext);
+        this.lineContext = lineContext;
+        this.overallContext = overallContext;
         this.lineContextSimhash = lineContextSimhash;
         this.overallContextSimhash = overallContextSimhash;
     }
 
+    /**
+     * Creates a copy of the given IndexDocument without hashing it again. The contexts are shared, which is safe
+     * because IndexDocuments never modify them.
+     */
+    IndexDocument(IndexDocument doc) {
+        this(doc.id, doc.methodCall, doc.type, doc.lineContext, doc.overallContext, doc.lineContextSimhash,
+                doc.overallContextSimhash);
+        localTokens = doc.localTokens;
+    }
+
+    private static int intern(String token) {
+        return token == null ? NO_SYMBOL : SymbolTable.intern(token);
+    }
+
+    private static int[] internAll(SortedSet<String> tokens) {
+        int[] ids = new int[tokens.size()];
+        int i = 0;
+        for (String token : tokens) {
+            ids[i++] = SymbolTable.intern(token);
+        }
+        return ids;
+    }
+
+    /**
+     * @param unknownTokens tokens which are not in the symbol table, collected in the order of their local IDs, or
+     *                      null to add unknown tokens to the symbol table
+     */
+    private static int symbol(String token, List<String> unknownTokens) {
+        if (token == null || unknownTokens == null) {
+            return intern(token);
+        }
+        int id = SymbolTable.lookup(token);
+        if (id < 0) {
+            id = FIRST_LOCAL_SYMBOL - unknownTokens.size();
+            unknownTokens.add(token);
+        }
+        return id;
+    }
+
+    private static int[] symbols(SortedSet<String> tokens, List<String> unknownTokens) {
+        int[] ids = new int[tokens.size()];
+        int i = 0;
+        for (String token : tokens) {
+            ids[i++] = symbol(token, unknownTokens);
+        }
+        return ids;
+    }
+
+    private String token(int id) {
+        if (id == NO_SYMBOL) {
+            return null;
+        }
+        return id <= FIRST_LOCAL_SYMBOL ? localTokens[FIRST_LOCAL_SYMBOL - id] : SymbolTable.token(id);
+    }
+
+    private List<String> tokens(int[] ids) {
+        List<String> tokens = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            tokens.add(token(id));
+        }
+        return tokens;
+    }
+
     /*
       Getters
      */
 
+    /**
+     * @return the id as 64 character hex string
+     */
     public String getId() {
+        return id.toHex();
+    }
+
+    DocId getDocId() {
         return id;
     }
 
     public String getMethodCall() {
-        return methodCall;
+        return token(methodCall);
     }
 
     public String getType() {
-        return type;
+        return token(type);
     }
 
     public List<String> getLineContext() {
-        return setToList(lineContext);
+        return tokens(lineContext);
     }
 
     public List<String> getOverallContext() {
-        return setToList(overallContext);
+        return tokens(overallContext);
+    }
+
+    /**
+     * @return {@link SymbolTable} ID of the method call, -1 if there is none. IDs below -1 are local to a query
+     * document, see {@link IndexDocument#forQuery}.
+     */
+    int getMethodCallId() {
+        return methodCall;
+    }
+
+    /**
+     * @return {@link SymbolTable} ID of the type
+     */
+    int getTypeId() {
+        return type;
+    }
+
+    /**
+     * @return {@link SymbolTable} IDs of the line context, ordered by their tokens. Must not be modified.
+     */
+    int[] getLineContextIds() {
+        return lineContext;
+    }
+
+    /**
+     * @return {@link SymbolTable} IDs of the overall context, ordered by their tokens. Must not be modified.
+     */
+    int[] getOverallContextIds() {
+        return overallContext;
     }
 
     public long getLineContextSimhash() {
@@ -106,11 +268,11 @@ public class IndexDocument implements Serializable {
     }
 
     public String getLineContextConcatenated() {
-        return concatenate(setToList(lineContext));
+        return concatenate(lineContext);
     }
 
     public String getOverallContextConcatenated() {
-        return concatenate(setToList(overallContext));
+        return concatenate(overallContext);
     }
 
     private <T> List<T> setToList(Set<T> set) {
@@ -139,6 +301,14 @@ public class IndexDocument implements Serializable {
         return concatenatedString.toString();
     }
 
+    private String concatenate(int[] ids) {
+        StringBuilder concatenatedString = new StringBuilder();
+        for (int id : ids) {
+            concatenatedString.append(token(id));
+        }
+        return concatenatedString.toString();
+    }
+
     /**
      * Calculates the hamming distance between the line contexts of this IndexDocument another one.
      *
@@ -159,6 +329,26 @@ public class IndexDocument implements Serializable {
         return Util.hammingDistance(this.getOverallContextSimhash(), other.getOverallContextSimhash());
     }
 
+    /**
+     * Calculates the distance which is used to refine the base candidates: the hamming distance between the overall
+     * contexts, or the hamming distance between the line contexts if the overall contexts are too different.
+     *
+     * @param lineContextSimhash1           line context simhash of the first document
+     * @param overallContextSimhash1        overall context simhash of the first document
+     * @param lineContextSimhash2           line context simhash of the second document
+     * @param overallContextSimhash2        overall context simhash of the second document
+     * @param switchToLineContextThreshold  overall context distance above which the line context distance is used
+     * @return the distance between the two documents, lower means more similar
+     */
+    static int refinementDistance(long lineContextSimhash1, long overallContextSimhash1, long lineContextSimhash2,
+                                  long overallContextSimhash2, int switchToLineContextThreshold) {
+        int overallContextDistance = Util.hammingDistance(overallContextSimhash1, overallContextSimhash2);
+        if (overallContextDistance > switchToLineContextThreshold) {
+            return Util.hammingDistance(lineContextSimhash1, lineContextSimhash2);
+        }
+        return overallContextDistance;
+    }
+
     /**
      * Compares the overall context of `this` to `other` using LCS (Longest Common Subsequence)
      *
@@ -168,14 +358,44 @@ public class IndexDocument implements Serializable {
      * 1 means documents' overall contexts are identical
      */
     public double normalizedLongestCommonSubsequenceLengthOverallContextToOther(IndexDocument other) {
-        String left = concatenate(getOverallContext());
-        String right = concatenate(other.getOverallContext());
+        String left = concatenate(overallContext);
+        BitParallelPattern right = other.getOverallContextPattern();
         int maxLength = Math.max(left.length(), right.length());
-        double lcs = new LongestCommonSubsequence().apply(left, right);
+        double lcs = right.longestCommonSubsequenceLength(left);
         double lcsNorm = lcs / maxLength;
         return lcsNorm;
     }
 
+    /**
+     * Same as {@link IndexDocument#normalizedLongestCommonSubsequenceLengthOverallContextToOther(IndexDocument)} for
+     * documents which are only of interest if they are more similar than the threshold. The LCS computation stops as
+     * soon as the threshold cannot be exceeded anymore.
+     *
+     * @param other     document to compare this one to
+     * @param threshold value which the normalized LCS has to exceed
+     * @return the normalized LCS if it is greater than the threshold, otherwise some value (or NaN) not greater than
+     * the threshold
+     */
+    public double normalizedLongestCommonSubsequenceLengthOverallContextToOther(IndexDocument other, double threshold) {
+        String left = concatenate(overallContext);
+        BitParallelPattern right = other.getOverallContextPattern();
+        int maxLength = Math.max(left.length(), right.length());
+        if (maxLength == 0) {
+            return Double.NaN;
+        }
+        // smallest LCS length whose normalized value exceeds the threshold, computed with the same floating point
+        // division as the normalized value so that the borderline cases are decided the same way
+        int minLength = (int) Math.max(0, Math.min(maxLength + 1, Math.floor(threshold * maxLength)));
+        while (minLength <= maxLength && (double) minLength / maxLength <= threshold) {
+            minLength++;
+        }
+        while (minLength > 0 && (double) (minLength - 1) / maxLength > threshold) {
+            minLength--;
+        }
+        double lcs = right.longestCommonSubsequenceLength(left, minLength);
+        return lcs / maxLength;
+    }
+
     /**
      * Compares the line context of `this` to `other` using Levenshtein Distance
      *
@@ -185,22 +405,38 @@ public class IndexDocument implements Serializable {
      * 1 means documents' line contexts are identical
      */
     public double normalizedLevenshteinDistanceLineContextToOther(IndexDocument other) {
-        String left = concatenate(getLineContext());
-        String right = concatenate(other.getLineContext());
+        String left = concatenate(lineContext);
+        BitParallelPattern right = other.getLineContextPattern();
         int maxLength = Math.max(left.length(), right.length());
-        double lev = LevenshteinDistance.getDefaultInstance().apply(left, right);
+        double lev = right.levenshteinDistance(left);
         double levNorm = 1 - (lev / maxLength);
         return levNorm;
     }
 
+    private BitParallelPattern getLineContextPattern() {
+        BitParallelPattern pattern = lineContextPattern;
+        if (pattern == null) {
+            pattern = lineContextPattern = new BitParallelPattern(concatenate(lineContext));
+        }
+        return pattern;
+    }
+
+    private BitParallelPattern getOverallContextPattern() {
+        BitParallelPattern pattern = overallContextPattern;
+        if (pattern == null) {
+            pattern = overallContextPattern = new BitParallelPattern(concatenate(overallContext));
+        }
+        return pattern;
+    }
+
     @Override
     public String toString() {
         return "IndexDocument{" +
                 "id='" + id + '\'' +
-                ", methodCall='" + methodCall + '\'' +
-                ", type='" + type + '\'' +
-                ", lineContext=" + lineContext +
-                ", overallContext=" + overallContext +
+                ", methodCall='" + getMethodCall() + '\'' +
+                ", type='" + getType() + '\'' +
+                ", lineContext=" + getLineContext() +
+                ", overallContext=" + getOverallContext() +
                 ", lineContextSimhash=" + lineContextSimhash +
                 ", overallContextSimhash=" + overallContextSimhash +
                 '}';
@@ -211,13 +447,37 @@ public class IndexDocument implements Serializable {
     public boolean equals(Object obj) {
         if (obj instanceof IndexDocument) {
             IndexDocument other = (IndexDocument) obj;
-            return other.getId().equals(this.getId());
+            return other.id.equals(this.id);
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return this.getId().hashCode();
+        return id.hashCode();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id.toHex());
+        fields.put("methodCall", getMethodCall());
+        fields.put("type", getType());
+        fields.put("lineContext", new TreeSet<>(getLineContext()));
+        fields.put("overallContext", new TreeSet<>(getOverallContext()));
+        fields.put("lineContextSimhash", lineContextSimhash);
+        fields.put("overallContextSimhash", overallContextSimhash);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = DocId.fromHex((String) fields.get("id", null));
+        methodCall = intern((String) fields.get("methodCall", null));
+        type = intern((String) fields.get("type", null));
+        lineContext = internAll(new TreeSet<>((Set<String>) fields.get("lineContext", null)));
+        overallContext = internAll(new TreeSet<>((Set<String>) fields.get("overallContext", null)));
+        lineContextSimhash = fields.get("lineContextSimhash", 0L);
+        overallContextSimhash = fields.get("overallContextSimhash", 0L);
     }
 }
@@ -0,0 +1,26 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.List;
+
+/**
+ * Lets the index find and refine the candidates in one go with
+ * {@link IInvertedIndex#searchRefined(IndexDocument, int, int)}, so the base candidates are never materialized. How the
+ * candidates are refined (e.g. through a simhash neighbor index) is up to the index.
+ */
+public class IndexSearchCandidateStage implements ICandidateStage {
+
+    private final IInvertedIndex index;
+
+    public IndexSearchCandidateStage(IInvertedIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public List<IndexDocument> findRefinedCandidates(IndexDocument query, int k, int switchToLineContextThreshold) {
+        index.startSearching(); // cheap, the index keeps its searcher open and only refreshes it after new commits
+        List<IndexDocument> refinedCandidates = index.searchRefined(query, k, switchToLineContextThreshold);
+        index.finishSearching();
+        return refinedCandidates;
+    }
+
+}
@@ -15,15 +15,15 @@ import java.io.File;
 import java.util.*;
 
 /**
- * Recommender class implementing the {@link ICallsRecommender} interface and holding candidate lists as
- * described in the paper
+ * Recommender class implementing the {@link ICallsRecommender} interface, which computes the candidate lists described
+ * in the paper per query.
+ * <p>
+ * Queries do not share any state apart from the underlying model, so one instance can serve any number of threads at
+ * the same time.
  */
 public class KaVeRecommender implements ICallsRecommender<IndexDocument> {
 
-    private final IInvertedIndex index;
-    private List<IndexDocument> baseCandidates;
-    private List<IndexDocument> refinedCandidates;
-    private List<ScoredIndexDocument> scoredCandidates;
+    private final RecommendationPipeline pipeline;
 
     /**
      * Creates a new KaveRecommender instance using the given index as the underlying model
@@ -31,79 +31,27 @@ public class KaVeRecommender implements ICallsRecommender<IndexDocument> {
      * @param index inverted index structure (model) with which to suggest code completions
      */
     public KaVeRecommender(IInvertedIndex index) {
-        this.index = index;
-    }
-
-    private static List<IndexDocument> getBaseCandidates(IInvertedIndex index, IndexDocument receiverObj) {
-        List<IndexDocument> baseCandidates = new LinkedList<>();
-        index.startSearching();
-        baseCandidates.addAll(index.search(receiverObj));
-        index.finishSearching();
-        return baseCandidates;
-    }
-
-    private static List<IndexDocument> getRefinedCandidates(List<IndexDocument> baseCandidates, IndexDocument receiverObj) {
-        int switchToLineContextThreshold = 30; // TODO: this threshold was picked at random and was never tested (maybe a good value is mentioned in the paper?)
-        int k = 200;
-
-        List<ScoredIndexDocument> scoredBaseCandidates = new LinkedList<>();
-        for (IndexDocument baseCandidate : baseCandidates) {
-            int lineContextDistance = baseCandidate.lineContextHammingDistanceToOther(receiverObj);
-            int overallContextDistance = baseCandidate.overallContextHammingDistanceToOther(receiverObj);
-            int viableDistance = overallContextDistance > switchToLineContextThreshold ? lineContextDistance : overallContextDistance;
-            // we take the negative distance so that after sorting, candidates with lower distance (i.e. higher score) will come first
-            ScoredIndexDocument scoredDoc = new ScoredIndexDocument(baseCandidate, -viableDistance, 0);
-            scoredBaseCandidates.add(scoredDoc);
-        }
-        scoredBaseCandidates.sort(null); // compare using the Comparable interface implemented in ScoredIndexDocument
-        // get the k top candidates
-        List<ScoredIndexDocument> refinedScoredCandidates = scoredBaseCandidates.subList(0, Math.min(k, scoredBaseCandidates.size()));
-        List<IndexDocument> refinedCandidates = new LinkedList<>();
-        for (ScoredIndexDocument sid : refinedScoredCandidates) {
-            refinedCandidates.add(sid.getIndexDocumentWithoutScores());
-        }
-        return refinedCandidates;
-    }
-
-    private static List<ScoredIndexDocument> sortRefinedCandidates(List<IndexDocument> refinedCandidates, IndexDocument receiverObj) {
-        double filteringThreshold = 0.30;
-
-        List<ScoredIndexDocument> sortedRefinedScoredCandidates = new LinkedList<>();
-        for (IndexDocument refinedCandidate : refinedCandidates) {
-            double normLCS = refinedCandidate.normalizedLongestCommonSubsequenceLengthOverallContextToOther(receiverObj);
-            if (normLCS > filteringThreshold) {
-                double normLev = refinedCandidate.normalizedLevenshteinDistanceLineContextToOther(receiverObj);
-                ScoredIndexDocument scoredDoc = new ScoredIndexDocument(refinedCandidate, normLCS, normLev);
-                sortedRefinedScoredCandidates.add(scoredDoc);
-            }
-        }
-        sortedRefinedScoredCandidates.sort(null); // compare using the Comparable interface implemented in ScoredIndexDocument
-        // remove duplicates
-        removeDuplicates(sortedRefinedScoredCandidates);
-
-        return sortedRefinedScoredCandidates;
+        this(new RecommendationPipeline(index));
     }
 
     /**
-     * Removes documents with same method call name while leaving the order of the list unchanged.
+     * Creates a new KaveRecommender instance which suggests code completions with the given pipeline
+     *
+     * @param pipeline pipeline with which to suggest code completions
      */
-    private static void removeDuplicates(List<ScoredIndexDocument> sortedRefinedCandidates) {
-        Set<String> uniqueMethodNames = new HashSet<>();
-        for (int i = 0; i < sortedRefinedCandidates.size(); i++) {
-            String methodName = sortedRefinedCandidates.get(i).getMethodCall();
-            if (uniqueMethodNames.contains(methodName)) {
-                sortedRefinedCandidates.remove(i);
-                i--;
-            } else {
-                uniqueMethodNames.add(methodName);
-            }
-        }
+    public KaVeRecommender(RecommendationPipeline pipeline) {
+        this.pipeline = pipeline;
     }
 
-    private void processQuery(IndexDocument receiverObj) {
-        baseCandidates = getBaseCandidates(index, receiverObj);
-        refinedCandidates = getRefinedCandidates(baseCandidates, receiverObj);
-        scoredCandidates = sortRefinedCandidates(refinedCandidates, receiverObj);
+    /**
+     * Ranks the candidates for a receiver object. Unlike the {@link ICallsRecommender} methods, the result keeps the
+     * candidate documents and both of their scores.
+     *
+     * @param receiverObj object, on which the code completion is called
+     * @return ranking of this query
+     */
+    public Ranking rank(IndexDocument receiverObj) {
+        return pipeline.recommend(receiverObj);
     }
 
     /*
@@ -119,11 +67,10 @@ public class KaVeRecommender implements ICallsRecommender<IndexDocument> {
      */
     @Override
     public Set<Tuple<IMethodName, Double>> query(IndexDocument query) {
-        processQuery(query);
+        Ranking ranking = rank(query);
         Set<Tuple<IMethodName, Double>> result = new LinkedHashSet<>();
-        final int CANDIDATES_TO_SUGGEST = 3;
-        // get the top three
-        for (ScoredIndexDocument scoreDoc : scoredCandidates.subList(0, Math.min(CANDIDATES_TO_SUGGEST, scoredCandidates.size()))) {
+        // the ranking only keeps the top three
+        for (ScoredCandidate scoreDoc : ranking.getTopCandidates()) {
             IMethodName methodName = new MethodName(scoreDoc.getMethodCall());
             Double score = scoreDoc.getScore1();
             Tuple<IMethodName, Double> tuple = Tuple.newTuple(methodName, score);
@@ -147,7 +94,8 @@ public class KaVeRecommender implements ICallsRecommender<IndexDocument> {
     @Override
     public Set<Tuple<IMethodName, Double>> query(Context ctx) {
         ISST sst = ctx.getSST();
-        ISSTNodeVisitor visitor = new IndexDocumentExtractionVisitor();
+        // the documents are only used for this query, so they do not add their tokens to the symbol table
+        ISSTNodeVisitor visitor = new IndexDocumentExtractionVisitor(true);
         List<IndexDocument> methodInvocations = new LinkedList<>();
         sst.accept(visitor, methodInvocations);
         IndexDocument mergedContexts = mergeContexts(methodInvocations);
@@ -162,7 +110,7 @@ public class KaVeRecommender implements ICallsRecommender<IndexDocument> {
             combinedLineContext.addAll(doc.getLineContext());
             combinedOverallContext.addAll(doc.getOverallContext());
         }
-        return new IndexDocument(null, lastType, combinedLineContext, combinedOverallContext);
+        return IndexDocument.forQuery(null, lastType, combinedLineContext, combinedOverallContext);
     }
 
     /**
@@ -0,0 +1,57 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Loads all base candidates with {@link IInvertedIndex#search(IndexDocument)} and then computes the distance of every
+ * one of them to the query, as described in the paper. Much slower than {@link IndexSearchCandidateStage} for large
+ * indexes, but independent of how the index refines candidates.
+ */
+public class LinearRefinementCandidateStage implements ICandidateStage {
+
+    private final IInvertedIndex index;
+
+    public LinearRefinementCandidateStage(IInvertedIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public List<IndexDocument> findRefinedCandidates(IndexDocument query, int k, int switchToLineContextThreshold) {
+        index.startSearching();
+        Set<IndexDocument> baseCandidates = index.search(query);
+        index.finishSearching();
+        return refine(baseCandidates, query, k, switchToLineContextThreshold);
+    }
+
+    /**
+     * @return at most k of the base candidates, ordered by ascending distance to the query. Candidates with the same
+     * distance are ordered by docID, like in {@link IInvertedIndex#searchRefined}, so that the result does not depend
+     * on the iteration order of the base candidates.
+     */
+    static List<IndexDocument> refine(Collection<IndexDocument> baseCandidates, IndexDocument query, int k,
+                                      int switchToLineContextThreshold) {
+        List<IndexDocument> candidates = new ArrayList<>(baseCandidates);
+        List<IndexDocument> refinedCandidates = new ArrayList<>();
+        if (k <= 0) {
+            return refinedCandidates;
+        }
+        // (distance << 32 | position) of the k closest candidates
+        BoundedLongHeap heap = new BoundedLongHeap(k,
+                (i, j) -> candidates.get(i).getDocId().compareTo(candidates.get(j).getDocId()));
+        for (int i = 0; i < candidates.size(); i++) {
+            IndexDocument candidate = candidates.get(i);
+            int distance = IndexDocument.refinementDistance(candidate.getLineContextSimhash(),
+                    candidate.getOverallContextSimhash(), query.getLineContextSimhash(),
+                    query.getOverallContextSimhash(), switchToLineContextThreshold);
+            heap.offer(((long) distance << 32) | i);
+        }
+        for (long key : heap.toSortedArray()) {
+            refinedCandidates.add(candidates.get((int) key));
+        }
+        return refinedCandidates;
+    }
+
+}
@@ -0,0 +1,501 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only store for {@link IndexDocument} objects, used by {@link DiskBasedInvertedIndex}.
+ * <p>
+ * Documents are appended as compactly encoded records to segment files, which are read through memory mapping. Thus
+ * fetching a document is just a lookup in memory, without any system call. A fixed-width offset index maps each docID
+ * to the segment and offset of its record. It is loaded into an in-memory hash table when the store is opened.
+ * <p>
+ * Records are always written to the segment before their entry is written to the offset index. When the store is
+ * opened after training has been interrupted, every offset index entry is checked against the length of its segment:
+ * the first entry pointing to an incomplete record and all entries after it are discarded, as are records without an
+ * offset index entry.
+ * <p>
+ * {@link #contains(DocId)} and {@link #get(DocId)} do not lock, so that any number of threads can read while another
+ * thread appends. Only a reader which finds its record beyond the mapping of a segment locks to map the grown segment
+ * again.
+ * <p>
+ * Records hold the method call, the type and the context tokens as IDs of the store's dictionary (see
+ * {@link StoreSymbols}), which is appended to a file of its own. New tokens are always written to the dictionary
+ * before the records referring to them.
+ */
+class MappedIndexDocumentStore implements Closeable {
+
+    private static final String SEGMENT_FILE_PREFIX = "segment_";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final String OFFSET_INDEX_FILE_NAME = "offsets.idx";
+    private static final String SYMBOLS_FILE_NAME = "symbols.dict";
+    // segments are rolled over before they exceed this size so that each of them fits into one MappedByteBuffer
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+    // docID (32 bytes) + segment number (int) + offset of the record in the segment (int)
+    private static final int OFFSET_ENTRY_SIZE = 40;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private final File dir;
+    private final List<FileChannel> segments = new ArrayList<>();
+    // copy-on-write, so that readers can use the mappings without locking. null if a segment has not been mapped yet
+    private volatile MappedByteBuffer[] mappedSegments = new MappedByteBuffer[0];
+    private FileChannel offsetIndex;
+    private FileChannel symbolsFile;
+    private final StoreSymbols symbols = new StoreSymbols();
+    private final ByteArrayOutputStream symbolsWriteBuffer = new ByteArrayOutputStream(WRITE_BUFFER_SIZE);
+    private final ByteBuffer segmentWriteBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private final ByteBuffer offsetIndexWriteBuffer = ByteBuffer.allocate(OFFSET_ENTRY_SIZE * 1024);
+    // size of the active (i.e. last) segment including the bytes which are still in the write buffer
+    private long activeSegmentSize;
+
+    // in-memory hash table over the offset index, the location of entry i is held in locations[i]. The location is
+    // written before the docID is added, so readers which find the docID also see its location.
+    private final DocIdTable docIds = new DocIdTable(false);
+    private volatile long[] locations = new long[1024];
+
+    /**
+     * Opens the store in the given directory, creating it if it does not exist yet.
+     *
+     * @param dir directory holding the segment files, the offset index and the dictionary
+     * @throws IOException if the store cannot be opened
+     */
+    MappedIndexDocumentStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        for (int n = 0; segmentFile(n).exists(); n++) {
+            segments.add(FileChannel.open(segmentFile(n).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        mappedSegments = new MappedByteBuffer[segments.size()];
+        if (segments.isEmpty()) {
+            addSegment();
+        }
+        symbolsFile = FileChannel.open(new File(dir, SYMBOLS_FILE_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadSymbols();
+        offsetIndex = FileChannel.open(new File(dir, OFFSET_INDEX_FILE_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadOffsetIndex();
+    }
+
+    private File segmentFile(int segmentNumber) {
+        return new File(dir, String.format("%s%05d%s", SEGMENT_FILE_PREFIX, segmentNumber, SEGMENT_FILE_SUFFIX));
+    }
+
+    private void addSegment() throws IOException {
+        if (!segments.isEmpty()) {
+            // flush() only forces the active segment, so the segment we leave must be on disk before we move on. The
+            // dictionary goes first, as in flush()
+            symbolsFile.force(false);
+            segments.get(segments.size() - 1).force(false);
+        }
+        File file = segmentFile(segments.size());
+        segments.add(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        mappedSegments = Arrays.copyOf(mappedSegments, segments.size());
+        activeSegmentSize = 0;
+    }
+
+    /**
+     * Reads the dictionary and cuts off an entry which has only been written partially.
+     */
+    private void loadSymbols() throws IOException {
+        long endOfData = 0;
+        // not closed, that would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(symbolsFile.position(0)), WRITE_BUFFER_SIZE));
+        try {
+            while (true) {
+                int length = readVarInt(in);
+                byte[] utf8 = new byte[length];
+                in.readFully(utf8);
+                symbols.addPersisted(new String(utf8, StandardCharsets.UTF_8));
+                endOfData += varIntSize(length) + length;
+            }
+        } catch (EOFException e) {
+            // end of the dictionary, or an incomplete entry
+        }
+        symbolsFile.truncate(endOfData);
+        symbolsFile.position(endOfData);
+    }
+
+    /**
+     * Reads the offset index into the in-memory hash table and repairs the store if the last training run has been
+     * interrupted while writing it (or the system has crashed before everything had been forced to disk).
+     */
+    private void loadOffsetIndex() throws IOException {
+        long entries = offsetIndex.size() / OFFSET_ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(OFFSET_ENTRY_SIZE * 4096);
+        RecordLengthReader lengths = null;
+        offsetIndex.position(0);
+        for (long entry = 0; entry < entries; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), (entries - entry) * OFFSET_ENTRY_SIZE));
+            while (buffer.hasRemaining() && offsetIndex.read(buffer) >= 0) {
+                // read until the buffer is filled
+            }
+            buffer.flip();
+            while (buffer.remaining() >= OFFSET_ENTRY_SIZE) {
+                DocId docID = DocId.readFrom(buffer);
+                int segment = buffer.getInt();
+                int offset = buffer.getInt();
+                entry++;
+                if (segment < 0 || segment >= segments.size()) {
+                    entries = entry - 1;
+                    break;
+                }
+                if (lengths == null || lengths.segment != segment) {
+                    lengths = new RecordLengthReader(segment);
+                }
+                if (lengths.endOfRecord(offset) < 0) {
+                    // record of this entry has never been written completely, later entries cannot be trusted either
+                    entries = entry - 1;
+                    break;
+                }
+                put(docID, location(segment, offset));
+            }
+        }
+        // cut off what has been written after the last complete record
+        int size = docIds.size();
+        offsetIndex.truncate((long) size * OFFSET_ENTRY_SIZE);
+        offsetIndex.position(offsetIndex.size());
+        int lastSegment = 0;
+        long endOfData = 0;
+        if (size > 0) {
+            long location = locations[size - 1];
+            lastSegment = segmentOf(location);
+            endOfData = new RecordLengthReader(lastSegment).endOfRecord(offsetOf(location));
+        }
+        // segments after the one holding the last record only hold records without an entry
+        while (segments.size() > lastSegment + 1) {
+            int segment = segments.size() - 1;
+            segments.remove(segment).close();
+            if (!segmentFile(segment).delete()) {
+                throw new IOException("Could not delete " + segmentFile(segment));
+            }
+        }
+        mappedSegments = new MappedByteBuffer[segments.size()];
+        FileChannel activeSegment = segments.get(lastSegment);
+        activeSegment.truncate(endOfData);
+        activeSegment.position(endOfData);
+        activeSegmentSize = endOfData;
+    }
+
+    /**
+     * Reads the lengths of the records of a segment when the store is opened, through a window which moves forward
+     * along with the offsets. The segments are not mapped, so that they can still be truncated (or deleted) afterwards.
+     */
+    private class RecordLengthReader {
+
+        private final int segment;
+        private final long segmentSize;
+        private final ByteBuffer window = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private long windowStart = 0;
+
+        RecordLengthReader(int segment) throws IOException {
+            this.segment = segment;
+            this.segmentSize = segments.get(segment).size();
+            window.limit(0);
+        }
+
+        /**
+         * @return offset right after the record at the given offset, or -1 if the record exceeds the segment
+         */
+        long endOfRecord(int offset) throws IOException {
+            if (offset < 0 || offset + 4L > segmentSize) {
+                return -1;
+            }
+            if (offset < windowStart || offset + 4L > windowStart + window.limit()) {
+                windowStart = offset;
+                window.clear();
+                FileChannel channel = segments.get(segment);
+                while (window.hasRemaining() && channel.read(window, windowStart + window.position()) >= 0) {
+                    // read until the window is filled or the end of the segment is reached
+                }
+                window.flip();
+            }
+            int length = window.getInt((int) (offset - windowStart));
+            long end = offset + 4L + length;
+            return length < 0 || end > segmentSize ? -1 : end;
+        }
+    }
+
+    /**
+     * @param docID ID of the document
+     * @return true if a document with the given docID is in the store
+     */
+    boolean contains(DocId docID) {
+        return docIds.find(docID) >= 0;
+    }
+
+    /**
+     * @return the number of documents in the store
+     */
+    int size() {
+        return docIds.size();
+    }
+
+    /**
+     * Appends a document to the store. The document is not necessarily on disk before {@link #flush()} is called.
+     *
+     * @param doc document to store
+     * @throws IOException if the document cannot be written
+     */
+    synchronized void append(IndexDocument doc) throws IOException {
+        byte[] record = encode(doc);
+        // tokens the record refers to for the first time, these go to disk before the record
+        for (String token : symbols.takeUnpersisted()) {
+            byte[] utf8 = token.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(symbolsWriteBuffer, utf8.length);
+            symbolsWriteBuffer.write(utf8);
+        }
+        if (symbolsWriteBuffer.size() > WRITE_BUFFER_SIZE) {
+            flushWriteBuffers();
+        }
+        if (activeSegmentSize + record.length > MAX_SEGMENT_SIZE) {
+            flushWriteBuffers();
+            addSegment();
+        }
+        int segment = segments.size() - 1;
+        int offset = (int) activeSegmentSize;
+        if (record.length > segmentWriteBuffer.remaining()) {
+            flushWriteBuffers();
+        }
+        if (record.length > segmentWriteBuffer.capacity()) {
+            writeFully(segments.get(segment), ByteBuffer.wrap(record));
+        } else {
+            segmentWriteBuffer.put(record);
+        }
+        activeSegmentSize += record.length;
+
+        if (offsetIndexWriteBuffer.remaining() < OFFSET_ENTRY_SIZE) {
+            flushWriteBuffers();
+        }
+        doc.getDocId().writeTo(offsetIndexWriteBuffer);
+        offsetIndexWriteBuffer.putInt(segment);
+        offsetIndexWriteBuffer.putInt(offset);
+        put(doc.getDocId(), location(segment, offset));
+    }
+
+    /**
+     * @param docID ID of the document
+     * @return the document with the given docID or null if there is no such document in the store
+     * @throws IOException if the document cannot be read
+     */
+    IndexDocument get(DocId docID) throws IOException {
+        int entry = docIds.find(docID);
+        if (entry < 0) {
+            return null;
+        }
+        long location = locations[entry];
+        int segment = segmentOf(location);
+        int offset = offsetOf(location);
+        ByteBuffer record = mappedSegment(segment, offset);
+        record.position(offset);
+        int length = record.getInt();
+        record.limit(record.position() + length);
+        return decode(docID, record);
+    }
+
+    /**
+     * Makes sure the segment covering the given offset is mapped up to at least the end of the record at that offset.
+     */
+    private ByteBuffer mappedSegment(int segment, int offset) throws IOException {
+        MappedByteBuffer mapped = mappedSegments[segment];
+        if (!covers(mapped, offset)) {
+            mapped = remapSegment(segment, offset);
+        }
+        // the shared mapping is only read with absolute gets, readers get their own position and limit
+        return mapped.duplicate();
+    }
+
+    private static boolean covers(MappedByteBuffer mapped, int offset) {
+        return mapped != null && offset + 4 <= mapped.capacity() && offset + 4 + mapped.getInt(offset) <= mapped.capacity();
+    }
+
+    private synchronized MappedByteBuffer remapSegment(int segment, int offset) throws IOException {
+        MappedByteBuffer mapped = mappedSegments[segment];
+        if (covers(mapped, offset)) {
+            // another reader has mapped the segment again in the meantime
+            return mapped;
+        }
+        // segment has grown since we mapped it (or has never been mapped), the record may still be in the write buffer
+        flushWriteBuffers();
+        FileChannel channel = segments.get(segment);
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        MappedByteBuffer[] remapped = mappedSegments.clone();
+        remapped[segment] = mapped;
+        mappedSegments = remapped;
+        return mapped;
+    }
+
+    /**
+     * Writes all buffered documents to disk.
+     *
+     * @throws IOException if the documents cannot be written
+     */
+    synchronized void flush() throws IOException {
+        flushWriteBuffers();
+        // dictionary first, then segments: the offset index must never point to records which are not on disk, and
+        // records must never refer to tokens which are not on disk
+        symbolsFile.force(false);
+        segments.get(segments.size() - 1).force(false);
+        offsetIndex.force(false);
+    }
+
+    private void flushWriteBuffers() throws IOException {
+        writeFully(symbolsFile, ByteBuffer.wrap(symbolsWriteBuffer.toByteArray()));
+        symbolsWriteBuffer.reset();
+        segmentWriteBuffer.flip();
+        writeFully(segments.get(segments.size() - 1), segmentWriteBuffer);
+        segmentWriteBuffer.clear();
+        offsetIndexWriteBuffer.flip();
+        writeFully(offsetIndex, offsetIndexWriteBuffer);
+        offsetIndexWriteBuffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        for (FileChannel segment : segments) {
+            segment.close();
+        }
+        offsetIndex.close();
+        symbolsFile.close();
+        // mapped buffers are released by the garbage collector
+        mappedSegments = new MappedByteBuffer[0];
+    }
+
+    /*
+      IN-MEMORY HASH TABLE
+     */
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Adds an entry, called by one thread at a time.
+     */
+    private void put(DocId docID, long location) {
+        int entry = docIds.size();
+        if (entry == locations.length) {
+            locations = Arrays.copyOf(locations, entry * 2);
+        }
+        locations[entry] = location;
+        // publishes the entry
+        docIds.add(docID);
+    }
+
+    /*
+      ENCODING
+     */
+
+    /**
+     * Record layout: length of the rest of the record (int), method call, type, line context, overall context (all
+     * tokens as varint dictionary IDs, the method call ID + 1 so that 0 can mark null, contexts prefixed by their
+     * varint size), line context simhash and overall context simhash (long). The docID is not part of the record, it
+     * is stored in the offset index.
+     */
+    private byte[] encode(IndexDocument doc) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(new byte[4], 0, 4); // placeholder for the length
+        writeVarInt(out, doc.getMethodCallId() < 0 ? 0 : symbols.toStoreId(doc.getMethodCallId()) + 1);
+        writeVarInt(out, symbols.toStoreId(doc.getTypeId()));
+        writeIds(out, doc.getLineContextIds());
+        writeIds(out, doc.getOverallContextIds());
+        byte[] simhashes = new byte[16];
+        ByteBuffer.wrap(simhashes).putLong(doc.getLineContextSimhash()).putLong(doc.getOverallContextSimhash());
+        out.write(simhashes, 0, simhashes.length);
+        byte[] record = out.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        return record;
+    }
+
+    private IndexDocument decode(DocId docID, ByteBuffer record) {
+        int methodCall = readVarInt(record) - 1;
+        if (methodCall >= 0) {
+            methodCall = symbols.toGlobalId(methodCall);
+        }
+        int type = symbols.toGlobalId(readVarInt(record));
+        int[] lineContext = readIds(record);
+        int[] overallContext = readIds(record);
+        long lineContextSimhash = record.getLong();
+        long overallContextSimhash = record.getLong();
+        return new IndexDocument(docID, methodCall, type, lineContext, overallContext, lineContextSimhash, overallContextSimhash);
+    }
+
+    private void writeIds(ByteArrayOutputStream out, int[] ids) {
+        writeVarInt(out, ids.length);
+        for (int id : ids) {
+            writeVarInt(out, symbols.toStoreId(id));
+        }
+    }
+
+    private int[] readIds(ByteBuffer in) {
+        int[] ids = new int[readVarInt(in)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = symbols.toGlobalId(readVarInt(in));
+        }
+        return ids;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+}
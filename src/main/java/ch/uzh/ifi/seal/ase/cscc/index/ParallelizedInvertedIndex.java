@@ -1,52 +1,82 @@
 package ch.uzh.ifi.seal.ase.cscc.index;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StringField;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.*;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
-import static java.lang.Thread.sleep;
-
+/**
+ * Disk index which indexes documents on several threads.
+ * Every type gets its own Lucene index in {@code InvertedIndexStructures_Lucene/<type>}, which is written by one
+ * long-lived {@link IndexWriter} shared by all indexing threads. The IndexDocument objects are stored in an SQLite
+ * database or as .ser files, like in {@link DiskBasedInvertedIndex}.
+ * <p>
+ * {@link ParallelizedInvertedIndex#indexDocument(IndexDocument)} only puts the document in a bounded work queue. If
+ * the queue is full, the calling thread indexes the document itself, which slows down the producer until the
+ * indexing threads have caught up. {@link ParallelizedInvertedIndex#commit()} and
+ * {@link ParallelizedInvertedIndex#finishIndexing()} wait until all queued documents have been indexed. Threads
+ * calling indexDocument() meanwhile are blocked until the commit is done, so that it contains exactly the documents
+ * which had been indexed before it.
+ */
 public class ParallelizedInvertedIndex implements IInvertedIndex {
 
     /*
       CLASS & INSTANCE VARIABLES
      */
 
-    // fields for indexing in Lucene index
-    private static final String DOC_ID_FIELD = "docID";
+    // fields for indexing in Lucene index, docID and simhashes as in AbstractInvertedIndex so that refined searches can
+    // use the same RefinementCollector
+    private static final String DOC_ID_FIELD = AbstractInvertedIndex.DOC_ID_FIELD;
     private static final String OVERALL_CONTEXT_FIELD = "overallContext";
+    private static final String LINE_CONTEXT_SIMHASH_FIELD = AbstractInvertedIndex.LINE_CONTEXT_SIMHASH_FIELD;
+    private static final String OVERALL_CONTEXT_SIMHASH_FIELD = AbstractInvertedIndex.OVERALL_CONTEXT_SIMHASH_FIELD;
 
-    private static final String SQL_TABLE_NAME = "indexdocuments";
+    private static final String SQL_TABLE_NAME = SQLiteDocumentTable.TABLE_NAME;
     private static final String INDEX_ROOT_DIR_NAME = "CSCCInvertedIndex";
     private static final String SERIALIZED_INDEX_DOCUMENTS_DIR_NAME = "IndexDocuments";
     private static final String SERIALIZED_INDEX_DOCUMENTS_SQLITE_FILE_NAME = "IndexDocuments.db";
     private static final String INVERTED_INDEX_STRUCTURES_DIR_NAME = "InvertedIndexStructures_Lucene";
-    private final Logger LOGGER = Logger.getLogger(DiskBasedInvertedIndex.class.getName());
-    ThreadPoolExecutor executorService = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    // number of documents which may wait in the work queue before the producer has to index documents itself
+    private static final int WORK_QUEUE_CAPACITY = 1000;
+    private final Logger LOGGER = Logger.getLogger(ParallelizedInvertedIndex.class.getName());
+    private final ThreadPoolExecutor executorService;
+    // the thread calling indexDocument() is registered as a party, every queued document registers as another party
+    // and arrives once it has been indexed
+    private final Phaser pendingDocuments = new Phaser(1);
+    // indexDocument() holds the read lock while submitting a document, commit(), finishIndexing() and close() hold the
+    // write lock, so that no documents are submitted while they wait for the queued documents and commit
+    private final ReentrantReadWriteLock submissionLock = new ReentrantReadWriteLock();
+    // set by close(), the indexing threads are shut down afterwards and would silently discard new documents
+    private volatile boolean closed = false;
     // directory where the Lucene index is persisted on disk
     private String indexRootDir;
     // true: we store IndexDocuments in SQLite database
     // false: we serialize IndexDocuments to disk as files with .ser ending
     private boolean USE_SQLITE = true;
-    private ConcurrentHashMap<Directory, IndexWriter> filePathToIndexWriter = new ConcurrentHashMap<>();
+    // connection to SQLite database, shared by all threads, access must be synchronized on this index
+    private Connection dbConn;
+    private PreparedStatement insertDocStmt;
+    private PreparedStatement selectDocStmt;
+    private PreparedStatement selectDocsChunkStmt;
+    private SQLiteDocumentTable dbTable;
+    // Lucene directory, writer and searcher of every type, created when they are needed for the first time
+    private final ConcurrentHashMap<String, Directory> typeToDirectory = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, IndexWriter> typeToIndexWriter = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SearcherManager> typeToSearcherManager = new ConcurrentHashMap<>();
 
     /*
       CONSTRUCTOR METHODS
@@ -54,7 +84,7 @@ public class ParallelizedInvertedIndex implements IInvertedIndex {
 
     /**
      * Constructor.
-     * Uses an SQLite database to store the IndexDocument objects.
+     * Uses an SQLite database to store the IndexDocument objects and one indexing thread per available processor.
      *
      * @param indexDir directory in which the inverted index will be stored.
      */
@@ -63,21 +93,43 @@ public class ParallelizedInvertedIndex implements IInvertedIndex {
     }
 
     /**
-     * Constructor
+     * Constructor.
+     * Uses one indexing thread per available processor.
      *
      * @param indexDir              directory in which the inverted index will be stored.
      * @param useRelationalDatabase true: we store IndexDocuments in SQLite database,
      *                              false: we serialize IndexDocuments to disk as files with .ser ending
      */
     public ParallelizedInvertedIndex(String indexDir, boolean useRelationalDatabase) {
+        this(indexDir, useRelationalDatabase, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param indexDir              directory in which the inverted index will be stored.
+     * @param useRelationalDatabase true: we store IndexDocuments in SQLite database,
+     *                              false: we serialize IndexDocuments to disk as files with .ser ending
+     * @param nThreads              number of threads indexing documents
+     */
+    public ParallelizedInvertedIndex(String indexDir, boolean useRelationalDatabase, int nThreads) {
         indexRootDir = indexDir + "/" + INDEX_ROOT_DIR_NAME;
         createDirectoryIfNotExists(new File(indexRootDir));
         this.USE_SQLITE = useRelationalDatabase;
+        executorService = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WORK_QUEUE_CAPACITY), new ThreadPoolExecutor.CallerRunsPolicy());
         if (USE_SQLITE) {
             try {
-                createDBSchemaIfNotExists(openSQLConnection());
+                dbConn = openSQLConnection();
+                dbTable = new SQLiteDocumentTable(dbConn, new StoreSymbols(), true);
+                // documents are committed together with the Lucene indices, see commit()
+                dbConn.setAutoCommit(false);
+                insertDocStmt = dbConn.prepareStatement("INSERT OR IGNORE INTO " + SQL_TABLE_NAME + " VALUES(?,?,?,?,?,?,?)");
+                selectDocStmt = dbConn.prepareStatement("SELECT * FROM " + SQL_TABLE_NAME + " WHERE docid=?");
+                selectDocsChunkStmt = SQLiteDocumentTable.prepareSelectChunk(dbConn);
             } catch (SQLException e) {
                 e.printStackTrace();
+                System.exit(1); // exit on exception
             }
         }
     }
@@ -94,131 +146,177 @@ public class ParallelizedInvertedIndex implements IInvertedIndex {
         return dbConn;
     }
 
-    private void createDBSchemaIfNotExists(Connection sqlConnection) throws SQLException {
-        String sqlCreate = "CREATE TABLE IF NOT EXISTS " + this.SQL_TABLE_NAME
-                + "("
-                + "   docid                  CHAR(64) PRIMARY KEY,"
-                + "   type                   VARCHAR(1) NOT NULL," // SQLite does not enforce length of VARCHAR
-                + "   method                 VARCHAR(1) NOT NULL,"
-                + "   linecontext            VARCHAR(1),"
-                + "   overallcontext         VARCHAR(1),"
-                + "   linecontextsimhash     BIGINT,"
-                + "   overallcontextsimhash  BIGINT"
-                + ")";
-        Statement stmt = sqlConnection.createStatement();
-        stmt.execute(sqlCreate);
-        stmt.close();
-    }
-
     @Override
     public void startIndexing() {
-        LOGGER.warning("METHOD NOT IMPLEMENTED!");
+        // nothing to do here, the IndexWriter of a type is opened when its first document is indexed
     }
 
     /**
-     * Call this method when this instance is not used anymore. It closes the ExecuterService.
+     * Waits until all queued documents have been indexed and closes the IndexWriters, which commits the Lucene
+     * indices. Afterwards the database is committed.
      */
     @Override
     public void finishIndexing() {
+        submissionLock.writeLock().lock();
+        try {
+            awaitPendingDocuments();
+            for (IndexWriter indexWriter : typeToIndexWriter.values()) {
+                try {
+                    indexWriter.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            typeToIndexWriter.clear();
+            commitDB();
+        } finally {
+            submissionLock.writeLock().unlock();
+        }
+    }
 
-        // if we do shutdown then no new tasks can be added to queue. this is a problem because the remaining docs
-        // (tasks) in the queue might still encounter a locked index and need to be re-added to queue several more times
-//        executorService.shutdown();
+    /**
+     * Waits until all queued documents have been indexed, then commits the Lucene indices and afterwards the
+     * database. For the reasons of this order see {@link DiskBasedInvertedIndex#commit()}. Documents indexed by other
+     * threads in the meantime are not submitted before the commit is done.
+     */
+    @Override
+    public void commit() {
+        submissionLock.writeLock().lock();
+        try {
+            awaitPendingDocuments();
+            for (IndexWriter indexWriter : typeToIndexWriter.values()) {
+                try {
+                    indexWriter.commit();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(1); // exit on IOException
+                }
+            }
+            commitDB();
+        } finally {
+            submissionLock.writeLock().unlock();
+        }
+    }
 
-        while (executorService.getQueue().size() > 0) {
-            System.out.println("Queue size: " + executorService.getQueue().size());
+    private synchronized void commitDB() {
+        if (dbConn != null) {
             try {
-                sleep(1000);
-            } catch (InterruptedException e) {
+                dbConn.commit();
+            } catch (SQLException e) {
                 e.printStackTrace();
+                System.exit(1); // exit on exception
             }
         }
+    }
 
+    private void awaitPendingDocuments() {
+        pendingDocuments.awaitAdvance(pendingDocuments.arrive());
     }
 
     @Override
     public void startSearching() {
-        LOGGER.warning("METHOD NOT IMPLEMENTED!");
+        // make sure the searchers see documents which have been committed since they have been opened
+        for (SearcherManager searcherManager : typeToSearcherManager.values()) {
+            try {
+                searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     @Override
     public void finishSearching() {
-        LOGGER.warning("METHOD NOT IMPLEMENTED!");
+        // nothing to do here, the searchers stay open until close() is called
+    }
+
+    /**
+     * Waits for queued documents, shuts down the indexing threads and closes the searchers and the database
+     * connection. Call this method when this instance is not used anymore.
+     */
+    @Override
+    public void close() {
+        submissionLock.writeLock().lock();
+        try {
+            closed = true;
+            finishIndexing();
+        } finally {
+            submissionLock.writeLock().unlock();
+        }
+        executorService.shutdown();
+        for (SearcherManager searcherManager : typeToSearcherManager.values()) {
+            try {
+                searcherManager.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        typeToSearcherManager.clear();
+        for (Directory directory : typeToDirectory.values()) {
+            try {
+                directory.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        typeToDirectory.clear();
+        synchronized (this) {
+            if (dbConn != null) {
+                try {
+                    insertDocStmt.close();
+                    selectDocStmt.close();
+                    selectDocsChunkStmt.close();
+                    dbTable.close();
+                    dbConn.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                dbConn = null;
+            }
+        }
     }
 
     /**
-     * Puts an IndexDocument in the index.
+     * Puts an IndexDocument in the index. The document is indexed asynchronously, unless the work queue is full.
+     * Blocks while another thread commits the index.
      *
      * @param doc document to store in index
+     * @throws IllegalStateException if this index has been closed
      */
     @Override
     public void indexDocument(IndexDocument doc) {
-        // open a new db connection for each index task
+        submissionLock.readLock().lock();
         try {
-            Connection dbConn = openSQLConnection();
-            dbConn.setAutoCommit(false);
-            if (ParallelizedInvertedIndex.this.isIndexed(dbConn, doc)) {
-                // do not put identical documents in index twice
-//            System.out.println("doc " + doc.getId() + " is already indexed");
-                dbConn.close(); // doc is already in index, we're done here. close db connection.
-                return;
+            if (closed) {
+                throw new IllegalStateException("Index has been closed");
             }
-            serializeIndexDocument(dbConn, doc);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-
-        executorService.execute(new Runnable() {
-            private int attempts = 0;
-
-            @Override
-            public void run() {
-                attempts++;
-                if (attempts > 50) {
-                    System.out.println("attempt: " + attempts + "\n" + this.toString());
-                }
+            pendingDocuments.register();
+            executorService.execute(() -> {
                 try {
-
-                    Directory indexDirectory = ParallelizedInvertedIndex.this.getIndexDirectory(doc);
-                    IndexWriterConfig config = new IndexWriterConfig();
-                    // CREATE_OR_APPEND creates a new index if one does not exist, otherwise it opens the index and documents will be appended
-                    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-                    IndexWriter w;
-                    if (filePathToIndexWriter.containsKey(indexDirectory)) {
-                        w = filePathToIndexWriter.get(indexDirectory);
-                        w.flush();
-                        ParallelizedInvertedIndex.this.addDocToLuceneIndex(w, doc);
-                        w.close();
-                    } else {
-                        w = new IndexWriter(indexDirectory, config);
-                        filePathToIndexWriter.put(indexDirectory, w);
-                        w.flush();
-                        ParallelizedInvertedIndex.this.addDocToLuceneIndex(w, doc);
-                        w.close();
+                    if (storeIfNotIndexed(doc)) {
+                        addDocToLuceneIndex(doc);
                     }
-                    System.out.println(attempts + ": successfully indexed " + doc.getId());
-                } catch (LockObtainFailedException lockObtainFailedException) {
-                    // there's a lock on the Lucene index
-                    // Resubmit this task
-                    executorService.execute(this);
-                    System.out.println(attempts + ": LockObtainFailedException encountered. Keeping task in queue. docID = " + doc.getId());
                 } catch (IOException e) {
                     e.printStackTrace();
-                    executorService.shutdown();
                     System.exit(1); // exit on IOException
-                } catch (Throwable t) {
-                    LOGGER.severe("UNCAUGHT EXCEPTION");
-                    t.printStackTrace();
+                } finally {
+                    pendingDocuments.arriveAndDeregister();
                 }
-            }
-        });
+            });
+        } finally {
+            submissionLock.readLock().unlock();
+        }
     }
 
-    void addDocToLuceneIndex(IndexWriter w, IndexDocument doc) throws IOException {
+    private void addDocToLuceneIndex(IndexDocument doc) throws IOException {
         Document luceneDoc = new Document();
-        luceneDoc.add(new StringField(DOC_ID_FIELD, doc.getId(), Field.Store.YES));
+        // docID in binary form, as term for updateDocument() and as DocValues for search()
+        BytesRef docID = doc.getDocId().toBytesRef();
+        luceneDoc.add(new StringField(DOC_ID_FIELD, docID, Field.Store.NO));
+        luceneDoc.add(new BinaryDocValuesField(DOC_ID_FIELD, docID));
+        // simhashes as DocValues, so that refined searches do not have to load the documents
+        luceneDoc.add(new NumericDocValuesField(LINE_CONTEXT_SIMHASH_FIELD, doc.getLineContextSimhash()));
+        luceneDoc.add(new NumericDocValuesField(OVERALL_CONTEXT_SIMHASH_FIELD, doc.getOverallContextSimhash()));
         // store all terms in the overall context as tokens in the index
         // StringField: no tokenization
         // TextField: tokenization
@@ -226,99 +324,230 @@ public class ParallelizedInvertedIndex implements IInvertedIndex {
             luceneDoc.add(new StringField(OVERALL_CONTEXT_FIELD, term, Field.Store.NO));
         }
 //        w.addDocument(luceneDoc); // this will add duplicates to an existing index
-        w.updateDocument(new Term(DOC_ID_FIELD, doc.getId()), luceneDoc); // don't index docs with same docID twice
+        getIndexWriter(doc.getType()).updateDocument(new Term(DOC_ID_FIELD, docID), luceneDoc); // don't index docs with same docID twice
     }
 
+    private IndexWriter getIndexWriter(String type) throws IOException {
+        IndexWriter indexWriter = typeToIndexWriter.get(type);
+        if (indexWriter != null) {
+            return indexWriter;
+        }
+        synchronized (typeToIndexWriter) {
+            indexWriter = typeToIndexWriter.get(type);
+            if (indexWriter == null) {
+                IndexWriterConfig config = new IndexWriterConfig();
+                // CREATE_OR_APPEND creates a new index if one does not exist, otherwise it opens the index and documents will be appended
+                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+                indexWriter = new IndexWriter(getIndexDirectory(type), config);
+                typeToIndexWriter.put(type, indexWriter);
+            }
+            return indexWriter;
+        }
+    }
+
+    /**
+     * Searches the Lucene index of doc's type for documents which contain similar terms in the overall context as
+     * doc. The query equals a boolean OR query of all terms in the overall context of doc.
+     *
+     * @param doc document for which to find similar documents
+     * @return documents which are similar to doc, i.e. documents whose overall context has at least one term in
+     * common with doc's overall context
+     */
     @Override
     public Set<IndexDocument> search(IndexDocument doc) {
-        // TODO: implement search (you can probably just copy it from DiskBasedInvertedIndex)
-        LOGGER.severe("Search for ParallelizedInvertedIndex not implemented!");
-        return null;
+        Set<IndexDocument> answers = new HashSet<>();
+        try {
+            SearcherManager searcherManager = getSearcherManager(doc.getType());
+            if (searcherManager == null) {
+                // there is no index for this type (yet), so we can't make a completion recommendation
+                return answers;
+            }
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                List<DocId> docIDs = new ArrayList<>();
+                searcher.search(buildQuery(doc), new SimpleCollector() {
+                    private LeafReader reader;
+                    private BinaryDocValues docIdValues;
+
+                    @Override
+                    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                        reader = context.reader();
+                        docIdValues = reader.getBinaryDocValues(DOC_ID_FIELD);
+                    }
+
+                    @Override
+                    public void collect(int doc) throws IOException {
+                        docIDs.add(RefinementCollector.readDocId(reader, docIdValues, doc));
+                    }
+
+                    @Override
+                    public boolean needsScores() {
+                        return false;
+                    }
+                });
+                // fetch all matching documents at once instead of one round trip per document
+                answers.addAll(deserializeIndexDocuments(docIDs).values());
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on IOException
+        }
+        return answers;
+    }
+
+    /**
+     * Same query as {@link ParallelizedInvertedIndex#search(IndexDocument)}, but the refinement to the k closest
+     * documents happens while collecting the Lucene hits, see {@link RefinementCollector}. Thus only the k surviving
+     * documents are ever deserialized.
+     *
+     * @param doc                          document for which to find similar documents
+     * @param k                            maximum number of documents to return
+     * @param switchToLineContextThreshold overall context distance above which the line context distance is used
+     * @return at most k documents, ordered by ascending distance to {@code doc}
+     */
+    @Override
+    public List<IndexDocument> searchRefined(IndexDocument doc, int k, int switchToLineContextThreshold) {
+        List<IndexDocument> answers = new ArrayList<>();
+        if (k <= 0) {
+            return answers;
+        }
+        try {
+            SearcherManager searcherManager = getSearcherManager(doc.getType());
+            if (searcherManager == null) {
+                // there is no index for this type (yet), so we can't make a completion recommendation
+                return answers;
+            }
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                RefinementCollector collector = new RefinementCollector(doc, k, switchToLineContextThreshold,
+                        this::deserializeIndexDocument);
+                searcher.search(buildQuery(doc), collector);
+                answers.addAll(collector.fetchDocumentsOrderedByDistance(this::deserializeIndexDocuments));
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1); // exit on IOException
+        }
+        return answers;
+    }
+
+    /**
+     * Builds a boolean query which matches documents having at least one term of doc's overall context in their
+     * overall context. The type need not be matched, every type has an index of its own.
+     */
+    private static Query buildQuery(IndexDocument doc) {
+        BooleanQuery.Builder boolQueryBuilder = new BooleanQuery.Builder();
+        boolQueryBuilder.setMinimumNumberShouldMatch(1);
+        for (String termStr : doc.getOverallContext()) {
+            boolQueryBuilder.add(new TermQuery(new Term(OVERALL_CONTEXT_FIELD, termStr)), BooleanClause.Occur.SHOULD);
+        }
+        return boolQueryBuilder.build();
+    }
+
+    /**
+     * @return the searcher of the given type or null if there is no index for this type
+     */
+    private SearcherManager getSearcherManager(String type) throws IOException {
+        SearcherManager searcherManager = typeToSearcherManager.get(type);
+        if (searcherManager != null) {
+            return searcherManager;
+        }
+        if (!new File(getIndexDirectoryPath(type)).exists()) {
+            return null;
+        }
+        synchronized (typeToSearcherManager) {
+            searcherManager = typeToSearcherManager.get(type);
+            if (searcherManager == null) {
+                try {
+                    searcherManager = new SearcherManager(getIndexDirectory(type), null);
+                } catch (IndexNotFoundException e) {
+                    // directory exists, but nothing has been committed to it yet
+                    return null;
+                }
+                typeToSearcherManager.put(type, searcherManager);
+            }
+            return searcherManager;
+        }
     }
 
     /*
       AbstractInvertedIndex IMPLEMENTATIONS
      */
 
-    boolean isIndexed(Connection dbConn, IndexDocument doc) throws SQLException {
+    /**
+     * Stores the document unless a document with the same docID has already been stored. Checking and storing happen
+     * atomically, so that two threads indexing the same document do not both put it in the Lucene index.
+     *
+     * @return true if the document has been stored, false if it had been indexed before
+     */
+    private synchronized boolean storeIfNotIndexed(IndexDocument doc) throws IOException {
         if (USE_SQLITE) {
-            return isIndexedInDB(dbConn, doc);
-        } else {
-            return isIndexedAsFile(doc);
+            try {
+                return serializeToSQLite(doc);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                throw new IOException(e.getMessage());
+            }
         }
-    }
-
-    private boolean isIndexedInDB(Connection dbConn, IndexDocument doc) throws SQLException {
-        String sqlSelect = "SELECT docid FROM " + this.SQL_TABLE_NAME + " WHERE docid=\"" + doc.getId() + "\"";
-        dbConn.setAutoCommit(false);
-        Statement stmt = dbConn.createStatement();
-        ResultSet rs = stmt.executeQuery(sqlSelect);
-        boolean hasItems = rs.isBeforeFirst();
-//        System.out.println(doc.getId() + " already indexed? " + hasItems);
-        rs.close();
-        stmt.close();
-        return hasItems;
+        if (isIndexedAsFile(doc)) {
+            // do not put identical documents in index twice
+            return false;
+        }
+        serializeToFile(doc);
+        return true;
     }
 
     private boolean isIndexedAsFile(IndexDocument doc) {
-        File f = new File(getPathToFileForIndexDocument(doc.getId()));
+        File f = new File(getPathToFileForIndexDocument(doc.getDocId()));
         return f.exists();
     }
 
-    private String getPathToFileForIndexDocument(String docID) {
-        return indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME + "/" + docID + ".ser";
+    private String getPathToFileForIndexDocument(DocId docID) {
+        return indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME + "/" + docID.toHex() + ".ser";
     }
 
-    void serializeIndexDocument(Connection dbConn, IndexDocument doc) throws IOException, SQLException {
-        if (USE_SQLITE) {
-            serializeToSQLite(dbConn, doc);
-        } else {
-            serializeToFile(doc);
-        }
-    }
-
-    private void serializeToSQLite(Connection dbConn, IndexDocument doc) throws SQLException {
-//        dbConn.setAutoCommit(false); // we've already turned off autocommit in the 'isIndexedInDB', i.e. at this point we still have an open transaction
-        String sqlInsert = "INSERT INTO " + this.SQL_TABLE_NAME + " VALUES(?,?,?,?,?,?,?)";
-        PreparedStatement prepStmt = dbConn.prepareStatement(sqlInsert);
-        prepStmt.setString(1, doc.getId());
-        prepStmt.setString(2, doc.getType());
-        prepStmt.setString(3, doc.getMethodCall());
-        prepStmt.setString(4, serializeContext(doc.getLineContext()));
-        prepStmt.setString(5, serializeContext(doc.getOverallContext()));
-        prepStmt.setLong(6, doc.getLineContextSimhash());
-        prepStmt.setLong(7, doc.getOverallContextSimhash());
-        int rowAffected = prepStmt.executeUpdate();
-        if (rowAffected != 1) {
-            dbConn.rollback();
-            LOGGER.severe("NO ROWS AFFECTED. ROLLING BACK!");
-            throw new SQLException("No rows affected, rolling back!", null, 5);
-        } else {
-//            LOGGER.info("Doc " + doc.getId() + " successfully added to SQLite DB");
-        }
-        dbConn.commit(); // end the transaction that we've started in the 'isIndexedInDB' call
-        prepStmt.close();
-        dbConn.close(); // if we are at this point there has not been any exception which means the transaction was successful. we can close the db connection.
+    /**
+     * @return true if the document has been inserted, false if a document with the same docID is already stored
+     */
+    private boolean serializeToSQLite(IndexDocument doc) throws SQLException {
+        dbTable.bindDocument(insertDocStmt, doc);
+        // INSERT OR IGNORE does not affect any row if the docID is already in the table
+        return insertDocStmt.executeUpdate() == 1;
     }
 
     private void serializeToFile(IndexDocument doc) throws IOException {
         String contextsDirPath = indexRootDir + "/" + SERIALIZED_INDEX_DOCUMENTS_DIR_NAME;
         createDirectoryIfNotExists(new File(contextsDirPath));
-        FileOutputStream fileOut = new FileOutputStream(getPathToFileForIndexDocument(doc.getId()));
+        FileOutputStream fileOut = new FileOutputStream(getPathToFileForIndexDocument(doc.getDocId()));
         ObjectOutputStream out = new ObjectOutputStream(fileOut);
         out.writeObject(doc);
         out.close();
         fileOut.close();
     }
 
-    Directory getIndexDirectory(IndexDocument doc) throws IOException {
-        String docType = doc.getType();
-        String luceneIndexDirPath = indexRootDir + "/" + INVERTED_INDEX_STRUCTURES_DIR_NAME + "/" + docType;
-        FSDirectory fileDirectory = FSDirectory.open(new File(luceneIndexDirPath).toPath());
-        return fileDirectory;
+    private String getIndexDirectoryPath(String type) {
+        return indexRootDir + "/" + INVERTED_INDEX_STRUCTURES_DIR_NAME + "/" + type;
+    }
+
+    private Directory getIndexDirectory(String type) throws IOException {
+        try {
+            return typeToDirectory.computeIfAbsent(type, t -> {
+                try {
+                    return FSDirectory.open(new File(getIndexDirectoryPath(t)).toPath());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
-    IndexDocument deserializeIndexDocument(String docID) throws IOException {
+    IndexDocument deserializeIndexDocument(DocId docID) throws IOException {
         if (USE_SQLITE) {
             return deserializeFromSQLite(docID);
         } else {
@@ -326,58 +555,58 @@ public class ParallelizedInvertedIndex implements IInvertedIndex {
         }
     }
 
-    private IndexDocument deserializeFromSQLite(String docID) {
-        String sqlSelect = "SELECT * FROM " + this.SQL_TABLE_NAME + " WHERE docid=\"" + docID + "\"";
-        try {
-            Connection dbConn = openSQLConnection();
-            Statement stmt = dbConn.createStatement();
-            ResultSet rs = stmt.executeQuery(sqlSelect);
-            boolean hasItems = rs.isBeforeFirst();
-            if (hasItems) {
-                String methodCall = rs.getString("method");
-                String type = rs.getString("type");
-                List<String> lineContext = deserializeContext(rs.getString("linecontext"));
-                List<String> overallContext = deserializeContext(rs.getString("overallcontext"));
-                long lineContextSimhash = rs.getLong("linecontextsimhash");
-                long overallContextSimhash = rs.getLong("overallcontextsimhash");
-                IndexDocument doc = new IndexDocument(docID, methodCall, type, lineContext, overallContext, lineContextSimhash, overallContextSimhash);
-                return doc;
+    /**
+     * Fetches the documents with the given docIDs, from the database in chunks (see
+     * {@link SQLiteDocumentTable#readDocuments(PreparedStatement, Collection)}).
+     *
+     * @return map from docID to document, docIDs which are not found are missing in the map
+     */
+    Map<DocId, IndexDocument> deserializeIndexDocuments(Collection<DocId> docIDs) throws IOException {
+        if (USE_SQLITE) {
+            return deserializeFromSQLite(docIDs);
+        }
+        Map<DocId, IndexDocument> docs = new HashMap<>();
+        for (DocId docID : docIDs) {
+            IndexDocument doc = deserializeFromFile(docID);
+            if (doc != null) {
+                docs.put(docID, doc);
             }
-            rs.close();
-            stmt.close();
-            dbConn.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return null;
+        return docs;
     }
 
-    private String serializeContext(List<String> context) {
-        StringBuilder sb = new StringBuilder();
-        for (String s : context) {
-            sb.append(s.length());
-            sb.append("~");
-            sb.append(s);
+    private synchronized Map<DocId, IndexDocument> deserializeFromSQLite(Collection<DocId> docIDs) {
+        try {
+            return dbTable.readDocuments(selectDocsChunkStmt, docIDs);
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
-        return sb.toString();
+        return new HashMap<>();
     }
 
-    private List<String> deserializeContext(String context) {
-        List<String> result = new LinkedList<>();
-        int position = 0;
-        while (position < context.length()) {
-            int tildePosition = position + context.substring(position).indexOf("~");
-            int wordLength = Integer.valueOf(context.substring(position, tildePosition));
-            String s = context.substring(tildePosition + 1, tildePosition + 1 + wordLength);
-            result.add(s);
-            position = tildePosition + wordLength + 1;
+    private synchronized IndexDocument deserializeFromSQLite(DocId docID) {
+        try {
+            dbTable.setDocId(selectDocStmt, 1, docID);
+            ResultSet rs = selectDocStmt.executeQuery();
+            IndexDocument doc = null;
+            if (rs.next()) {
+                doc = dbTable.readDocument(rs);
+            }
+            rs.close();
+            return doc;
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
-        return result;
+        return null;
     }
 
-    private IndexDocument deserializeFromFile(String docID) throws IOException {
+    private IndexDocument deserializeFromFile(DocId docID) throws IOException {
+        File file = new File(getPathToFileForIndexDocument(docID));
+        if (!file.exists()) {
+            return null;
+        }
         IndexDocument doc = null;
-        FileInputStream fileIn = new FileInputStream(getPathToFileForIndexDocument(docID));
+        FileInputStream fileIn = new FileInputStream(file);
         ObjectInputStream in = new ObjectInputStream(fileIn);
         try {
             doc = (IndexDocument) in.readObject();
@@ -0,0 +1,616 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * In-memory index which does not use Lucene.
+ * Documents are numbered in the order in which they are indexed and held in parallel arrays indexed by these
+ * ordinals. Every type has its own postings, which map the {@link SymbolTable} ID of each overall context term to the
+ * ordinals of the documents containing it. A search is a union of the postings of the query's overall context terms,
+ * so it returns the same documents as the Lucene based indexes: those of the query's type which have at least one term
+ * of the query's overall context in their overall context.
+ * <p>
+ * Every type also has a {@link SimhashNeighborIndex} over the simhashes of its documents. If a refined search would
+ * have to merge many postings, it looks up the documents closest to the query there and only falls back to merging
+ * the postings if there are not enough matches close by.
+ * <p>
+ * For cross-validation, documents can be indexed with the fold they belong to, see
+ * {@link PrimitiveInvertedIndex#indexDocument(IndexDocument, int)}. Every fold is then evaluated against a view of
+ * the index without it, so that the documents are only indexed once instead of once per fold.
+ * <p>
+ * Documents can be searched as soon as they have been indexed. Indexing and searching may happen concurrently.
+ */
+public class PrimitiveInvertedIndex implements IInvertedIndex {
+
+    /**
+     * Fold of documents which belong to the training data of every fold
+     */
+    public static final int NO_FOLD = 31;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // merging the postings in memory is cheap, the neighbor index only pays off if there are many postings to merge
+    private static final int NEIGHBOR_SEARCH_MIN_POSTINGS = 1 << 16;
+    // upper 32 bits of a (distance << 32 | position) key
+    private static final long DISTANCE_MASK = 0xFFFFFFFF00000000L;
+
+    // documents by ordinal, the ordinal of a document is its entry in the docID table
+    private final DocIdTable docIds = new DocIdTable(true);
+    private int[] methodCalls = new int[INITIAL_CAPACITY];
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[][] lineContexts = new int[INITIAL_CAPACITY][];
+    private int[][] overallContexts = new int[INITIAL_CAPACITY][];
+    private long[] lineContextSimhashes = new long[INITIAL_CAPACITY];
+    private long[] overallContextSimhashes = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // only allocated if documents are indexed with folds: the folds in which each document occurs as a bit mask, and
+    // the fold of its first occurrence
+    private int[] foldMasks;
+    private int[] firstFolds;
+    // the line context is not part of the docID, so the first occurrence outside the fold of the first occurrence may
+    // have another line context than the document in the index. null while the document only occurs in the fold of
+    // its first occurrence
+    private int[][] secondLineContexts;
+    private long[] secondLineContextSimhashes;
+
+    // <SymbolTable ID of the type, postings of the type>
+    private final Map<Integer, TypePostings> typeToPostings = new HashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Puts an IndexDocument in the index, unless a document with the same docID has been indexed before.
+     *
+     * @param doc document to store in the index.
+     */
+    @Override
+    public void indexDocument(IndexDocument doc) {
+        lock.writeLock().lock();
+        try {
+            if (foldMasks != null) {
+                indexDocumentInFold(doc, NO_FOLD);
+                return;
+            }
+            if (docIds.find(doc.getDocId()) >= 0) {
+                // do not put identical documents in index twice
+                return;
+            }
+            add(doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Puts an IndexDocument of a cross-validation fold in the index. Like in
+     * {@link PrimitiveInvertedIndex#indexDocument(IndexDocument)}, every document is only stored once, but the index
+     * remembers all folds in which it occurs. Either all or no documents of an index must be indexed with a fold.
+     *
+     * @param doc  document to store in the index
+     * @param fold fold of the document, from 0 to 30, or {@link PrimitiveInvertedIndex#NO_FOLD} if the document
+     *             belongs to the training data of every fold
+     */
+    public void indexDocument(IndexDocument doc, int fold) {
+        if (fold < 0 || fold > NO_FOLD) {
+            throw new IllegalArgumentException("fold must be between 0 and " + NO_FOLD + ": " + fold);
+        }
+        lock.writeLock().lock();
+        try {
+            if (foldMasks == null) {
+                if (size > 0) {
+                    throw new IllegalStateException("Documents have been indexed without folds already");
+                }
+                foldMasks = new int[methodCalls.length];
+                firstFolds = new int[methodCalls.length];
+                secondLineContexts = new int[methodCalls.length][];
+                secondLineContextSimhashes = new long[methodCalls.length];
+            }
+            indexDocumentInFold(doc, fold);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void indexDocumentInFold(IndexDocument doc, int fold) {
+        int ordinal = docIds.find(doc.getDocId());
+        if (ordinal < 0) {
+            ordinal = add(doc);
+            firstFolds[ordinal] = fold;
+        } else if (secondLineContexts[ordinal] == null && fold != firstFolds[ordinal]) {
+            secondLineContexts[ordinal] = doc.getLineContextIds();
+            secondLineContextSimhashes[ordinal] = doc.getLineContextSimhash();
+        }
+        foldMasks[ordinal] |= 1 << fold;
+    }
+
+    /**
+     * Adds a document which is not in the index yet.
+     *
+     * @return ordinal of the document
+     */
+    private int add(IndexDocument doc) {
+        if (size == methodCalls.length) {
+            grow();
+        }
+        int ordinal = size++;
+        docIds.add(doc.getDocId());
+        methodCalls[ordinal] = doc.getMethodCallId();
+        types[ordinal] = doc.getTypeId();
+        // the context arrays of an IndexDocument are never modified, so they can be shared
+        lineContexts[ordinal] = doc.getLineContextIds();
+        overallContexts[ordinal] = doc.getOverallContextIds();
+        lineContextSimhashes[ordinal] = doc.getLineContextSimhash();
+        overallContextSimhashes[ordinal] = doc.getOverallContextSimhash();
+        TypePostings postings = typeToPostings.computeIfAbsent(doc.getTypeId(), type -> new TypePostings());
+        for (int term : doc.getOverallContextIds()) {
+            postings.add(term, ordinal);
+        }
+        postings.addToNeighbors(ordinal, doc.getLineContextSimhash(), doc.getOverallContextSimhash());
+        return ordinal;
+    }
+
+    private void grow() {
+        int capacity = methodCalls.length * 2;
+        methodCalls = Arrays.copyOf(methodCalls, capacity);
+        types = Arrays.copyOf(types, capacity);
+        lineContexts = Arrays.copyOf(lineContexts, capacity);
+        overallContexts = Arrays.copyOf(overallContexts, capacity);
+        lineContextSimhashes = Arrays.copyOf(lineContextSimhashes, capacity);
+        overallContextSimhashes = Arrays.copyOf(overallContextSimhashes, capacity);
+        if (foldMasks != null) {
+            foldMasks = Arrays.copyOf(foldMasks, capacity);
+            firstFolds = Arrays.copyOf(firstFolds, capacity);
+            secondLineContexts = Arrays.copyOf(secondLineContexts, capacity);
+            secondLineContextSimhashes = Arrays.copyOf(secondLineContextSimhashes, capacity);
+        }
+    }
+
+    /**
+     * Searches documents which match doc's type and which have at least one term of doc's overall context in their
+     * overall context.
+     *
+     * @param doc document for which to find similar documents
+     * @return documents which are similar to doc
+     */
+    @Override
+    public Set<IndexDocument> search(IndexDocument doc) {
+        Set<IndexDocument> answers = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            TypePostings postings = typeToPostings.get(doc.getTypeId());
+            if (postings != null) {
+                postings.forEachMatch(doc.getOverallContextIds(), ordinal -> answers.add(documentAt(ordinal)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return answers;
+    }
+
+    /**
+     * Same query as {@link PrimitiveInvertedIndex#search(IndexDocument)}, but only the k matches closest to doc are
+     * kept in a bounded heap while the postings are merged. Matches with the same distance are ordered by docID, like
+     * in the other indexes.
+     * <p>
+     * If the postings of doc's terms are long, the simhash neighbor index of the type is asked for the k closest
+     * matches first. Only if there are not enough matches close to doc, the postings are merged.
+     */
+    @Override
+    public List<IndexDocument> searchRefined(IndexDocument doc, int k, int switchToLineContextThreshold) {
+        List<IndexDocument> answers = new ArrayList<>();
+        if (k <= 0) {
+            return answers;
+        }
+        lock.readLock().lock();
+        try {
+            TypePostings postings = typeToPostings.get(doc.getTypeId());
+            if (postings == null) {
+                return answers;
+            }
+            if (postings.neighbors.size() >= SimhashNeighborIndex.MIN_ENTRIES
+                    && postings.countPostings(doc.getOverallContextIds()) >= NEIGHBOR_SEARCH_MIN_POSTINGS) {
+                int[] queryTerms = doc.getOverallContextIds().clone();
+                Arrays.sort(queryTerms);
+                long[] keys = postings.neighbors.nearest(doc.getLineContextSimhash(), doc.getOverallContextSimhash(), k,
+                        switchToLineContextThreshold, entry -> SimhashNeighborIndex.containsAny(
+                                overallContexts[postings.entryOrdinals[entry]], queryTerms));
+                if (keys != null) {
+                    // the keys hold all matches within the radius, entries with the same distance have to be ordered
+                    // by docID before the k closest ones are taken
+                    BoundedLongHeap nearest = new BoundedLongHeap(k, docIds::compare);
+                    for (long key : keys) {
+                        nearest.offer((key & DISTANCE_MASK) | postings.entryOrdinals[(int) key]);
+                    }
+                    for (long key : nearest.toSortedArray()) {
+                        answers.add(documentAt((int) key));
+                    }
+                    return answers;
+                }
+            }
+            // (distance << 32 | ordinal) of the k closest matches, ordered by distance and docID
+            BoundedLongHeap heap = new BoundedLongHeap(k, docIds::compare);
+            postings.forEachMatch(doc.getOverallContextIds(), ordinal -> {
+                int distance = IndexDocument.refinementDistance(lineContextSimhashes[ordinal],
+                        overallContextSimhashes[ordinal], doc.getLineContextSimhash(),
+                        doc.getOverallContextSimhash(), switchToLineContextThreshold);
+                heap.offer(((long) distance << 32) | ordinal);
+            });
+            long[] keys = heap.toSortedArray();
+            for (long key : keys) {
+                answers.add(documentAt((int) key));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return answers;
+    }
+
+    private IndexDocument documentAt(int ordinal) {
+        return new IndexDocument(docIds.docId(ordinal), methodCalls[ordinal], types[ordinal],
+                lineContexts[ordinal], overallContexts[ordinal], lineContextSimhashes[ordinal],
+                overallContextSimhashes[ordinal]);
+    }
+
+    /**
+     * @return the document as it has first been indexed outside the given fold
+     */
+    private IndexDocument documentExcluding(int ordinal, int fold) {
+        if (firstFolds[ordinal] != fold) {
+            return documentAt(ordinal);
+        }
+        return new IndexDocument(docIds.docId(ordinal), methodCalls[ordinal], types[ordinal],
+                secondLineContexts[ordinal], overallContexts[ordinal], secondLineContextSimhashes[ordinal],
+                overallContextSimhashes[ordinal]);
+    }
+
+    /**
+     * Returns a read-only view of this index without the documents which only occur in the given fold. The view finds
+     * exactly the same documents in the same order as an index into which only the documents of the other folds have
+     * been indexed (in the same order as into this index).
+     *
+     * @param fold fold to exclude, from 0 to 30
+     * @return index for evaluating the fold
+     */
+    public IInvertedIndex excludingFold(int fold) {
+        if (fold < 0 || fold >= NO_FOLD) {
+            throw new IllegalArgumentException("fold must be between 0 and " + (NO_FOLD - 1) + ": " + fold);
+        }
+        return new FoldExcludingIndex(fold);
+    }
+
+    /**
+     * @return true if the document is in an index without the given fold, i.e. if it occurs in another fold as well.
+     * Its line context is then the one of its first occurrence outside the fold, see documentExcluding().
+     */
+    private boolean occursOutside(int ordinal, int fold) {
+        return (foldMasks[ordinal] & ~(1 << fold)) != 0;
+    }
+
+    /**
+     * @return number of documents in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void startIndexing() {
+        // nothing to do here, documents can be indexed at any time
+    }
+
+    @Override
+    public void finishIndexing() {
+        // nothing to do here, documents are searchable as soon as they have been indexed
+    }
+
+    @Override
+    public void startSearching() {
+        // nothing to do here, there is no searcher to open
+    }
+
+    @Override
+    public void finishSearching() {
+        // nothing to do here, there is no searcher to release
+    }
+
+    /**
+     * View of the index without one fold, see {@link PrimitiveInvertedIndex#excludingFold(int)}.
+     */
+    private class FoldExcludingIndex implements IInvertedIndex {
+
+        private final int fold;
+
+        FoldExcludingIndex(int fold) {
+            this.fold = fold;
+        }
+
+        @Override
+        public void indexDocument(IndexDocument doc) {
+            throw new UnsupportedOperationException("Documents must be indexed into the underlying index");
+        }
+
+        @Override
+        public Set<IndexDocument> search(IndexDocument doc) {
+            Set<IndexDocument> answers = new HashSet<>();
+            lock.readLock().lock();
+            try {
+                TypePostings postings = typeToPostings.get(doc.getTypeId());
+                if (postings != null && foldMasks != null) {
+                    postings.forEachMatch(doc.getOverallContextIds(), ordinal -> {
+                        if (occursOutside(ordinal, fold)) {
+                            answers.add(documentExcluding(ordinal, fold));
+                        }
+                    });
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return answers;
+        }
+
+        /**
+         * Merges the postings like {@link PrimitiveInvertedIndex#searchRefined(IndexDocument, int, int)}, without the
+         * documents which only occur in the fold. The simhash neighbor index is not used, as its entries include the
+         * documents of the fold.
+         */
+        @Override
+        public List<IndexDocument> searchRefined(IndexDocument doc, int k, int switchToLineContextThreshold) {
+            List<IndexDocument> answers = new ArrayList<>();
+            if (k <= 0) {
+                return answers;
+            }
+            lock.readLock().lock();
+            try {
+                TypePostings postings = typeToPostings.get(doc.getTypeId());
+                if (postings == null || foldMasks == null) {
+                    return answers;
+                }
+                // (distance << 32 | ordinal) of the k closest matches, ordered by distance and docID
+                BoundedLongHeap heap = new BoundedLongHeap(k, docIds::compare);
+                postings.forEachMatch(doc.getOverallContextIds(), ordinal -> {
+                    if (!occursOutside(ordinal, fold)) {
+                        return;
+                    }
+                    long lineContextSimhash = firstFolds[ordinal] == fold
+                            ? secondLineContextSimhashes[ordinal] : lineContextSimhashes[ordinal];
+                    int distance = IndexDocument.refinementDistance(lineContextSimhash,
+                            overallContextSimhashes[ordinal], doc.getLineContextSimhash(),
+                            doc.getOverallContextSimhash(), switchToLineContextThreshold);
+                    heap.offer(((long) distance << 32) | ordinal);
+                });
+                long[] keys = heap.toSortedArray();
+                for (long key : keys) {
+                    answers.add(documentExcluding((int) key, fold));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return answers;
+        }
+
+        @Override
+        public void startIndexing() {
+            // nothing to do here, the view is read-only
+        }
+
+        @Override
+        public void finishIndexing() {
+            // nothing to do here, the view is read-only
+        }
+
+        @Override
+        public void startSearching() {
+            // nothing to do here, there is no searcher to open
+        }
+
+        @Override
+        public void finishSearching() {
+            // nothing to do here, there is no searcher to release
+        }
+    }
+
+    /**
+     * Postings of the overall context terms of the documents of one type. The posting list of a term holds the
+     * ordinals of the documents containing it in ascending order, delta-encoded as varints.
+     */
+    private static class TypePostings {
+
+        // open-addressing hash table from term ID to the index of its posting list, holds index + 1
+        private int[] table = new int[16];
+        private int[] terms = new int[8];
+        private byte[][] postings = new byte[8][];
+        // number of bytes used in each posting list
+        private int[] lengths = new int[8];
+        private int[] lastOrdinals = new int[8];
+        // number of ordinals in each posting list
+        private int[] documentFrequencies = new int[8];
+        private int numTerms = 0;
+        // simhashes of the documents of the type, entry i of the neighbor index is document entryOrdinals[i]
+        private final SimhashNeighborIndex neighbors = new SimhashNeighborIndex();
+        private int[] entryOrdinals = new int[8];
+
+        void add(int term, int ordinal) {
+            int list = find(term);
+            if (list < 0) {
+                list = addTerm(term);
+            }
+            byte[] bytes = postings[list];
+            if (lengths[list] + 5 > bytes.length) {
+                bytes = postings[list] = Arrays.copyOf(bytes, Math.max(bytes.length * 2, lengths[list] + 5));
+            }
+            int delta = ordinal - lastOrdinals[list];
+            int position = lengths[list];
+            while ((delta & ~0x7F) != 0) {
+                bytes[position++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[position++] = (byte) delta;
+            lengths[list] = position;
+            lastOrdinals[list] = ordinal;
+            documentFrequencies[list]++;
+        }
+
+        void addToNeighbors(int ordinal, long lineContextSimhash, long overallContextSimhash) {
+            int entry = neighbors.add(lineContextSimhash, overallContextSimhash);
+            if (entry == entryOrdinals.length) {
+                entryOrdinals = Arrays.copyOf(entryOrdinals, entry * 2);
+            }
+            entryOrdinals[entry] = ordinal;
+        }
+
+        /**
+         * @return total length of the posting lists of the given terms, an upper bound of the number of matches
+         */
+        int countPostings(int[] queryTerms) {
+            int count = 0;
+            for (int term : queryTerms) {
+                int list = find(term);
+                if (list >= 0) {
+                    count += documentFrequencies[list];
+                }
+            }
+            return count;
+        }
+
+        private int find(int term) {
+            for (int slot = slot(term); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+                if (terms[table[slot] - 1] == term) {
+                    return table[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        private int slot(int term) {
+            // symbol IDs are dense, spread them over the table
+            return (term * 0x9E3779B9) >>> 1 & (table.length - 1);
+        }
+
+        private int addTerm(int term) {
+            if (numTerms == terms.length) {
+                int capacity = terms.length * 2;
+                terms = Arrays.copyOf(terms, capacity);
+                postings = Arrays.copyOf(postings, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                lastOrdinals = Arrays.copyOf(lastOrdinals, capacity);
+                documentFrequencies = Arrays.copyOf(documentFrequencies, capacity);
+            }
+            int list = numTerms++;
+            terms[list] = term;
+            postings[list] = new byte[8];
+            if (numTerms * 2 > table.length) {
+                table = new int[table.length * 2];
+                for (int i = 0; i < numTerms; i++) {
+                    insertIntoTable(i);
+                }
+            } else {
+                insertIntoTable(list);
+            }
+            return list;
+        }
+
+        private void insertIntoTable(int list) {
+            int slot = slot(terms[list]);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = list + 1;
+        }
+
+        /**
+         * Calls the consumer once for every document which contains at least one of the given terms, in ascending
+         * order of ordinals. The posting lists of the terms are merged with a min-heap of cursors.
+         */
+        void forEachMatch(int[] queryTerms, IntConsumer consumer) {
+            // cursor i reads posting list lists[i] at positions[i], its current ordinal is ordinals[i]
+            int[] lists = new int[queryTerms.length];
+            int[] positions = new int[queryTerms.length];
+            int[] ordinals = new int[queryTerms.length];
+            // heap of cursors ordered by their current ordinal
+            int[] heap = new int[queryTerms.length];
+            int heapSize = 0;
+            for (int term : queryTerms) {
+                int list = find(term);
+                if (list < 0) {
+                    continue;
+                }
+                int cursor = heapSize;
+                lists[cursor] = list;
+                positions[cursor] = 0;
+                ordinals[cursor] = 0;
+                advance(lists, positions, ordinals, cursor);
+                heap[heapSize++] = cursor;
+                siftUp(heap, ordinals, heapSize - 1);
+            }
+            int lastOrdinal = -1;
+            while (heapSize > 0) {
+                int cursor = heap[0];
+                if (ordinals[cursor] != lastOrdinal) {
+                    lastOrdinal = ordinals[cursor];
+                    consumer.accept(lastOrdinal);
+                }
+                if (positions[cursor] < lengths[lists[cursor]]) {
+                    advance(lists, positions, ordinals, cursor);
+                } else {
+                    heap[0] = heap[--heapSize];
+                }
+                siftDown(heap, heapSize, ordinals, 0);
+            }
+        }
+
+        /**
+         * Moves the cursor to the next ordinal of its posting list.
+         */
+        private void advance(int[] lists, int[] positions, int[] ordinals, int cursor) {
+            byte[] bytes = postings[lists[cursor]];
+            int position = positions[cursor];
+            int delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                delta |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            positions[cursor] = position;
+            ordinals[cursor] += delta;
+        }
+
+        private static void siftUp(int[] heap, int[] ordinals, int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (ordinals[heap[parent]] <= ordinals[heap[i]]) {
+                    return;
+                }
+                int tmp = heap[parent];
+                heap[parent] = heap[i];
+                heap[i] = tmp;
+                i = parent;
+            }
+        }
+
+        private static void siftDown(int[] heap, int size, int[] ordinals, int i) {
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && ordinals[heap[child + 1]] < ordinals[heap[child]]) {
+                    child++;
+                }
+                if (ordinals[heap[i]] <= ordinals[heap[child]]) {
+                    return;
+                }
+                int tmp = heap[child];
+                heap[child] = heap[i];
+                heap[i] = tmp;
+                i = child;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+/**
+ * Stages of a query whose latency is recorded by {@link IQueryMetrics}.
+ */
+public enum QueryStage {
+
+    /**
+     * Acquiring the Lucene searcher, including the reopening of a searcher which has been refreshed.
+     */
+    SEARCHER_ACQUISITION,
+    /**
+     * Lucene query for the base candidates. Refined searches compute the Hamming distances of the hits from their
+     * DocValues while collecting them, so this includes the refinement.
+     */
+    LUCENE_QUERY,
+    /**
+     * Refinement by Hamming distance with the simhash neighbor indexes, which replaces the Lucene query for types
+     * with many documents.
+     */
+    NEIGHBOR_SEARCH,
+    /**
+     * Loading and deserializing the candidates from the document store.
+     */
+    DOCUMENT_FETCH,
+    /**
+     * Candidate stage of the pipeline as a whole, i.e. all of the above.
+     */
+    CANDIDATE_STAGE,
+    /**
+     * Ranking stage of the pipeline: LCS and Levenshtein scoring of the refined candidates and dedupe of the methods.
+     */
+    RANKING,
+    /**
+     * Whole query.
+     */
+    QUERY
+
+}
@@ -0,0 +1,39 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Result of an {@link IRankingStage} for one query.
+ */
+public class Ranking {
+
+    private final List<ScoredCandidate> topCandidates;
+    private final Set<String> candidateMethodNames;
+
+    /**
+     * @param topCandidates        best candidate of each of the top methods, best first
+     * @param candidateMethodNames method calls of all candidates which passed the filtering threshold
+     */
+    public Ranking(List<ScoredCandidate> topCandidates, Set<String> candidateMethodNames) {
+        this.topCandidates = Collections.unmodifiableList(topCandidates);
+        this.candidateMethodNames = Collections.unmodifiableSet(candidateMethodNames);
+    }
+
+    /**
+     * @return best candidate of each of the top methods, best first
+     */
+    public List<ScoredCandidate> getTopCandidates() {
+        return topCandidates;
+    }
+
+    /**
+     * @return method calls of all candidates which passed the filtering threshold, including those which rank behind
+     * the top methods
+     */
+    public Set<String> getCandidateMethodNames() {
+        return candidateMethodNames;
+    }
+
+}
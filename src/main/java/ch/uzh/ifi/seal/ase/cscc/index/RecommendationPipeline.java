@@ -0,0 +1,112 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.List;
+
+/**
+ * Recommends methods for a query in two stages:
+ * <ol>
+ * <li>an {@link ICandidateStage} finds the base candidates and refines them to the k closest ones</li>
+ * <li>an {@link IRankingStage} scores the refined candidates and ranks the methods they call</li>
+ * </ol>
+ * Stages and parameters are fixed per instance, so that variants of the pipeline (e.g. other indexes, refinement or
+ * similarity kernels) can be compared side by side. A pipeline holds no state between queries.
+ */
+public class RecommendationPipeline {
+
+    /**
+     * Number of refined candidates.
+     */
+    public static final int DEFAULT_K = 200;
+    /**
+     * Overall context distance above which candidates are refined by their line context distance.
+     * TODO: this threshold was picked at random and was never tested (maybe a good value is mentioned in the paper?)
+     */
+    public static final int DEFAULT_SWITCH_TO_LINE_CONTEXT_THRESHOLD = 30;
+    /**
+     * Overall context similarity a candidate has to exceed to be ranked.
+     */
+    public static final double DEFAULT_FILTERING_THRESHOLD = 0.30;
+    /**
+     * Number of methods to recommend.
+     */
+    public static final int DEFAULT_CANDIDATES_TO_SUGGEST = 3;
+
+    private final ICandidateStage candidateStage;
+    private final IRankingStage rankingStage;
+    private final int k;
+    private final int switchToLineContextThreshold;
+    private final double filteringThreshold;
+    private final int candidatesToSuggest;
+    private final IQueryMetrics metrics;
+
+    /**
+     * Creates the default pipeline: the index refines the candidates itself, and they are ranked with bit-parallel
+     * kernels, skipping what cannot change the top methods.
+     *
+     * @param index inverted index structure (model) with which to suggest code completions
+     */
+    public RecommendationPipeline(IInvertedIndex index) {
+        this(new IndexSearchCandidateStage(index), new BoundedRankingStage(SimilarityKernels.BIT_PARALLEL));
+    }
+
+    /**
+     * Creates a pipeline with the given stages and the default parameters.
+     */
+    public RecommendationPipeline(ICandidateStage candidateStage, IRankingStage rankingStage) {
+        this(candidateStage, rankingStage, DEFAULT_K, DEFAULT_SWITCH_TO_LINE_CONTEXT_THRESHOLD,
+                DEFAULT_FILTERING_THRESHOLD, DEFAULT_CANDIDATES_TO_SUGGEST);
+    }
+
+    /**
+     * @param k                            number of refined candidates
+     * @param switchToLineContextThreshold overall context distance above which the line context distance is used
+     * @param filteringThreshold           overall context similarity a candidate has to exceed to be ranked
+     * @param candidatesToSuggest          number of methods to recommend
+     */
+    public RecommendationPipeline(ICandidateStage candidateStage, IRankingStage rankingStage, int k,
+                                  int switchToLineContextThreshold, double filteringThreshold, int candidatesToSuggest) {
+        this(candidateStage, rankingStage, k, switchToLineContextThreshold, filteringThreshold, candidatesToSuggest,
+                IQueryMetrics.NONE);
+    }
+
+    /**
+     * @param k                            number of refined candidates
+     * @param switchToLineContextThreshold overall context distance above which the line context distance is used
+     * @param filteringThreshold           overall context similarity a candidate has to exceed to be ranked
+     * @param candidatesToSuggest          number of methods to recommend
+     * @param metrics                      receives the latencies of the stages and the candidate counts. The stages
+     *                                     within the index are only recorded if the metrics are also set on the index,
+     *                                     see {@link AbstractInvertedIndex#setQueryMetrics(IQueryMetrics)}.
+     */
+    public RecommendationPipeline(ICandidateStage candidateStage, IRankingStage rankingStage, int k,
+                                  int switchToLineContextThreshold, double filteringThreshold, int candidatesToSuggest,
+                                  IQueryMetrics metrics) {
+        this.candidateStage = candidateStage;
+        this.rankingStage = rankingStage;
+        this.k = k;
+        this.switchToLineContextThreshold = switchToLineContextThreshold;
+        this.filteringThreshold = filteringThreshold;
+        this.candidatesToSuggest = candidatesToSuggest;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param query document for which to recommend methods, i.e. the receiver object of the code completion
+     * @return the ranked methods
+     */
+    public Ranking recommend(IndexDocument query) {
+        long start = System.nanoTime();
+        List<IndexDocument> refinedCandidates = candidateStage.findRefinedCandidates(query, k, switchToLineContextThreshold);
+        long candidatesFound = System.nanoTime();
+        Ranking ranking = rankingStage.rank(query, refinedCandidates, filteringThreshold, candidatesToSuggest);
+        long end = System.nanoTime();
+        metrics.recordLatency(QueryStage.CANDIDATE_STAGE, candidatesFound - start);
+        metrics.recordLatency(QueryStage.RANKING, end - candidatesFound);
+        metrics.recordLatency(QueryStage.QUERY, end - start);
+        metrics.recordCandidates(CandidateCount.REFINED_CANDIDATES, query.getType(), refinedCandidates.size());
+        metrics.recordCandidates(CandidateCount.CANDIDATE_METHODS, query.getType(),
+                ranking.getCandidateMethodNames().size());
+        return ranking;
+    }
+
+}
@@ -0,0 +1,185 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.SimpleCollector;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Collector keeping the k hits with the lowest refinement distance to the query document. The distance is computed
+ * from the simhashes stored as DocValues, so only the k surviving documents are ever deserialized. Hits with the same
+ * distance are ordered by docID, so that the order does not depend on how Lucene has merged the segments and is the
+ * same as that of {@link SimhashNeighborStore#nearest}.
+ * <p>
+ * Used by {@link AbstractInvertedIndex} and {@link ParallelizedInvertedIndex}, which both store the docID and the
+ * simhashes of a document in the fields declared by {@link AbstractInvertedIndex}.
+ */
+class RefinementCollector extends SimpleCollector {
+
+    /**
+     * Loads a single document from the document store of an index.
+     */
+    interface DocumentLoader {
+        IndexDocument load(DocId docID) throws IOException;
+    }
+
+    /**
+     * Loads documents in bulk from the document store of an index, docIDs which are not found are missing in the map.
+     */
+    interface DocumentFetcher {
+        Map<DocId, IndexDocument> fetch(Collection<DocId> docIDs) throws IOException;
+    }
+
+    /**
+     * A hit of the collector.
+     */
+    static class Hit {
+        final int distance;
+        final DocId docID;
+        // document, if it had to be deserialized already because its segment has no simhash DocValues
+        final IndexDocument doc;
+
+        Hit(int distance, DocId docID, IndexDocument doc) {
+            this.distance = distance;
+            this.docID = docID;
+            this.doc = doc;
+        }
+    }
+
+    // orders hits by descending distance so that the head of the heap is the worst hit we keep
+    private static final Comparator<Hit> WORST_FIRST = (h1, h2) -> h1.distance != h2.distance
+            ? Integer.compare(h2.distance, h1.distance)
+            : h2.docID.compareTo(h1.docID);
+    private final PriorityQueue<Hit> heap;
+    private final IndexDocument query;
+    private final int k;
+    private final int switchToLineContextThreshold;
+    private final DocumentLoader loader;
+    private LeafReader reader;
+    private BinaryDocValues docIdValues;
+    private NumericDocValues lineContextSimhashes;
+    private NumericDocValues overallContextSimhashes;
+    private long collectedHits = 0;
+
+    /**
+     * @param query                        document for which to find similar documents
+     * @param k                            maximum number of hits to keep
+     * @param switchToLineContextThreshold overall context distance above which the line context distance is used
+     * @param loader                       loads the documents of segments which have been written by an earlier
+     *                                     version without simhash DocValues
+     */
+    RefinementCollector(IndexDocument query, int k, int switchToLineContextThreshold, DocumentLoader loader) {
+        this.query = query;
+        this.k = k;
+        this.switchToLineContextThreshold = switchToLineContextThreshold;
+        this.loader = loader;
+        this.heap = new PriorityQueue<>(k, WORST_FIRST);
+    }
+
+    /**
+     * Reads the docID of a hit from the DocValues of its segment, or from its stored fields if the segment has been
+     * written by an earlier version.
+     *
+     * @param reader      reader of the segment
+     * @param docIdValues docID DocValues of the segment, null if the segment has none
+     * @param doc         Lucene doc ID of the hit, relative to the segment
+     */
+    static DocId readDocId(LeafReader reader, BinaryDocValues docIdValues, int doc) throws IOException {
+        if (docIdValues != null && docIdValues.advanceExact(doc)) {
+            return DocId.fromBytesRef(docIdValues.binaryValue());
+        }
+        return DocId.fromHex(reader.document(doc).get(AbstractInvertedIndex.DOC_ID_FIELD));
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        reader = context.reader();
+        docIdValues = reader.getBinaryDocValues(AbstractInvertedIndex.DOC_ID_FIELD);
+        lineContextSimhashes = DocValues.getNumeric(reader, AbstractInvertedIndex.LINE_CONTEXT_SIMHASH_FIELD);
+        overallContextSimhashes = DocValues.getNumeric(reader, AbstractInvertedIndex.OVERALL_CONTEXT_SIMHASH_FIELD);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        collectedHits++;
+        long lineContextSimhash;
+        long overallContextSimhash;
+        IndexDocument loadedDoc = null;
+        if (lineContextSimhashes.advanceExact(doc) && overallContextSimhashes.advanceExact(doc)) {
+            lineContextSimhash = lineContextSimhashes.longValue();
+            overallContextSimhash = overallContextSimhashes.longValue();
+        } else {
+            // segment was written before simhashes were stored as DocValues, we have to load the document
+            loadedDoc = loader.load(readDocId(reader, docIdValues, doc));
+            if (loadedDoc == null) {
+                // document is missing in the store, it could not be returned anyway
+                return;
+            }
+            lineContextSimhash = loadedDoc.getLineContextSimhash();
+            overallContextSimhash = loadedDoc.getOverallContextSimhash();
+        }
+        int distance = IndexDocument.refinementDistance(lineContextSimhash, overallContextSimhash,
+                query.getLineContextSimhash(), query.getOverallContextSimhash(), switchToLineContextThreshold);
+        // the docID is only read for hits which may make it into the heap
+        if (heap.size() < k) {
+            heap.add(new Hit(distance, docID(doc, loadedDoc), loadedDoc));
+        } else if (distance <= heap.peek().distance) {
+            Hit hit = new Hit(distance, docID(doc, loadedDoc), loadedDoc);
+            if (WORST_FIRST.compare(hit, heap.peek()) > 0) {
+                // replace the current worst hit
+                heap.poll();
+                heap.add(hit);
+            }
+        }
+    }
+
+    private DocId docID(int doc, IndexDocument loadedDoc) throws IOException {
+        return loadedDoc != null ? loadedDoc.getDocId() : readDocId(reader, docIdValues, doc);
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    long getCollectedHits() {
+        return collectedHits;
+    }
+
+    List<Hit> getHitsOrderedByDistance() {
+        List<Hit> hits = new ArrayList<>(heap);
+        hits.sort(WORST_FIRST.reversed());
+        return hits;
+    }
+
+    /**
+     * Fetches the documents of the kept hits which have not been loaded while collecting, all at once.
+     *
+     * @return the documents of the kept hits, ordered by ascending distance. Hits whose document is missing in the
+     * store are skipped, like in {@link IInvertedIndex#search(IndexDocument)}.
+     */
+    List<IndexDocument> fetchDocumentsOrderedByDistance(DocumentFetcher fetcher) throws IOException {
+        List<Hit> hits = getHitsOrderedByDistance();
+        List<DocId> docIDs = new ArrayList<>(hits.size());
+        for (Hit hit : hits) {
+            if (hit.doc == null) {
+                docIDs.add(hit.docID);
+            }
+        }
+        Map<DocId, IndexDocument> fetchedDocs = fetcher.fetch(docIDs);
+        List<IndexDocument> docs = new ArrayList<>(hits.size());
+        for (Hit hit : hits) {
+            IndexDocument doc = hit.doc != null ? hit.doc : fetchedDocs.get(hit.docID);
+            if (doc != null) {
+                docs.add(doc);
+            }
+        }
+        return docs;
+    }
+
+}
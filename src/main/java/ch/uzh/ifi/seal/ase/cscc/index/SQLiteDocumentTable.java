@@ -0,0 +1,311 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Layout of the SQLite table in which {@link DiskBasedInvertedIndex} and {@link ParallelizedInvertedIndex} store the
+ * IndexDocument objects, bound to one connection to the database.
+ * <p>
+ * The method call, the type and the context tokens are stored as IDs of a dictionary (see {@link StoreSymbols}), which
+ * is kept in a table of its own. Databases created by earlier versions are still read and written in their format:
+ * tokens as strings, which is marked by a user_version of 0, and docIDs as hex strings, which is marked by a docid
+ * column of type CHAR(64).
+ */
+class SQLiteDocumentTable {
+
+    static final String TABLE_NAME = "indexdocuments";
+    private static final String SYMBOLS_TABLE_NAME = "symbols";
+    // user_version of databases which store tokens as IDs of the symbols table
+    private static final int SYMBOL_IDS_VERSION = 1;
+    // number of docIDs fetched per SELECT ... WHERE docid IN (...) statement, SQLite allows at most 999 parameters
+    private static final int FETCH_CHUNK_SIZE = 500;
+
+    private final Connection conn;
+    private final StoreSymbols symbols;
+    private boolean hexDocIds = false;
+    private boolean symbolIds = true;
+    private PreparedStatement insertSymbolStmt;
+    private PreparedStatement selectSymbolsStmt;
+
+    /**
+     * @param conn      connection to the database
+     * @param symbols   dictionary of the database, shared by all connections to the same database
+     * @param create    true: the tables are created if they do not exist yet
+     * @throws SQLException if the tables cannot be created or inspected
+     */
+    SQLiteDocumentTable(Connection conn, StoreSymbols symbols, boolean create) throws SQLException {
+        this.conn = conn;
+        this.symbols = symbols;
+        if (create && !tableExists()) {
+            createTables();
+        }
+        detectFormat();
+        if (symbolIds && tableExists()) {
+            loadSymbols();
+        }
+    }
+
+    private boolean tableExists() throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT name FROM sqlite_master WHERE type='table' AND name=?");
+        stmt.setString(1, TABLE_NAME);
+        ResultSet rs = stmt.executeQuery();
+        boolean exists = rs.next();
+        rs.close();
+        stmt.close();
+        return exists;
+    }
+
+    private void createTables() throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE " + TABLE_NAME
+                + "("
+                + "   docid                  BLOB PRIMARY KEY,"
+                + "   type                   INTEGER NOT NULL,"
+                + "   method                 INTEGER NOT NULL,"
+                + "   linecontext            BLOB,"
+                + "   overallcontext         BLOB,"
+                + "   linecontextsimhash     BIGINT,"
+                + "   overallcontextsimhash  BIGINT"
+                + ")");
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + SYMBOLS_TABLE_NAME
+                + "("
+                + "   id                     INTEGER PRIMARY KEY,"
+                + "   token                  TEXT NOT NULL"
+                + ")");
+        stmt.execute("PRAGMA user_version=" + SYMBOL_IDS_VERSION);
+        stmt.close();
+    }
+
+    private void detectFormat() throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + TABLE_NAME + ")");
+        while (rs.next()) {
+            if (rs.getString("name").equals("docid")) {
+                hexDocIds = rs.getString("type").toUpperCase().startsWith("CHAR");
+            }
+        }
+        rs.close();
+        rs = stmt.executeQuery("PRAGMA user_version");
+        // a database without the table has never been written, it gets the current format once it is created
+        symbolIds = !tableExists() || (rs.next() && rs.getInt(1) >= SYMBOL_IDS_VERSION);
+        rs.close();
+        stmt.close();
+    }
+
+    /**
+     * Reads the tokens which have been added to the dictionary since it has been read last.
+     */
+    private void loadSymbols() throws SQLException {
+        if (selectSymbolsStmt == null) {
+            selectSymbolsStmt = conn.prepareStatement("SELECT id, token FROM " + SYMBOLS_TABLE_NAME + " WHERE id>=? ORDER BY id");
+        }
+        selectSymbolsStmt.setInt(1, symbols.size());
+        ResultSet rs = selectSymbolsStmt.executeQuery();
+        while (rs.next()) {
+            symbols.addPersisted(rs.getString("token"));
+        }
+        rs.close();
+    }
+
+    /**
+     * Writes the tokens which have been added to the dictionary but are not in the database yet.
+     */
+    private void persistSymbols() throws SQLException {
+        int id = symbols.firstUnpersistedId();
+        List<String> tokens = symbols.takeUnpersisted();
+        if (tokens.isEmpty()) {
+            return;
+        }
+        if (insertSymbolStmt == null) {
+            insertSymbolStmt = conn.prepareStatement("INSERT INTO " + SYMBOLS_TABLE_NAME + " VALUES(?,?)");
+        }
+        for (String token : tokens) {
+            insertSymbolStmt.setInt(1, id++);
+            insertSymbolStmt.setString(2, token);
+            insertSymbolStmt.executeUpdate();
+        }
+    }
+
+    void setDocId(PreparedStatement stmt, int parameterIndex, DocId docID) throws SQLException {
+        if (hexDocIds) {
+            stmt.setString(parameterIndex, docID.toHex());
+        } else {
+            stmt.setBytes(parameterIndex, docID.toBytes());
+        }
+    }
+
+    DocId getDocId(ResultSet rs) throws SQLException {
+        if (hexDocIds) {
+            return DocId.fromHex(rs.getString("docid"));
+        }
+        return DocId.fromBytes(rs.getBytes("docid"), 0);
+    }
+
+    /**
+     * Sets the parameters of an {@code INSERT INTO indexdocuments VALUES(?,?,?,?,?,?,?)} statement to the given
+     * document. Tokens which are not in the dictionary yet are added to it.
+     */
+    void bindDocument(PreparedStatement insertStmt, IndexDocument doc) throws SQLException {
+        setDocId(insertStmt, 1, doc.getDocId());
+        if (symbolIds) {
+            insertStmt.setInt(2, symbols.toStoreId(doc.getTypeId()));
+            insertStmt.setInt(3, doc.getMethodCallId() < 0 ? -1 : symbols.toStoreId(doc.getMethodCallId()));
+            insertStmt.setBytes(4, encodeIds(doc.getLineContextIds()));
+            insertStmt.setBytes(5, encodeIds(doc.getOverallContextIds()));
+            persistSymbols();
+        } else {
+            insertStmt.setString(2, doc.getType());
+            insertStmt.setString(3, doc.getMethodCall());
+            insertStmt.setString(4, serializeContext(doc.getLineContext()));
+            insertStmt.setString(5, serializeContext(doc.getOverallContext()));
+        }
+        insertStmt.setLong(6, doc.getLineContextSimhash());
+        insertStmt.setLong(7, doc.getOverallContextSimhash());
+    }
+
+    /**
+     * @return statement selecting the documents of a chunk of docIDs, for {@link #readDocuments(PreparedStatement, Collection)}
+     */
+    static PreparedStatement prepareSelectChunk(Connection conn) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT * FROM " + TABLE_NAME + " WHERE docid IN (?");
+        for (int i = 1; i < FETCH_CHUNK_SIZE; i++) {
+            sql.append(",?");
+        }
+        sql.append(")");
+        return conn.prepareStatement(sql.toString());
+    }
+
+    /**
+     * Fetches documents in chunks of {@link SQLiteDocumentTable#FETCH_CHUNK_SIZE} with a reused prepared statement, so
+     * that a query with many candidates needs only a handful of round trips to the database.
+     *
+     * @param selectChunkStmt statement created by {@link #prepareSelectChunk(Connection)} on the connection of this table
+     * @return map from docID to document, docIDs which are not found are missing in the map
+     */
+    Map<DocId, IndexDocument> readDocuments(PreparedStatement selectChunkStmt, Collection<DocId> docIDs) throws SQLException {
+        Map<DocId, IndexDocument> docs = new HashMap<>();
+        // docIDs without duplicates, sorted so that SQLite can walk its primary key index in order
+        List<DocId> uniqueDocIDs = new ArrayList<>(new TreeSet<>(docIDs));
+        for (int chunkStart = 0; chunkStart < uniqueDocIDs.size(); chunkStart += FETCH_CHUNK_SIZE) {
+            int chunkEnd = Math.min(chunkStart + FETCH_CHUNK_SIZE, uniqueDocIDs.size());
+            for (int i = 0; i < FETCH_CHUNK_SIZE; i++) {
+                // the last chunk is padded by repeating its last docID, so that we can reuse the same statement
+                setDocId(selectChunkStmt, i + 1, uniqueDocIDs.get(Math.min(chunkStart + i, chunkEnd - 1)));
+            }
+            ResultSet rs = selectChunkStmt.executeQuery();
+            while (rs.next()) {
+                IndexDocument doc = readDocument(rs);
+                docs.put(doc.getDocId(), doc);
+            }
+            rs.close();
+        }
+        return docs;
+    }
+
+    /**
+     * @return the document in the current row of a {@code SELECT * FROM indexdocuments} result
+     */
+    IndexDocument readDocument(ResultSet rs) throws SQLException {
+        DocId docID = getDocId(rs);
+        long lineContextSimhash = rs.getLong("linecontextsimhash");
+        long overallContextSimhash = rs.getLong("overallcontextsimhash");
+        if (symbolIds) {
+            int methodCall = rs.getInt("method");
+            int type = toGlobalId(rs.getInt("type"));
+            int[] lineContext = decodeIds(rs.getBytes("linecontext"));
+            int[] overallContext = decodeIds(rs.getBytes("overallcontext"));
+            return new IndexDocument(docID, methodCall < 0 ? -1 : toGlobalId(methodCall), type, lineContext,
+                    overallContext, lineContextSimhash, overallContextSimhash);
+        }
+        String methodCall = rs.getString("method");
+        String type = rs.getString("type");
+        List<String> lineContext = deserializeContext(rs.getString("linecontext"));
+        List<String> overallContext = deserializeContext(rs.getString("overallcontext"));
+        return new IndexDocument(docID, methodCall, type, lineContext, overallContext, lineContextSimhash, overallContextSimhash);
+    }
+
+    private int toGlobalId(int storeId) throws SQLException {
+        int globalId = symbols.toGlobalId(storeId);
+        if (globalId < 0) {
+            // token has been added to the database by another connection since we read the dictionary
+            loadSymbols();
+            globalId = symbols.toGlobalId(storeId);
+        }
+        return globalId;
+    }
+
+    /**
+     * Encodes the store IDs of the given tokens as varints.
+     */
+    private byte[] encodeIds(int[] globalIds) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(globalIds.length * 3);
+        for (int globalId : globalIds) {
+            int value = symbols.toStoreId(globalId);
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+        return out.toByteArray();
+    }
+
+    private int[] decodeIds(byte[] bytes) throws SQLException {
+        if (bytes == null) {
+            return new int[0];
+        }
+        int[] ids = new int[bytes.length];
+        int count = 0;
+        int position = 0;
+        while (position < bytes.length) {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            ids[count++] = toGlobalId(value);
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    private String serializeContext(List<String> context) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : context) {
+            sb.append(s.length());
+            sb.append("~");
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private List<String> deserializeContext(String context) {
+        List<String> result = new LinkedList<>();
+        int position = 0;
+        while (position < context.length()) {
+            int tildePosition = context.indexOf('~', position);
+            int wordLength = Integer.valueOf(context.substring(position, tildePosition));
+            String s = context.substring(tildePosition + 1, tildePosition + 1 + wordLength);
+            result.add(s);
+            position = tildePosition + wordLength + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Closes the statements of this table, but not the connection.
+     */
+    void close() throws SQLException {
+        if (insertSymbolStmt != null) {
+            insertSymbolStmt.close();
+        }
+        if (selectSymbolsStmt != null) {
+            selectSymbolsStmt.close();
+        }
+    }
+
+}
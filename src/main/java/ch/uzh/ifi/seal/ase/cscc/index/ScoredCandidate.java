@@ -0,0 +1,66 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+/**
+ * Candidate of a query together with its scores 'score1' and 'score2'. Unlike {@link ScoredIndexDocument}, it only
+ * references the candidate instead of copying it, so scoring the candidates of a query costs no allocations apart from
+ * the ScoredCandidates themselves.
+ * <p>
+ * ScoredCandidates are sorted the same way as ScoredIndexDocuments: higher score1 first, higher score2 on ties.
+ */
+public final class ScoredCandidate implements Comparable<ScoredCandidate> {
+
+    private final IndexDocument document;
+    private final double score1;
+    private final double score2;
+
+    public ScoredCandidate(IndexDocument document, double score1, double score2) {
+        this.document = document;
+        this.score1 = score1;
+        this.score2 = score2;
+    }
+
+    public IndexDocument getDocument() {
+        return document;
+    }
+
+    public String getMethodCall() {
+        return document.getMethodCall();
+    }
+
+    public double getScore1() {
+        return score1;
+    }
+
+    public double getScore2() {
+        return score2;
+    }
+
+    /**
+     * higher score than other means it's coming before other when sorting
+     */
+    @Override
+    public int compareTo(ScoredCandidate o) {
+        if (score1 > o.score1) {
+            return -1;
+        } else if (score1 < o.score1) {
+            return 1;
+        } else if (score2 > o.score2) {
+            // in case of equality in score1, compare score2
+            return -1;
+        } else if (score2 < o.score2) {
+            return 1;
+        } else {
+            // tie in both score1 and score2
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScoredCandidate{" +
+                "document=" + document +
+                ", score1=" + score1 +
+                ", score2=" + score2 +
+                '}';
+    }
+}
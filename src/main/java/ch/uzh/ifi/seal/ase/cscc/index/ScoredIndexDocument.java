@@ -4,6 +4,8 @@ import java.util.List;
 
 /**
  * Same as IndexDocument, but has an additional fields 'score1' and 'score2' which can be useful for comparing and sorting IndexDocuments
+ * <p>
+ * To rank the candidates of a query, use {@link ScoredCandidate}, which only references the candidate.
  */
 public class ScoredIndexDocument extends IndexDocument implements Comparable<ScoredIndexDocument> {
 
@@ -17,7 +19,10 @@ public class ScoredIndexDocument extends IndexDocument implements Comparable<Sco
     }
 
     public ScoredIndexDocument(IndexDocument doc, double score1, double score2) {
-        this(doc.getMethodCall(), doc.getType(), doc.getLineContext(), doc.getOverallContext(), score1, score2);
+        // copies the document as it is instead of computing its ID and simhashes again
+        super(doc);
+        this.score1 = score1;
+        this.score2 = score2;
     }
 
     public double getScore1() {
@@ -34,7 +39,7 @@ public class ScoredIndexDocument extends IndexDocument implements Comparable<Sco
      * @return IndexDocument without the scores
      */
     public IndexDocument getIndexDocumentWithoutScores() {
-        return new IndexDocument(this.getId(), this.getMethodCall(), this.getType(), this.getLineContext(), this.getOverallContext(), this.getLineContextSimhash(), this.getOverallContextSimhash());
+        return new IndexDocument(this);
     }
 
     /**
@@ -0,0 +1,278 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Multi-index hashing over the line context and overall context simhashes of the documents of one type. Both 64-bit
+ * simhashes are split into four 16-bit bands, and every band has a hash table from its value to the entries having
+ * that value. Two simhashes which are at most r bits apart agree on at least one band up to r / 4 bits (pigeonhole
+ * principle), so the entries within distance r are found by probing every band with all values up to r / 4 bits away
+ * from the query's band, instead of comparing the query with every entry.
+ * <p>
+ * Entries are numbered in the order in which they are added. What an entry stands for (a document ordinal, a docID)
+ * is up to the caller. The band tables are only built once there are {@link SimhashNeighborIndex#MIN_ENTRIES} entries,
+ * below that the few entries are simply compared one by one.
+ */
+class SimhashNeighborIndex {
+
+    private static final int BANDS = 4;
+    private static final int BAND_BITS = 64 / BANDS;
+    // probing a band with more than this many flipped bits costs more than scanning all entries of a large type
+    private static final int MAX_BAND_RADIUS = 2;
+    /**
+     * Number of entries from which on the band tables are built. For types with fewer documents, scanning the base
+     * candidates is cheaper than probing the tables.
+     */
+    static final int MIN_ENTRIES = 4096;
+    // radii searched by nearest() one after another: the largest radius which can be answered with each band radius
+    private static final int[] RADII = {BANDS - 1, 2 * BANDS - 1, 3 * BANDS - 1};
+
+    private long[] lineContextSimhashes = new long[8];
+    private long[] overallContextSimhashes = new long[8];
+    private int size = 0;
+    // null until there are MIN_ENTRIES entries
+    private BandTable[] lineContextBands;
+    private BandTable[] overallContextBands;
+
+    /**
+     * @return number of the new entry
+     */
+    int add(long lineContextSimhash, long overallContextSimhash) {
+        if (size == lineContextSimhashes.length) {
+            lineContextSimhashes = Arrays.copyOf(lineContextSimhashes, size * 2);
+            overallContextSimhashes = Arrays.copyOf(overallContextSimhashes, size * 2);
+        }
+        int entry = size++;
+        lineContextSimhashes[entry] = lineContextSimhash;
+        overallContextSimhashes[entry] = overallContextSimhash;
+        if (lineContextBands != null) {
+            addToBands(entry);
+        } else if (size == MIN_ENTRIES) {
+            lineContextBands = new BandTable[BANDS];
+            overallContextBands = new BandTable[BANDS];
+            for (int band = 0; band < BANDS; band++) {
+                lineContextBands[band] = new BandTable();
+                overallContextBands[band] = new BandTable();
+            }
+            for (int i = 0; i < size; i++) {
+                addToBands(i);
+            }
+        }
+        return entry;
+    }
+
+    private void addToBands(int entry) {
+        for (int band = 0; band < BANDS; band++) {
+            lineContextBands[band].add(bandValue(lineContextSimhashes[entry], band), entry);
+            overallContextBands[band].add(bandValue(overallContextSimhashes[entry], band), entry);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the refinement distance (see {@link IndexDocument#refinementDistance(long, long, long, long, int)})
+     * between the entry and the query simhashes
+     */
+    int distance(int entry, long lineContextSimhash, long overallContextSimhash, int switchToLineContextThreshold) {
+        return IndexDocument.refinementDistance(lineContextSimhashes[entry], overallContextSimhashes[entry],
+                lineContextSimhash, overallContextSimhash, switchToLineContextThreshold);
+    }
+
+    /**
+     * Finds all entries whose refinement distance to the query simhashes is at most {@code radius}. An entry with an
+     * overall context distance up to the threshold is within the radius if its overall context simhash is, any other
+     * entry if its line context simhash is. So both simhashes are probed with the radius and the entries found are
+     * filtered by their exact distance.
+     *
+     * @param radius at most {@code 4 * MAX_BAND_RADIUS + 3}
+     * @return the entries in ascending order
+     */
+    int[] withinDistance(long lineContextSimhash, long overallContextSimhash, int radius, int switchToLineContextThreshold) {
+        int bandRadius = radius / BANDS;
+        if (bandRadius > MAX_BAND_RADIUS) {
+            throw new IllegalArgumentException("radius must be at most " + (BANDS * (MAX_BAND_RADIUS + 1) - 1) + ": " + radius);
+        }
+        int[] entries;
+        if (lineContextBands == null) {
+            entries = new int[size];
+            for (int i = 0; i < size; i++) {
+                entries[i] = i;
+            }
+        } else {
+            EntryList found = new EntryList();
+            for (int band = 0; band < BANDS; band++) {
+                probe(lineContextBands[band], bandValue(lineContextSimhash, band), bandRadius, found);
+                probe(overallContextBands[band], bandValue(overallContextSimhash, band), bandRadius, found);
+            }
+            entries = found.toSortedArray();
+        }
+        int count = 0;
+        for (int entry : entries) {
+            if (distance(entry, lineContextSimhash, overallContextSimhash, switchToLineContextThreshold) <= radius) {
+                entries[count++] = entry;
+            }
+        }
+        return Arrays.copyOf(entries, count);
+    }
+
+    /**
+     * Searches the entries within growing radii of the query simhashes and stops at the first radius within which at
+     * least k entries are accepted. The k accepted entries with the lowest distance are then within that radius.
+     *
+     * @param accept filter on the entries, e.g. whether the document of the entry matches the query
+     * @return (distance << 32 | entry) of all accepted entries within the radius in ascending order, null if less than
+     * k entries are accepted within the largest radius
+     */
+    long[] nearest(long lineContextSimhash, long overallContextSimhash, int k, int switchToLineContextThreshold,
+                   IntPredicate accept) {
+        for (int radius : RADII) {
+            int[] entries = withinDistance(lineContextSimhash, overallContextSimhash, radius, switchToLineContextThreshold);
+            if (entries.length < k) {
+                continue;
+            }
+            long[] keys = new long[entries.length];
+            int accepted = 0;
+            for (int entry : entries) {
+                if (accept.test(entry)) {
+                    int distance = distance(entry, lineContextSimhash, overallContextSimhash, switchToLineContextThreshold);
+                    keys[accepted++] = ((long) distance << 32) | entry;
+                }
+            }
+            if (accepted >= k) {
+                Arrays.sort(keys, 0, accepted);
+                return Arrays.copyOf(keys, accepted);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if at least one of the terms is in sortedTerms
+     */
+    static boolean containsAny(int[] terms, int[] sortedTerms) {
+        for (int term : terms) {
+            if (Arrays.binarySearch(sortedTerms, term) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the entries of all band values which differ from {@code value} in at most {@code bandRadius} bits.
+     */
+    private static void probe(BandTable table, int value, int bandRadius, EntryList found) {
+        table.collect(value, found);
+        if (bandRadius >= 1) {
+            for (int i = 0; i < BAND_BITS; i++) {
+                int flipped = value ^ (1 << i);
+                table.collect(flipped, found);
+                if (bandRadius >= 2) {
+                    for (int j = i + 1; j < BAND_BITS; j++) {
+                        table.collect(flipped ^ (1 << j), found);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int bandValue(long simhash, int band) {
+        return (int) (simhash >>> (band * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+    }
+
+    /**
+     * Growable list of entries, which may contain duplicates until it is sorted.
+     */
+    private static class EntryList {
+        private int[] entries = new int[64];
+        private int size = 0;
+
+        void addAll(int[] list, int count) {
+            if (size + count > entries.length) {
+                entries = Arrays.copyOf(entries, Math.max(entries.length * 2, size + count));
+            }
+            System.arraycopy(list, 0, entries, size, count);
+            size += count;
+        }
+
+        int[] toSortedArray() {
+            Arrays.sort(entries, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || entries[i] != entries[unique - 1]) {
+                    entries[unique++] = entries[i];
+                }
+            }
+            return Arrays.copyOf(entries, unique);
+        }
+    }
+
+    /**
+     * Open-addressing hash table from a 16-bit band value to the entries having it.
+     */
+    private static class BandTable {
+        // value + 1 of each slot, 0 marks an empty slot
+        private int[] keys = new int[16];
+        private int[][] lists = new int[16][];
+        private int[] sizes = new int[16];
+        private int used = 0;
+
+        void add(int value, int entry) {
+            int slot = slot(value);
+            if (keys[slot] == 0) {
+                if ((used + 1) * 2 > keys.length) {
+                    resize();
+                    slot = slot(value);
+                }
+                keys[slot] = value + 1;
+                lists[slot] = new int[2];
+                used++;
+            }
+            if (sizes[slot] == lists[slot].length) {
+                lists[slot] = Arrays.copyOf(lists[slot], sizes[slot] * 2);
+            }
+            lists[slot][sizes[slot]++] = entry;
+        }
+
+        void collect(int value, EntryList found) {
+            int slot = slot(value);
+            if (keys[slot] != 0) {
+                found.addAll(lists[slot], sizes[slot]);
+            }
+        }
+
+        /**
+         * @return the slot holding the value, or the empty slot where it would be put
+         */
+        private int slot(int value) {
+            int mask = keys.length - 1;
+            int slot = (value * 0x9E3779B9) >>> 1 & mask;
+            while (keys[slot] != 0 && keys[slot] != value + 1) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            int[][] oldLists = lists;
+            int[] oldSizes = sizes;
+            keys = new int[oldKeys.length * 2];
+            lists = new int[keys.length][];
+            sizes = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i] - 1);
+                    keys[slot] = oldKeys[i];
+                    lists[slot] = oldLists[i];
+                    sizes[slot] = oldSizes[i];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,347 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One {@link SimhashNeighborIndex} per type over the documents of a {@link DiskBasedInvertedIndex}, together with the
+ * docIDs and the overall context terms of their entries, so that the closest documents matching a query can be found
+ * without asking Lucene.
+ * <p>
+ * The entries are persisted in an append-only log, from which the neighbor indexes are built again when the store is
+ * opened. The log consists of three kinds of records:
+ * <ul>
+ * <li>type: tag 0, length of the type name as short, type name in UTF-8. Types are numbered in the order of their
+ * records.</li>
+ * <li>term: tag 2, length of the term as short, term in UTF-8. Terms are numbered in the order of their records, see
+ * {@link StoreSymbols}.</li>
+ * <li>entry: tag 1, number of the type as int, docID (32 bytes), line context simhash, overall context simhash,
+ * number of overall context terms as varint, numbers of the overall context terms as varints.</li>
+ * </ul>
+ * A record which has only been written partially (e.g. because training has been killed) is cut off when the log is
+ * opened.
+ * <p>
+ * The log is buffered, but the buffer may also be written when it is full, so after training has been killed the log
+ * can hold documents which have not been committed to the Lucene index. These documents are indexed again when
+ * training is resumed, each docID is therefore only added once per type, both when reading the log and afterwards.
+ */
+class SimhashNeighborStore {
+
+    private static final String LOG_FILE_NAME = "simhashes.log";
+    private static final byte TYPE_RECORD = 0;
+    private static final byte ENTRY_RECORD = 1;
+    private static final byte TERM_RECORD = 2;
+
+    private final File logFile;
+    private final FileOutputStream logFileOut;
+    private final DataOutputStream logOut;
+
+    private final Map<String, TypeNeighbors> typeToNeighbors = new HashMap<>();
+    private final List<TypeNeighbors> typesByNumber = new ArrayList<>();
+    private final StoreSymbols terms = new StoreSymbols();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // buffer for writing a docID to the log, only used under the write lock
+    private final long[] docIdWords = new long[4];
+
+    /**
+     * Neighbor index of one type.
+     */
+    private static class TypeNeighbors {
+        private final int number;
+        private final SimhashNeighborIndex index = new SimhashNeighborIndex();
+        // entry i of the neighbor index is entry i of the table
+        private final DocIdTable docIDs = new DocIdTable(true);
+        // SymbolTable IDs of the overall context terms of each entry
+        private int[][] overallContexts = new int[8][];
+
+        TypeNeighbors(int number) {
+            this.number = number;
+        }
+
+        /**
+         * @return false if the document has already been added
+         */
+        boolean add(DocId docID, long lineContextSimhash, long overallContextSimhash, int[] overallContext) {
+            if (docIDs.find(docID) >= 0) {
+                return false;
+            }
+            int entry = index.add(lineContextSimhash, overallContextSimhash);
+            if (entry == overallContexts.length) {
+                overallContexts = Arrays.copyOf(overallContexts, overallContexts.length * 2);
+            }
+            docIDs.add(docID);
+            overallContexts[entry] = overallContext;
+            return true;
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, a new store is created if there is none.
+     *
+     * @throws IOException if the log cannot be read or opened for writing
+     */
+    SimhashNeighborStore(File dir) throws IOException {
+        FileUtils.forceMkdir(dir);
+        logFile = new File(dir, LOG_FILE_NAME);
+        if (logFile.exists()) {
+            load();
+        }
+        logFileOut = new FileOutputStream(logFile, true);
+        logOut = new DataOutputStream(new BufferedOutputStream(logFileOut, 1 << 16));
+    }
+
+    /**
+     * @return true if there is a store in the given directory
+     */
+    static boolean exists(File dir) {
+        return new File(dir, LOG_FILE_NAME).exists();
+    }
+
+    private void load() throws IOException {
+        long validLength = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(logFile), 1 << 16));
+             DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                int tag = in.read();
+                if (tag == TYPE_RECORD) {
+                    addType(readString(in));
+                } else if (tag == TERM_RECORD) {
+                    terms.addPersisted(readString(in));
+                } else if (tag == ENTRY_RECORD) {
+                    TypeNeighbors neighbors = typesByNumber.get(in.readInt());
+                    DocId docID = DocId.fromWords(new long[]{in.readLong(), in.readLong(), in.readLong(), in.readLong()}, 0);
+                    long lineContextSimhash = in.readLong();
+                    long overallContextSimhash = in.readLong();
+                    int[] overallContext = new int[readVarInt(in)];
+                    for (int i = 0; i < overallContext.length; i++) {
+                        overallContext[i] = terms.toGlobalId(readVarInt(in));
+                    }
+                    // a document which has been indexed again after training has been killed is skipped
+                    neighbors.add(docID, lineContextSimhash, overallContextSimhash, overallContext);
+                } else {
+                    // end of the log, or garbage after a partially written record
+                    break;
+                }
+                validLength = counter.count;
+            }
+        } catch (EOFException e) {
+            // last record has only been written partially
+        }
+        if (validLength < logFile.length()) {
+            try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+                file.setLength(validLength);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void writeString(byte tag, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        logOut.writeByte(tag);
+        logOut.writeShort(bytes.length);
+        logOut.write(bytes);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            logOut.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        logOut.writeByte(value);
+    }
+
+    private TypeNeighbors addType(String type) {
+        TypeNeighbors neighbors = new TypeNeighbors(typesByNumber.size());
+        typesByNumber.add(neighbors);
+        typeToNeighbors.put(type, neighbors);
+        return neighbors;
+    }
+
+    /**
+     * Adds a document to the neighbor index of its type. It is written to the log when the store is flushed.
+     */
+    void add(IndexDocument doc) throws IOException {
+        add(doc.getDocId(), doc.getType(), doc.getLineContextSimhash(), doc.getOverallContextSimhash(),
+                doc.getOverallContextIds());
+    }
+
+    /**
+     * Adds a document to the neighbor index of its type. It is written to the log when the store is flushed. A
+     * document which has already been added is skipped.
+     *
+     * @param overallContext {@link SymbolTable} IDs of the overall context terms, must not be modified afterwards
+     */
+    void add(DocId docID, String type, long lineContextSimhash, long overallContextSimhash, int[] overallContext)
+            throws IOException {
+        lock.writeLock().lock();
+        try {
+            TypeNeighbors neighbors = typeToNeighbors.get(type);
+            if (neighbors == null) {
+                neighbors = addType(type);
+                writeString(TYPE_RECORD, type);
+            }
+            if (!neighbors.add(docID, lineContextSimhash, overallContextSimhash, overallContext)) {
+                return;
+            }
+            int[] storeIds = new int[overallContext.length];
+            for (int i = 0; i < overallContext.length; i++) {
+                storeIds[i] = terms.toStoreId(overallContext[i]);
+            }
+            for (String term : terms.takeUnpersisted()) {
+                writeString(TERM_RECORD, term);
+            }
+            logOut.writeByte(ENTRY_RECORD);
+            logOut.writeInt(neighbors.number);
+            docID.writeTo(docIdWords, 0);
+            for (long word : docIdWords) {
+                logOut.writeLong(word);
+            }
+            logOut.writeLong(lineContextSimhash);
+            logOut.writeLong(overallContextSimhash);
+            writeVarInt(storeIds.length);
+            for (int storeId : storeIds) {
+                writeVarInt(storeId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of entries in the neighbor index of the given type
+     */
+    int size(String type) {
+        lock.readLock().lock();
+        try {
+            TypeNeighbors neighbors = typeToNeighbors.get(type);
+            return neighbors == null ? 0 : neighbors.index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the k documents closest to the query among those of its type which have at least one term of its overall
+     * context in their overall context, see {@link SimhashNeighborIndex#nearest}.
+     *
+     * @return docIDs of the k closest documents ordered by distance and then by docID, null if there are less than k
+     * such documents close to the query
+     */
+    List<DocId> nearest(IndexDocument query, int k, int switchToLineContextThreshold) {
+        lock.readLock().lock();
+        try {
+            TypeNeighbors neighbors = typeToNeighbors.get(query.getType());
+            if (neighbors == null) {
+                return null;
+            }
+            int[] queryTerms = query.getOverallContextIds().clone();
+            Arrays.sort(queryTerms);
+            long[] keys = neighbors.index.nearest(query.getLineContextSimhash(), query.getOverallContextSimhash(), k,
+                    switchToLineContextThreshold,
+                    entry -> SimhashNeighborIndex.containsAny(neighbors.overallContexts[entry], queryTerms));
+            if (keys == null) {
+                return null;
+            }
+            // the keys are ordered by distance, entries with the same distance as the k-th one are ordered by docID
+            int kthDistance = (int) (keys[k - 1] >>> 32);
+            int end = k;
+            while (end < keys.length && (int) (keys[end] >>> 32) == kthDistance) {
+                end++;
+            }
+            List<Long> sortedKeys = new ArrayList<>(end);
+            for (int i = 0; i < end; i++) {
+                sortedKeys.add(keys[i]);
+            }
+            sortedKeys.sort((key1, key2) -> {
+                int c = Integer.compare((int) (key1 >>> 32), (int) (key2 >>> 32));
+                return c != 0 ? c : neighbors.docIDs.compare((int) (long) key1, (int) (long) key2);
+            });
+            List<DocId> docIDs = new ArrayList<>(k);
+            for (int i = 0; i < k; i++) {
+                docIDs.add(neighbors.docIDs.docId((int) (long) sortedKeys.get(i)));
+            }
+            return docIDs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the entries which have been added since the last flush to disk.
+     */
+    void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            logOut.flush();
+            logFileOut.getChannel().force(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes and closes the store.
+     */
+    void close() throws IOException {
+        flush();
+        logOut.close();
+    }
+
+    /**
+     * Closes the store and deletes its log, so that it is built from scratch the next time it is opened.
+     */
+    void delete() throws IOException {
+        logOut.close();
+        FileUtils.forceDelete(logFile);
+    }
+
+    /**
+     * Counts the bytes read, so that the end of the last complete record is known.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.apache.commons.text.similarity.LevenshteinDistance;
+import org.apache.commons.text.similarity.LongestCommonSubsequence;
+
+/**
+ * The available {@link ISimilarityKernels}. All of them return the same similarities.
+ */
+public enum SimilarityKernels implements ISimilarityKernels {
+
+    /**
+     * Bit-parallel kernels of {@link IndexDocument}, which reuse the bit masks of the query for all candidates and
+     * stop the LCS computation once the threshold cannot be exceeded anymore.
+     */
+    BIT_PARALLEL {
+        @Override
+        public double overallContextSimilarity(IndexDocument candidate, IndexDocument query, double threshold) {
+            return candidate.normalizedLongestCommonSubsequenceLengthOverallContextToOther(query, threshold);
+        }
+
+        @Override
+        public double lineContextSimilarity(IndexDocument candidate, IndexDocument query) {
+            return candidate.normalizedLevenshteinDistanceLineContextToOther(query);
+        }
+    },
+
+    /**
+     * Dynamic programming implementations of commons-text, which fill the full table for every candidate. Only
+     * useful as a baseline.
+     */
+    COMMONS_TEXT {
+        @Override
+        public double overallContextSimilarity(IndexDocument candidate, IndexDocument query, double threshold) {
+            String left = candidate.getOverallContextConcatenated();
+            String right = query.getOverallContextConcatenated();
+            int maxLength = Math.max(left.length(), right.length());
+            double lcs = new LongestCommonSubsequence().apply(left, right);
+            return lcs / maxLength;
+        }
+
+        @Override
+        public double lineContextSimilarity(IndexDocument candidate, IndexDocument query) {
+            String left = candidate.getLineContextConcatenated();
+            String right = query.getLineContextConcatenated();
+            int maxLength = Math.max(left.length(), right.length());
+            double lev = LevenshteinDistance.getDefaultInstance().apply(left, right);
+            return 1 - (lev / maxLength);
+        }
+    }
+
+}
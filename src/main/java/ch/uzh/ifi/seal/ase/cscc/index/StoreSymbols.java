@@ -0,0 +1,99 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dictionary of a document store: translates between the IDs of the {@link SymbolTable} and the IDs under which the
+ * store persists the tokens. The store assigns its IDs densely in the order in which it sees the tokens for the first
+ * time and persists the dictionary next to the documents, so that the IDs remain valid across runs.
+ */
+class StoreSymbols {
+
+    // written under the lock, but read without it by toGlobalId: an ID is stored before size is increased
+    private volatile int[] storeToGlobal = new int[1024];
+    private int[] globalToStore = newIdArray(1024);
+    private volatile int size = 0;
+    // store IDs below this one have been persisted
+    private int persisted = 0;
+
+    private static int[] newIdArray(int length) {
+        int[] ids = new int[length];
+        Arrays.fill(ids, -1);
+        return ids;
+    }
+
+    /**
+     * @return the store ID of the token with the given {@link SymbolTable} ID, a new store ID is assigned if the store
+     * has not seen the token yet
+     */
+    synchronized int toStoreId(int globalId) {
+        if (globalId >= globalToStore.length) {
+            int oldLength = globalToStore.length;
+            globalToStore = Arrays.copyOf(globalToStore, Math.max(globalId + 1, 2 * oldLength));
+            Arrays.fill(globalToStore, oldLength, globalToStore.length, -1);
+        }
+        int storeId = globalToStore[globalId];
+        if (storeId < 0) {
+            storeId = add(globalId);
+        }
+        return storeId;
+    }
+
+    /**
+     * @return the {@link SymbolTable} ID of the token with the given store ID, -1 if the store ID is unknown
+     */
+    int toGlobalId(int storeId) {
+        return storeId < size ? storeToGlobal[storeId] : -1;
+    }
+
+    /**
+     * Adds a token which has been read from the persisted dictionary. Tokens must be added in the order of their
+     * store IDs. The token may already be known: a search connection reads the tokens which another connection of the
+     * same store has persisted. Only the store IDs up to the token are marked as persisted then, the store IDs which
+     * have been assigned after it still have to be written.
+     */
+    synchronized void addPersisted(String token) {
+        int storeId = toStoreId(SymbolTable.intern(token));
+        persisted = Math.max(persisted, storeId + 1);
+    }
+
+    /**
+     * @return number of tokens in the dictionary, which is also the store ID the next new token gets
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return store ID of the first token which has not been persisted yet
+     */
+    synchronized int firstUnpersistedId() {
+        return persisted;
+    }
+
+    /**
+     * @return the tokens which have not been persisted yet, in the order of their store IDs. They are considered
+     * persisted afterwards.
+     */
+    synchronized List<String> takeUnpersisted() {
+        List<String> tokens = new ArrayList<>(size - persisted);
+        for (int storeId = persisted; storeId < size; storeId++) {
+            tokens.add(SymbolTable.token(storeToGlobal[storeId]));
+        }
+        persisted = size;
+        return tokens;
+    }
+
+    private int add(int globalId) {
+        if (size == storeToGlobal.length) {
+            storeToGlobal = Arrays.copyOf(storeToGlobal, 2 * size);
+        }
+        storeToGlobal[size] = globalId;
+        globalToStore[globalId] = size;
+        // publishes the ID to toGlobalId
+        return size++;
+    }
+
+}
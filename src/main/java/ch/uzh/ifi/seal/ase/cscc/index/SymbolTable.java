@@ -0,0 +1,65 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table shared by all {@link IndexDocument} objects. It maps the tokens of the contexts, the types and the
+ * method names to dense int IDs, so that each distinct token is held in memory only once, no matter how many documents
+ * contain it.
+ * <p>
+ * The IDs depend on the order in which the tokens are seen and are thus only valid within the running JVM. Stores
+ * persist tokens under IDs of their own, see {@link StoreSymbols}. The table only grows, so query documents look
+ * their tokens up instead of adding them, see {@link IndexDocument#forQuery}.
+ */
+final class SymbolTable {
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // tokens by ID, only grows. A token is put in the array before its ID is published through the map, so a thread
+    // which got an ID from the map also sees the token.
+    private static volatile String[] tokens = new String[1024];
+    private static int size = 0;
+
+    private SymbolTable() {
+    }
+
+    /**
+     * @return the ID of the token, the token is added to the table if it is not in there yet
+     */
+    static int intern(String token) {
+        Integer id = ids.get(token);
+        if (id != null) {
+            return id;
+        }
+        synchronized (SymbolTable.class) {
+            id = ids.get(token);
+            if (id == null) {
+                if (size == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, size * 2);
+                }
+                tokens[size] = token;
+                id = size++;
+                ids.put(token, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Looks up the ID of a token without adding it, for documents which only live as long as a query.
+     *
+     * @return the ID of the token, or -1 if the token is not in the table
+     */
+    static int lookup(String token) {
+        Integer id = ids.get(token);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the token with the given ID
+     */
+    static String token(int id) {
+        return tokens[id];
+    }
+
+}
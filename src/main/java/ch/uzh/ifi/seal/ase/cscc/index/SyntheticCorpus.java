@@ -0,0 +1,177 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a seeded, endless stream of realistic {@link IndexDocument}s, so that benchmarks and scaling tests can run
+ * without the KaVE data set. The same seed and configuration always give the same stream.
+ * <p>
+ * Like in real code, popularity follows Zipf's law: the k-th most popular type is the receiver of a call with a
+ * probability proportional to 1 / k^s, and the same holds for the methods of a type and for the context tokens. A
+ * given share of the documents repeats a document the stream has returned before, like the many identical usages of
+ * popular methods in real training data.
+ * <p>
+ * Types are named {@code Synthetic.Type<rank>}, methods {@code method<rank>} and tokens {@code token<rank>}, with
+ * rank 0 being the most popular. {@link ch.uzh.ifi.seal.ase.cscc.utils.SyntheticArchiveWriter} writes the documents
+ * as KaVE contexts and completion events.
+ * <p>
+ * Configure the corpus before generating the first document.
+ */
+public class SyntheticCorpus {
+
+    public static final String TYPE_PREFIX = "Synthetic.Type";
+    public static final String METHOD_PREFIX = "method";
+    public static final String TOKEN_PREFIX = "token";
+
+    // number of returned documents which are kept to be repeated, older ones are replaced at random
+    private static final int REPEATABLE_DOCUMENTS = 100000;
+
+    private final Random random;
+    private int types = 1000;
+    private double typeZipfExponent = 1.0;
+    private int methodsPerType = 20;
+    private double methodZipfExponent = 1.0;
+    private int vocabularySize = 10000;
+    private double tokenZipfExponent = 1.0;
+    private int contextLength = 6;
+    private int lineContextLength = 1;
+    private double duplicateRatio = 0.0;
+
+    // built when the first document is generated
+    private ZipfDistribution typeDistribution;
+    private ZipfDistribution methodDistribution;
+    private ZipfDistribution tokenDistribution;
+    private final List<IndexDocument> returned = new ArrayList<>();
+
+    /**
+     * @param seed seed of the generated documents
+     */
+    public SyntheticCorpus(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @param types            number of distinct receiver types
+     * @param typeZipfExponent exponent s of the popularity of the types, 0 for uniform popularity
+     */
+    public void setTypes(int types, double typeZipfExponent) {
+        this.types = types;
+        this.typeZipfExponent = typeZipfExponent;
+    }
+
+    /**
+     * @param methodsPerType     number of distinct methods of each type
+     * @param methodZipfExponent exponent s of the popularity of the methods of a type, 0 for uniform popularity
+     */
+    public void setMethodsPerType(int methodsPerType, double methodZipfExponent) {
+        this.methodsPerType = methodsPerType;
+        this.methodZipfExponent = methodZipfExponent;
+    }
+
+    /**
+     * @param vocabularySize    number of distinct context tokens
+     * @param tokenZipfExponent exponent s of the popularity of the tokens, 0 for uniform popularity
+     */
+    public void setVocabulary(int vocabularySize, double tokenZipfExponent) {
+        this.vocabularySize = vocabularySize;
+        this.tokenZipfExponent = tokenZipfExponent;
+    }
+
+    /**
+     * @param contextLength     number of tokens drawn for the overall context (tokens drawn twice are only kept once)
+     * @param lineContextLength number of tokens drawn for the line context
+     */
+    public void setContextLength(int contextLength, int lineContextLength) {
+        this.contextLength = contextLength;
+        this.lineContextLength = lineContextLength;
+    }
+
+    /**
+     * @param duplicateRatio share of documents which repeat an earlier document, in [0, 1)
+     */
+    public void setDuplicateRatio(double duplicateRatio) {
+        this.duplicateRatio = duplicateRatio;
+    }
+
+    /**
+     * @return the next document of the stream
+     */
+    public IndexDocument nextDocument() {
+        prepare();
+        if (!returned.isEmpty() && random.nextDouble() < duplicateRatio) {
+            return returned.get(random.nextInt(returned.size()));
+        }
+        String type = TYPE_PREFIX + typeDistribution.next(random);
+        IndexDocument doc = new IndexDocument(METHOD_PREFIX + methodDistribution.next(random), type,
+                nextTokens(lineContextLength), nextTokens(contextLength));
+        if (returned.size() < REPEATABLE_DOCUMENTS) {
+            returned.add(doc);
+        } else {
+            returned.set(random.nextInt(REPEATABLE_DOCUMENTS), doc);
+        }
+        return doc;
+    }
+
+    /**
+     * @return the next documents of the stream
+     */
+    public List<IndexDocument> nextDocuments(int count) {
+        List<IndexDocument> docs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            docs.add(nextDocument());
+        }
+        return docs;
+    }
+
+    /**
+     * @return a query with the same distribution as the documents, i.e. a document without method call
+     */
+    public IndexDocument nextQuery() {
+        prepare();
+        String type = TYPE_PREFIX + typeDistribution.next(random);
+        return IndexDocument.forQuery(null, type, nextTokens(lineContextLength), nextTokens(contextLength));
+    }
+
+    private List<String> nextTokens(int count) {
+        List<String> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(TOKEN_PREFIX + tokenDistribution.next(random));
+        }
+        return tokens;
+    }
+
+    private void prepare() {
+        if (typeDistribution == null) {
+            typeDistribution = new ZipfDistribution(types, typeZipfExponent);
+            methodDistribution = new ZipfDistribution(methodsPerType, methodZipfExponent);
+            tokenDistribution = new ZipfDistribution(vocabularySize, tokenZipfExponent);
+        }
+    }
+
+    /**
+     * Zipf distribution over the ranks 0 to n - 1, sampled by binary search over the cumulative weights.
+     */
+    private static class ZipfDistribution {
+
+        private final double[] cumulativeWeights;
+
+        ZipfDistribution(int n, double exponent) {
+            cumulativeWeights = new double[n];
+            double sum = 0;
+            for (int rank = 0; rank < n; rank++) {
+                sum += 1 / Math.pow(rank + 1, exponent);
+                cumulativeWeights[rank] = sum;
+            }
+        }
+
+        int next(Random random) {
+            double x = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+            int i = Arrays.binarySearch(cumulativeWeights, x);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+
+}
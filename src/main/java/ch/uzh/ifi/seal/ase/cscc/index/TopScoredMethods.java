@@ -0,0 +1,115 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps the n best scored candidates with distinct method calls while the candidates are added one by one. Candidates
+ * are ordered like {@link ScoredCandidate}s (higher score1 first, higher score2 on ties) and candidates which tie in
+ * both scores are ordered by the order in which they have been added. So the result is the same as sorting all
+ * candidates with a stable sort, removing every candidate whose method call occurred before and taking the first n,
+ * but costs O(n) per candidate instead of sorting and without any quadratic removals.
+ */
+final class TopScoredMethods {
+
+    // entries ordered from best to worst, method calls are distinct
+    private final IndexDocument[] documents;
+    private final String[] methodCalls;
+    private final double[] scores1;
+    private final double[] scores2;
+    private int size = 0;
+
+    TopScoredMethods(int n) {
+        documents = new IndexDocument[n];
+        methodCalls = new String[n];
+        scores1 = new double[n];
+        scores2 = new double[n];
+    }
+
+    void add(IndexDocument candidate, double score1, double score2) {
+        String methodCall = candidate.getMethodCall();
+        int sameMethod = indexOf(methodCall);
+        if (sameMethod >= 0) {
+            // the method is only represented by its best candidate
+            if (!isBetter(score1, score2, sameMethod)) {
+                return;
+            }
+            remove(sameMethod);
+        } else if (size == documents.length) {
+            if (size == 0 || !isBetter(score1, score2, size - 1)) {
+                return;
+            }
+            remove(size - 1);
+        }
+        int position = size;
+        while (position > 0 && isBetter(score1, score2, position - 1)) {
+            position--;
+        }
+        System.arraycopy(documents, position, documents, position + 1, size - position);
+        System.arraycopy(methodCalls, position, methodCalls, position + 1, size - position);
+        System.arraycopy(scores1, position, scores1, position + 1, size - position);
+        System.arraycopy(scores2, position, scores2, position + 1, size - position);
+        documents[position] = candidate;
+        methodCalls[position] = methodCall;
+        scores1[position] = score1;
+        scores2[position] = score2;
+        size++;
+    }
+
+    /**
+     * @return true if n candidates with distinct method calls have been kept
+     */
+    boolean isFull() {
+        return size == documents.length;
+    }
+
+    /**
+     * @return score1 of the worst candidate kept, negative infinity if none has been kept
+     */
+    double worstScore1() {
+        return size == 0 ? Double.NEGATIVE_INFINITY : scores1[size - 1];
+    }
+
+    /**
+     * @return the candidates kept, best first
+     */
+    List<ScoredCandidate> toList() {
+        List<ScoredCandidate> candidates = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            candidates.add(new ScoredCandidate(documents[i], scores1[i], scores2[i]));
+        }
+        return candidates;
+    }
+
+    /**
+     * @return true if a candidate with the given scores sorts strictly before the entry at the given position
+     */
+    private boolean isBetter(double score1, double score2, int position) {
+        if (score1 > scores1[position]) {
+            return true;
+        } else if (score1 < scores1[position]) {
+            return false;
+        }
+        return score2 > scores2[position];
+    }
+
+    private int indexOf(String methodCall) {
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(methodCalls[i], methodCall)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void remove(int position) {
+        size--;
+        System.arraycopy(documents, position + 1, documents, position, size - position);
+        System.arraycopy(methodCalls, position + 1, methodCalls, position, size - position);
+        System.arraycopy(scores1, position + 1, scores1, position, size - position);
+        System.arraycopy(scores2, position + 1, scores2, position, size - position);
+        documents[size] = null;
+    }
+
+}
@@ -13,6 +13,10 @@ public class CSCCConfiguration {
     public static final String PERSISTENCE_LOCATION = "Data/Model";
     public static final String PERSISTENCE_LOCATION_TEST = "/tmp";
 
+    // Location where the IndexDocuments extracted from the contexts are cached, so that training and cross-validation
+    // do not have to deserialize the contexts of a zip again, null to always extract the documents
+    public static final String DOCUMENT_CACHE_DIR = "Data/DocumentCache";
+
     // Number of statements to consider for overall context
     public static final int LAST_N_CONSIDERED_STATEMENTS = 6;
 
@@ -23,6 +27,23 @@ public class CSCCConfiguration {
     // Limit the amount of training data, 0 (or smaller) for all data
     public static final int LIMIT_ZIPS = 20;
 
+    // When training a model on disk, commit the index every N documents or every M milliseconds and checkpoint the
+    // training progress after every commit
+    public static final int TRAINING_COMMIT_INTERVAL_DOCS = 10000;
+    public static final long TRAINING_COMMIT_INTERVAL_MILLIS = 10000;
+    // When training a model on disk, size the Bloom filter over the already indexed documents for this many documents
+    // and this false positive probability
+    public static final long TRAINING_EXPECTED_DOCUMENTS = 20000000;
+    public static final double TRAINING_DUPLICATE_FILTER_FALSE_POSITIVE_PROBABILITY = 0.01;
+    // When training a model, read zips with this many threads and extract IndexDocuments from their contexts with
+    // this many threads, the stages are connected by queues of this capacity. The documents are indexed by one thread.
+    public static final int TRAINING_READER_THREADS = 2;
+    public static final int TRAINING_EXTRACTION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+    public static final int TRAINING_QUEUE_CAPACITY = 1000;
+    // When training a model, have at most this many zips in flight (read, extracted or waiting to be indexed), which
+    // bounds the contexts that have been extracted but cannot be indexed yet
+    public static final int TRAINING_MAX_ZIPS_IN_FLIGHT = 2 * TRAINING_READER_THREADS;
+
 
     /*
       DO NOT CONFIGURE ANYTHING BELOW THIS POINT
@@ -0,0 +1,78 @@
+package ch.uzh.ifi.seal.ase.cscc.utils;
+
+import cc.kave.commons.utils.io.json.JsonSerialization;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the entries of a KaVE archive one by one like {@link cc.kave.commons.utils.io.ReadingArchive}, but starts at
+ * any given entry without reading (let alone deserializing) the entries before it. This lets training resume in the
+ * middle of a zip.
+ */
+public class SeekableReadingArchive implements Closeable {
+
+    private final ZipFile zipFile;
+    private final List<ZipEntry> entries = new ArrayList<>();
+    private int nextEntry;
+
+    /**
+     * @param file       zip to read
+     * @param firstEntry offset of the first entry to read, all entries are skipped if it is past the last entry
+     * @throws IOException if the zip cannot be opened
+     */
+    public SeekableReadingArchive(File file, int firstEntry) throws IOException {
+        zipFile = new ZipFile(file);
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry entry = zipEntries.nextElement();
+            if (!entry.isDirectory()) {
+                entries.add(entry);
+            }
+        }
+        nextEntry = Math.min(Math.max(firstEntry, 0), entries.size());
+    }
+
+    public int getNumberOfEntries() {
+        return entries.size();
+    }
+
+    /**
+     * @return offset of the entry which the next call to {@link SeekableReadingArchive#getNext(Class)} returns
+     */
+    public int getNextEntry() {
+        return nextEntry;
+    }
+
+    public boolean hasNext() {
+        return nextEntry < entries.size();
+    }
+
+    /**
+     * Deserializes the next entry.
+     *
+     * @param type type of the entry, e.g. {@link cc.kave.commons.model.events.completionevents.Context}
+     * @return the deserialized entry
+     * @throws IOException if the entry cannot be read
+     */
+    public <T> T getNext(Class<T> type) throws IOException {
+        try (InputStream in = zipFile.getInputStream(entries.get(nextEntry++))) {
+            return JsonSerialization.fromJson(IOUtils.toString(in, StandardCharsets.UTF_8), type);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+
+}
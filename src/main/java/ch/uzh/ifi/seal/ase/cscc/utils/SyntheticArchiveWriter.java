@@ -0,0 +1,213 @@
+package ch.uzh.ifi.seal.ase.cscc.utils;
+
+import cc.kave.commons.model.events.completionevents.CompletionEvent;
+import cc.kave.commons.model.events.completionevents.Context;
+import cc.kave.commons.model.events.completionevents.Proposal;
+import cc.kave.commons.model.events.completionevents.ProposalSelection;
+import cc.kave.commons.model.events.completionevents.TerminationState;
+import cc.kave.commons.model.naming.Names;
+import cc.kave.commons.model.naming.codeelements.IMethodName;
+import cc.kave.commons.model.ssts.impl.SST;
+import cc.kave.commons.model.ssts.impl.declarations.MethodDeclaration;
+import cc.kave.commons.model.ssts.impl.expressions.assignable.InvocationExpression;
+import cc.kave.commons.model.ssts.impl.references.VariableReference;
+import cc.kave.commons.model.ssts.impl.statements.ExpressionStatement;
+import cc.kave.commons.model.ssts.impl.statements.VariableDeclaration;
+import cc.kave.commons.utils.io.WritingArchive;
+import ch.uzh.ifi.seal.ase.cscc.index.IndexDocument;
+import ch.uzh.ifi.seal.ase.cscc.index.SyntheticCorpus;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the documents of a {@link SyntheticCorpus} as KaVE archives, i.e. zips of {@link Context}s like the Contexts
+ * data set or zips of {@link CompletionEvent}s like the Events data set. Point
+ * {@link ch.uzh.ifi.seal.ase.cscc.RecommenderHelper} to the written directories to train and evaluate models without
+ * the KaVE data sets.
+ * <p>
+ * Every document becomes a method whose body declares one variable per overall context token (as its type) and then
+ * calls the document's method on a receiver of the document's type. {@link ch.uzh.ifi.seal.ase.cscc.visitors.IndexDocumentExtractionVisitor}
+ * thus extracts the document's type, method call and overall context again, as long as the overall context is not
+ * longer than {@link CSCCConfiguration#LAST_N_CONSIDERED_STATEMENTS}. The line context of the extracted documents is
+ * empty, like that of every invocation statement without nested expressions.
+ * <p>
+ * Usage: {@code SyntheticArchiveWriter contexts|events <outputDir> <documents> [option=value ...]} with the options
+ * seed, documentsPerZip, documentsPerContext, types, typeZipf, methods, methodZipf, vocabulary, tokenZipf,
+ * contextLength and duplicateRatio.
+ */
+public class SyntheticArchiveWriter {
+
+    private static final String ASSEMBLY = ", SyntheticAssembly";
+    private static final String RETURN_TYPE = "[System.Void, mscorlib, 4.0.0.0] ";
+
+    private final SyntheticCorpus corpus;
+    private final int documentsPerContext;
+    private int methodsWritten = 0;
+
+    /**
+     * @param corpus              configured corpus whose documents are written
+     * @param documentsPerContext number of documents (i.e. methods) per context, only used for the Contexts archives
+     */
+    public SyntheticArchiveWriter(SyntheticCorpus corpus, int documentsPerContext) {
+        this.corpus = corpus;
+        this.documentsPerContext = documentsPerContext;
+    }
+
+    /**
+     * Writes the next documents of the corpus as contexts.
+     *
+     * @param outputDir       directory for the zips
+     * @param documents       number of documents to write
+     * @param documentsPerZip number of documents per zip
+     * @return paths of the written zips
+     */
+    public List<String> writeContexts(String outputDir, long documents, int documentsPerZip) {
+        List<String> zips = new ArrayList<>();
+        long written = 0;
+        while (written < documents) {
+            String zip = zipPath(outputDir, "contexts", zips.size());
+            zips.add(zip);
+            long documentsInZip = Math.min(documentsPerZip, documents - written);
+            try {
+                WritingArchive archive = new WritingArchive(Paths.get(zip));
+                for (long i = 0; i < documentsInZip; i += documentsPerContext) {
+                    SST sst = newSST();
+                    for (long j = i; j < Math.min(i + documentsPerContext, documentsInZip); j++) {
+                        sst.getMethods().add(toMethodDeclaration(corpus.nextDocument()));
+                    }
+                    Context ctx = new Context();
+                    ctx.setSST(sst);
+                    archive.add(ctx);
+                }
+                archive.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1); // exit on exception
+            }
+            written += documentsInZip;
+        }
+        return zips;
+    }
+
+    /**
+     * Writes the next documents of the corpus as completion events, in which the document's method has been
+     * selected and applied.
+     *
+     * @param outputDir       directory for the zips
+     * @param documents       number of documents (i.e. events) to write
+     * @param documentsPerZip number of documents per zip
+     * @return paths of the written zips
+     */
+    public List<String> writeCompletionEvents(String outputDir, long documents, int documentsPerZip) {
+        List<String> zips = new ArrayList<>();
+        long written = 0;
+        while (written < documents) {
+            String zip = zipPath(outputDir, "events", zips.size());
+            zips.add(zip);
+            long documentsInZip = Math.min(documentsPerZip, documents - written);
+            try {
+                WritingArchive archive = new WritingArchive(Paths.get(zip));
+                for (long i = 0; i < documentsInZip; i++) {
+                    IndexDocument doc = corpus.nextDocument();
+                    SST sst = newSST();
+                    sst.getMethods().add(toMethodDeclaration(doc));
+                    CompletionEvent event = new CompletionEvent();
+                    event.context = new Context();
+                    event.context.setSST(sst);
+                    Proposal proposal = new Proposal();
+                    proposal.Name = methodName(doc);
+                    event.selections.add(new ProposalSelection(proposal));
+                    event.terminatedState = TerminationState.Applied;
+                    archive.add(event);
+                }
+                archive.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1); // exit on exception
+            }
+            written += documentsInZip;
+        }
+        return zips;
+    }
+
+    private static String zipPath(String outputDir, String kind, int n) {
+        File dir = new File(outputDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Could not create directory " + dir);
+        }
+        return String.format("%s/synthetic-%s-%06d.zip", outputDir, kind, n);
+    }
+
+    private static SST newSST() {
+        SST sst = new SST();
+        sst.setEnclosingType(Names.newType("Synthetic.Generated" + ASSEMBLY));
+        return sst;
+    }
+
+    private MethodDeclaration toMethodDeclaration(IndexDocument doc) {
+        MethodDeclaration method = new MethodDeclaration();
+        method.setName(Names.newMethod(RETURN_TYPE + "[Synthetic.Generated" + ASSEMBLY + "].m" + methodsWritten++ + "()"));
+        method.setEntryPoint(true);
+        // the types of the declared variables make up the overall context
+        int n = 0;
+        for (String token : doc.getOverallContext()) {
+            VariableDeclaration declaration = new VariableDeclaration();
+            declaration.setReference(variable("v" + n++));
+            declaration.setType(Names.newType("Synthetic." + token + ASSEMBLY));
+            method.getBody().add(declaration);
+        }
+        InvocationExpression invocation = new InvocationExpression();
+        invocation.setReference(variable("receiver"));
+        invocation.setMethodName(methodName(doc));
+        ExpressionStatement statement = new ExpressionStatement();
+        statement.setExpression(invocation);
+        method.getBody().add(statement);
+        return method;
+    }
+
+    private static IMethodName methodName(IndexDocument doc) {
+        return Names.newMethod(RETURN_TYPE + "[" + doc.getType() + ASSEMBLY + "]." + doc.getMethodCall() + "()");
+    }
+
+    private static VariableReference variable(String identifier) {
+        VariableReference reference = new VariableReference();
+        reference.setIdentifier(identifier);
+        return reference;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || !(args[0].equals("contexts") || args[0].equals("events"))) {
+            System.out.println("Usage: SyntheticArchiveWriter contexts|events <outputDir> <documents> [option=value ...]");
+            System.exit(1);
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 3; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            options.put(option[0], option[1]);
+        }
+        SyntheticCorpus corpus = new SyntheticCorpus(Long.parseLong(options.getOrDefault("seed", "42")));
+        corpus.setTypes(Integer.parseInt(options.getOrDefault("types", "1000")),
+                Double.parseDouble(options.getOrDefault("typeZipf", "1.0")));
+        corpus.setMethodsPerType(Integer.parseInt(options.getOrDefault("methods", "20")),
+                Double.parseDouble(options.getOrDefault("methodZipf", "1.0")));
+        corpus.setVocabulary(Integer.parseInt(options.getOrDefault("vocabulary", "10000")),
+                Double.parseDouble(options.getOrDefault("tokenZipf", "1.0")));
+        corpus.setContextLength(Integer.parseInt(options.getOrDefault("contextLength", "6")), 0);
+        corpus.setDuplicateRatio(Double.parseDouble(options.getOrDefault("duplicateRatio", "0.3")));
+        SyntheticArchiveWriter writer = new SyntheticArchiveWriter(corpus,
+                Integer.parseInt(options.getOrDefault("documentsPerContext", "5")));
+
+        long documents = Long.parseLong(args[2]);
+        int documentsPerZip = Integer.parseInt(options.getOrDefault("documentsPerZip", "10000"));
+        List<String> zips = args[0].equals("contexts")
+                ? writer.writeContexts(args[1], documents, documentsPerZip)
+                : writer.writeCompletionEvents(args[1], documents, documentsPerZip);
+        System.out.printf("wrote %d documents to %d zips in %s\n", documents, zips.size(), args[1]);
+    }
+
+}
@@ -18,7 +18,30 @@ import java.util.*;
  */
 public class IndexDocumentExtractionVisitor extends AbstractTraversingNodeVisitor<List<IndexDocument>, Void> {
 
+    /**
+     * Version of the extraction, increase it whenever the extracted documents change, so that documents which have
+     * been extracted before (see {@link ch.uzh.ifi.seal.ase.cscc.index.ExtractedDocumentCache}) are extracted again.
+     */
+    public static final int VERSION = 1;
+
     private final ContextVisitor CONTEXT_VISITOR = new ContextVisitor();
+    // true: the documents are only used to query an index, see IndexDocument#forQuery
+    private final boolean queryDocuments;
+
+    /**
+     * Creates a visitor extracting documents to be indexed.
+     */
+    public IndexDocumentExtractionVisitor() {
+        this(false);
+    }
+
+    /**
+     * @param queryDocuments true: the extracted documents are only used to query an index and do not add their tokens
+     *                       to the symbol table, see {@link IndexDocument#forQuery}
+     */
+    public IndexDocumentExtractionVisitor(boolean queryDocuments) {
+        this.queryDocuments = queryDocuments;
+    }
 
     @Override
     protected List<Void> visit(List<IStatement> body, List<IndexDocument> indexDocuments) {
@@ -59,7 +82,9 @@ public class IndexDocumentExtractionVisitor extends AbstractTraversingNodeVisito
                             lineContext.addAll(lineContextSet);
                             List<String> overallContext = new LinkedList<>();
                             overallContext.addAll(overallContextSet);
-                            IndexDocument indexDocument = new IndexDocument(methodNameStr, type, lineContext, overallContext);
+                            IndexDocument indexDocument = queryDocuments
+                                    ? IndexDocument.forQuery(methodNameStr, type, lineContext, overallContext)
+                                    : new IndexDocument(methodNameStr, type, lineContext, overallContext);
                             indexDocuments.add(indexDocument);
                         }
                     }
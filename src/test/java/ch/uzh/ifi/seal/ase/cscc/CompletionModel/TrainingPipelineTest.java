@@ -0,0 +1,157 @@
+package ch.uzh.ifi.seal.ase.cscc.CompletionModel;
+
+import ch.uzh.ifi.seal.ase.cscc.index.IndexDocument;
+import ch.uzh.ifi.seal.ase.cscc.index.SyntheticCorpus;
+import ch.uzh.ifi.seal.ase.cscc.utils.CSCCConfiguration;
+import ch.uzh.ifi.seal.ase.cscc.utils.SyntheticArchiveWriter;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrainingPipelineTest {
+
+    private static final String ZIP_DIR = CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/CSCCTrainingPipeline";
+    private static final int ZIPS = 6;
+    private static final int CONTEXTS_PER_ZIP = 40;
+
+    /**
+     * Model which records the documents it is trained on and the number of documents at every commit.
+     */
+    private static class RecordingModel extends CompletionModel {
+
+        final List<String> trainedIds = new ArrayList<>();
+        final List<Integer> committedDocuments = new ArrayList<>();
+
+        RecordingModel() {
+            super(null);
+        }
+
+        @Override
+        public void train(IndexDocument document) {
+            trainedIds.add(document.getId());
+        }
+
+        @Override
+        public void commitTraining() {
+            committedDocuments.add(trainedIds.size());
+        }
+    }
+
+    private static SyntheticCorpus newCorpus() {
+        SyntheticCorpus corpus = new SyntheticCorpus(5);
+        corpus.setTypes(20, 1.0);
+        corpus.setContextLength(CSCCConfiguration.LAST_N_CONSIDERED_STATEMENTS, 0);
+        corpus.setDuplicateRatio(0.2);
+        return corpus;
+    }
+
+    /**
+     * Writes the zips with one document per context, so that the documents of the corpus are extracted in order.
+     */
+    private static List<String> writeZips() {
+        return new SyntheticArchiveWriter(newCorpus(), 1).writeContexts(ZIP_DIR, ZIPS * CONTEXTS_PER_ZIP, CONTEXTS_PER_ZIP);
+    }
+
+    private static List<String> corpusIds() {
+        List<String> ids = new ArrayList<>();
+        for (IndexDocument doc : newCorpus().nextDocuments(ZIPS * CONTEXTS_PER_ZIP)) {
+            ids.add(doc.getId());
+        }
+        return ids;
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(new File(ZIP_DIR));
+    }
+
+    @Test(timeout = 60000)
+    public void train_IndexesInOrderWithSeveralReadersAndExtractors() {
+        List<String> zips = writeZips();
+        // a single zip in flight must not stall the readers either
+        for (int maxZipsInFlight : new int[]{1, 2, ZIPS}) {
+            RecordingModel model = new RecordingModel();
+            new TrainingPipeline(model, 3, 4, 5, maxZipsInFlight, 1000, Long.MAX_VALUE).train(zips, null, null);
+            assertEquals(corpusIds(), model.trainedIds);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void train_CommitsAndCheckpointsAtInterval() {
+        List<String> zips = writeZips();
+        RecordingModel model = new RecordingModel();
+        List<TrainingCheckpoint> checkpoints = new ArrayList<>();
+        new TrainingPipeline(model, 2, 3, 5, 2, 25, Long.MAX_VALUE).train(zips, null, checkpoints::add);
+
+        // every checkpoint follows a commit and points exactly to what has been committed
+        assertEquals(model.committedDocuments.size(), checkpoints.size());
+        for (int i = 0; i < checkpoints.size(); i++) {
+            TrainingCheckpoint checkpoint = checkpoints.get(i);
+            long committed = model.committedDocuments.get(i);
+            assertEquals(committed, checkpoint.getDocuments());
+            assertEquals(committed, zips.indexOf(checkpoint.getZip()) * CONTEXTS_PER_ZIP + checkpoint.getEntries());
+            // only the last commit, after all zips have been indexed, may come early
+            if (i > 0 && i < checkpoints.size() - 1) {
+                assertTrue(committed - model.committedDocuments.get(i - 1) >= 25);
+            }
+        }
+        TrainingCheckpoint last = checkpoints.get(checkpoints.size() - 1);
+        assertEquals(zips.get(ZIPS - 1), last.getZip());
+        assertEquals(CONTEXTS_PER_ZIP, last.getEntries());
+        assertEquals(ZIPS * CONTEXTS_PER_ZIP, last.getDocuments());
+    }
+
+    @Test(timeout = 60000)
+    public void train_StopDrainsPipelineAndCheckpointsIndexedContexts() {
+        List<String> zips = writeZips();
+        List<TrainingCheckpoint> checkpoints = new ArrayList<>();
+        TrainingPipeline[] pipeline = new TrainingPipeline[1];
+        RecordingModel model = new RecordingModel() {
+            @Override
+            public void train(IndexDocument document) {
+                super.train(document);
+                if (trainedIds.size() == 100) {
+                    pipeline[0].stop();
+                }
+            }
+        };
+        pipeline[0] = new TrainingPipeline(model, 2, 3, 5, 3, 1000, Long.MAX_VALUE);
+        // returns only once all stages have been drained
+        pipeline[0].train(zips, null, checkpoints::add);
+
+        List<String> expected = corpusIds();
+        assertTrue(model.trainedIds.size() < expected.size());
+        assertEquals(expected.subList(0, model.trainedIds.size()), model.trainedIds);
+        TrainingCheckpoint checkpoint = checkpoints.get(checkpoints.size() - 1);
+        assertEquals(model.trainedIds.size(), checkpoint.getDocuments());
+
+        // resuming from the checkpoint indexes the remaining contexts
+        RecordingModel resumed = new RecordingModel();
+        List<String> remainingZips = zips.subList(zips.indexOf(checkpoint.getZip()), zips.size());
+        new TrainingPipeline(resumed, 2, 3, 5, 3, 1000, Long.MAX_VALUE).train(remainingZips, checkpoint, null);
+        List<String> trainedIds = new ArrayList<>(model.trainedIds);
+        trainedIds.addAll(resumed.trainedIds);
+        assertEquals(expected, trainedIds);
+    }
+
+    @Test(expected = UncheckedIOException.class, timeout = 60000)
+    public void train_RethrowsExceptionOfReader() throws IOException {
+        List<String> zips = new ArrayList<>(writeZips());
+        File corruptZip = new File(ZIP_DIR, "corrupt.zip");
+        FileUtils.writeStringToFile(corruptZip, "not a zip", "UTF-8");
+        zips.add(2, corruptZip.getPath());
+        RecordingModel model = new RecordingModel();
+        // the other zips keep the readers and extractors busy, the pipeline must still stop and return
+        new TrainingPipeline(model, 2, 3, 5, 2, 1000, Long.MAX_VALUE).train(zips, null, null);
+    }
+
+}
@@ -0,0 +1,201 @@
+package ch.uzh.ifi.seal.ase.cscc;
+
+import ch.uzh.ifi.seal.ase.cscc.CompletionModel.CompletionModel;
+import ch.uzh.ifi.seal.ase.cscc.CompletionModel.TrainingCheckpoint;
+import ch.uzh.ifi.seal.ase.cscc.CompletionModel.TrainingPipeline;
+import ch.uzh.ifi.seal.ase.cscc.index.DiskBasedInvertedIndex;
+import ch.uzh.ifi.seal.ase.cscc.index.ExtractedDocumentCache;
+import ch.uzh.ifi.seal.ase.cscc.index.IndexDocument;
+import ch.uzh.ifi.seal.ase.cscc.index.SyntheticCorpus;
+import ch.uzh.ifi.seal.ase.cscc.utils.CSCCConfiguration;
+import ch.uzh.ifi.seal.ase.cscc.utils.IoHelper;
+import ch.uzh.ifi.seal.ase.cscc.utils.SyntheticArchiveWriter;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecommenderHelperTest {
+
+    private static final String TEST_DIR = CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/CSCCRecommenderHelper";
+    private static final String CONTEXTS_DIR = TEST_DIR + "/contexts";
+    private static final String UNINTERRUPTED_MODEL_DIR = TEST_DIR + "/uninterrupted";
+    private static final String INTERRUPTED_MODEL_DIR = TEST_DIR + "/interrupted";
+    private static final int ZIPS = 4;
+    private static final int CONTEXTS_PER_ZIP = 40;
+
+    private List<String> zips;
+    // zips in the order in which they have been written, zip i holds the contexts of the documents i * CONTEXTS_PER_ZIP
+    // to (i + 1) * CONTEXTS_PER_ZIP - 1 of the corpus
+    private List<String> writtenZips;
+
+    /**
+     * Trains like {@link RecommenderHelper#trainModel(String)}, but interrupts training after the given number of
+     * documents.
+     */
+    private static class InterruptingRecommenderHelper extends RecommenderHelper {
+
+        private final int interruptAfter;
+
+        InterruptingRecommenderHelper(int interruptAfter) {
+            super(CONTEXTS_DIR, null, null);
+            this.interruptAfter = interruptAfter;
+        }
+
+        @Override
+        TrainingPipeline newTrainingPipeline(CompletionModel completionModel) {
+            return new TrainingPipeline(completionModel, 2, 2, 5, 2, 25, Long.MAX_VALUE) {
+                private int indexed = 0;
+
+                @Override
+                protected void index(int zip, IndexDocument document) {
+                    super.index(zip, document);
+                    if (++indexed == interruptAfter) {
+                        stop();
+                    }
+                }
+            };
+        }
+    }
+
+    private static SyntheticCorpus newCorpus() {
+        SyntheticCorpus corpus = new SyntheticCorpus(3);
+        corpus.setTypes(20, 1.0);
+        corpus.setContextLength(CSCCConfiguration.LAST_N_CONSIDERED_STATEMENTS, 0);
+        corpus.setDuplicateRatio(0.2);
+        return corpus;
+    }
+
+    private static void train(String modelDir) {
+        new RecommenderHelper(CONTEXTS_DIR, null, null).trainModelWithoutShutdownHook(modelDir);
+    }
+
+    private static TrainingCheckpoint readCheckpoint(String modelDir) {
+        return TrainingCheckpoint.read(new File(modelDir + "/CSCCInvertedIndex/checkpoint.properties"));
+    }
+
+    /**
+     * @return number of distinct documents in the given zips
+     */
+    private int distinctDocuments(List<String> zipsToCount) {
+        List<IndexDocument> corpus = newCorpus().nextDocuments(ZIPS * CONTEXTS_PER_ZIP);
+        Set<IndexDocument> docs = new HashSet<>();
+        for (String zip : zipsToCount) {
+            int first = writtenZips.indexOf(zip) * CONTEXTS_PER_ZIP;
+            docs.addAll(corpus.subList(first, first + CONTEXTS_PER_ZIP));
+        }
+        return docs.size();
+    }
+
+    private static Set<String> ids(Set<IndexDocument> docs) {
+        Set<String> ids = new HashSet<>();
+        for (IndexDocument doc : docs) {
+            ids.add(doc.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Asserts that every document of the corpus has been indexed and finds the same documents in both models.
+     */
+    private static void assertSameIndex(String expectedModelDir, String actualModelDir) {
+        DiskBasedInvertedIndex expected = new DiskBasedInvertedIndex(expectedModelDir);
+        DiskBasedInvertedIndex actual = new DiskBasedInvertedIndex(actualModelDir);
+        expected.startSearching();
+        actual.startSearching();
+        for (IndexDocument doc : newCorpus().nextDocuments(ZIPS * CONTEXTS_PER_ZIP)) {
+            Set<String> expectedIds = ids(expected.search(doc));
+            assertTrue(expectedIds.contains(doc.getId()));
+            assertEquals(expectedIds, ids(actual.search(doc)));
+        }
+        expected.finishSearching();
+        actual.finishSearching();
+        expected.close();
+        actual.close();
+    }
+
+    @Before
+    public void setUp() {
+        // one document per context, so that the number of documents tells how many contexts have been indexed
+        writtenZips = new SyntheticArchiveWriter(newCorpus(), 1).writeContexts(CONTEXTS_DIR, ZIPS * CONTEXTS_PER_ZIP, CONTEXTS_PER_ZIP);
+        zips = IoHelper.findAllZips(CONTEXTS_DIR);
+        train(UNINTERRUPTED_MODEL_DIR);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(new File(TEST_DIR));
+    }
+
+    @Test
+    public void performTenFoldCrossValidation_UnwritableDocumentCache() throws IOException {
+        String contextsDir = TEST_DIR + "/crossValidation";
+        new SyntheticArchiveWriter(newCorpus(), 1).writeContexts(contextsDir, CSCCConfiguration.LIMIT_ZIPS * 3, 3);
+        // the cache directory cannot be created, a file of the same name is in the way
+        File cacheDir = new File(TEST_DIR, "DocumentCache");
+        FileUtils.writeStringToFile(cacheDir, "not a directory", "UTF-8");
+        // the zips are extracted without being cached, instead of exiting
+        new RecommenderHelper(contextsDir, null, new ExtractedDocumentCache(cacheDir.getPath())).performTenFoldCrossValidation();
+        assertTrue(cacheDir.isFile());
+    }
+
+    @Test
+    public void trainModel_ResumesInterruptedTrainingFromCheckpoint() {
+        // interrupted in the middle of the second zip
+        new InterruptingRecommenderHelper(CONTEXTS_PER_ZIP + 5).trainModelWithoutShutdownHook(INTERRUPTED_MODEL_DIR);
+        TrainingCheckpoint checkpoint = readCheckpoint(INTERRUPTED_MODEL_DIR);
+        assertEquals(zips.get(1), checkpoint.getZip());
+        assertEquals(5, checkpoint.getEntries());
+        assertEquals(CONTEXTS_PER_ZIP + 5, checkpoint.getDocuments());
+
+        train(INTERRUPTED_MODEL_DIR);
+        checkpoint = readCheckpoint(INTERRUPTED_MODEL_DIR);
+        assertEquals(zips.get(ZIPS - 1), checkpoint.getZip());
+        assertEquals(CONTEXTS_PER_ZIP, checkpoint.getEntries());
+        assertEquals(ZIPS * CONTEXTS_PER_ZIP, checkpoint.getDocuments());
+        assertSameIndex(UNINTERRUPTED_MODEL_DIR, INTERRUPTED_MODEL_DIR);
+    }
+
+    @Test
+    public void trainModel_ResumesFromLegacyProgressFile() throws IOException {
+        // a model which has been trained on the first two zips before checkpoints were introduced
+        new InterruptingRecommenderHelper(2 * CONTEXTS_PER_ZIP).trainModelWithoutShutdownHook(INTERRUPTED_MODEL_DIR);
+        File indexDir = new File(INTERRUPTED_MODEL_DIR + "/CSCCInvertedIndex");
+        FileUtils.forceDelete(new File(indexDir, "checkpoint.properties"));
+        FileUtils.writeStringToFile(new File(indexDir, "progress.txt"), zips.get(1), "UTF-8");
+
+        // resumes with the first context of the third zip, the documents of the first two zips are counted in the index
+        train(INTERRUPTED_MODEL_DIR);
+        TrainingCheckpoint checkpoint = readCheckpoint(INTERRUPTED_MODEL_DIR);
+        assertEquals(zips.get(ZIPS - 1), checkpoint.getZip());
+        assertEquals(CONTEXTS_PER_ZIP, checkpoint.getEntries());
+        assertEquals(distinctDocuments(zips.subList(0, 2)) + (ZIPS - 2) * CONTEXTS_PER_ZIP, checkpoint.getDocuments());
+        assertSameIndex(UNINTERRUPTED_MODEL_DIR, INTERRUPTED_MODEL_DIR);
+    }
+
+    @Test
+    public void trainModel_LegacyProgressFileOfCompletedTraining() throws IOException {
+        File indexDir = new File(UNINTERRUPTED_MODEL_DIR + "/CSCCInvertedIndex");
+        FileUtils.forceDelete(new File(indexDir, "checkpoint.properties"));
+        FileUtils.writeStringToFile(new File(indexDir, "progress.txt"), zips.get(ZIPS - 1), "UTF-8");
+        FileUtils.copyDirectory(new File(UNINTERRUPTED_MODEL_DIR), new File(INTERRUPTED_MODEL_DIR));
+
+        // resumes after the last context of the last zip, i.e. nothing is indexed again
+        train(INTERRUPTED_MODEL_DIR);
+        TrainingCheckpoint checkpoint = readCheckpoint(INTERRUPTED_MODEL_DIR);
+        assertEquals(zips.get(ZIPS - 1), checkpoint.getZip());
+        assertEquals(CONTEXTS_PER_ZIP, checkpoint.getEntries());
+        assertEquals(distinctDocuments(zips), checkpoint.getDocuments());
+        assertSameIndex(UNINTERRUPTED_MODEL_DIR, INTERRUPTED_MODEL_DIR);
+    }
+
+}
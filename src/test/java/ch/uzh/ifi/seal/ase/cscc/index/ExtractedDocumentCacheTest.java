@@ -0,0 +1,169 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import ch.uzh.ifi.seal.ase.cscc.testutils.TestUtils;
+import ch.uzh.ifi.seal.ase.cscc.utils.CSCCConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractedDocumentCacheTest {
+
+    private static final File CACHE_TEST_DIR = new File(CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/CSCCDocumentCache");
+    private List<IndexDocument> docsToIndex = new LinkedList<>();
+
+    private IndexDocument receiverObj1 = new IndexDocument(null, "org.entity.RocketShip", new LinkedList<>(), Arrays.asList(
+            "toLowerCase", "context"
+    ));
+
+    private static void writeZip(File zip, int entries) throws IOException {
+        FileUtils.forceMkdir(zip.getParentFile());
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (int i = 0; i < entries; i++) {
+                out.putNextEntry(new ZipEntry(i + ".json"));
+                out.write(("{\"entry\": " + i + "}").getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static void assertSameDocuments(List<IndexDocument> expected, List<IndexDocument> actual) {
+        assertEquals(expected, actual);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getMethodCall(), actual.get(i).getMethodCall());
+            assertEquals(expected.get(i).getType(), actual.get(i).getType());
+            assertEquals(expected.get(i).getLineContext(), actual.get(i).getLineContext());
+            assertEquals(expected.get(i).getOverallContext(), actual.get(i).getOverallContext());
+            assertEquals(expected.get(i).getLineContextSimhash(), actual.get(i).getLineContextSimhash());
+            assertEquals(expected.get(i).getOverallContextSimhash(), actual.get(i).getOverallContextSimhash());
+        }
+    }
+
+    private static void cache(ExtractedDocumentCache cache, File zip, List<List<IndexDocument>> entries)
+            throws IOException {
+        try (ExtractedDocumentCache.Writer writer = cache.create(zip)) {
+            for (List<IndexDocument> documents : entries) {
+                writer.append(documents);
+            }
+            writer.commit();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        TestUtils.fillWithTestDocuments(docsToIndex);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(CACHE_TEST_DIR);
+    }
+
+    @Test
+    public void extractedDocumentCache_ReadsDocumentsUntilZipChanges() throws IOException {
+        File zip = new File(CACHE_TEST_DIR, "contexts.zip");
+        writeZip(zip, 3);
+        ExtractedDocumentCache cache = new ExtractedDocumentCache(CACHE_TEST_DIR + "/DocumentCache");
+        assertNull(cache.open(zip));
+
+        // the test documents have no line context, the synthetic ones do, receiverObj1 has no method call
+        List<List<IndexDocument>> entries = Arrays.asList(new ArrayList<>(docsToIndex), new ArrayList<>(),
+                new SyntheticCorpus(5).nextDocuments(50));
+        entries.get(0).add(receiverObj1);
+        try (ExtractedDocumentCache.Writer writer = cache.create(zip)) {
+            for (List<IndexDocument> documents : entries) {
+                writer.append(documents);
+            }
+            // nothing is read before the whole zip has been cached
+            assertNull(cache.open(zip));
+            writer.commit();
+        }
+        ExtractedDocumentCache.Reader reader = cache.open(zip);
+        assertEquals(entries.size(), reader.getNumberOfEntries());
+        for (List<IndexDocument> documents : entries) {
+            assertTrue(reader.hasNext());
+            assertSameDocuments(documents, reader.next());
+        }
+        assertFalse(reader.hasNext());
+
+        // resume in the middle of the zip
+        reader = cache.open(zip);
+        reader.skipTo(2);
+        assertEquals(2, reader.getNextEntry());
+        assertSameDocuments(entries.get(2), reader.next());
+
+        // a writer which is not committed keeps the cached documents
+        try (ExtractedDocumentCache.Writer writer = cache.create(zip)) {
+            writer.append(entries.get(2));
+        }
+        assertEquals(entries.size(), cache.open(zip).getNumberOfEntries());
+
+        writeZip(zip, 4);
+        assertNull(cache.open(zip));
+    }
+
+    @Test
+    public void extractedDocumentCache_IgnoresDocumentsExtractedDifferently() throws IOException {
+        File zip = new File(CACHE_TEST_DIR, "contexts.zip");
+        writeZip(zip, 2);
+        String cacheDir = CACHE_TEST_DIR + "/DocumentCache";
+        List<List<IndexDocument>> entries = Arrays.asList(new ArrayList<>(docsToIndex),
+                new SyntheticCorpus(5).nextDocuments(20));
+        cache(new ExtractedDocumentCache(cacheDir, 6, 1), zip, entries);
+
+        // the cache file is only read with the same extraction parameters
+        assertEquals(entries.size(), new ExtractedDocumentCache(cacheDir, 6, 1).open(zip).getNumberOfEntries());
+        assertNull(new ExtractedDocumentCache(cacheDir, 5, 1).open(zip));
+        assertNull(new ExtractedDocumentCache(cacheDir, 6, 2).open(zip));
+
+        // extracting the zip again replaces the cache file
+        ExtractedDocumentCache cache = new ExtractedDocumentCache(cacheDir, 5, 1);
+        cache(cache, zip, entries.subList(1, 2));
+        assertSameDocuments(entries.get(1), cache.open(zip).next());
+        assertNull(new ExtractedDocumentCache(cacheDir, 6, 1).open(zip));
+    }
+
+    @Test
+    public void extractedDocumentCache_DoesNotWriteFilesWhichCannotBeRead() throws IOException {
+        File zip = new File(CACHE_TEST_DIR, "contexts.zip");
+        writeZip(zip, 20);
+        String cacheDir = CACHE_TEST_DIR + "/DocumentCache";
+        List<IndexDocument> documents = new SyntheticCorpus(5).nextDocuments(10);
+        // room for a few entries only
+        ExtractedDocumentCache cache = new ExtractedDocumentCache(cacheDir, 6, 1, 2000);
+        int appended = 0;
+        try (ExtractedDocumentCache.Writer writer = cache.create(zip)) {
+            try {
+                while (appended < 20) {
+                    writer.append(documents);
+                    appended++;
+                }
+            } catch (IOException e) {
+                // the zip is extracted again next time
+            }
+        }
+        assertTrue(appended > 0);
+        assertTrue(appended < 20);
+        assertNull(cache.open(zip));
+        assertEquals(0, new File(cacheDir).list().length);
+
+        // a cache file which fits is read again
+        cache = new ExtractedDocumentCache(cacheDir, 6, 1, 2000);
+        cache(cache, zip, Collections.nCopies(appended, documents));
+        assertEquals(appended, cache.open(zip).getNumberOfEntries());
+    }
+
+}
@@ -1,13 +1,17 @@
 package ch.uzh.ifi.seal.ase.cscc.index;
 
 import com.github.tomtung.jsimhash.Util;
+import org.apache.commons.text.similarity.LevenshteinDistance;
+import org.apache.commons.text.similarity.LongestCommonSubsequence;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.io.*;
+import java.util.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class IndexDocumentTest {
 
@@ -151,6 +155,69 @@ public class IndexDocumentTest {
         assertEquals(expected, doc2.normalizedLevenshteinDistanceLineContextToOther(doc1), delta);
     }
 
+    @Test
+    public void bitParallelPatternMatchesCommonsText() {
+        Random random = new Random(42);
+        // few distinct characters so that there are many matches, non-ASCII ones are kept outside the lookup table
+        String alphabet = "abcdeAB.\u00e9\u4e2d";
+        LongestCommonSubsequence lcs = new LongestCommonSubsequence();
+        LevenshteinDistance levenshtein = LevenshteinDistance.getDefaultInstance();
+        // lengths around the 64-character block boundaries
+        int[] lengths = {0, 1, 2, 7, 63, 64, 65, 127, 128, 129, 200, 300};
+        for (int i = 0; i < 400; i++) {
+            String pattern = randomString(random, alphabet, lengths[random.nextInt(lengths.length)]);
+            String text = randomString(random, alphabet, lengths[random.nextInt(lengths.length)]);
+            BitParallelPattern bitParallel = new BitParallelPattern(pattern);
+            String message = "pattern '" + pattern + "', text '" + text + "'";
+            assertEquals(message, (int) lcs.apply(text, pattern), bitParallel.longestCommonSubsequenceLength(text));
+            assertEquals(message, (int) levenshtein.apply(text, pattern), bitParallel.levenshteinDistance(text));
+        }
+    }
+
+    @Test
+    public void boundedLongestCommonSubsequenceMatchesExactAboveThreshold() {
+        Random random = new Random(43);
+        List<String> vocabulary = Arrays.asList("get", "set", "size", "add", "remove", "String", "List", "i", "x", "value");
+        for (int i = 0; i < 500; i++) {
+            IndexDocument doc = new IndexDocument("m", "T", new LinkedList<>(), randomWords(random, vocabulary, random.nextInt(8)));
+            IndexDocument query = new IndexDocument("m", "T", new LinkedList<>(), randomWords(random, vocabulary, random.nextInt(8)));
+            double threshold = random.nextInt(4) == 0 ? 0.30 : random.nextDouble();
+            double exact = doc.normalizedLongestCommonSubsequenceLengthOverallContextToOther(query);
+            double bounded = doc.normalizedLongestCommonSubsequenceLengthOverallContextToOther(query, threshold);
+            if (exact > threshold) {
+                assertEquals(exact, bounded, 0.0);
+            } else {
+                assertFalse(bounded > threshold);
+            }
+        }
+    }
+
+    @Test
+    public void normalizedScoresOfEmptyContexts() {
+        IndexDocument empty = new IndexDocument("m", "T", new LinkedList<>(), new LinkedList<>());
+        // as before: 0 / 0 for two empty contexts
+        assertEquals(Double.NaN, empty.normalizedLongestCommonSubsequenceLengthOverallContextToOther(empty), 0.0);
+        assertEquals(Double.NaN, empty.normalizedLevenshteinDistanceLineContextToOther(empty), 0.0);
+        assertEquals(0.0, empty.normalizedLongestCommonSubsequenceLengthOverallContextToOther(doc1), 0.0);
+        assertEquals(0.0, doc1.normalizedLevenshteinDistanceLineContextToOther(empty), 0.0);
+    }
+
+    private static List<String> randomWords(Random random, List<String> vocabulary, int count) {
+        List<String> words = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            words.add(vocabulary.get(random.nextInt(vocabulary.size())));
+        }
+        return words;
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder string = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            string.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return string.toString();
+    }
+
     @Test
     public void identicalDocumentsMustHaveSameID() {
         assertEquals(doc2.getId(), doc2_twin.getId());
@@ -161,6 +228,60 @@ public class IndexDocumentTest {
         assertEquals(doc2, doc2_twin);
     }
 
+    @Test
+    public void idSurvivesHexRoundTrip() {
+        IndexDocument copy = new IndexDocument(doc1.getId(), doc1.getMethodCall(), doc1.getType(), doc1.getLineContext(),
+                doc1.getOverallContext(), doc1.getLineContextSimhash(), doc1.getOverallContextSimhash());
+        assertEquals(doc1.getId(), copy.getId());
+        assertEquals(doc1, copy);
+    }
+
+    @Test
+    public void idSurvivesSerialization() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(doc1);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        IndexDocument deserialized = (IndexDocument) in.readObject();
+        in.close();
+        assertEquals(doc1.getId(), deserialized.getId());
+        assertEquals(doc1.getOverallContext(), deserialized.getOverallContext());
+        assertEquals(doc1.getOverallContextSimhash(), deserialized.getOverallContextSimhash());
+    }
+
+    @Test
+    public void contextsAreSortedAndFreeOfDuplicates() {
+        IndexDocument doc = new IndexDocument("m", "T", Arrays.asList("b", "a", "b"), Arrays.asList("z", "y", "z"));
+        IndexDocument reordered = new IndexDocument("m", "T", Arrays.asList("a", "b"), Arrays.asList("y", "z"));
+        assertEquals(Arrays.asList("a", "b"), doc.getLineContext());
+        assertEquals("yz", doc.getOverallContextConcatenated());
+        assertEquals(reordered.getId(), doc.getId());
+        assertEquals(reordered.getLineContextSimhash(), doc.getLineContextSimhash());
+    }
+
+    @Test
+    public void queryDocumentsDoNotAddTokensToSymbolTable() {
+        List<String> lineContext = Arrays.asList("Romeo", "queryOnlyLineToken");
+        List<String> overallContext = Arrays.asList("queryOnlyToken2", "ipsum", "queryOnlyToken1");
+        IndexDocument query = IndexDocument.forQuery(null, "queryOnlyType", lineContext, overallContext);
+        assertEquals(-1, SymbolTable.lookup("queryOnlyType"));
+        assertEquals(-1, SymbolTable.lookup("queryOnlyToken1"));
+        assertEquals("queryOnlyType", query.getType());
+        assertEquals(Arrays.asList("ipsum", "queryOnlyToken1", "queryOnlyToken2"), query.getOverallContext());
+        assertEquals("RomeoqueryOnlyLineToken", query.getLineContextConcatenated());
+        assertEquals(query.getOverallContext(), new ScoredIndexDocument(query, 0, 0).getOverallContext());
+        // same as a document whose tokens have been added
+        IndexDocument doc = new IndexDocument(null, "queryOnlyType", lineContext, overallContext);
+        assertEquals(doc.getId(), query.getId());
+        assertEquals(doc.getLineContextSimhash(), query.getLineContextSimhash());
+        assertEquals(doc.getOverallContextSimhash(), query.getOverallContextSimhash());
+        assertEquals(doc.normalizedLongestCommonSubsequenceLengthOverallContextToOther(doc1),
+                query.normalizedLongestCommonSubsequenceLengthOverallContextToOther(doc1), 0);
+        assertEquals(doc1.normalizedLevenshteinDistanceLineContextToOther(doc),
+                doc1.normalizedLevenshteinDistanceLineContextToOther(query), 0);
+    }
+
     @Test
     public void toStringTest() {
         String expected = "IndexDocument{id='69f823f36cc590f1ebb2006fbe3d5963802e54242af4fd14a7ca5921b7b5d860', methodCall='testMethod1', type='com.something.util.test.TestClass1', lineContext=[Juliet, Romeo], overallContext=[Lorem, adipiscing, amet, consectetur, dolor, elit, ipsum, sit], lineContextSimhash=7893838207193153156, overallContextSimhash=3742294180565081795}";
@@ -2,6 +2,7 @@ package ch.uzh.ifi.seal.ase.cscc.index;
 
 import ch.uzh.ifi.seal.ase.cscc.testutils.TestUtils;
 import ch.uzh.ifi.seal.ase.cscc.utils.CSCCConfiguration;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -9,9 +10,20 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.sql.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 public class InvertedIndexTest {
@@ -90,6 +102,843 @@ public class InvertedIndexTest {
         luceneIndexDiskBasedNoSQL.finishIndexing();
     }
 
+    @Test
+    public void search_DiskBasedInvertedIndexMappedLog() {
+        IInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST,
+                DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        putDocumentsInIndex(index, docsToIndex);
+        index.close();
+        // reopen the store from disk, indexing the same documents again must not add duplicates
+        index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST,
+                DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        putDocumentsInIndex(index, docsToIndex);
+        index.startSearching();
+        Set<IndexDocument> answers = index.search(receiverObj1);
+        index.finishSearching();
+        index.close();
+        makeAssertions(answers);
+    }
+
+    @Test
+    public void mappedIndexDocumentStore_RecoversFromInterruptedWrite() throws IOException {
+        File storeDir = new File(CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/" + INVERTED_INDEX_DIR_NAME + "/IndexDocumentsLog");
+        MappedIndexDocumentStore store = new MappedIndexDocumentStore(storeDir);
+        for (IndexDocument doc : docsToIndex) {
+            store.append(doc);
+        }
+        store.close();
+        // simulate a crash in the middle of appending a record and its offset index entry
+        File segment = new File(storeDir, "segment_00000.log");
+        File offsetIndex = new File(storeDir, "offsets.idx");
+        File symbols = new File(storeDir, "symbols.dict");
+        long segmentLength = segment.length();
+        long symbolsLength = symbols.length();
+        FileUtils.writeByteArrayToFile(symbols, new byte[]{5, 'a', 'b'}, true);
+        FileUtils.writeByteArrayToFile(segment, new byte[]{0, 0, 1, 0, 42, 42}, true);
+        FileUtils.writeByteArrayToFile(offsetIndex, new byte[]{1, 2, 3}, true);
+
+        store = new MappedIndexDocumentStore(storeDir);
+        assertEquals(docsToIndex.size(), store.size());
+        assertEquals(segmentLength, segment.length());
+        assertEquals(symbolsLength, symbols.length());
+        for (IndexDocument doc : docsToIndex) {
+            assertTrue(store.contains(doc.getDocId()));
+            IndexDocument stored = store.get(doc.getDocId());
+            assertEquals(doc.getMethodCall(), stored.getMethodCall());
+            assertEquals(doc.getType(), stored.getType());
+            assertEquals(doc.getLineContext(), stored.getLineContext());
+            assertEquals(doc.getOverallContext(), stored.getOverallContext());
+            assertEquals(doc.getOverallContextSimhash(), stored.getOverallContextSimhash());
+        }
+        store.close();
+    }
+
+    @Test
+    public void mappedIndexDocumentStore_DiscardsEntriesFromFirstIncompleteRecord() throws IOException {
+        File storeDir = new File(CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/" + INVERTED_INDEX_DIR_NAME + "/IndexDocumentsLog");
+        List<IndexDocument> manyDocs = clusteredDocuments(new Random(23), randomSimhashes(new Random(29), 5), 100);
+        MappedIndexDocumentStore store = new MappedIndexDocumentStore(storeDir);
+        for (IndexDocument doc : manyDocs) {
+            store.append(doc);
+        }
+        store.close();
+        // simulate a crash after a rollover, before the previous segment had reached the disk: the record of entry 50
+        // is cut off, while a later segment and the offset index entries after it have been written
+        File segment = new File(storeDir, "segment_00000.log");
+        File nextSegment = new File(storeDir, "segment_00001.log");
+        byte[] offsets = FileUtils.readFileToByteArray(new File(storeDir, "offsets.idx"));
+        int offsetOfEntry50 = ByteBuffer.wrap(offsets).getInt(50 * 40 + 36);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(offsetOfEntry50 + 6);
+        }
+        FileUtils.writeByteArrayToFile(nextSegment, new byte[]{0, 0, 0, 2, 42, 42});
+
+        store = new MappedIndexDocumentStore(storeDir);
+        assertEquals(50, store.size());
+        assertTrue(store.contains(manyDocs.get(49).getDocId()));
+        assertFalse(store.contains(manyDocs.get(50).getDocId()));
+        assertEquals(offsetOfEntry50, segment.length());
+        assertFalse(nextSegment.exists());
+        for (IndexDocument doc : manyDocs.subList(50, manyDocs.size())) {
+            store.append(doc);
+        }
+        store.close();
+
+        store = new MappedIndexDocumentStore(storeDir);
+        assertEquals(manyDocs.size(), store.size());
+        for (IndexDocument doc : manyDocs) {
+            assertEquals(doc.getOverallContextSimhash(), store.get(doc.getDocId()).getOverallContextSimhash());
+        }
+        store.close();
+    }
+
+    @Test
+    public void docIdTable_NumbersDocIDsInOrderOfAddition() {
+        Random random = new Random(7);
+        List<DocId> docIDs = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] bytes = new byte[DocId.BYTES];
+            random.nextBytes(bytes);
+            docIDs.add(DocId.fromBytes(bytes, 0));
+        }
+        DocIdTable fullTable = new DocIdTable(true);
+        DocIdTable table = new DocIdTable(false);
+        for (DocId docID : docIDs.subList(0, 4000)) {
+            assertEquals(fullTable.size(), fullTable.add(docID));
+            table.add(docID);
+        }
+        assertEquals(4000, table.size());
+        for (int i = 0; i < docIDs.size(); i++) {
+            int expected = i < 4000 ? i : -1;
+            assertEquals(expected, fullTable.find(docIDs.get(i)));
+            assertEquals(expected, table.find(docIDs.get(i)));
+        }
+        assertEquals(docIDs.get(1234), fullTable.docId(1234));
+    }
+
+    @Test
+    public void mappedIndexDocumentStore_ConcurrentReadsWhileAppending() throws Exception {
+        File storeDir = new File(CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/" + INVERTED_INDEX_DIR_NAME + "/IndexDocumentsLog");
+        List<IndexDocument> manyDocs = clusteredDocuments(new Random(31), randomSimhashes(new Random(37), 20), 20000);
+        MappedIndexDocumentStore store = new MappedIndexDocumentStore(storeDir);
+        AtomicInteger appended = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            tasks.add(() -> {
+                for (IndexDocument doc : manyDocs) {
+                    store.append(doc);
+                    appended.incrementAndGet();
+                }
+                return null;
+            });
+            for (int t = 0; t < 3; t++) {
+                Random random = new Random(t);
+                tasks.add(() -> {
+                    while (appended.get() < manyDocs.size()) {
+                        int count = appended.get();
+                        if (count > 0) {
+                            IndexDocument doc = manyDocs.get(random.nextInt(count));
+                            assertTrue(store.contains(doc.getDocId()));
+                            assertEquals(doc.getOverallContextSimhash(), store.get(doc.getDocId()).getOverallContextSimhash());
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                // rethrows assertion errors of the threads
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+            store.close();
+        }
+    }
+
+    @Test
+    public void search_DiskBasedInvertedIndexKeepsFormatOfLegacyDatabase() throws SQLException {
+        File indexRootDir = new File(CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/" + INVERTED_INDEX_DIR_NAME);
+        indexRootDir.mkdirs();
+        // database as created by earlier versions: docIDs and tokens as strings
+        String sqlUrl = "jdbc:sqlite:" + indexRootDir + "/IndexDocuments.db";
+        try (Connection conn = DriverManager.getConnection(sqlUrl); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE indexdocuments (docid CHAR(64) PRIMARY KEY, type VARCHAR(1) NOT NULL,"
+                    + " method VARCHAR(1) NOT NULL, linecontext VARCHAR(1), overallcontext VARCHAR(1),"
+                    + " linecontextsimhash BIGINT, overallcontextsimhash BIGINT)");
+        }
+        IInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST);
+        putDocumentsInIndex(index, docsToIndex);
+        index.startSearching();
+        Set<IndexDocument> answers = index.search(receiverObj1);
+        index.finishSearching();
+        index.close();
+        makeAssertions(answers);
+        try (Connection conn = DriverManager.getConnection(sqlUrl); Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT docid, type FROM indexdocuments WHERE method='flyAway'");
+            assertTrue(rs.next());
+            assertEquals(64, rs.getString("docid").length());
+            assertEquals("org.entity.RocketShip", rs.getString("type"));
+            rs.close();
+        }
+    }
+
+    @Test
+    public void search_DiskBasedInvertedIndexSeesDocumentsIndexedAfterSearcherWasOpened() {
+        IInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST);
+        putDocumentsInIndex(index, docsToIndex.subList(0, 2));
+        index.startSearching();
+        assertEquals(1, index.search(receiverObj1).size());
+        index.finishSearching();
+        // index the remaining documents while the searcher is still open
+        putDocumentsInIndex(index, docsToIndex.subList(2, docsToIndex.size()));
+        index.startSearching();
+        Set<IndexDocument> answers = index.search(receiverObj1);
+        index.finishSearching();
+        makeAssertions(answers);
+        index.close();
+    }
+
+    @Test
+    public void search_DiskBasedInvertedIndexBulkLoading() {
+        DiskBasedInvertedIndex luceneIndexDiskBased = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST);
+        // group commit after every second document, the remaining document is committed by finishIndexing()
+        luceneIndexDiskBased.enableBulkLoading(2, Long.MAX_VALUE);
+        putDocumentsInIndex(luceneIndexDiskBased, docsToIndex);
+        // indexing the same documents again must not add duplicates
+        putDocumentsInIndex(luceneIndexDiskBased, docsToIndex);
+        luceneIndexDiskBased.startSearching();
+        Set<IndexDocument> answers = luceneIndexDiskBased.search(receiverObj1);
+        luceneIndexDiskBased.finishSearching();
+        luceneIndexDiskBased.close();
+        makeAssertions(answers);
+    }
+
+    @Test(timeout = 60000)
+    public void search_DiskBasedInvertedIndexBulkLoadingKeepsTokensOfConcurrentSearchConnections() throws Exception {
+        // every document brings new tokens, so that the dictionary grows while search connections read it
+        List<IndexDocument> manyDocs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            List<String> lineContext = Arrays.asList("line" + i, "term" + i % 7);
+            List<String> overallContext = Arrays.asList("overall" + i, "context" + i, "term" + i % 7);
+            manyDocs.add(new IndexDocument("method" + i, "type" + i % 3, lineContext, overallContext));
+        }
+        DiskBasedInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST);
+        index.enableBulkLoading(20, Long.MAX_VALUE);
+        // the searches start once the index has been committed for the first time
+        putDocumentsInIndex(index, manyDocs.subList(0, 20));
+        AtomicBoolean indexing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // every search opens a new search connection, which reads the dictionary committed so far
+            Future<?> searches = executor.submit(() -> {
+                for (int i = 0; indexing.get(); i = (i + 1) % manyDocs.size()) {
+                    index.closeSearchConnections();
+                    index.startSearching();
+                    index.search(manyDocs.get(i));
+                    index.finishSearching();
+                }
+            });
+            putDocumentsInIndex(index, manyDocs.subList(20, manyDocs.size()));
+            indexing.set(false);
+            // rethrows assertion errors of the searching thread
+            searches.get();
+        } finally {
+            executor.shutdown();
+            index.close();
+        }
+
+        // every token is decoded again from the persisted dictionary
+        DiskBasedInvertedIndex reopened = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST);
+        reopened.startSearching();
+        for (IndexDocument doc : manyDocs) {
+            IndexDocument found = null;
+            for (IndexDocument answer : reopened.search(doc)) {
+                if (answer.equals(doc)) {
+                    found = answer;
+                }
+            }
+            assertNotNull(found);
+            assertEquals(doc.getMethodCall(), found.getMethodCall());
+            assertEquals(doc.getType(), found.getType());
+            assertEquals(doc.getLineContext(), found.getLineContext());
+            assertEquals(doc.getOverallContext(), found.getOverallContext());
+        }
+        reopened.finishSearching();
+        reopened.close();
+    }
+
+    @Test
+    public void search_DiskBasedInvertedIndexDuplicateFilter() {
+        for (boolean useSQLite : new boolean[]{true, false}) {
+            DiskBasedInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, useSQLite);
+            index.enableDuplicateFilter(1000, 0.01);
+            putDocumentsInIndex(index, docsToIndex);
+            // the filter is empty at first, so it recognizes every document as new
+            assertEquals(docsToIndex.size(), index.getDuplicateFilterAvoidedLookups());
+            // the filter saved by the first index is loaded again, every document is a probable hit now
+            index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, useSQLite);
+            index.enableDuplicateFilter(1000, 0.01);
+            putDocumentsInIndex(index, docsToIndex);
+            assertEquals(0, index.getDuplicateFilterAvoidedLookups());
+            index.startSearching();
+            Set<IndexDocument> answers = index.search(receiverObj1);
+            index.finishSearching();
+            index.close();
+            makeAssertions(answers);
+            new File(CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/" + INVERTED_INDEX_DIR_NAME + "/docids.bloom").delete();
+        }
+    }
+
+    @Test
+    public void search_DiskBasedInvertedIndexDuplicateFilterRebuiltWhenStale() {
+        File filterFile = new File(CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/" + INVERTED_INDEX_DIR_NAME + "/docids.bloom");
+        for (boolean useSQLite : new boolean[]{true, false}) {
+            List<IndexDocument> firstDocs = docsToIndex.subList(0, docsToIndex.size() / 2);
+            List<IndexDocument> laterDocs = docsToIndex.subList(docsToIndex.size() / 2, docsToIndex.size());
+            DiskBasedInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, useSQLite);
+            index.enableDuplicateFilter(1000, 0.01);
+            index.startIndexing();
+            firstDocs.forEach(index::indexDocument);
+            index.commit();
+            // the filter is only saved when indexing is finished
+            assertFalse(filterFile.exists());
+            index.finishIndexing();
+            assertTrue(filterFile.exists());
+            // documents committed without updating the filter, like by a training run which has crashed
+            putDocumentsInIndex(new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, useSQLite), laterDocs);
+            // the saved filter does not cover all stored documents anymore, so it has to be rebuilt from the store
+            index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, useSQLite);
+            index.enableDuplicateFilter(1000, 0.01);
+            putDocumentsInIndex(index, docsToIndex);
+            assertEquals(0, index.getDuplicateFilterAvoidedLookups());
+            index.startSearching();
+            Set<IndexDocument> answers = index.search(receiverObj1);
+            index.finishSearching();
+            index.close();
+            makeAssertions(answers);
+            filterFile.delete();
+        }
+    }
+
+    @Test
+    public void search_DiskBasedInvertedIndexFetchesCandidatesInChunks() {
+        // more candidates than fit into one chunk of the batched SQLite fetch, last chunk is only partially filled
+        List<IndexDocument> manyDocs = new LinkedList<>();
+        for (int i = 0; i < 1234; i++) {
+            manyDocs.add(new IndexDocument("method" + i, "org.entity.RocketShip", new LinkedList<>(), Arrays.asList(
+                    "context", "term" + i
+            )));
+        }
+        for (DiskBasedInvertedIndex.DocumentStorage storage : DiskBasedInvertedIndex.DocumentStorage.values()) {
+            IInvertedIndex index = new DiskBasedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, storage);
+            putDocumentsInIndex(index, manyDocs);
+            index.startSearching();
+            Set<IndexDocument> answers = index.search(receiverObj1);
+            index.finishSearching();
+            index.close();
+            assertEquals(new HashSet<>(manyDocs), answers);
+        }
+    }
+
+    @Test
+    public void search_ParallelizedInvertedIndex() {
+        for (boolean useSQLite : new boolean[]{true, false}) {
+            IInvertedIndex index = new ParallelizedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, useSQLite, 4);
+            putDocumentsInIndex(index, docsToIndex);
+            index.startSearching();
+            Set<IndexDocument> answers = index.search(receiverObj1);
+            index.finishSearching();
+            index.close();
+            makeAssertions(answers);
+        }
+    }
+
+    @Test
+    public void search_ParallelizedInvertedIndexManyDocumentsAndDuplicates() {
+        // more documents than fit into the work queue, every document is indexed twice
+        List<IndexDocument> manyDocs = new LinkedList<>();
+        for (int i = 0; i < 2500; i++) {
+            manyDocs.add(new IndexDocument("method" + i, "org.entity.RocketShip", new LinkedList<>(), Arrays.asList(
+                    "context", "term" + i
+            )));
+        }
+        List<IndexDocument> docsWithDuplicates = new ArrayList<>(manyDocs);
+        docsWithDuplicates.addAll(manyDocs);
+        ParallelizedInvertedIndex index = new ParallelizedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, true, 4);
+        putDocumentsInIndex(index, docsWithDuplicates);
+        index.startSearching();
+        Set<IndexDocument> answers = index.search(receiverObj1);
+        // a type which has never been indexed
+        Set<IndexDocument> noAnswers = index.search(new IndexDocument(null, "org.entity.Unknown", new LinkedList<>(),
+                Collections.singletonList("context")));
+        index.finishSearching();
+        index.close();
+        assertEquals(new HashSet<>(manyDocs), answers);
+        assertTrue(noAnswers.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void indexDocument_ParallelizedInvertedIndexRejectsDocumentsAfterClose() {
+        ParallelizedInvertedIndex index = new ParallelizedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, true, 4);
+        index.indexDocument(receiverObj1);
+        index.close();
+        index.indexDocument(receiverObj1);
+    }
+
+    @Test(timeout = 60000)
+    public void commit_ParallelizedInvertedIndexWhileOtherThreadsIndexDocuments() throws InterruptedException {
+        ParallelizedInvertedIndex index = new ParallelizedInvertedIndex(CSCCConfiguration.PERSISTENCE_LOCATION_TEST, true, 4);
+        List<IndexDocument> manyDocs = new ArrayList<>();
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            List<IndexDocument> docs = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                docs.add(new IndexDocument("method" + t + "_" + i, "org.entity.RocketShip", new LinkedList<>(),
+                        Arrays.asList("context", "term" + i)));
+            }
+            manyDocs.addAll(docs);
+            producers.add(new Thread(() -> docs.forEach(index::indexDocument)));
+        }
+        index.startIndexing();
+        producers.forEach(Thread::start);
+        // every commit has to return although the producers keep submitting documents
+        for (int i = 0; i < 10; i++) {
+            index.commit();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        index.finishIndexing();
+        index.startSearching();
+        Set<IndexDocument> answers = index.search(receiverObj1);
+        index.finishSearching();
+        index.close();
+        assertEquals(new HashSet<>(manyDocs), answers);
+    }
+
+    @Test
+    public void searchRefined_ParallelizedInvertedIndexMatchesDiskBasedInvertedIndex() throws IOException {
+        Random random = new Random(41);
+        long[] centers = randomSimhashes(random, 20);
+        List<IndexDocument> manyDocs = clusteredDocuments(random, centers, 3000);
+        List<IndexDocument> queries = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            queries.add(clusteredDocument(random, centers, "query" + i, 1 + random.nextInt(4)));
+        }
+        String indexDir = CSCCConfiguration.PERSISTENCE_LOCATION_TEST;
+        DiskBasedInvertedIndex diskIndex = new DiskBasedInvertedIndex(indexDir);
+        putDocumentsInIndex(diskIndex, manyDocs);
+        diskIndex.startSearching();
+        List<List<IndexDocument>> expected = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            expected.add(diskIndex.searchRefined(queries.get(i), i % 2 == 0 ? 10 : 200, 30));
+        }
+        diskIndex.close();
+        FileUtils.deleteDirectory(new File(indexDir + "/" + INVERTED_INDEX_DIR_NAME));
+
+        for (boolean useSQLite : new boolean[]{true, false}) {
+            ParallelizedInvertedIndex index = new ParallelizedInvertedIndex(indexDir, useSQLite, 4);
+            putDocumentsInIndex(index, manyDocs);
+            index.startSearching();
+            for (int i = 0; i < queries.size(); i++) {
+                assertEquals(expected.get(i), index.searchRefined(queries.get(i), i % 2 == 0 ? 10 : 200, 30));
+            }
+            index.close();
+            FileUtils.deleteDirectory(new File(indexDir + "/" + INVERTED_INDEX_DIR_NAME));
+        }
+    }
+
+    @Test
+    public void search_PrimitiveInvertedIndex() {
+        IInvertedIndex index = new PrimitiveInvertedIndex();
+        putDocumentsInIndex(index, docsToIndex);
+        // indexing the same documents again must not add duplicates
+        putDocumentsInIndex(index, docsToIndex);
+        index.startSearching();
+        Set<IndexDocument> answers = index.search(receiverObj1);
+        index.finishSearching();
+        index.close();
+        makeAssertions(answers);
+        assertEquals(docsToIndex.size(), ((PrimitiveInvertedIndex) index).size());
+    }
+
+    @Test
+    public void search_QueryDocumentWithUnknownTokens() {
+        IndexDocument query = IndexDocument.forQuery(null, "org.entity.RocketShip", Collections.singletonList("neverIndexed1"),
+                Arrays.asList("toLowerCase", "context", "neverIndexed2"));
+        IndexDocument unknownType = IndexDocument.forQuery(null, "org.entity.NeverIndexed", new LinkedList<>(),
+                Collections.singletonList("context"));
+        for (IInvertedIndex index : new IInvertedIndex[]{new PrimitiveInvertedIndex(), new InMemoryInvertedIndex()}) {
+            putDocumentsInIndex(index, docsToIndex);
+            index.startSearching();
+            Set<IndexDocument> answers = index.search(query);
+            assertTrue(index.search(unknownType).isEmpty());
+            index.finishSearching();
+            index.close();
+            makeAssertions(answers);
+        }
+    }
+
+    @Test
+    public void search_PrimitiveInvertedIndexMatchesLuceneIndex() {
+        Random random = new Random(42);
+        List<IndexDocument> manyDocs = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            manyDocs.add(randomDocument(random, "method" + random.nextInt(50)));
+        }
+        IInvertedIndex luceneIndex = new InMemoryInvertedIndex();
+        IInvertedIndex primitiveIndex = new PrimitiveInvertedIndex();
+        putDocumentsInIndex(luceneIndex, manyDocs);
+        putDocumentsInIndex(primitiveIndex, manyDocs);
+        luceneIndex.startSearching();
+        primitiveIndex.startSearching();
+        for (int i = 0; i < 200; i++) {
+            IndexDocument query = randomDocument(random, null);
+            assertEquals(luceneIndex.search(query), primitiveIndex.search(query));
+            List<Integer> luceneDistances = new ArrayList<>();
+            for (IndexDocument doc : luceneIndex.searchRefined(query, 10, 30)) {
+                luceneDistances.add(refinementDistance(doc, query));
+            }
+            List<Integer> primitiveDistances = new ArrayList<>();
+            for (IndexDocument doc : primitiveIndex.searchRefined(query, 10, 30)) {
+                primitiveDistances.add(refinementDistance(doc, query));
+            }
+            assertEquals(luceneDistances, primitiveDistances);
+        }
+        // a type which has never been indexed and a query without overall context
+        IndexDocument unknownType = new IndexDocument(null, "org.entity.Unknown", new LinkedList<>(),
+                Collections.singletonList("term1"));
+        IndexDocument noContext = new IndexDocument(null, "type1", new LinkedList<>(), new LinkedList<>());
+        assertTrue(primitiveIndex.search(unknownType).isEmpty());
+        assertEquals(luceneIndex.search(noContext), primitiveIndex.search(noContext));
+        luceneIndex.finishSearching();
+        primitiveIndex.finishSearching();
+        luceneIndex.close();
+        primitiveIndex.close();
+    }
+
+    @Test
+    public void search_PrimitiveInvertedIndexExcludingFoldMatchesIndexWithoutFold() {
+        Random random = new Random(11);
+        List<IndexDocument> manyDocs = new ArrayList<>();
+        List<Integer> folds = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            // a third of the documents is a copy of an earlier one, mostly in another fold
+            IndexDocument doc = i > 0 && random.nextInt(3) == 0 ? manyDocs.get(random.nextInt(i))
+                    : randomDocument(random, "method" + random.nextInt(50));
+            manyDocs.add(doc);
+            folds.add(random.nextInt(12) == 0 ? PrimitiveInvertedIndex.NO_FOLD : random.nextInt(10));
+        }
+        PrimitiveInvertedIndex index = new PrimitiveInvertedIndex();
+        index.startIndexing();
+        for (int i = 0; i < manyDocs.size(); i++) {
+            index.indexDocument(manyDocs.get(i), folds.get(i));
+        }
+        index.finishIndexing();
+        assertEquals(new HashSet<>(manyDocs).size(), index.size());
+
+        for (int fold = 0; fold < 10; fold++) {
+            List<IndexDocument> docsWithoutFold = new ArrayList<>();
+            for (int i = 0; i < manyDocs.size(); i++) {
+                if (folds.get(i) != fold) {
+                    docsWithoutFold.add(manyDocs.get(i));
+                }
+            }
+            IInvertedIndex expectedIndex = new PrimitiveInvertedIndex();
+            putDocumentsInIndex(expectedIndex, docsWithoutFold);
+            IInvertedIndex foldIndex = index.excludingFold(fold);
+            foldIndex.startSearching();
+            for (int i = 0; i < 100; i++) {
+                IndexDocument query = randomDocument(random, null);
+                assertEquals(expectedIndex.search(query), foldIndex.search(query));
+                // same documents in the same order, including documents with the same distance
+                assertEquals(expectedIndex.searchRefined(query, 10, 30), foldIndex.searchRefined(query, 10, 30));
+            }
+            foldIndex.finishSearching();
+            foldIndex.close();
+            expectedIndex.close();
+        }
+        index.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void indexDocument_PrimitiveInvertedIndexRejectsFoldsAfterDocumentsWithoutFold() {
+        PrimitiveInvertedIndex index = new PrimitiveInvertedIndex();
+        index.indexDocument(receiverObj1);
+        index.indexDocument(receiverObj1, 0);
+    }
+
+    private static IndexDocument randomDocument(Random random, String methodCall) {
+        List<String> lineContext = new ArrayList<>();
+        List<String> overallContext = new ArrayList<>();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            lineContext.add("term" + random.nextInt(100));
+        }
+        for (int i = random.nextInt(6); i > 0; i--) {
+            // squaring makes some terms far more frequent than others
+            int term = random.nextInt(20);
+            overallContext.add("term" + term * term);
+        }
+        return new IndexDocument(methodCall, "type" + random.nextInt(5), lineContext, overallContext);
+    }
+
+    @Test
+    public void searchRefined_PrimitiveInvertedIndexNeighborSearchMatchesScan() {
+        Random random = new Random(7);
+        long[] centers = randomSimhashes(random, 20);
+        List<IndexDocument> manyDocs = clusteredDocuments(random, centers, 40000);
+        PrimitiveInvertedIndex index = new PrimitiveInvertedIndex();
+        putDocumentsInIndex(index, manyDocs);
+        index.startSearching();
+        for (int i = 0; i < 50; i++) {
+            // queries with many terms, so that the postings are long enough for the neighbor index to be asked
+            IndexDocument query = clusteredDocument(random, centers, "query" + i, 8);
+            int k = i % 2 == 0 ? 10 : 200;
+            // expected: all base candidates ordered by distance, then by docID
+            List<IndexDocument> candidates = new ArrayList<>();
+            // documents which have been generated twice are only indexed once
+            for (IndexDocument doc : new LinkedHashSet<>(manyDocs)) {
+                if (doc.getType().equals(query.getType())
+                        && !Collections.disjoint(doc.getOverallContext(), query.getOverallContext())) {
+                    candidates.add(doc);
+                }
+            }
+            candidates.sort(Comparator.<IndexDocument>comparingInt(doc -> refinementDistance(doc, query))
+                    .thenComparing(IndexDocument::getDocId));
+            assertEquals(candidates.subList(0, Math.min(k, candidates.size())), index.searchRefined(query, k, 30));
+        }
+        index.finishSearching();
+        index.close();
+    }
+
+    @Test
+    public void searchRefined_DiskBasedInvertedIndexSimhashNeighborsMatchFullQuery() throws IOException {
+        Random random = new Random(11);
+        long[] centers = randomSimhashes(random, 20);
+        List<IndexDocument> manyDocs = clusteredDocuments(random, centers, 6000);
+        List<IndexDocument> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            queries.add(clusteredDocument(random, centers, "query" + i, 1 + random.nextInt(4)));
+        }
+        String indexDir = CSCCConfiguration.PERSISTENCE_LOCATION_TEST;
+        DiskBasedInvertedIndex indexWithNeighbors = new DiskBasedInvertedIndex(indexDir, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        indexWithNeighbors.enableSimhashNeighborIndex();
+        putDocumentsInIndex(indexWithNeighbors, manyDocs);
+        indexWithNeighbors.close();
+        DiskBasedInvertedIndex indexWithoutNeighbors = new DiskBasedInvertedIndex(indexDir, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        indexWithoutNeighbors.startSearching();
+        List<List<IndexDocument>> expected = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            expected.add(indexWithoutNeighbors.searchRefined(queries.get(i), i % 2 == 0 ? 10 : 200, 30));
+        }
+        indexWithoutNeighbors.close();
+        // neighbor indexes loaded from their log
+        assertSearchRefinedEquals(expected, queries, indexDir);
+        // neighbor indexes built from the Lucene index
+        FileUtils.deleteDirectory(new File(indexDir + "/" + INVERTED_INDEX_DIR_NAME + "/InvertedIndexStructures_SimhashNeighbors"));
+        assertSearchRefinedEquals(expected, queries, indexDir);
+    }
+
+    @Test
+    public void searchRefined_DiskBasedInvertedIndexSimhashNeighborsAfterKilledTraining() throws IOException {
+        Random random = new Random(13);
+        long[] centers = randomSimhashes(random, 20);
+        List<IndexDocument> manyDocs = clusteredDocuments(random, centers, 6000);
+        List<IndexDocument> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            queries.add(clusteredDocument(random, centers, "query" + i, 1 + random.nextInt(4)));
+        }
+        String indexDir = CSCCConfiguration.PERSISTENCE_LOCATION_TEST;
+        DiskBasedInvertedIndex index = new DiskBasedInvertedIndex(indexDir, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        index.enableSimhashNeighborIndex();
+        putDocumentsInIndex(index, manyDocs.subList(0, manyDocs.size() / 2));
+        index.close();
+        // training is killed before the second half has been committed, but the full buffers of the log have been
+        // written already. The store is neither flushed nor closed.
+        SimhashNeighborStore killed = new SimhashNeighborStore(
+                new File(indexDir + "/" + INVERTED_INDEX_DIR_NAME + "/InvertedIndexStructures_SimhashNeighbors"));
+        for (IndexDocument doc : manyDocs.subList(manyDocs.size() / 2, manyDocs.size())) {
+            killed.add(doc);
+        }
+        // resumed training indexes the second half again
+        index = new DiskBasedInvertedIndex(indexDir, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        index.enableSimhashNeighborIndex();
+        putDocumentsInIndex(index, manyDocs);
+        index.close();
+
+        DiskBasedInvertedIndex indexWithoutNeighbors = new DiskBasedInvertedIndex(indexDir, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        indexWithoutNeighbors.startSearching();
+        List<List<IndexDocument>> expected = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            expected.add(indexWithoutNeighbors.searchRefined(queries.get(i), i % 2 == 0 ? 10 : 200, 30));
+        }
+        indexWithoutNeighbors.close();
+        assertSearchRefinedEquals(expected, queries, indexDir);
+    }
+
+    private static void assertSearchRefinedEquals(List<List<IndexDocument>> expected, List<IndexDocument> queries, String indexDir) {
+        DiskBasedInvertedIndex index = new DiskBasedInvertedIndex(indexDir, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        index.enableSimhashNeighborIndex();
+        index.startSearching();
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(expected.get(i), index.searchRefined(queries.get(i), i % 2 == 0 ? 10 : 200, 30));
+        }
+        index.close();
+    }
+
+    @Test
+    public void searchRefined_DiskBasedInvertedIndexConcurrentSearches() throws Exception {
+        Random random = new Random(19);
+        long[] centers = randomSimhashes(random, 20);
+        List<IndexDocument> manyDocs = clusteredDocuments(random, centers, 6000);
+        List<IndexDocument> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            queries.add(clusteredDocument(random, centers, "query" + i, 1 + random.nextInt(4)));
+        }
+        String indexDir = CSCCConfiguration.PERSISTENCE_LOCATION_TEST;
+        for (DiskBasedInvertedIndex.DocumentStorage storage : Arrays.asList(
+                DiskBasedInvertedIndex.DocumentStorage.SQLITE, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG)) {
+            DiskBasedInvertedIndex index = new DiskBasedInvertedIndex(indexDir, storage);
+            index.enableSimhashNeighborIndex();
+            putDocumentsInIndex(index, manyDocs);
+            index.startSearching();
+            List<List<IndexDocument>> expected = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i++) {
+                expected.add(index.searchRefined(queries.get(i), i % 2 == 0 ? 10 : 200, 30));
+            }
+            index.close();
+
+            // all threads share one freshly opened index, so they also race to open the searcher and the stores
+            DiskBasedInvertedIndex sharedIndex = new DiskBasedInvertedIndex(indexDir, storage);
+            sharedIndex.enableSimhashNeighborIndex();
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    tasks.add(() -> {
+                        for (int round = 0; round < 3; round++) {
+                            for (int i = 0; i < queries.size(); i++) {
+                                sharedIndex.startSearching();
+                                assertEquals(expected.get(i), sharedIndex.searchRefined(queries.get(i), i % 2 == 0 ? 10 : 200, 30));
+                                sharedIndex.finishSearching();
+                            }
+                        }
+                        return null;
+                    });
+                }
+                for (Future<Void> result : executor.invokeAll(tasks)) {
+                    // rethrows assertion errors of the threads
+                    result.get();
+                }
+            } finally {
+                executor.shutdown();
+                sharedIndex.close();
+            }
+            FileUtils.deleteDirectory(new File(indexDir + "/" + INVERTED_INDEX_DIR_NAME));
+        }
+    }
+
+    private static long[] randomSimhashes(Random random, int count) {
+        long[] simhashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            simhashes[i] = random.nextLong();
+        }
+        return simhashes;
+    }
+
+    private static List<IndexDocument> clusteredDocuments(Random random, long[] centers, int count) {
+        List<IndexDocument> docs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            docs.add(clusteredDocument(random, centers, "method" + random.nextInt(50), 1 + random.nextInt(4)));
+        }
+        return docs;
+    }
+
+    /**
+     * @return document whose simhashes are a few bits away from one of the centers, so that many documents are close
+     * to each other as with real code. Almost all documents have the same type, so that it is large enough for its
+     * simhash neighbor index.
+     */
+    private static IndexDocument clusteredDocument(Random random, long[] centers, String methodCall, int terms) {
+        Set<String> overallContext = new TreeSet<>();
+        while (overallContext.size() < terms) {
+            overallContext.add("term" + random.nextInt(10));
+        }
+        long lineContextSimhash = centers[random.nextInt(centers.length)];
+        long overallContextSimhash = centers[random.nextInt(centers.length)];
+        for (int i = random.nextInt(8); i > 0; i--) {
+            lineContextSimhash ^= 1L << random.nextInt(64);
+            overallContextSimhash ^= 1L << random.nextInt(64);
+        }
+        String type = random.nextInt(20) == 0 ? "type1" : "type0";
+        String docId = DigestUtils.sha256Hex(methodCall + type + overallContext + lineContextSimhash + overallContextSimhash);
+        return new IndexDocument(docId, methodCall, type, new ArrayList<>(), overallContext, lineContextSimhash,
+                overallContextSimhash);
+    }
+
+    @Test
+    public void searchRefined_InMemoryInvertedIndexReturnsClosestBaseCandidates() {
+        IInvertedIndex index = new InMemoryInvertedIndex();
+        putDocumentsInIndex(index, docsToIndex);
+        index.startSearching();
+        List<IndexDocument> refined = index.searchRefined(receiverObj1, 2, 30);
+        List<IndexDocument> scanned = new ArrayList<>(index.search(receiverObj1));
+        index.finishSearching();
+        index.close();
+        // documents with the same distance are ordered by docID
+        scanned.sort(Comparator.<IndexDocument>comparingInt(this::refinementDistance).thenComparing(IndexDocument::getDocId));
+        assertEquals(scanned.subList(0, 2), refined);
+    }
+
+    @Test
+    public void searchRefined_AllIndexesOrderDocumentsWithSameDistanceByDocId() throws IOException {
+        Random random = new Random(13);
+        // few distinct contexts, so that many documents have the same distance to a query
+        List<IndexDocument> manyDocs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            manyDocs.add(randomDocument(random, "method" + i));
+        }
+        List<IndexDocument> queries = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            queries.add(randomDocument(random, null));
+        }
+        // indexed in another order than the other indexes, which must not change the result
+        List<IndexDocument> shuffledDocs = new ArrayList<>(manyDocs);
+        Collections.shuffle(shuffledDocs, random);
+        IInvertedIndex primitiveIndex = new PrimitiveInvertedIndex();
+        putDocumentsInIndex(primitiveIndex, shuffledDocs);
+        IInvertedIndex inMemoryIndex = new InMemoryInvertedIndex();
+        putDocumentsInIndex(inMemoryIndex, manyDocs);
+        String indexDir = CSCCConfiguration.PERSISTENCE_LOCATION_TEST;
+        IInvertedIndex diskIndex = new DiskBasedInvertedIndex(indexDir, DiskBasedInvertedIndex.DocumentStorage.MAPPED_LOG);
+        putDocumentsInIndex(diskIndex, manyDocs);
+        for (IInvertedIndex index : new IInvertedIndex[]{primitiveIndex, inMemoryIndex, diskIndex}) {
+            index.startSearching();
+        }
+        for (IndexDocument query : queries) {
+            List<IndexDocument> expected = primitiveIndex.searchRefined(query, 20, 30);
+            assertEquals(expected, inMemoryIndex.searchRefined(query, 20, 30));
+            assertEquals(expected, diskIndex.searchRefined(query, 20, 30));
+            assertEquals(expected, LinearRefinementCandidateStage.refine(new ArrayList<>(primitiveIndex.search(query)),
+                    query, 20, 30));
+        }
+        for (IInvertedIndex index : new IInvertedIndex[]{primitiveIndex, inMemoryIndex, diskIndex}) {
+            index.finishSearching();
+            index.close();
+        }
+    }
+
+    private int refinementDistance(IndexDocument doc) {
+        return refinementDistance(doc, receiverObj1);
+    }
+
+    private static int refinementDistance(IndexDocument doc, IndexDocument query) {
+        return IndexDocument.refinementDistance(doc.getLineContextSimhash(), doc.getOverallContextSimhash(),
+                query.getLineContextSimhash(), query.getOverallContextSimhash(), 30);
+    }
+
     private void makeAssertions(Set<IndexDocument> answers) {
         assertEquals(3, answers.size());
         Set<String> methodNames = getMethodNames(answers);
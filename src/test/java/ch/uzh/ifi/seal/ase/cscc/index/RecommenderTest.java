@@ -4,8 +4,14 @@ import ch.uzh.ifi.seal.ase.cscc.testutils.TestUtils;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
-import java.util.LinkedList;
-import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class RecommenderTest {
 
@@ -48,4 +54,264 @@ public class RecommenderTest {
         // the method name for our test document should be recommended
         assertTrue(recommender.getTopThreeRecommendations().contains(receiverObj.getMethodCall()));
     }
+
+    @Test
+    public void rankingMatchesFullScoring() {
+        Random random = new Random(7);
+        List<String> vocabulary = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            vocabulary.add("word" + i);
+        }
+        List<IndexDocument> docs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            docs.add(new IndexDocument("method" + random.nextInt(12), "Type",
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8))));
+        }
+        InMemoryInvertedIndex index = new InMemoryInvertedIndex();
+        index.startIndexing();
+        for (IndexDocument doc : docs) {
+            index.indexDocument(doc);
+        }
+        index.finishIndexing();
+        for (int i = 0; i < 50; i++) {
+            IndexDocument receiverObj = new IndexDocument(null, "Type",
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8)));
+            Recommender recommender = new Recommender(index, receiverObj);
+
+            // scores every candidate fully, as the recommender did before it skipped hopeless candidates
+            index.startSearching();
+            List<IndexDocument> refinedCandidates = index.searchRefined(receiverObj, 200, 30);
+            index.finishSearching();
+            List<ScoredIndexDocument> scored = new ArrayList<>();
+            for (IndexDocument candidate : refinedCandidates) {
+                double normLCS = candidate.normalizedLongestCommonSubsequenceLengthOverallContextToOther(receiverObj);
+                if (normLCS > 0.30) {
+                    scored.add(new ScoredIndexDocument(candidate, normLCS,
+                            candidate.normalizedLevenshteinDistanceLineContextToOther(receiverObj)));
+                }
+            }
+            scored.sort(null);
+            Set<String> methodNames = new LinkedHashSet<>();
+            for (ScoredIndexDocument doc : scored) {
+                methodNames.add(doc.getMethodCall());
+            }
+            List<String> expectedTopThree = new ArrayList<>(methodNames).subList(0, Math.min(3, methodNames.size()));
+
+            assertEquals(expectedTopThree, recommender.getTopThreeRecommendations());
+            for (int m = 0; m < 12; m++) {
+                IndexDocument doc = new IndexDocument("method" + m, "Type", vocabulary, vocabulary);
+                assertEquals(methodNames.contains("method" + m), recommender.contains(doc));
+            }
+        }
+    }
+
+    @Test
+    public void pipelineVariantsAgree() {
+        Random random = new Random(13);
+        List<String> vocabulary = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            vocabulary.add("word" + i);
+        }
+        InMemoryInvertedIndex index = new InMemoryInvertedIndex();
+        index.startIndexing();
+        for (int i = 0; i < 2000; i++) {
+            index.indexDocument(new IndexDocument("method" + random.nextInt(12), "Type",
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8))));
+        }
+        index.finishIndexing();
+        ICandidateStage indexSearch = new IndexSearchCandidateStage(index);
+        ICandidateStage linearRefinement = new LinearRefinementCandidateStage(index);
+        IRankingStage[] rankingStages = {
+                new BoundedRankingStage(SimilarityKernels.BIT_PARALLEL),
+                new BoundedRankingStage(SimilarityKernels.COMMONS_TEXT),
+                new ExhaustiveRankingStage(SimilarityKernels.BIT_PARALLEL),
+                new ExhaustiveRankingStage(SimilarityKernels.COMMONS_TEXT)
+        };
+        for (int i = 0; i < 30; i++) {
+            IndexDocument query = new IndexDocument(null, "Type",
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8)));
+
+            // both candidate stages find candidates at the same distances, ties may be broken differently
+            List<IndexDocument> refinedCandidates = indexSearch.findRefinedCandidates(query, 200, 30);
+            List<IndexDocument> linearlyRefinedCandidates = linearRefinement.findRefinedCandidates(query, 200, 30);
+            assertEquals(distances(refinedCandidates, query), distances(linearlyRefinedCandidates, query));
+
+            Ranking expected = new ExhaustiveRankingStage(SimilarityKernels.COMMONS_TEXT).rank(query, refinedCandidates, 0.30, 3);
+            for (IRankingStage rankingStage : rankingStages) {
+                Ranking ranking = rankingStage.rank(query, refinedCandidates, 0.30, 3);
+                assertEquals(topMethods(expected), topMethods(ranking));
+                assertEquals(expected.getCandidateMethodNames(), ranking.getCandidateMethodNames());
+            }
+        }
+    }
+
+    @Test
+    public void concurrentQueriesMatchSequentialQueries() throws Exception {
+        Random random = new Random(17);
+        List<String> vocabulary = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            vocabulary.add("word" + i);
+        }
+        InMemoryInvertedIndex index = new InMemoryInvertedIndex();
+        index.startIndexing();
+        for (int i = 0; i < 2000; i++) {
+            index.indexDocument(new IndexDocument("method" + random.nextInt(12), "Type" + random.nextInt(3),
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8))));
+        }
+        index.finishIndexing();
+        List<IndexDocument> queries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            queries.add(new IndexDocument(null, "Type" + random.nextInt(3),
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8))));
+        }
+        // one recommender serves all threads
+        KaVeRecommender recommender = new KaVeRecommender(index);
+        List<List<String>> expected = new ArrayList<>();
+        for (IndexDocument query : queries) {
+            expected.add(topMethods(recommender.rank(query)));
+        }
+
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                tasks.add(() -> {
+                    // every thread asks all queries, in an order of its own
+                    List<Integer> order = new ArrayList<>();
+                    for (int i = 0; i < queries.size(); i++) {
+                        order.add(i);
+                    }
+                    Collections.shuffle(order, new Random(seed));
+                    for (int i : order) {
+                        assertEquals(expected.get(i), topMethods(recommender.rank(queries.get(i))));
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                // rethrows assertion errors of the threads
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void metricsRecordEveryStage() throws Exception {
+        Random random = new Random(23);
+        List<String> vocabulary = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            vocabulary.add("word" + i);
+        }
+        InMemoryInvertedIndex index = new InMemoryInvertedIndex();
+        index.startIndexing();
+        for (int i = 0; i < 2000; i++) {
+            index.indexDocument(new IndexDocument("method" + random.nextInt(12), "Type" + random.nextInt(2),
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8))));
+        }
+        index.finishIndexing();
+        HdrHistogramQueryMetrics metrics = new HdrHistogramQueryMetrics();
+        index.setQueryMetrics(metrics);
+        RecommendationPipeline pipeline = new RecommendationPipeline(new IndexSearchCandidateStage(index),
+                new BoundedRankingStage(SimilarityKernels.BIT_PARALLEL), 200, 30, 0.30, 3, metrics);
+        for (int i = 0; i < 20; i++) {
+            new Recommender(pipeline, new IndexDocument(null, "Type" + (i % 2),
+                    randomWords(random, vocabulary, 1 + random.nextInt(3)),
+                    randomWords(random, vocabulary, 3 + random.nextInt(8))));
+        }
+
+        for (QueryStage stage : Arrays.asList(QueryStage.SEARCHER_ACQUISITION, QueryStage.LUCENE_QUERY,
+                QueryStage.DOCUMENT_FETCH, QueryStage.CANDIDATE_STAGE, QueryStage.RANKING, QueryStage.QUERY)) {
+            assertEquals(20, metrics.getLatencies(stage).getTotalCount());
+        }
+        // the in-memory index has no simhash neighbor indexes
+        assertEquals(0, metrics.getLatencies(QueryStage.NEIGHBOR_SEARCH).getTotalCount());
+        for (CandidateCount count : CandidateCount.values()) {
+            assertEquals(20, metrics.getCandidates(count).getTotalCount());
+        }
+        assertTrue(metrics.getCandidates(CandidateCount.REFINED_CANDIDATES).getMaxValue() <= 200);
+        assertTrue(metrics.getCandidates(CandidateCount.BASE_CANDIDATES).getMaxValue()
+                >= metrics.getCandidates(CandidateCount.REFINED_CANDIDATES).getMaxValue());
+        assertEquals(new HashSet<>(Arrays.asList("Type0", "Type1")), metrics.getTypesWithMostBaseCandidates().keySet());
+
+        // the same metrics through JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.registerMBean("RecommenderTest");
+        try {
+            ObjectName name = HdrHistogramQueryMetrics.objectName("RecommenderTest");
+            assertEquals(20L, server.getAttribute(name, "Queries"));
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "Queries"));
+        } finally {
+            metrics.unregisterMBean("RecommenderTest");
+        }
+    }
+
+    private static List<Integer> distances(List<IndexDocument> candidates, IndexDocument query) {
+        List<Integer> distances = new ArrayList<>();
+        for (IndexDocument candidate : candidates) {
+            distances.add(IndexDocument.refinementDistance(candidate.getLineContextSimhash(),
+                    candidate.getOverallContextSimhash(), query.getLineContextSimhash(),
+                    query.getOverallContextSimhash(), 30));
+        }
+        return distances;
+    }
+
+    private static List<String> topMethods(Ranking ranking) {
+        List<String> methods = new ArrayList<>();
+        for (ScoredCandidate candidate : ranking.getTopCandidates()) {
+            methods.add(candidate.getMethodCall() + " " + candidate.getScore1() + " " + candidate.getScore2());
+        }
+        return methods;
+    }
+
+    @Test
+    public void topScoredMethodsMatchesSortAndDedupe() {
+        Random random = new Random(11);
+        for (int round = 0; round < 200; round++) {
+            int n = 1 + random.nextInt(5);
+            TopScoredMethods topMethods = new TopScoredMethods(n);
+            List<ScoredCandidate> candidates = new ArrayList<>();
+            for (int i = 0; i < random.nextInt(60); i++) {
+                // few distinct scores, so that there are many ties
+                IndexDocument doc = new IndexDocument("method" + random.nextInt(8), "Type",
+                        Collections.singletonList("line" + i), Collections.singletonList("overall" + i));
+                ScoredCandidate candidate = new ScoredCandidate(doc, random.nextInt(4) / 4.0, random.nextInt(3) / 3.0);
+                candidates.add(candidate);
+                topMethods.add(doc, candidate.getScore1(), candidate.getScore2());
+            }
+            // stable sort, then keep the first candidate of each method
+            candidates.sort(null);
+            Set<String> seen = new HashSet<>();
+            List<IndexDocument> expected = new ArrayList<>();
+            for (ScoredCandidate candidate : candidates) {
+                if (seen.add(candidate.getMethodCall()) && expected.size() < n) {
+                    expected.add(candidate.getDocument());
+                }
+            }
+            List<IndexDocument> actual = new ArrayList<>();
+            for (ScoredCandidate candidate : topMethods.toList()) {
+                actual.add(candidate.getDocument());
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static List<String> randomWords(Random random, List<String> vocabulary, int count) {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            words.add(vocabulary.get(random.nextInt(vocabulary.size())));
+        }
+        return words;
+    }
 }
@@ -3,10 +3,12 @@ package ch.uzh.ifi.seal.ase.cscc.index;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class ScoredIndexDocumentTest {
 
@@ -56,4 +58,32 @@ public class ScoredIndexDocumentTest {
         String expected = "ScoredIndexDocument{id='fc51fdcdc912a4771c94fadb49f8d37e620f25d44022af3e4422a5d97221a479', methodCall='', type='empty', lineContext=[], overallContext=[], lineContextSimhash=338333539836370388, overallContextSimhash=338333539836370388, score1=1.0, score2=2.0}";
         assertEquals(expected, scoredDoc.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void scoredCandidatesSortLikeScoredIndexDocuments() {
+        double[][] scores = {{2, 0.2}, {1, 0}, {2, 0.0}, {3, 0}, {2, 0.1}, {2, 0.1}, {Double.NaN, 1}};
+        List<ScoredIndexDocument> scoredIndexDocs = new LinkedList<>();
+        List<ScoredCandidate> scoredCandidates = new LinkedList<>();
+        for (double[] score : scores) {
+            scoredIndexDocs.add(new ScoredIndexDocument(emptyDoc, score[0], score[1]));
+            scoredCandidates.add(new ScoredCandidate(emptyDoc, score[0], score[1]));
+        }
+        scoredIndexDocs.sort(null);
+        scoredCandidates.sort(null);
+        for (int i = 0; i < scores.length; i++) {
+            assertEquals(scoredIndexDocs.get(i).getScore1(), scoredCandidates.get(i).getScore1(), 0.0);
+            assertEquals(scoredIndexDocs.get(i).getScore2(), scoredCandidates.get(i).getScore2(), 0.0);
+        }
+    }
+
+    @Test
+    public void scoringKeepsTheDocument() {
+        IndexDocument doc = new IndexDocument("m", "T", Arrays.asList("a", "b"), Arrays.asList("c"));
+        ScoredIndexDocument scoredDoc = new ScoredIndexDocument(doc, 1, 2);
+        assertEquals(doc.getId(), scoredDoc.getId());
+        assertEquals(doc.getOverallContextSimhash(), scoredDoc.getOverallContextSimhash());
+        assertEquals(doc, scoredDoc.getIndexDocumentWithoutScores());
+        assertEquals(doc.getLineContext(), scoredDoc.getIndexDocumentWithoutScores().getLineContext());
+        assertSame(doc, new ScoredCandidate(doc, 1, 2).getDocument());
+    }
+}
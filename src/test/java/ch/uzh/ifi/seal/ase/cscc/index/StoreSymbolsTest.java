@@ -0,0 +1,30 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class StoreSymbolsTest {
+
+    @Test
+    public void addPersisted_TokensAssignedAfterTheLoadedOnesStayUnpersisted() {
+        StoreSymbols symbols = new StoreSymbols();
+        symbols.addPersisted("storeSymbolsTest0");
+        symbols.toStoreId(SymbolTable.intern("storeSymbolsTest1"));
+        symbols.toStoreId(SymbolTable.intern("storeSymbolsTest2"));
+        assertEquals(Arrays.asList("storeSymbolsTest1", "storeSymbolsTest2"), symbols.takeUnpersisted());
+        symbols.toStoreId(SymbolTable.intern("storeSymbolsTest3"));
+
+        // a search connection reads the tokens which the indexing connection has persisted in the meantime
+        symbols.addPersisted("storeSymbolsTest1");
+        symbols.addPersisted("storeSymbolsTest2");
+        assertEquals(4, symbols.size());
+        assertEquals(3, symbols.firstUnpersistedId());
+        assertEquals(Collections.singletonList("storeSymbolsTest3"), symbols.takeUnpersisted());
+        assertEquals(4, symbols.firstUnpersistedId());
+    }
+
+}
@@ -0,0 +1,51 @@
+package ch.uzh.ifi.seal.ase.cscc.index;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticCorpusTest {
+
+    @Test
+    public void syntheticCorpusIsReproducible() {
+        SyntheticCorpus corpus1 = new SyntheticCorpus(7);
+        SyntheticCorpus corpus2 = new SyntheticCorpus(7);
+        corpus1.setDuplicateRatio(0.3);
+        corpus2.setDuplicateRatio(0.3);
+        for (int i = 0; i < 1000; i++) {
+            IndexDocument expected = corpus1.nextDocument();
+            IndexDocument actual = corpus2.nextDocument();
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getMethodCall(), actual.getMethodCall());
+            assertEquals(expected.getType(), actual.getType());
+        }
+    }
+
+    @Test
+    public void syntheticCorpusFollowsConfiguration() {
+        SyntheticCorpus corpus = new SyntheticCorpus(7);
+        corpus.setTypes(100, 1.0);
+        corpus.setContextLength(8, 2);
+        corpus.setDuplicateRatio(0.5);
+        Set<String> ids = new HashSet<>();
+        Map<String, Integer> typeCounts = new HashMap<>();
+        int n = 10000;
+        for (IndexDocument doc : corpus.nextDocuments(n)) {
+            ids.add(doc.getId());
+            typeCounts.merge(doc.getType(), 1, Integer::sum);
+            assertTrue(doc.getOverallContext().size() <= 8);
+            assertTrue(doc.getLineContext().size() <= 2);
+        }
+        // about half of the documents are duplicates
+        assertEquals(0.5, 1 - ids.size() / (double) n, 0.05);
+        // the most popular type is called about twice as often as the second most popular one
+        int first = typeCounts.get(SyntheticCorpus.TYPE_PREFIX + 0);
+        int second = typeCounts.get(SyntheticCorpus.TYPE_PREFIX + 1);
+        assertEquals(Collections.max(typeCounts.values()).intValue(), first);
+        assertEquals(2.0, first / (double) second, 0.4);
+    }
+
+}
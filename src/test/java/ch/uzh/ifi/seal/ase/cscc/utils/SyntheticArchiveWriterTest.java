@@ -0,0 +1,121 @@
+package ch.uzh.ifi.seal.ase.cscc.utils;
+
+import cc.kave.commons.model.events.IDEEvent;
+import cc.kave.commons.model.events.completionevents.CompletionEvent;
+import cc.kave.commons.model.events.completionevents.Context;
+import cc.kave.commons.model.events.completionevents.TerminationState;
+import cc.kave.commons.model.naming.codeelements.IMethodName;
+import cc.kave.commons.utils.io.IReadingArchive;
+import cc.kave.commons.utils.io.ReadingArchive;
+import ch.uzh.ifi.seal.ase.cscc.index.IndexDocument;
+import ch.uzh.ifi.seal.ase.cscc.index.SyntheticCorpus;
+import ch.uzh.ifi.seal.ase.cscc.visitors.IndexDocumentExtractionVisitor;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticArchiveWriterTest {
+
+    private static final String ARCHIVE_DIR = CSCCConfiguration.PERSISTENCE_LOCATION_TEST + "/CSCCSyntheticArchives";
+
+    // the overall context fits into the statements considered by the extraction, the line context is always empty
+    private static SyntheticCorpus newCorpus() {
+        SyntheticCorpus corpus = new SyntheticCorpus(11);
+        corpus.setTypes(20, 1.0);
+        corpus.setContextLength(CSCCConfiguration.LAST_N_CONSIDERED_STATEMENTS, 0);
+        corpus.setDuplicateRatio(0.2);
+        return corpus;
+    }
+
+    private static void assertRecovered(IndexDocument expected, IndexDocument actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getMethodCall(), actual.getMethodCall());
+        assertEquals(new HashSet<>(expected.getOverallContext()), new HashSet<>(actual.getOverallContext()));
+        assertTrue(actual.getLineContext().isEmpty());
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        FileUtils.deleteDirectory(new File(ARCHIVE_DIR));
+    }
+
+    @Test
+    public void writeContexts_DocumentsAreExtractedAgain() throws Exception {
+        // one document per context, so that the documents are read back in the order they have been written
+        List<String> zips = new SyntheticArchiveWriter(newCorpus(), 1).writeContexts(ARCHIVE_DIR, 50, 20);
+        assertEquals(3, zips.size());
+
+        List<IndexDocument> extracted = new ArrayList<>();
+        for (String zip : zips) {
+            try (IReadingArchive ra = new ReadingArchive(new File(zip))) {
+                while (ra.hasNext()) {
+                    Context ctx = ra.getNext(Context.class);
+                    ctx.getSST().accept(new IndexDocumentExtractionVisitor(), extracted);
+                }
+            }
+        }
+        List<IndexDocument> expected = newCorpus().nextDocuments(50);
+        assertEquals(expected.size(), extracted.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertRecovered(expected.get(i), extracted.get(i));
+        }
+    }
+
+    @Test
+    public void writeContexts_SeveralDocumentsPerContext() throws Exception {
+        List<String> zips = new SyntheticArchiveWriter(newCorpus(), 4).writeContexts(ARCHIVE_DIR, 30, 30);
+        int contexts = 0;
+        List<String> extractedIds = new ArrayList<>();
+        try (IReadingArchive ra = new ReadingArchive(new File(zips.get(0)))) {
+            while (ra.hasNext()) {
+                List<IndexDocument> docs = new ArrayList<>();
+                ra.getNext(Context.class).getSST().accept(new IndexDocumentExtractionVisitor(), docs);
+                docs.forEach(doc -> extractedIds.add(doc.getId()));
+                contexts++;
+            }
+        }
+        assertEquals(8, contexts);
+        // the methods of a context may be visited in any order
+        List<String> expectedIds = new ArrayList<>();
+        newCorpus().nextDocuments(30).forEach(doc -> expectedIds.add(doc.getId()));
+        Collections.sort(expectedIds);
+        Collections.sort(extractedIds);
+        assertEquals(expectedIds, extractedIds);
+    }
+
+    @Test
+    public void writeCompletionEvents_SelectedMethodIsExtractedAgain() throws Exception {
+        List<String> zips = new SyntheticArchiveWriter(newCorpus(), 1).writeCompletionEvents(ARCHIVE_DIR, 25, 10);
+        assertEquals(3, zips.size());
+
+        Iterator<IndexDocument> expected = newCorpus().nextDocuments(25).iterator();
+        for (String zip : zips) {
+            try (IReadingArchive ra = new ReadingArchive(new File(zip))) {
+                while (ra.hasNext()) {
+                    IDEEvent evt = ra.getNext(IDEEvent.class);
+                    assertTrue(evt instanceof CompletionEvent);
+                    CompletionEvent event = (CompletionEvent) evt;
+                    assertEquals(TerminationState.Applied, event.terminatedState);
+                    IndexDocument doc = expected.next();
+                    IMethodName selected = (IMethodName) event.getLastSelectedProposal().getName();
+                    assertEquals(doc.getMethodCall(), selected.getName());
+
+                    List<IndexDocument> extracted = new ArrayList<>();
+                    event.context.getSST().accept(new IndexDocumentExtractionVisitor(), extracted);
+                    assertEquals(1, extracted.size());
+                    assertRecovered(doc, extracted.get(0));
+                }
+            }
+        }
+        assertFalse(expected.hasNext());
+    }
+
+}